@@ -19,6 +19,7 @@
 package net.sf.mzmine.datamodel;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * This class represent detected masses (ions) in one mass spectrum. Each ion is represented by a
@@ -35,4 +36,55 @@ public interface MassList {
   @Nonnull
   public DataPoint[] getDataPoints();
 
+  /**
+   * @return Number of detected masses
+   */
+  public default int getNumberOfDataPoints() {
+    return getDataPoints().length;
+  }
+
+  /**
+   * Copies the m/z and intensity values of all detected masses into the given arrays, without
+   * creating any DataPoint instances. Both arrays must be able to hold at least
+   * getNumberOfDataPoints() values.
+   *
+   * @see MassSpectrum#fillDataPoints(double[], double[])
+   * @return Number of data points copied into the arrays
+   */
+  public default int fillDataPoints(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
+  /**
+   * @see MassSpectrum#getMzValues(double[])
+   */
+  @Nonnull
+  public default double[] getMzValues(@Nullable double array[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((array == null) || (array.length < dataPoints.length))
+      array = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      array[i] = dataPoints[i].getMZ();
+    return array;
+  }
+
+  /**
+   * @see MassSpectrum#getIntensityValues(double[])
+   */
+  @Nonnull
+  public default double[] getIntensityValues(@Nullable double array[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((array == null) || (array.length < dataPoints.length))
+      array = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      array[i] = dataPoints[i].getIntensity();
+    return array;
+  }
+
 }
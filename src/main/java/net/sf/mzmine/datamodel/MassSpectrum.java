@@ -95,4 +95,58 @@ public interface MassSpectrum {
   @Nonnull
   public DataPoint[] getDataPointsOverIntensity(double intensity);
 
+  /**
+   * Copies the m/z and intensity values of all data points, sorted in m/z order, into the given
+   * arrays, without creating any DataPoint instances. Both arrays must be able to hold at least
+   * getNumberOfDataPoints() values.
+   *
+   * This method may need to read data from disk, therefore it may be quite slow. Modules should be
+   * aware of that and reuse the arrays if possible.
+   *
+   * @param mzValues array for the m/z values
+   * @param intensityValues array for the intensity values
+   * @return Number of data points copied into the arrays
+   */
+  public default int fillDataPoints(@Nonnull double mzValues[],
+      @Nonnull double intensityValues[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+    return dataPoints.length;
+  }
+
+  /**
+   * Returns the m/z values of all data points, sorted in m/z order.
+   *
+   * @param array array to fill; a new array is allocated if this is null or too short
+   * @return Array containing getNumberOfDataPoints() m/z values
+   */
+  @Nonnull
+  public default double[] getMzValues(@Nullable double array[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((array == null) || (array.length < dataPoints.length))
+      array = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      array[i] = dataPoints[i].getMZ();
+    return array;
+  }
+
+  /**
+   * Returns the intensity values of all data points, sorted in m/z order.
+   *
+   * @param array array to fill; a new array is allocated if this is null or too short
+   * @return Array containing getNumberOfDataPoints() intensity values
+   */
+  @Nonnull
+  public default double[] getIntensityValues(@Nullable double array[]) {
+    final DataPoint dataPoints[] = getDataPoints();
+    if ((array == null) || (array.length < dataPoints.length))
+      array = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++)
+      array[i] = dataPoints[i].getIntensity();
+    return array;
+  }
+
 }
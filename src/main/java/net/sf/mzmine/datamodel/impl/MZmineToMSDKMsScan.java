@@ -31,8 +31,8 @@ import io.github.msdk.datamodel.PolarityType;
 import io.github.msdk.datamodel.RawDataFile;
 import io.github.msdk.datamodel.SimpleIsolationInfo;
 import io.github.msdk.util.tolerances.MzTolerance;
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.util.scans.DataPointsBuffer;
 
 /**
  * Simple implementation of the Scan interface.
@@ -69,22 +69,18 @@ public class MZmineToMSDKMsScan implements MsScan {
 
   @Override
   public double[] getMzValues(double[] array) {
-    if (array == null || array.length < mzmineScan.getNumberOfDataPoints())
-      array = new double[mzmineScan.getNumberOfDataPoints()];
-    DataPoint dp[] = mzmineScan.getDataPoints();
-    for (int i = 0; i < mzmineScan.getNumberOfDataPoints(); i++) {
-      array[i] = dp[i].getMZ();
-    }
-    return array;
+    return mzmineScan.getMzValues(array);
   }
 
   @Override
   public float[] getIntensityValues(float[] array) {
-    if (array == null || array.length < mzmineScan.getNumberOfDataPoints())
-      array = new float[mzmineScan.getNumberOfDataPoints()];
-    DataPoint dp[] = mzmineScan.getDataPoints();
-    for (int i = 0; i < mzmineScan.getNumberOfDataPoints(); i++) {
-      array[i] = (float) dp[i].getIntensity();
+    final int numOfDataPoints = mzmineScan.getNumberOfDataPoints();
+    if (array == null || array.length < numOfDataPoints)
+      array = new float[numOfDataPoints];
+    final double intensityValues[] =
+        mzmineScan.getIntensityValues(DataPointsBuffer.get(numOfDataPoints).getIntensityValues());
+    for (int i = 0; i < numOfDataPoints; i++) {
+      array[i] = (float) intensityValues[i];
     }
     return array;
   }
@@ -31,6 +31,7 @@ import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.border.EtchedBorder;
 
+import net.sf.mzmine.project.impl.DataPointsCache;
 import net.sf.mzmine.util.components.LabeledProgressBar;
 
 public class StatusBar extends JPanel implements Runnable, MouseListener {
@@ -142,7 +143,15 @@ public class StatusBar extends JPanel implements Runnable, MouseListener {
       double fullMem = ((double) (totalMem - freeMem)) / totalMem;
 
       memoryLabel.setValue(fullMem, freeMem + "MB free");
-      memoryLabel.setToolTipText("JVM memory: " + freeMem + "MB, " + totalMem + "MB total");
+      // get spectrum cache statistics
+      DataPointsCache cache = DataPointsCache.getInstance();
+      long cacheUsed = cache.getUsedBytes() / (1024 * 1024);
+      long cacheBudget = cache.getMemoryBudget() / (1024 * 1024);
+
+      memoryLabel.setToolTipText("<html>JVM memory: " + freeMem + "MB, " + totalMem
+          + "MB total<br>Spectrum cache: " + cacheUsed + "MB of " + cacheBudget + "MB, "
+          + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.getEvictions()
+          + " evictions</html>");
 
       try {
         wait(MEMORY_LABEL_UPDATE_FREQUENCY);
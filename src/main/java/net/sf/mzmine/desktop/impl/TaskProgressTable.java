@@ -22,8 +22,13 @@ import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.swing.JComponent;
+import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
@@ -32,6 +37,7 @@ import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.taskcontrol.Task;
@@ -52,12 +58,14 @@ public class TaskProgressTable extends JPanel implements ActionListener {
    */
   private static final long serialVersionUID = 1L;
 
+  private Logger logger = Logger.getLogger(this.getClass().getName());
+
   private JTable taskTable;
 
   private JPopupMenu popupMenu;
   private JMenu priorityMenu;
   private JMenuItem cancelTaskMenuItem, cancelAllMenuItem, highPriorityMenuItem,
-      normalPriorityMenuItem;
+      normalPriorityMenuItem, exportTimelineMenuItem;
 
   /**
    * Constructor
@@ -91,6 +99,9 @@ public class TaskProgressTable extends JPanel implements ActionListener {
 
     cancelTaskMenuItem = GUIUtils.addMenuItem(popupMenu, "Cancel task", this);
     cancelAllMenuItem = GUIUtils.addMenuItem(popupMenu, "Cancel all tasks", this);
+    popupMenu.addSeparator();
+    exportTimelineMenuItem =
+        GUIUtils.addMenuItem(popupMenu, "Export timeline of finished tasks...", this);
 
     // Addd popup menu to the task table
     taskTable.setComponentPopupMenu(popupMenu);
@@ -98,7 +109,7 @@ public class TaskProgressTable extends JPanel implements ActionListener {
     // Set the width for first column (task description)
     taskTable.getColumnModel().getColumn(0).setPreferredWidth(350);
 
-    jJobScroll.setPreferredSize(new Dimension(600, 120));
+    jJobScroll.setPreferredSize(new Dimension(900, 120));
 
   }
 
@@ -139,6 +150,24 @@ public class TaskProgressTable extends JPanel implements ActionListener {
       }
     }
 
+    if (src == exportTimelineMenuItem) {
+      JFileChooser chooser = new JFileChooser();
+      chooser.setFileFilter(new FileNameExtensionFilter("CSV file", "csv"));
+      chooser.setSelectedFile(new File("timeline.csv"));
+      if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+        return;
+      File file = chooser.getSelectedFile();
+      if (!file.getName().toLowerCase().endsWith(".csv"))
+        file = new File(file.getPath() + ".csv");
+      try {
+        taskController.writeTimeline(file);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Could not write the task timeline to " + file, e);
+        MZmineCore.getDesktop().displayErrorMessage(MZmineCore.getDesktop().getMainWindow(),
+            "Could not write the task timeline to " + file + ": " + e.getMessage());
+      }
+    }
+
     if (src == highPriorityMenuItem) {
       if (selectedTask == null)
         return;
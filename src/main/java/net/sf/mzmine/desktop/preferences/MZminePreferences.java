@@ -27,9 +27,12 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
 import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.ComboParameter;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.PercentParameter;
 import net.sf.mzmine.parameters.parametertypes.WindowSettingsParameter;
 import net.sf.mzmine.parameters.parametertypes.filenames.FileNameParameter;
 import net.sf.mzmine.parameters.parametertypes.submodules.OptionalModuleParameter;
+import net.sf.mzmine.project.impl.DataPointsEncoding;
 import net.sf.mzmine.util.ColorPalettes;
 import net.sf.mzmine.util.ExitCode;
 
@@ -52,6 +55,11 @@ public class MZminePreferences extends SimpleParameterSet {
 
   public static final NumOfThreadsParameter numOfThreads = new NumOfThreadsParameter();
 
+  public static final PercentParameter taskMemoryLimit = new PercentParameter(
+      "Memory available to tasks",
+      "Tasks with large memory needs are only started while their estimated memory usage fits into this fraction of the maximum Java heap",
+      0.7, 0.05, 1.0);
+
   public static final OptionalModuleParameter proxySettings = new OptionalModuleParameter(
       "Use proxy", "Use proxy for internet connection?", new ProxySettings());
 
@@ -66,11 +74,42 @@ public class MZminePreferences extends SimpleParameterSet {
       new OptionalModuleParameter("Send error e-Mail notifications",
           "Send error e-Mail notifications", new ErrorMailSettings());
 
+  public static final OptionalModuleParameter<TempFileCompactionSettings> tempFileCompaction =
+      new OptionalModuleParameter<>("Compact temporary files",
+          "Reclaim the space of removed mass lists in the temporary files while MZmine is running",
+          new TempFileCompactionSettings(), false);
+
+  public static final ComboParameter<DataPointsEncoding> dataPointsEncoding =
+      new ComboParameter<>("Data points encoding",
+          "Encoding of the m/z and intensity values in temporary files and saved projects",
+          DataPointsEncoding.values(), DataPointsEncoding.FLOAT);
+
+  public static final BooleanParameter compressDataPoints = new BooleanParameter(
+      "Compress data points",
+      "Compress the data points in temporary files and saved projects", false);
+
+  public static final OptionalModuleParameter<InMemoryStorageSettings> inMemoryStorage =
+      new OptionalModuleParameter<>("Keep raw data in memory",
+          "Keep the data points of scans and mass lists in memory instead of temporary files, up to the given limit",
+          new InMemoryStorageSettings(), false);
+
+  public static final IntegerParameter spectrumCacheSize = new IntegerParameter(
+      "Spectrum cache size (MB)",
+      "Memory used to keep recently read spectra and mass lists decoded (0 disables the cache)",
+      256, 0, null);
+
+  public static final BooleanParameter linkIndexedMzML = new BooleanParameter(
+      "Link indexed mzML files",
+      "Read the data points of indexed mzML files from the original file when needed, instead of copying them to temporary files. The original file must remain available while it is open.",
+      false);
+
   public static final WindowSettingsParameter windowSetttings = new WindowSettingsParameter();
 
   public MZminePreferences() {
     super(new Parameter[] {colorPalettes, mzFormat, rtFormat, intensityFormat, numOfThreads,
-        proxySettings, rExecPath, sendStatistics, windowSetttings, sendErrorEMail});
+        taskMemoryLimit, dataPointsEncoding, compressDataPoints, inMemoryStorage,
+        tempFileCompaction, spectrumCacheSize, linkIndexedMzML, proxySettings, rExecPath,
+        sendStatistics, windowSetttings, sendErrorEMail});
   }
 
   @Override
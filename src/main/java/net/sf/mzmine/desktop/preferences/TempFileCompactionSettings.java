@@ -0,0 +1,46 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.desktop.preferences;
+
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
+import net.sf.mzmine.parameters.parametertypes.PercentParameter;
+
+/**
+ * Settings for the compaction of the temporary data points files (mzmine*.scans). Removed mass
+ * lists leave unused space in these files; a file is rewritten in the background once the unused
+ * space exceeds both limits.
+ */
+public class TempFileCompactionSettings extends SimpleParameterSet {
+
+  public static final PercentParameter maxUnusedRatio = new PercentParameter(
+      "Maximum unused space",
+      "Compact a temporary file when more than this part of it is no longer used", 0.4);
+
+  public static final IntegerParameter minUnusedMegabytes = new IntegerParameter(
+      "Minimum unused space (MB)",
+      "Do not compact temporary files with less unused space than this, to avoid rewriting small files over and over",
+      64, 0, null);
+
+  public TempFileCompactionSettings() {
+    super(new Parameter[] {maxUnusedRatio, minUnusedMegabytes});
+  }
+
+}
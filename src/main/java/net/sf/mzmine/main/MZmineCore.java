@@ -38,6 +38,7 @@ import net.sf.mzmine.desktop.Desktop;
 import net.sf.mzmine.desktop.impl.HeadLessDesktop;
 import net.sf.mzmine.desktop.impl.MainWindow;
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
 import net.sf.mzmine.main.NewVersionCheck.CheckType;
 import net.sf.mzmine.main.impl.MZmineConfigurationImpl;
 import net.sf.mzmine.modules.MZmineModule;
@@ -241,6 +242,16 @@ public final class MZmineCore {
         System.exit(1);
       }
       ExitCode exitCode = BatchModeModule.runBatch(projectManager.getCurrentProject(), batchFile);
+
+      // Write the performance values of all tasks next to the batch file
+      String timelineName = batchFile.getName().replaceFirst("\\.[^.]*$", "") + "_timeline.csv";
+      try {
+        taskController.writeTimeline(
+            new File(batchFile.getAbsoluteFile().getParentFile(), timelineName));
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Could not write the task timeline " + timelineName, e);
+      }
+
       if (exitCode == ExitCode.OK)
         System.exit(0);
       else
@@ -272,6 +283,21 @@ public final class MZmineCore {
     return configuration;
   }
 
+  /**
+   * Returns the number of worker threads set in the preferences, or the number of CPU cores if it
+   * is set to automatic or the preferences are not loaded yet
+   */
+  public static int getNumberOfThreads() {
+    int numOfThreads = Runtime.getRuntime().availableProcessors();
+    if ((configuration != null) && (configuration.getPreferences() != null)) {
+      NumOfThreadsParameter parameter =
+          configuration.getPreferences().getParameter(MZminePreferences.numOfThreads);
+      if (!parameter.isAutomatic() && (parameter.getValue() != null))
+        numOfThreads = Math.max(1, parameter.getValue());
+    }
+    return numOfThreads;
+  }
+
   /**
    * Returns the instance of a module of given class
    */
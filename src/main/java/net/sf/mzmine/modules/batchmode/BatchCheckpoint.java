@@ -0,0 +1,444 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.modules.batchmode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.PeakIdentity;
+import net.sf.mzmine.datamodel.PeakList;
+import net.sf.mzmine.datamodel.PeakListRow;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.PeakListOpenHandler_2_5;
+import net.sf.mzmine.modules.projectmethods.projectload.version_2_5.RawDataFileOpenHandler_2_5;
+import net.sf.mzmine.modules.projectmethods.projectsave.PeakListSaveHandler;
+import net.sf.mzmine.modules.projectmethods.projectsave.RawDataFileSaveHandler;
+import net.sf.mzmine.project.impl.MZmineProjectImpl;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.util.StreamCopy;
+
+/**
+ * Checkpoint of a batch run from a batch file. After each completed batch step, the project state
+ * and the position in the queue are saved to a directory next to the batch file, so a restarted
+ * batch can continue after the last completed step.
+ * 
+ * Each raw data file and feature list is saved to its own file, in the format of the project files.
+ * A file is only written again if the item has been changed since the last checkpoint, e.g. when
+ * mass lists were added to a raw data file. The list of files belonging to the checkpoint is saved
+ * last and replaces the previous list at once, so a crash while saving leaves the previous
+ * checkpoint intact.
+ * 
+ * The checkpoint is not incremental within an item: a changed item is saved again as a whole, so
+ * adding a mass list to a raw data file rewrites all its scans. Changes are detected by a
+ * fingerprint of the item (see getFingerprint()), which does not cover everything. For a feature
+ * list, it covers its rows, their average values, identities and comments and the applied methods,
+ * but not e.g. the features of a row changed in place by a module that does not record an applied
+ * method. Such changes are only saved with the next change that the fingerprint does cover.
+ */
+class BatchCheckpoint {
+
+  private static final Logger logger = Logger.getLogger(BatchCheckpoint.class.getName());
+
+  private static final String CHECKPOINT_FILENAME = "checkpoint.xml";
+
+  private static final String CHECKPOINT_ELEMENT = "batchcheckpoint";
+  private static final String RAW_DATA_FILE_ELEMENT = "rawdatafile";
+  private static final String PEAK_LIST_ELEMENT = "peaklist";
+  private static final String BATCH_DATA_FILE_ELEMENT = "batchdatafile";
+  private static final String BATCH_PEAK_LIST_ELEMENT = "batchpeaklist";
+  private static final String VERSION_ATTRIBUTE = "version";
+  private static final String CHECKSUM_ATTRIBUTE = "batchchecksum";
+  private static final String COMPLETED_STEPS_ATTRIBUTE = "completedsteps";
+  private static final String ID_ATTRIBUTE = "id";
+  private static final String FILE_ATTRIBUTE = "file";
+  private static final String FINGERPRINT_ATTRIBUTE = "fingerprint";
+
+  private final File directory;
+  private final String batchChecksum;
+
+  // IDs of the saved items, the files they were saved to and their state at that time
+  private final Hashtable<RawDataFile, String> dataFileIDs = new Hashtable<>();
+  private final Hashtable<PeakList, String> peakListIDs = new Hashtable<>();
+  private final Hashtable<Object, String> itemFiles = new Hashtable<>();
+  private final Hashtable<Object, Long> itemFingerprints = new Hashtable<>();
+  private int nextID = 1, nextFileNumber = 1;
+
+  // State of the loaded checkpoint
+  private int completedSteps = 0;
+  private final List<RawDataFile> batchDataFiles = new ArrayList<>();
+  private final List<PeakList> batchPeakLists = new ArrayList<>();
+
+  /**
+   * Creates a checkpoint for the given batch file, in the directory [batch file name]_checkpoint
+   * next to it
+   */
+  BatchCheckpoint(File batchFile) throws IOException {
+    final String batchName = batchFile.getName().replaceFirst("\\.[^.]*$", "");
+    this.directory =
+        new File(batchFile.getAbsoluteFile().getParentFile(), batchName + "_checkpoint");
+    final CRC32 crc = new CRC32();
+    crc.update(Files.readAllBytes(batchFile.toPath()));
+    this.batchChecksum = Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * @return the number of batch steps completed in the loaded checkpoint
+   */
+  int getCompletedSteps() {
+    return completedSteps;
+  }
+
+  /**
+   * @return the data files created by the last completed batch step of the loaded checkpoint
+   */
+  List<RawDataFile> getBatchDataFiles() {
+    return batchDataFiles;
+  }
+
+  /**
+   * @return the feature lists created by the last completed batch step of the loaded checkpoint
+   */
+  List<PeakList> getBatchPeakLists() {
+    return batchPeakLists;
+  }
+
+  /**
+   * Loads an existing checkpoint into a new project, which replaces the current project. A
+   * checkpoint of a different batch file or MZmine version is removed instead.
+   * 
+   * @return true if a checkpoint was loaded
+   */
+  boolean load() throws Exception {
+
+    final File checkpointFile = new File(directory, CHECKPOINT_FILENAME);
+    if (!checkpointFile.exists())
+      return false;
+
+    final Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(checkpointFile).getDocumentElement();
+    if (!batchChecksum.equals(root.getAttribute(CHECKSUM_ATTRIBUTE))
+        || !MZmineCore.getMZmineVersion().equals(root.getAttribute(VERSION_ATTRIBUTE))) {
+      logger.warning("Checkpoint in " + directory
+          + " was saved for a different batch file or MZmine version, starting from the beginning");
+      delete();
+      return false;
+    }
+
+    logger.info("Loading batch checkpoint from " + directory);
+
+    final MZmineProjectImpl newProject = new MZmineProjectImpl();
+    final Hashtable<String, RawDataFile> loadedDataFiles = new Hashtable<>();
+    final Hashtable<String, PeakList> loadedPeakLists = new Hashtable<>();
+
+    final NodeList dataFileNodes = root.getElementsByTagName(RAW_DATA_FILE_ELEMENT);
+    for (int i = 0; i < dataFileNodes.getLength(); i++) {
+      final Element element = (Element) dataFileNodes.item(i);
+      final String fileName = element.getAttribute(FILE_ATTRIBUTE);
+      final RawDataFile dataFile = loadRawDataFile(new File(directory, fileName));
+      newProject.addFile(dataFile);
+      loadedDataFiles.put(element.getAttribute(ID_ATTRIBUTE), dataFile);
+      registerItem(dataFile, element);
+      dataFileIDs.put(dataFile, element.getAttribute(ID_ATTRIBUTE));
+    }
+
+    final NodeList peakListNodes = root.getElementsByTagName(PEAK_LIST_ELEMENT);
+    for (int i = 0; i < peakListNodes.getLength(); i++) {
+      final Element element = (Element) peakListNodes.item(i);
+      final String fileName = element.getAttribute(FILE_ATTRIBUTE);
+      final PeakList peakList = loadPeakList(new File(directory, fileName), loadedDataFiles);
+      newProject.addPeakList(peakList);
+      loadedPeakLists.put(element.getAttribute(ID_ATTRIBUTE), peakList);
+      registerItem(peakList, element);
+      peakListIDs.put(peakList, element.getAttribute(ID_ATTRIBUTE));
+    }
+
+    final NodeList batchDataFileNodes = root.getElementsByTagName(BATCH_DATA_FILE_ELEMENT);
+    for (int i = 0; i < batchDataFileNodes.getLength(); i++) {
+      final String id = ((Element) batchDataFileNodes.item(i)).getAttribute(ID_ATTRIBUTE);
+      if (loadedDataFiles.containsKey(id))
+        batchDataFiles.add(loadedDataFiles.get(id));
+    }
+    final NodeList batchPeakListNodes = root.getElementsByTagName(BATCH_PEAK_LIST_ELEMENT);
+    for (int i = 0; i < batchPeakListNodes.getLength(); i++) {
+      final String id = ((Element) batchPeakListNodes.item(i)).getAttribute(ID_ATTRIBUTE);
+      if (loadedPeakLists.containsKey(id))
+        batchPeakLists.add(loadedPeakLists.get(id));
+    }
+
+    completedSteps = Integer.parseInt(root.getAttribute(COMPLETED_STEPS_ATTRIBUTE));
+
+    MZmineCore.getProjectManager().setCurrentProject(newProject);
+
+    logger.info("Loaded batch checkpoint after step # " + completedSteps + " with "
+        + loadedDataFiles.size() + " raw data files and " + loadedPeakLists.size()
+        + " feature lists");
+
+    return true;
+  }
+
+  /**
+   * Saves the items of the project that changed since the last checkpoint, then the list of all
+   * items together with the number of completed steps and the items created by the last step.
+   */
+  synchronized void save(MZmineProject project, int completedSteps,
+      RawDataFile[] stepDataFiles, PeakList[] stepPeakLists) throws Exception {
+
+    Files.createDirectories(directory.toPath());
+
+    final Document document =
+        DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    final Element root = document.createElement(CHECKPOINT_ELEMENT);
+    document.appendChild(root);
+    root.setAttribute(VERSION_ATTRIBUTE, MZmineCore.getMZmineVersion());
+    root.setAttribute(CHECKSUM_ATTRIBUTE, batchChecksum);
+    root.setAttribute(COMPLETED_STEPS_ATTRIBUTE, String.valueOf(completedSteps));
+
+    final Set<String> usedFiles = new HashSet<>();
+    usedFiles.add(CHECKPOINT_FILENAME);
+    final Set<Object> projectItems = new HashSet<>();
+    projectItems.addAll(Arrays.asList(project.getDataFiles()));
+    projectItems.addAll(Arrays.asList(project.getPeakLists()));
+
+    for (RawDataFile dataFile : project.getDataFiles()) {
+      if (!dataFileIDs.containsKey(dataFile))
+        dataFileIDs.put(dataFile, String.valueOf(nextID++));
+      final String id = dataFileIDs.get(dataFile);
+      final long fingerprint = getFingerprint(dataFile);
+      if (!itemFiles.containsKey(dataFile) || (itemFingerprints.get(dataFile) != fingerprint)) {
+        final File file = nextItemFile();
+        saveRawDataFile(dataFile, Integer.parseInt(id), file);
+        itemFiles.put(dataFile, file.getName());
+        itemFingerprints.put(dataFile, fingerprint);
+      }
+      root.appendChild(createItemElement(document, RAW_DATA_FILE_ELEMENT, id, dataFile));
+      usedFiles.add(itemFiles.get(dataFile));
+    }
+
+    for (PeakList peakList : project.getPeakLists()) {
+      if (!peakListIDs.containsKey(peakList))
+        peakListIDs.put(peakList, String.valueOf(nextID++));
+      final String id = peakListIDs.get(peakList);
+      final long fingerprint = getFingerprint(peakList);
+      if (!itemFiles.containsKey(peakList) || (itemFingerprints.get(peakList) != fingerprint)) {
+        final File file = nextItemFile();
+        savePeakList(peakList, Integer.parseInt(id), file);
+        itemFiles.put(peakList, file.getName());
+        itemFingerprints.put(peakList, fingerprint);
+      }
+      root.appendChild(createItemElement(document, PEAK_LIST_ELEMENT, id, peakList));
+      usedFiles.add(itemFiles.get(peakList));
+    }
+
+    for (RawDataFile dataFile : stepDataFiles) {
+      if (!dataFileIDs.containsKey(dataFile))
+        continue;
+      final Element element = document.createElement(BATCH_DATA_FILE_ELEMENT);
+      element.setAttribute(ID_ATTRIBUTE, dataFileIDs.get(dataFile));
+      root.appendChild(element);
+    }
+    for (PeakList peakList : stepPeakLists) {
+      if (!peakListIDs.containsKey(peakList))
+        continue;
+      final Element element = document.createElement(BATCH_PEAK_LIST_ELEMENT);
+      element.setAttribute(ID_ATTRIBUTE, peakListIDs.get(peakList));
+      root.appendChild(element);
+    }
+
+    // Replace the previous list of items at once
+    final File tempFile = File.createTempFile(CHECKPOINT_FILENAME, ".tmp", directory);
+    final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+    try (FileOutputStream os = new FileOutputStream(tempFile)) {
+      transformer.transform(new DOMSource(document), new StreamResult(os));
+      os.getFD().sync();
+    }
+    Files.move(tempFile.toPath(), new File(directory, CHECKPOINT_FILENAME).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    // Remove the files of items that are no longer part of the checkpoint
+    final File existingFiles[] = directory.listFiles();
+    if (existingFiles != null) {
+      for (File file : existingFiles) {
+        if (!usedFiles.contains(file.getName()))
+          file.delete();
+      }
+    }
+    itemFiles.keySet().retainAll(projectItems);
+    itemFingerprints.keySet().retainAll(projectItems);
+
+    logger.info("Saved batch checkpoint after step # " + completedSteps + " to " + directory);
+  }
+
+  /**
+   * Removes the checkpoint, e.g. after the batch was completed
+   */
+  synchronized void delete() {
+    final File existingFiles[] = directory.listFiles();
+    if (existingFiles == null)
+      return;
+    for (File file : existingFiles)
+      file.delete();
+    directory.delete();
+    dataFileIDs.clear();
+    peakListIDs.clear();
+    itemFiles.clear();
+    itemFingerprints.clear();
+  }
+
+  private Element createItemElement(Document document, String elementName, String id,
+      Object item) {
+    final Element element = document.createElement(elementName);
+    element.setAttribute(ID_ATTRIBUTE, id);
+    element.setAttribute(FILE_ATTRIBUTE, itemFiles.get(item));
+    element.setAttribute(FINGERPRINT_ATTRIBUTE, String.valueOf(itemFingerprints.get(item)));
+    return element;
+  }
+
+  private void registerItem(Object item, Element element) {
+    final String id = element.getAttribute(ID_ATTRIBUTE);
+    itemFiles.put(item, element.getAttribute(FILE_ATTRIBUTE));
+    itemFingerprints.put(item, Long.parseLong(element.getAttribute(FINGERPRINT_ATTRIBUTE)));
+    nextID = Math.max(nextID, Integer.parseInt(id) + 1);
+    final String fileNumber = element.getAttribute(FILE_ATTRIBUTE).replaceAll("\\D", "");
+    if (!fileNumber.isEmpty())
+      nextFileNumber = Math.max(nextFileNumber, Integer.parseInt(fileNumber) + 1);
+  }
+
+  private File nextItemFile() {
+    return new File(directory, "item" + (nextFileNumber++) + ".zip");
+  }
+
+  /**
+   * The fingerprint changes when mass lists are added to or removed from a raw data file
+   */
+  private static long getFingerprint(RawDataFile dataFile) {
+    long fingerprint = dataFile.getName().hashCode();
+    for (int scanNumber : dataFile.getScanNumbers()) {
+      final Scan scan = dataFile.getScan(scanNumber);
+      fingerprint = 31 * fingerprint + scanNumber;
+      for (MassList massList : scan.getMassLists())
+        fingerprint = 31 * fingerprint + massList.getName().hashCode();
+    }
+    return fingerprint;
+  }
+
+  /**
+   * The fingerprint changes when rows are added or removed, their average values, identities or
+   * comments change, or a method was applied to the feature list
+   */
+  private static long getFingerprint(PeakList peakList) {
+    long fingerprint = peakList.getName().hashCode();
+    fingerprint = 31 * fingerprint + peakList.getAppliedMethods().length;
+    for (PeakListRow row : peakList.getRows()) {
+      fingerprint = 31 * fingerprint + row.getID();
+      fingerprint = 31 * fingerprint + row.getNumberOfPeaks();
+      fingerprint = 31 * fingerprint + Double.hashCode(row.getAverageMZ());
+      fingerprint = 31 * fingerprint + Double.hashCode(row.getAverageRT());
+      fingerprint = 31 * fingerprint + Double.hashCode(row.getAverageArea());
+      fingerprint = 31 * fingerprint + Objects.hashCode(row.getComment());
+      for (PeakIdentity identity : row.getPeakIdentities())
+        fingerprint = 31 * fingerprint + Objects.hashCode(identity.getName());
+    }
+    return fingerprint;
+  }
+
+  private void saveRawDataFile(RawDataFile dataFile, int id, File file) throws Exception {
+    try (ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(file))) {
+      new RawDataFileSaveHandler(zipStream).writeRawDataFile((RawDataFileImpl) dataFile, id);
+    }
+  }
+
+  private void savePeakList(PeakList peakList, int id, File file) throws Exception {
+    try (ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(file))) {
+      zipStream.putNextEntry(new ZipEntry("Peak list #" + id + " " + peakList.getName() + ".xml"));
+      new PeakListSaveHandler(zipStream, dataFileIDs).savePeakList(peakList);
+    }
+  }
+
+  private RawDataFile loadRawDataFile(File file) throws Exception {
+    try (ZipFile zipFile = new ZipFile(file)) {
+      File scansFile = null;
+      ZipEntry descriptionEntry = null;
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (entry.getName().endsWith(".scans")) {
+          scansFile = RawDataFileImpl.createNewDataPointsFile();
+          try (InputStream is = zipFile.getInputStream(entry);
+              FileOutputStream os = new FileOutputStream(scansFile)) {
+            new StreamCopy().copy(is, os);
+          }
+        }
+        if (entry.getName().endsWith(".xml"))
+          descriptionEntry = entry;
+      }
+      if ((scansFile == null) || (descriptionEntry == null))
+        throw new IOException("Incomplete raw data file " + file);
+      try (InputStream is = zipFile.getInputStream(descriptionEntry)) {
+        return new RawDataFileOpenHandler_2_5().readRawDataFile(is, scansFile);
+      }
+    }
+  }
+
+  private PeakList loadPeakList(File file, Hashtable<String, RawDataFile> dataFiles)
+      throws Exception {
+    try (ZipFile zipFile = new ZipFile(file)) {
+      final ZipEntry entry = zipFile.entries().nextElement();
+      try (InputStream is = zipFile.getInputStream(entry)) {
+        final PeakList peakList = new PeakListOpenHandler_2_5(dataFiles).readPeakList(is);
+        QualityParameters.calculateQualityParameters(peakList);
+        return peakList;
+      }
+    }
+  }
+
+}
@@ -27,6 +27,7 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.w3c.dom.Document;
 import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModuleCategory;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.parameters.ParameterSet;
@@ -87,7 +88,14 @@ public class BatchModeModule implements MZmineProcessingModule {
       BatchQueue newQueue = BatchQueue.loadFromXml(parsedBatchXML.getDocumentElement());
       ParameterSet parameters = new BatchModeParameters();
       parameters.getParameter(BatchModeParameters.batchQueue).setValue(newQueue);
-      Task batchTask = new BatchTask(project, parameters);
+
+      // Continue after the last completed step, if the batch was interrupted before
+      BatchCheckpoint checkpoint = new BatchCheckpoint(batchFile);
+      if (checkpoint.load())
+        project = MZmineCore.getProjectManager().getCurrentProject();
+
+      BatchTask batchTask = new BatchTask(project, parameters);
+      batchTask.setCheckpoint(checkpoint);
       batchTask.run();
       if (batchTask.getStatus() == TaskStatus.FINISHED)
         return ExitCode.OK;
@@ -47,11 +47,31 @@ public class BatchQueue extends Vector<MZmineProcessingStep<MZmineProcessingModu
   // Method element name.
   private static final String METHOD_ELEMENT = "method";
 
+  // Execution mode attribute name and the value of the per-file mode.
+  private static final String EXECUTION_ATTRIBUTE = "execution";
+  private static final String PER_FILE_EXECUTION = "perfile";
+
+  // Process the per-file steps of each data file independently, see BatchTask
+  private boolean perFileExecution = false;
+
+  /**
+   * @return true if each data file should move on to its next step as soon as its previous step is
+   *         finished
+   */
+  public boolean isPerFileExecution() {
+    return perFileExecution;
+  }
+
+  public void setPerFileExecution(boolean perFileExecution) {
+    this.perFileExecution = perFileExecution;
+  }
+
   @Override
   public BatchQueue clone() {
 
     // Clone the parameters.
     final BatchQueue clonedQueue = new BatchQueue();
+    clonedQueue.setPerFileExecution(perFileExecution);
     for (final MZmineProcessingStep<MZmineProcessingModule> step : this) {
       final ParameterSet parameters = step.getParameterSet();
       final MZmineProcessingStepImpl<MZmineProcessingModule> stepCopy =
@@ -79,6 +99,8 @@ public class BatchQueue extends Vector<MZmineProcessingStep<MZmineProcessingModu
 
     // Create an empty queue.
     final BatchQueue queue = new BatchQueue();
+    queue.setPerFileExecution(
+        PER_FILE_EXECUTION.equals(xmlElement.getAttribute(EXECUTION_ATTRIBUTE)));
 
     // Get the loaded modules.
     final Collection<MZmineModule> allModules = MZmineCore.getAllModules();
@@ -121,6 +143,9 @@ public class BatchQueue extends Vector<MZmineProcessingStep<MZmineProcessingModu
 
     final Document document = xmlElement.getOwnerDocument();
 
+    if (perFileExecution)
+      xmlElement.setAttribute(EXECUTION_ATTRIBUTE, PER_FILE_EXECUTION);
+
     // Process each step.
     for (final MZmineProcessingStep<?> step : this) {
 
@@ -36,6 +36,7 @@ import java.util.logging.Logger;
 import javax.swing.BoxLayout;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
@@ -104,6 +105,7 @@ public class BatchSetupComponent extends JPanel
   private final JButton btnClear;
   private final JButton btnLoad;
   private final JButton btnSave;
+  private final JCheckBox cbPerFile;
 
   Object[] queueListModel;
 
@@ -181,7 +183,9 @@ public class BatchSetupComponent extends JPanel
         "Loads a batch queue from a file");
     btnSave = GUIUtils.addButton(panelTop, "Save...", null, this, "SAVE",
         "Saves a batch queue to a file");
-
+    cbPerFile = GUIUtils.addCheckbox(panelTop, "Process files independently", this, "PERFILE",
+        "Each data file moves on to its next step as soon as its previous step is finished. "
+            + "Steps that combine several files, such as alignment, still wait for all files.");
 
     final JPanel pnlRight = new JPanel();
     pnlRight.setLayout(new BoxLayout(pnlRight, BoxLayout.Y_AXIS));
@@ -210,6 +214,10 @@ public class BatchSetupComponent extends JPanel
   @Override
   public void actionPerformed(final ActionEvent e) {
     final Object src = e.getSource();
+    if (cbPerFile.equals(src)) {
+      batchQueue.setPerFileExecution(cbPerFile.isSelected());
+    }
+
     if (btnAdd.equals(src)) {
 
       // Processing module selected?
@@ -362,6 +370,7 @@ public class BatchSetupComponent extends JPanel
 
     batchQueue = newValue;
     currentStepsList.setListData(batchQueue);
+    cbPerFile.setSelected(batchQueue.isPerFileExecution());
     selectStep(0);
   }
 
@@ -442,6 +451,7 @@ public class BatchSetupComponent extends JPanel
         case Replace:
           index = 0;
           batchQueue = queue;
+          cbPerFile.setSelected(batchQueue.isPerFileExecution());
           break;
         case Prepend:
           index = 0;
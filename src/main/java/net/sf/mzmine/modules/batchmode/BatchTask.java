@@ -18,9 +18,14 @@
 
 package net.sf.mzmine.modules.batchmode;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.MZmineProject;
@@ -28,43 +33,88 @@ import net.sf.mzmine.datamodel.MZmineProjectListener;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.MZmineModuleCategory;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportModule;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportParameters;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.UserParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelection;
+import net.sf.mzmine.parameters.parametertypes.selectors.PeakListsSelectionType;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesParameter;
 import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelection;
+import net.sf.mzmine.parameters.parametertypes.selectors.RawDataFilesSelectionType;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.taskcontrol.TaskStatusListener;
 import net.sf.mzmine.util.ExitCode;
 
 /**
  * Batch mode task
+ * 
+ * By default, each step is started when all tasks of the previous step are finished. If the queue
+ * is set to process files independently, consecutive steps that work on each data file or feature
+ * list on its own are run as one chain per file: a file moves on to the next step as soon as its
+ * own task of the previous step is finished. Steps that combine several files, such as alignment
+ * or gap filling, still wait for all files.
  */
 public class BatchTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
+  // Modules of these categories process each data file or feature list on its own
+  private static final EnumSet<MZmineModuleCategory> perFileCategories =
+      EnumSet.of(MZmineModuleCategory.RAWDATAFILTERING, MZmineModuleCategory.PEAKPICKING,
+          MZmineModuleCategory.PEAKLISTPICKING, MZmineModuleCategory.SPECTRALDECONVOLUTION,
+          MZmineModuleCategory.ISOTOPES);
+
   private int totalSteps, processedSteps;
 
   private MZmineProject project;
   private final BatchQueue queue;
 
-  private final List<RawDataFile> createdDataFiles, previousCreatedDataFiles;
-  private final List<PeakList> createdPeakLists, previousCreatedPeakLists;
+  // Data files and feature lists created by the batch steps
+  private final BatchItems createdItems = new BatchItems();
+
+  // Saves the state after each step, if the batch is run from a batch file
+  private BatchCheckpoint checkpoint;
+
+  // Items added by the tasks of a file chain, until the project listener has seen them
+  private final Set<Object> chainItems = ConcurrentHashMap.newKeySet();
+
+  // Set when a task of the current step changed its status, guarded by this
+  private boolean stepStatusChanged = false;
+
+  // Wakes up the batch thread as soon as a task changes its status
+  private final TaskStatusListener stepListener = (task, newStatus, oldStatus) -> {
+    synchronized (this) {
+      stepStatusChanged = true;
+      this.notifyAll();
+    }
+  };
 
   BatchTask(MZmineProject project, ParameterSet parameters) {
     this.project = project;
     this.queue = parameters.getParameter(BatchModeParameters.batchQueue).getValue();
     totalSteps = queue.size();
-    createdDataFiles = new ArrayList<>();
-    createdPeakLists = new ArrayList<>();
-    previousCreatedDataFiles = new ArrayList<>();
-    previousCreatedPeakLists = new ArrayList<>();
+  }
+
+  /**
+   * Sets the checkpoint to save the state to after each step. If the checkpoint was loaded, the
+   * batch continues after its last completed step.
+   */
+  void setCheckpoint(BatchCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+    processedSteps = checkpoint.getCompletedSteps();
+    for (RawDataFile dataFile : checkpoint.getBatchDataFiles())
+      createdItems.addDataFile(dataFile);
+    for (PeakList peakList : checkpoint.getBatchPeakLists())
+      createdItems.addPeakList(peakList);
   }
 
   @Override
@@ -72,26 +122,41 @@ public class BatchTask extends AbstractTask {
 
     setStatus(TaskStatus.PROCESSING);
     logger.info("Starting a batch of " + totalSteps + " steps");
+    if (processedSteps > 0)
+      logger.info("Continuing the batch after step # " + processedSteps);
 
-    // Listen for new items in the project
+    // Listen for new items in the project. Items added by a task of a file chain were already
+    // assigned to that chain by its ChainProject.
     MZmineProjectListener listener = new MZmineProjectListener() {
       @Override
       public void peakListAdded(PeakList newPeakList) {
-        createdPeakLists.add(newPeakList);
+        if (!chainItems.remove(newPeakList))
+          createdItems.addPeakList(newPeakList);
       }
 
       @Override
       public void dataFileAdded(RawDataFile newFile) {
-        createdDataFiles.add(newFile);
+        if (!chainItems.remove(newFile))
+          createdItems.addDataFile(newFile);
       }
     };
     project.addProjectListener(listener);
 
     // Process individual batch steps
-    for (int i = 0; i < totalSteps; i++) {
-
-      processQueueStep(i);
-      processedSteps++;
+    int i = processedSteps;
+    while (i < totalSteps) {
+
+      final int lastPerFileStep = queue.isPerFileExecution() ? findLastPerFileStep(i) : i;
+      if (lastPerFileStep > i) {
+        processPerFileSteps(i, lastPerFileStep);
+        chainItems.clear();
+        processedSteps += lastPerFileStep - i + 1;
+        i = lastPerFileStep + 1;
+      } else {
+        processQueueStep(i);
+        processedSteps++;
+        i++;
+      }
 
       // Update the project reference in case new project was loaded
       if (project != MZmineCore.getProjectManager().getCurrentProject()) {
@@ -102,46 +167,296 @@ public class BatchTask extends AbstractTask {
 
       // If we are canceled or ran into error, stop here
       if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
+        project.removeProjectListener(listener);
         return;
       }
 
+      // The checkpoint is deleted after the last step
+      if (i < totalSteps)
+        saveCheckpoint();
+
     }
 
     project.removeProjectListener(listener);
 
+    if (checkpoint != null)
+      checkpoint.delete();
+
     logger.info("Finished a batch of " + totalSteps + " steps");
     setStatus(TaskStatus.FINISHED);
 
   }
 
+  /**
+   * Saves the state after the completed steps. The batch continues if this fails, it just cannot
+   * be resumed from this step.
+   */
+  private void saveCheckpoint() {
+    if (checkpoint == null)
+      return;
+    try {
+      checkpoint.save(project, processedSteps, createdItems.getNextDataFiles(),
+          createdItems.getNextPeakLists());
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Could not save the batch checkpoint after step # " + processedSteps,
+          e);
+    }
+  }
+
   private void processQueueStep(int stepNumber) {
 
     logger.info("Starting step # " + (stepNumber + 1));
 
+    createdItems.startStep();
+
+    ArrayList<Task> currentStepTasks =
+        startStep(stepNumber, queue.get(stepNumber).getParameterSet(), createdItems, project);
+
+    // If current step didn't produce any tasks, continue with next step
+    if ((currentStepTasks == null) || currentStepTasks.isEmpty())
+      return;
+
+    submitTasks(currentStepTasks);
+
+    while (true) {
+
+      // If we canceled the batch, cancel all running tasks
+      if (isCanceled()) {
+        for (Task stepTask : currentStepTasks)
+          stepTask.cancel();
+        return;
+      }
+
+      if (checkTasks(currentStepTasks))
+        return;
+
+      waitForStatusChange();
+
+    }
+
+  }
+
+  /**
+   * Processes the given range of per-file steps as independent chains, one for each data file or
+   * feature list created by the previous steps. If the first step is the raw data import, each of
+   * its files starts a chain.
+   */
+  private void processPerFileSteps(int firstStep, int lastStep) {
+
+    logger.info("Starting steps # " + (firstStep + 1) + " to # " + (lastStep + 1)
+        + " for each file independently");
+
+    createdItems.startStep();
+
+    // Split the items into chains
+    final ParameterSet firstParameters = queue.get(firstStep).getParameterSet();
+    final List<FileChain> chains = new ArrayList<>();
+    if (hasParameter(firstParameters, RawDataFilesParameter.class)) {
+      for (RawDataFile dataFile : createdItems.getStepDataFiles()) {
+        final FileChain chain = new FileChain();
+        chain.items.addDataFile(dataFile);
+        for (PeakList peakList : createdItems.getStepPeakLists()) {
+          if (Arrays.equals(peakList.getRawDataFiles(), new RawDataFile[] {dataFile}))
+            chain.items.addPeakList(peakList);
+        }
+        chains.add(chain);
+      }
+    } else if (hasParameter(firstParameters, PeakListsParameter.class)) {
+      for (PeakList peakList : createdItems.getStepPeakLists()) {
+        final FileChain chain = new FileChain();
+        chain.items.addPeakList(peakList);
+        for (RawDataFile dataFile : peakList.getRawDataFiles())
+          chain.items.addDataFile(dataFile);
+        chains.add(chain);
+      }
+    } else {
+      // The raw data import, see findLastPerFileStep(), which is run for each file on its own
+      final File fileNames[] =
+          firstParameters.getParameter(RawDataImportParameters.fileNames).getValue();
+      if (fileNames != null) {
+        for (File fileName : fileNames) {
+          final FileChain chain = new FileChain();
+          final ParameterSet parameters = firstParameters.cloneParameterSet();
+          parameters.getParameter(RawDataImportParameters.fileNames)
+              .setValue(new File[] {fileName});
+          if (!startChainStep(chain, firstStep, parameters)) {
+            cancelChains(chains);
+            return;
+          }
+          chains.add(chain);
+        }
+      }
+    }
+
+    // Start the first step of chains created from existing items
+    for (FileChain chain : chains) {
+      if ((chain.tasks == null) && !startChainStep(chain, firstStep,
+          queue.get(firstStep).getParameterSet().cloneParameterSet())) {
+        cancelChains(chains);
+        return;
+      }
+    }
+
+    while (true) {
+
+      // If we canceled the batch, cancel all running tasks
+      if (isCanceled()) {
+        cancelChains(chains);
+        return;
+      }
+
+      boolean allChainsFinished = true, chainStarted = false;
+      for (FileChain chain : chains) {
+
+        if (chain.finished)
+          continue;
+
+        if (!checkTasks(chain.tasks)) {
+          allChainsFinished = false;
+          continue;
+        }
+        if (isCanceled() || (getStatus() == TaskStatus.ERROR)) {
+          cancelChains(chains);
+          return;
+        }
+
+        // Move this file on to its next step
+        if (chain.step == lastStep) {
+          chain.finished = true;
+          continue;
+        }
+        if (!startChainStep(chain, chain.step + 1,
+            queue.get(chain.step + 1).getParameterSet().cloneParameterSet())) {
+          cancelChains(chains);
+          return;
+        }
+        allChainsFinished = false;
+        chainStarted = true;
+      }
+
+      if (allChainsFinished)
+        break;
+
+      if (!chainStarted)
+        waitForStatusChange();
+
+    }
+
+    // The results of all chains are the results of these steps
+    for (FileChain chain : chains) {
+      chain.items.startStep();
+      for (RawDataFile dataFile : chain.items.getStepDataFiles())
+        createdItems.addDataFile(dataFile);
+      for (PeakList peakList : chain.items.getStepPeakLists())
+        createdItems.addPeakList(peakList);
+    }
+
+    logger.info("Finished steps # " + (firstStep + 1) + " to # " + (lastStep + 1) + " for "
+        + chains.size() + " files");
+
+  }
+
+  /**
+   * Starts the given step for the items of one file chain
+   * 
+   * @param parameters a copy of the step parameters, only used by this chain
+   * @return false if the step could not be started
+   */
+  private boolean startChainStep(FileChain chain, int stepNumber, ParameterSet parameters) {
+    chain.items.startStep();
+    final ArrayList<Task> tasks = startStep(stepNumber, parameters, chain.items, chain.project);
+    if (tasks == null)
+      return false;
+    chain.step = stepNumber;
+    chain.tasks = tasks;
+    submitTasks(tasks);
+    return true;
+  }
+
+  private void cancelChains(List<FileChain> chains) {
+    for (FileChain chain : chains) {
+      if (chain.tasks != null)
+        for (Task t : chain.tasks)
+          t.cancel();
+    }
+  }
+
+  /**
+   * Returns the last step of the per-file steps starting at the given step, or the given step if
+   * there are no two such consecutive steps. The raw data import may only start a range.
+   */
+  private int findLastPerFileStep(int firstStep) {
+    if (!isPerFileStep(firstStep)
+        && !(queue.get(firstStep).getModule() instanceof RawDataImportModule))
+      return firstStep;
+    int lastStep = firstStep;
+    while ((lastStep + 1 < totalSteps) && isPerFileStep(lastStep + 1))
+      lastStep++;
+    return lastStep;
+  }
+
+  /**
+   * A step works on each file on its own if its module has a suitable category and it uses the
+   * data files and feature lists created by the previous step
+   */
+  private boolean isPerFileStep(int stepNumber) {
+    final MZmineProcessingStep<?> step = queue.get(stepNumber);
+    final MZmineProcessingModule module = (MZmineProcessingModule) step.getModule();
+    if (!perFileCategories.contains(module.getModuleCategory()))
+      return false;
+    boolean hasSelection = false;
+    for (Parameter<?> p : step.getParameterSet().getParameters()) {
+      if (p instanceof RawDataFilesParameter) {
+        final RawDataFilesSelection selection = ((RawDataFilesParameter) p).getValue();
+        if ((selection == null)
+            || (selection.getSelectionType() != RawDataFilesSelectionType.BATCH_LAST_FILES))
+          return false;
+        hasSelection = true;
+      }
+      if (p instanceof PeakListsParameter) {
+        final PeakListsSelection selection = ((PeakListsParameter) p).getValue();
+        if ((selection == null)
+            || (selection.getSelectionType() != PeakListsSelectionType.BATCH_LAST_PEAKLISTS))
+          return false;
+        hasSelection = true;
+      }
+    }
+    return hasSelection;
+  }
+
+  private static boolean hasParameter(ParameterSet parameters, Class<?> parameterClass) {
+    for (Parameter<?> p : parameters.getParameters())
+      if (parameterClass.isInstance(p))
+        return true;
+    return false;
+  }
+
+  /**
+   * Sets the data files and feature lists of the given items as input of the step and runs its
+   * module
+   * 
+   * @param stepProject the project the tasks of the step add their results to
+   * @return the tasks of the step, or null if it could not be started
+   */
+  private ArrayList<Task> startStep(int stepNumber, ParameterSet batchStepParameters,
+      BatchItems items, MZmineProject stepProject) {
+
     // Run next step of the batch
     MZmineProcessingStep<?> currentStep = queue.get(stepNumber);
     MZmineProcessingModule method = (MZmineProcessingModule) currentStep.getModule();
-    ParameterSet batchStepParameters = currentStep.getParameterSet();
-
-    // If the last step did not produce any data files or feature lists, use
-    // the ones from the previous step
-    if (createdDataFiles.isEmpty())
-      createdDataFiles.addAll(previousCreatedDataFiles);
-    if (createdPeakLists.isEmpty())
-      createdPeakLists.addAll(previousCreatedPeakLists);
 
     // Update the RawDataFilesParameter parameters to reflect the current
     // state of the batch
     for (Parameter<?> p : batchStepParameters.getParameters()) {
       if (p instanceof RawDataFilesParameter) {
         RawDataFilesParameter rdp = (RawDataFilesParameter) p;
-        RawDataFile createdFiles[] = createdDataFiles.toArray(new RawDataFile[0]);
+        RawDataFile createdFiles[] = items.getStepDataFiles();
         final RawDataFilesSelection selectedFiles = rdp.getValue();
         if (selectedFiles == null) {
           setStatus(TaskStatus.ERROR);
           setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
               + "Missing parameter value for " + p.getName());
-          return;
+          return null;
         }
         selectedFiles.setBatchLastFiles(createdFiles);
       }
@@ -152,27 +467,18 @@ public class BatchTask extends AbstractTask {
     for (Parameter<?> p : batchStepParameters.getParameters()) {
       if (p instanceof PeakListsParameter) {
         PeakListsParameter rdp = (PeakListsParameter) p;
-        PeakList createdPls[] = createdPeakLists.toArray(new PeakList[0]);
+        PeakList createdPls[] = items.getStepPeakLists();
         final PeakListsSelection selectedPeakLists = rdp.getValue();
         if (selectedPeakLists == null) {
           setStatus(TaskStatus.ERROR);
           setErrorMessage("Invalid parameter settings for module " + method.getName() + ": "
               + "Missing parameter value for " + p.getName());
-          return;
+          return null;
         }
         selectedPeakLists.setBatchLastPeakLists(createdPls);
       }
     }
 
-    // Clear the saved data files and feature lists. Save them to the
-    // "previous" lists, in case the next step does not produce any new data
-    previousCreatedDataFiles.clear();
-    previousCreatedDataFiles.addAll(createdDataFiles);
-    previousCreatedPeakLists.clear();
-    previousCreatedPeakLists.addAll(createdPeakLists);
-    createdDataFiles.clear();
-    createdPeakLists.clear();
-
     // Check if the parameter settings are valid
     ArrayList<String> messages = new ArrayList<String>();
     boolean paramsCheck = batchStepParameters.checkParameterValues(messages);
@@ -183,74 +489,80 @@ public class BatchTask extends AbstractTask {
     }
 
     ArrayList<Task> currentStepTasks = new ArrayList<Task>();
-    ExitCode exitCode = method.runModule(project, batchStepParameters, currentStepTasks);
+    ExitCode exitCode = method.runModule(stepProject, batchStepParameters, currentStepTasks);
 
     if (exitCode != ExitCode.OK) {
       setStatus(TaskStatus.ERROR);
       setErrorMessage("Could not start batch step " + method.getName());
-      return;
+      return null;
     }
 
-    // If current step didn't produce any tasks, continue with next step
-    if (currentStepTasks.isEmpty())
-      return;
-
-    boolean allTasksFinished = false;
-
-    // Submit the tasks to the task controller for processing
-    MZmineCore.getTaskController().addTasks(currentStepTasks.toArray(new Task[0]));
-
-    while (!allTasksFinished) {
-
-      // If we canceled the batch, cancel all running tasks
-      if (isCanceled()) {
-        for (Task stepTask : currentStepTasks)
-          stepTask.cancel();
-        return;
-      }
+    return currentStepTasks;
+  }
 
-      // First set to true, then check all tasks
-      allTasksFinished = true;
+  /**
+   * Submits the tasks to the task controller for processing
+   */
+  private void submitTasks(List<Task> tasks) {
+    if (tasks.isEmpty())
+      return;
+    for (Task stepTask : tasks)
+      if (stepTask instanceof AbstractTask)
+        ((AbstractTask) stepTask).addTaskStatusListener(stepListener);
+    MZmineCore.getTaskController().addTasks(tasks.toArray(new Task[0]));
+  }
 
-      for (Task stepTask : currentStepTasks) {
+  /**
+   * Checks the status of the given tasks. If one of them ran into an error or was canceled, the
+   * batch is stopped.
+   * 
+   * @return true if all tasks are finished or the batch was stopped
+   */
+  private boolean checkTasks(List<Task> stepTasks) {
 
-        TaskStatus stepStatus = stepTask.getStatus();
+    boolean allTasksFinished = true;
 
-        // If any of them is not finished, keep checking
-        if (stepStatus != TaskStatus.FINISHED)
-          allTasksFinished = false;
+    for (Task stepTask : stepTasks) {
 
-        // If there was an error, we have to stop the whole batch
-        if (stepStatus == TaskStatus.ERROR) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage(stepTask.getTaskDescription() + ": " + stepTask.getErrorMessage());
-          return;
-        }
+      TaskStatus stepStatus = stepTask.getStatus();
 
-        // If user canceled any of the tasks, we have to cancel the
-        // whole batch
-        if (stepStatus == TaskStatus.CANCELED) {
-          setStatus(TaskStatus.CANCELED);
-          for (Task t : currentStepTasks)
-            t.cancel();
-          return;
-        }
+      // If any of them is not finished, keep checking
+      if (stepStatus != TaskStatus.FINISHED)
+        allTasksFinished = false;
 
+      // If there was an error, we have to stop the whole batch
+      if (stepStatus == TaskStatus.ERROR) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage(stepTask.getTaskDescription() + ": " + stepTask.getErrorMessage());
+        return true;
       }
 
-      // Wait 1s before checking the tasks again
-      if (!allTasksFinished) {
-        synchronized (this) {
-          try {
-            this.wait(1000);
-          } catch (InterruptedException e) {
-            // ignore
-          }
-        }
+      // If user canceled any of the tasks, we have to cancel the
+      // whole batch
+      if (stepStatus == TaskStatus.CANCELED) {
+        setStatus(TaskStatus.CANCELED);
+        for (Task t : stepTasks)
+          t.cancel();
+        return true;
       }
 
     }
 
+    return allTasksFinished;
+  }
+
+  /**
+   * Waits until a task changes its status, but at most 1s
+   */
+  private synchronized void waitForStatusChange() {
+    if (!stepStatusChanged) {
+      try {
+        this.wait(1000);
+      } catch (InterruptedException e) {
+        // ignore
+      }
+    }
+    stepStatusChanged = false;
   }
 
   @Override
@@ -271,4 +583,188 @@ public class BatchTask extends AbstractTask {
     return "Batch of " + totalSteps + " steps";
   }
 
+  /**
+   * Data files and feature lists created by the batch steps, either of the whole batch or of one
+   * file chain. Items are added by the threads of the tasks.
+   */
+  private static class BatchItems {
+
+    private final List<RawDataFile> createdDataFiles = new ArrayList<>(),
+        previousCreatedDataFiles = new ArrayList<>();
+    private final List<PeakList> createdPeakLists = new ArrayList<>(),
+        previousCreatedPeakLists = new ArrayList<>();
+
+    synchronized void addDataFile(RawDataFile dataFile) {
+      createdDataFiles.add(dataFile);
+    }
+
+    synchronized void addPeakList(PeakList peakList) {
+      createdPeakLists.add(peakList);
+    }
+
+    /**
+     * Takes the created items as input of the next step. If the last step did not produce any data
+     * files or feature lists, the ones of the previous step are used again.
+     */
+    synchronized void startStep() {
+      if (createdDataFiles.isEmpty())
+        createdDataFiles.addAll(previousCreatedDataFiles);
+      if (createdPeakLists.isEmpty())
+        createdPeakLists.addAll(previousCreatedPeakLists);
+      previousCreatedDataFiles.clear();
+      previousCreatedDataFiles.addAll(createdDataFiles);
+      previousCreatedPeakLists.clear();
+      previousCreatedPeakLists.addAll(createdPeakLists);
+      createdDataFiles.clear();
+      createdPeakLists.clear();
+    }
+
+    /**
+     * @return the data files the next step will use as input
+     */
+    synchronized RawDataFile[] getNextDataFiles() {
+      return (createdDataFiles.isEmpty() ? previousCreatedDataFiles : createdDataFiles)
+          .toArray(new RawDataFile[0]);
+    }
+
+    /**
+     * @return the feature lists the next step will use as input
+     */
+    synchronized PeakList[] getNextPeakLists() {
+      return (createdPeakLists.isEmpty() ? previousCreatedPeakLists : createdPeakLists)
+          .toArray(new PeakList[0]);
+    }
+
+    /**
+     * @return the data files used as input of the current step
+     */
+    synchronized RawDataFile[] getStepDataFiles() {
+      return previousCreatedDataFiles.toArray(new RawDataFile[0]);
+    }
+
+    /**
+     * @return the feature lists used as input of the current step
+     */
+    synchronized PeakList[] getStepPeakLists() {
+      return previousCreatedPeakLists.toArray(new PeakList[0]);
+    }
+
+  }
+
+  /**
+   * The per-file steps of one data file or feature list
+   */
+  private class FileChain {
+    final BatchItems items = new BatchItems();
+    final MZmineProject project = new ChainProject(items);
+    int step;
+    List<Task> tasks;
+    boolean finished = false;
+  }
+
+  /**
+   * Project given to the modules of the steps of one file chain. The data files and feature lists
+   * added by their tasks are assigned to the chain, whichever thread adds them, and then added to
+   * the project of the batch. Everything else is passed on to the project of the batch.
+   */
+  private class ChainProject implements MZmineProject {
+
+    private final BatchItems items;
+
+    ChainProject(BatchItems items) {
+      this.items = items;
+    }
+
+    @Override
+    public void addFile(RawDataFile newFile) {
+      items.addDataFile(newFile);
+      chainItems.add(newFile);
+      project.addFile(newFile);
+    }
+
+    @Override
+    public void addPeakList(PeakList peaklist) {
+      items.addPeakList(peaklist);
+      chainItems.add(peaklist);
+      project.addPeakList(peaklist);
+    }
+
+    @Override
+    public File getProjectFile() {
+      return project.getProjectFile();
+    }
+
+    @Override
+    public void addParameter(UserParameter<?, ?> parameter) {
+      project.addParameter(parameter);
+    }
+
+    @Override
+    public void removeParameter(UserParameter<?, ?> parameter) {
+      project.removeParameter(parameter);
+    }
+
+    @Override
+    public boolean hasParameter(UserParameter<?, ?> parameter) {
+      return project.hasParameter(parameter);
+    }
+
+    @Override
+    public UserParameter<?, ?>[] getParameters() {
+      return project.getParameters();
+    }
+
+    @Override
+    public void setParameterValue(UserParameter<?, ?> parameter, RawDataFile rawDataFile,
+        Object value) {
+      project.setParameterValue(parameter, rawDataFile, value);
+    }
+
+    @Override
+    public Object getParameterValue(UserParameter<?, ?> parameter, RawDataFile rawDataFile) {
+      return project.getParameterValue(parameter, rawDataFile);
+    }
+
+    @Override
+    public void removeFile(RawDataFile file) {
+      project.removeFile(file);
+    }
+
+    @Override
+    public RawDataFile[] getDataFiles() {
+      return project.getDataFiles();
+    }
+
+    @Override
+    public void removePeakList(PeakList peaklist) {
+      project.removePeakList(peaklist);
+    }
+
+    @Override
+    public PeakList[] getPeakLists() {
+      return project.getPeakLists();
+    }
+
+    @Override
+    public PeakList[] getPeakLists(RawDataFile file) {
+      return project.getPeakLists(file);
+    }
+
+    @Override
+    public void notifyObjectChanged(Object object, boolean structureChanged) {
+      project.notifyObjectChanged(object, structureChanged);
+    }
+
+    @Override
+    public void addProjectListener(MZmineProjectListener newListener) {
+      project.addProjectListener(newListener);
+    }
+
+    @Override
+    public void removeProjectListener(MZmineProjectListener listener) {
+      project.removeProjectListener(listener);
+    }
+
+  }
+
 }
@@ -27,19 +27,15 @@ import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.Vector;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.util.scans.ScanUtils;
@@ -55,9 +51,15 @@ public class ADAPChromatogram implements Feature {
   // Data file of this chromatogram
   private RawDataFile dataFile;
 
-  // Data points of the chromatogram (map of scan number -> m/z peak)
-  // private Hashtable<Integer, DataPoint> dataPointsMap;
-  private HashMap<Integer, DataPoint> dataPointsMap;
+  // Data points of the chromatogram, in the order they were added until the chromatogram is
+  // finished, then ordered by scan number. Only the first numOfDataPoints entries are used.
+  private int dataPointScanNumbers[];
+  private double dataPointMZValues[], dataPointIntensityValues[];
+  private int numOfDataPoints = 0;
+
+  // Open addressing table of data point indexes + 1 (0 marks a free slot), hashed by scan number,
+  // to find the data point of a scan while points are being added. Null once finished.
+  private int scanNumberTable[];
 
   // Chromatogram m/z, RT, height, area. The mz value will be the highest points mz value
   private double mz, rt, height, area, weightedMz;
@@ -72,13 +74,11 @@ public class ADAPChromatogram implements Feature {
   // Ranges of raw data points
   private Range<Double> rawDataPointsIntensityRange, rawDataPointsMZRange, rawDataPointsRTRange;
 
-  // A set of scan numbers of a segment which is currently being connected
-  private Vector<Integer> buildingSegment;
-  // A full list of all the scan numbers as points get added
-  private List<Integer> chromScanList;
+  // Index of the first data point of the segment which is currently being connected
+  private int buildingSegmentStart = 0;
 
-  // Keep track of last added data point
-  private DataPoint lastMzPeak;
+  // Keep track of last added data point, by its index
+  private int lastMzPeak = -1;
 
   // Number of connected segments, which have been committed by
   // commitBuildingSegment()
@@ -111,9 +111,10 @@ public class ADAPChromatogram implements Feature {
 
     rawDataPointsRTRange = dataFile.getDataRTRange(1);
 
-    dataPointsMap = new HashMap<Integer, DataPoint>();
-    buildingSegment = new Vector<Integer>();
-    chromScanList = new ArrayList<Integer>();
+    dataPointScanNumbers = new int[4];
+    dataPointMZValues = new double[4];
+    dataPointIntensityValues = new double[4];
+    scanNumberTable = new int[8];
   }
 
   public double getHighPointMZ() {
@@ -130,10 +131,11 @@ public class ADAPChromatogram implements Feature {
     List intensityList = new ArrayList();
 
     for (int curScanNum = 0; curScanNum < scanNumbers.length; curScanNum++) {
-      if (dataPointsMap.get(curScanNum) == null) {
+      final int index = findDataPoint(curScanNum);
+      if (index < 0) {
         intensityList.add(0.0);
       } else {
-        intensityList.add(dataPointsMap.get(curScanNum).getIntensity());
+        intensityList.add(dataPointIntensityValues[index]);
       }
     }
 
@@ -149,27 +151,24 @@ public class ADAPChromatogram implements Feature {
     // if the next scan contains a point higher than the noise update the count
     // otherwise start it oer when you hit a sufficiently high point.
     // keep track of the largest count which will be returned.
-    Collections.sort(chromScanList);
+    sortDataPoints();
 
 
     int bestCount = 0;
     int curCount = 0;
     int lastScanNum = 0;
-    int scanListLength = chromScanList.size();
 
     int curScanNum;
-    DataPoint curDataPoint;
 
-    for (int i = 1; i < scanListLength; i++) {
+    for (int i = 1; i < numOfDataPoints; i++) {
 
 
 
-      curScanNum = chromScanList.get(i);
-      curDataPoint = dataPointsMap.get(curScanNum);
+      curScanNum = dataPointScanNumbers[i];
 
-      if (curDataPoint.getIntensity() > noise) {
+      if (dataPointIntensityValues[i] > noise) {
 
-        lastScanNum = chromScanList.get(i - 1);
+        lastScanNum = dataPointScanNumbers[i - 1];
         int lastScanNumsActIndex = Arrays.binarySearch(scanNumbers, lastScanNum);
         int seqNextScanShouldBe = scanNumbers[lastScanNumsActIndex + 1];
 
@@ -208,7 +207,13 @@ public class ADAPChromatogram implements Feature {
    * @param mzValue
    */
   public void addMzPeak(int scanNumber, DataPoint mzValue) {
-    double curIntensity;
+    addMzPeak(scanNumber, mzValue.getMZ(), mzValue.getIntensity());
+  }
+
+  /**
+   * Adds a data point given by its m/z and intensity, without creating a DataPoint instance
+   */
+  public void addMzPeak(int scanNumber, double mzValue, double curIntensity) {
     // System.out.println("---------------- Adding MZ value to Chromatogram ----------------");
 
     // If we already have a mzvalue for the scan number then we need to add the intensities
@@ -217,42 +222,129 @@ public class ADAPChromatogram implements Feature {
     //
     // For now just don't add the point if we have it already. The highest point will be the
     // first one added
-    if (dataPointsMap.containsKey(scanNumber)) {
+    final int slot = findSlot(scanNumber);
+    if (scanNumberTable[slot] != 0) {
       tmp_see_same_scan_count += 1;
       return;
 
     }
 
+    if (numOfDataPoints == dataPointScanNumbers.length) {
+      final int newCapacity = numOfDataPoints * 2;
+      dataPointScanNumbers = Arrays.copyOf(dataPointScanNumbers, newCapacity);
+      dataPointMZValues = Arrays.copyOf(dataPointMZValues, newCapacity);
+      dataPointIntensityValues = Arrays.copyOf(dataPointIntensityValues, newCapacity);
+    }
+
+    final int index = numOfDataPoints++;
+    dataPointScanNumbers[index] = scanNumber;
+    dataPointMZValues[index] = mzValue;
+    dataPointIntensityValues[index] = curIntensity;
+    scanNumberTable[slot] = index + 1;
 
+    // Keep the table at most half full, so the probe sequences stay short
+    if (numOfDataPoints * 2 > scanNumberTable.length)
+      rebuildScanNumberTable(scanNumberTable.length * 2);
 
-    dataPointsMap.put(scanNumber, mzValue);
-    lastMzPeak = mzValue;
-    mzSum += mzValue.getMZ();
+    lastMzPeak = index;
+    mzSum += mzValue;
     mzN++;
     mz = mzSum / mzN;
-    buildingSegment.add(scanNumber);
-    chromScanList.add(scanNumber);
-
-    curIntensity = mzValue.getIntensity();
 
     weightedMzN++;
-    weightedMzSum += curIntensity * mzValue.getMZ();
+    weightedMzSum += curIntensity * mzValue;
     sumOfWeights += curIntensity;
 
     weightedMz = weightedMzSum / sumOfWeights;
 
   }
 
+  /**
+   * Returns the slot of the scan number table which holds the data point of given scan, or the
+   * free slot where it would be inserted
+   */
+  private int findSlot(int scanNumber) {
+    final int mask = scanNumberTable.length - 1;
+    int hash = scanNumber * 0x9E3779B9;
+    int slot = (hash ^ (hash >>> 16)) & mask;
+    while ((scanNumberTable[slot] != 0)
+        && (dataPointScanNumbers[scanNumberTable[slot] - 1] != scanNumber))
+      slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  private void rebuildScanNumberTable(int capacity) {
+    scanNumberTable = new int[capacity];
+    for (int i = 0; i < numOfDataPoints; i++)
+      scanNumberTable[findSlot(dataPointScanNumbers[i])] = i + 1;
+  }
+
+  /**
+   * Returns the index of the data point of given scan, or -1 if there is none
+   */
+  private int findDataPoint(int scanNumber) {
+    if (scanNumberTable != null) {
+      final int slot = findSlot(scanNumber);
+      return scanNumberTable[slot] - 1;
+    }
+    final int index = Arrays.binarySearch(dataPointScanNumbers, 0, numOfDataPoints, scanNumber);
+    return (index < 0) ? -1 : index;
+  }
+
+  /**
+   * Orders the data points by scan number. The last added data point is kept track of, but the
+   * order of the building segment is lost, so this is only done once all points are added.
+   */
+  private void sortDataPoints() {
+    boolean sorted = true;
+    for (int i = 1; i < numOfDataPoints; i++) {
+      if (dataPointScanNumbers[i - 1] > dataPointScanNumbers[i]) {
+        sorted = false;
+        break;
+      }
+    }
+    if (sorted)
+      return;
+
+    // Scan numbers are unique, the lower half only carries the original index along
+    final long keys[] = new long[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++)
+      keys[i] = ((long) dataPointScanNumbers[i] << 32) | i;
+    Arrays.sort(keys);
+
+    final double mzValues[] = dataPointMZValues.clone();
+    final double intensityValues[] = dataPointIntensityValues.clone();
+    int newLastMzPeak = -1;
+    for (int i = 0; i < numOfDataPoints; i++) {
+      final int oldIndex = (int) keys[i];
+      dataPointScanNumbers[i] = (int) (keys[i] >> 32);
+      dataPointMZValues[i] = mzValues[oldIndex];
+      dataPointIntensityValues[i] = intensityValues[oldIndex];
+      if (oldIndex == lastMzPeak)
+        newLastMzPeak = i;
+    }
+    lastMzPeak = newLastMzPeak;
+    buildingSegmentStart = numOfDataPoints;
+
+    if (scanNumberTable != null)
+      rebuildScanNumberTable(scanNumberTable.length);
+  }
+
   @Override
   public DataPoint getDataPoint(int scanNumber) {
-    return dataPointsMap.get(scanNumber);
+    final int index = findDataPoint(scanNumber);
+    if (index < 0)
+      return null;
+    return new SimpleDataPoint(dataPointMZValues[index], dataPointIntensityValues[index]);
   }
 
   /**
    * Returns m/z value of last added data point
    */
   public DataPoint getLastMzPeak() {
-    return lastMzPeak;
+    if (lastMzPeak < 0)
+      return null;
+    return new SimpleDataPoint(dataPointMZValues[lastMzPeak], dataPointIntensityValues[lastMzPeak]);
   }
 
   /**
@@ -410,47 +502,53 @@ public class ADAPChromatogram implements Feature {
 
   public void finishChromatogram() {
 
-    int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
-    Arrays.sort(allScanNumbers);
+    sortDataPoints();
+    dataPointScanNumbers = Arrays.copyOf(dataPointScanNumbers, numOfDataPoints);
+    dataPointMZValues = Arrays.copyOf(dataPointMZValues, numOfDataPoints);
+    dataPointIntensityValues = Arrays.copyOf(dataPointIntensityValues, numOfDataPoints);
+    scanNumberTable = null;
+
+    int allScanNumbers[] = dataPointScanNumbers;
 
     mz = highPointMZ;
 
     // Update raw data point ranges, height, rt and representative scan
     height = Double.MIN_VALUE;
-    for (int i = 0; i < allScanNumbers.length; i++) {
+    double minMZ = 0, maxMZ = 0, minIntensity = 0, maxIntensity = 0;
+    for (int i = 0; i < numOfDataPoints; i++) {
 
-      DataPoint mzPeak = dataPointsMap.get(allScanNumbers[i]);
-
-      // Replace the MzPeak instance with an instance of SimpleDataPoint,
-      // to reduce the memory usage. After we finish this Chromatogram, we
-      // don't need the additional data provided by the MzPeak
-
-      dataPointsMap.put(allScanNumbers[i], mzPeak);
+      final double mzValue = dataPointMZValues[i];
+      final double intensity = dataPointIntensityValues[i];
 
       if (i == 0) {
-        rawDataPointsIntensityRange = Range.singleton(mzPeak.getIntensity());
-        rawDataPointsMZRange = Range.singleton(mzPeak.getMZ());
+        minMZ = maxMZ = mzValue;
+        minIntensity = maxIntensity = intensity;
       } else {
-        rawDataPointsIntensityRange =
-            rawDataPointsIntensityRange.span(Range.singleton(mzPeak.getIntensity()));
-        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzPeak.getMZ()));
+        minMZ = Math.min(minMZ, mzValue);
+        maxMZ = Math.max(maxMZ, mzValue);
+        minIntensity = Math.min(minIntensity, intensity);
+        maxIntensity = Math.max(maxIntensity, intensity);
       }
 
-      if (height < mzPeak.getIntensity()) {
-        height = mzPeak.getIntensity();
+      if (height < intensity) {
+        height = intensity;
         rt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
         representativeScan = allScanNumbers[i];
       }
     }
+    if (numOfDataPoints > 0) {
+      rawDataPointsIntensityRange = Range.closed(minIntensity, maxIntensity);
+      rawDataPointsMZRange = Range.closed(minMZ, maxMZ);
+    }
 
     // Update area
     area = 0;
-    for (int i = 1; i < allScanNumbers.length; i++) {
+    for (int i = 1; i < numOfDataPoints; i++) {
       // For area calculation, we use retention time in seconds
       double previousRT = dataFile.getScan(allScanNumbers[i - 1]).getRetentionTime() * 60d;
       double currentRT = dataFile.getScan(allScanNumbers[i]).getRetentionTime() * 60d;
-      double previousHeight = dataPointsMap.get(allScanNumbers[i - 1]).getIntensity();
-      double currentHeight = dataPointsMap.get(allScanNumbers[i]).getIntensity();
+      double previousHeight = dataPointIntensityValues[i - 1];
+      double currentHeight = dataPointIntensityValues[i];
       area += (currentRT - previousRT) * (currentHeight + previousHeight) / 2;
     }
 
@@ -470,13 +568,11 @@ public class ADAPChromatogram implements Feature {
 
     rawDataPointsRTRange = null;
 
-    for (int scanNum : allScanNumbers) {
-      double scanRt = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = getDataPoint(scanNum);
-
-      if ((dp == null) || (dp.getIntensity() == 0.0))
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (dataPointIntensityValues[i] == 0.0)
         continue;
 
+      double scanRt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
       if (rawDataPointsRTRange == null)
         rawDataPointsRTRange = Range.singleton(scanRt);
       else
@@ -484,16 +580,15 @@ public class ADAPChromatogram implements Feature {
     }
 
     // Discard the fields we don't need anymore
-    buildingSegment = null;
-    lastMzPeak = null;
+    lastMzPeak = -1;
 
   }
 
   public double getBuildingSegmentLength() {
-    if (buildingSegment.size() < 2)
+    if (numOfDataPoints - buildingSegmentStart < 2)
       return 0;
-    int firstScan = buildingSegment.firstElement();
-    int lastScan = buildingSegment.lastElement();
+    int firstScan = dataPointScanNumbers[buildingSegmentStart];
+    int lastScan = dataPointScanNumbers[numOfDataPoints - 1];
     double firstRT = dataFile.getScan(firstScan).getRetentionTime();
     double lastRT = dataFile.getScan(lastScan).getRetentionTime();
     return (lastRT - firstRT);
@@ -504,19 +599,19 @@ public class ADAPChromatogram implements Feature {
   }
 
   public void removeBuildingSegment() {
-    for (int scanNumber : buildingSegment)
-      dataPointsMap.remove(scanNumber);
-    buildingSegment.clear();
+    numOfDataPoints = buildingSegmentStart;
+    rebuildScanNumberTable(scanNumberTable.length);
   }
 
   public void commitBuildingSegment() {
-    buildingSegment.clear();
+    buildingSegmentStart = numOfDataPoints;
     numOfCommittedSegments++;
   }
 
   public void addDataPointsFromChromatogram(ADAPChromatogram ch) {
-    for (Entry<Integer, DataPoint> dp : ch.dataPointsMap.entrySet()) {
-      addMzPeak(dp.getKey(), dp.getValue());
+    for (int i = 0; i < ch.numOfDataPoints; i++) {
+      addMzPeak(ch.dataPointScanNumbers[i], ch.dataPointMZValues[i],
+          ch.dataPointIntensityValues[i]);
     }
   }
 
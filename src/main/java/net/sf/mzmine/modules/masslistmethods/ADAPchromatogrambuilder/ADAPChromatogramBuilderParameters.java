@@ -26,6 +26,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.dialogs.ParameterSetupDialog;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.IntegerParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
@@ -69,9 +70,15 @@ public class ADAPChromatogramBuilderParameters extends SimpleParameterSet {
       MZmineCore.getConfiguration().getIntensityFormat());
   // End Owen Edit
 
+  public static final BooleanParameter parallelSlabs = new BooleanParameter("Parallel m/z slabs",
+      "If selected, the m/z axis is split into slabs at gaps that no chromatogram can cross, and the\n"
+          + "slabs are processed in parallel. The mass lists are read into memory once for this, which\n"
+          + "needs about 24 bytes per data point.",
+      false);
+
   public ADAPChromatogramBuilderParameters() {
     super(new Parameter[] {dataFiles, scanSelection, massList, minimumScanSpan, IntensityThresh2,
-        startIntensity, mzTolerance, suffix});
+        startIntensity, mzTolerance, suffix, parallelSlabs});
   }
 
   public ExitCode showSetupDialog(Window parent, boolean valueCheckRequired) {
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.modules.masslistmethods.ADAPchromatogrambuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZSlabPartition;
+
+/**
+ * Builds the chromatograms of a data file, or of one m/z slab of it, see MZSlabPartition. The data
+ * points are sorted by intensity and added to the chromatogram whose m/z range contains them,
+ * starting from the most intense one. Without a partition, the data points are read from the mass
+ * lists. With a partition, the data points of the slab are taken from the partition, which read the
+ * mass lists before.
+ */
+class ADAPChromatogramBuilderSlabTask extends AbstractTask {
+
+  private Logger logger = Logger.getLogger(this.getClass().getName());
+
+  RangeSet<Double> rangeSet = TreeRangeSet.create();
+  // After each range is created it does not change so we can map the ranges (which will be uniqe)
+  // to the chromatograms
+  Map<Range<Double>, ADAPChromatogram> rangeToChromMap = new HashMap<>();
+
+  private final RawDataFile dataFile;
+  private final Scan scans[];
+  private final int allScanNumbers[];
+  private final String massListName;
+  private final MZSlabPartition partition;
+  private final int slab;
+  private final int runSize;
+
+  private final MZTolerance mzTolerance;
+  private final int minimumScanSpan;
+  private final double IntensityThresh2;
+  private final double minIntensityForStartChrom;
+
+  private double progress = 0.0;
+  private final List<ADAPChromatogram> chromatograms = new ArrayList<ADAPChromatogram>();
+
+  /**
+   * @param partition the partition of the mass lists of the given scans, or null to read the mass
+   *        lists and process all their data points
+   * @param runSize maximum number of data points that are sorted in memory, see
+   *        IntensityOrderedDataPoints
+   */
+  ADAPChromatogramBuilderSlabTask(RawDataFile dataFile, Scan scans[], int allScanNumbers[],
+      String massListName, @Nullable MZSlabPartition partition, int slab, int runSize,
+      MZTolerance mzTolerance, int minimumScanSpan, double IntensityThresh2,
+      double minIntensityForStartChrom) {
+    this.dataFile = dataFile;
+    this.scans = scans;
+    this.allScanNumbers = allScanNumbers;
+    this.massListName = massListName;
+    this.partition = partition;
+    this.slab = slab;
+    this.runSize = runSize;
+    this.mzTolerance = mzTolerance;
+    this.minimumScanSpan = minimumScanSpan;
+    this.IntensityThresh2 = IntensityThresh2;
+    this.minIntensityForStartChrom = minIntensityForStartChrom;
+  }
+
+  @Override
+  public String getTaskDescription() {
+    if (partition == null)
+      return "Detecting chromatograms in " + dataFile;
+    return "Detecting chromatograms in " + dataFile + " (m/z slab " + (slab + 1) + "/"
+        + partition.getNumberOfSlabs() + ")";
+  }
+
+  @Override
+  public double getFinishedPercentage() {
+    return progress;
+  }
+
+  /**
+   * @return the chromatograms of this slab which passed the filters, in the order of their m/z
+   *         ranges
+   */
+  List<ADAPChromatogram> getChromatograms() {
+    return chromatograms;
+  }
+
+  @Override
+  public void run() {
+
+    setStatus(TaskStatus.PROCESSING);
+
+    // make a list of all the data points of this slab
+    long slabDataPoints = 0;
+    if (partition == null) {
+      for (Scan scan : scans) {
+        MassList massList = scan.getMassList(massListName);
+        if (massList != null)
+          slabDataPoints += massList.getNumberOfDataPoints();
+      }
+    } else
+      slabDataPoints = partition.getNumberOfDataPoints(slab);
+    try (IntensityOrderedDataPoints sortedDataPoints =
+        new IntensityOrderedDataPoints(slabDataPoints, runSize)) {
+
+      if (partition == null) {
+        if (!readMassLists(sortedDataPoints))
+          return;
+      } else {
+        final int firstPosition = partition.getFirstPosition(slab);
+        final int endPosition = firstPosition + partition.getNumberOfDataPoints(slab);
+        for (int position = firstPosition; position < endPosition; position++) {
+          final double mz = partition.getMZ(position);
+          final double intensity = partition.getIntensity(position);
+          if (Double.isNaN(mz) || Double.isNaN(intensity))
+            continue;
+          sortedDataPoints.add(mz, intensity,
+              scans[partition.getScanIndex(position)].getScanNumber());
+        }
+      }
+
+      if (sortedDataPoints.isSpilled())
+        logger.info("Data points of " + dataFile
+            + " do not fit into memory, sorting them in temporary files");
+
+      // sort data points by intensity
+      sortedDataPoints.sort();
+
+      progress = 0.0;
+      double progressStep = (slabDataPoints > 0) ? 0.5 / slabDataPoints : 0.0;
+
+      while (sortedDataPoints.next()) {
+
+        progress = Math.min(0.5, progress + progressStep);
+
+        if (isCanceled()) {
+          return;
+        }
+
+        connectDataPoint(sortedDataPoints.getMZ(), sortedDataPoints.getIntensity(),
+            sortedDataPoints.getScanNumber(), allScanNumbers);
+      }
+
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Could not sort the data points of " + dataFile, e);
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Could not sort the data points of " + dataFile + ": " + e.toString());
+      return;
+    }
+
+    // finish chromatograms
+    Set<Range<Double>> ranges = rangeSet.asRanges();
+
+    double progressStep = (ranges.size() > 0) ? 0.5 / ranges.size() : 0.0;
+    for (Range<Double> curRangeKey : ranges) {
+      if (isCanceled()) {
+        return;
+      }
+
+      progress += progressStep;
+
+      ADAPChromatogram chromatogram = rangeToChromMap.get(curRangeKey);
+
+      chromatogram.finishChromatogram();
+
+      // And remove chromatograms who dont have a certian number of continous points above the
+      // IntensityThresh2 level.
+      double numberOfContinuousPointsAboveNoise =
+          chromatogram.findNumberOfContinuousPointsAboveNoise(IntensityThresh2);
+      if (numberOfContinuousPointsAboveNoise >= minimumScanSpan) {
+        chromatograms.add(chromatogram);
+      }
+
+    }
+
+    progress = 1.0;
+
+    setStatus(TaskStatus.FINISHED);
+
+  }
+
+  /**
+   * Reads the data points of all mass lists into the given list
+   * 
+   * @return false if a mass list is missing or this task was canceled
+   */
+  private boolean readMassLists(IntensityOrderedDataPoints sortedDataPoints) throws IOException {
+
+    double mzBuffer[] = new double[0], intensityBuffer[] = new double[0];
+
+    for (Scan scan : scans) {
+      if (isCanceled())
+        return false;
+
+      MassList massList = scan.getMassList(massListName);
+      if (massList == null) {
+        setStatus(TaskStatus.ERROR);
+        setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
+            + " does not have a mass list " + massListName);
+        return false;
+      }
+
+      // Read the mass list into reusable arrays, so that no object is created per point
+      final int numOfDataPoints = massList.getNumberOfDataPoints();
+      if (mzBuffer.length < numOfDataPoints) {
+        mzBuffer = new double[numOfDataPoints * 2];
+        intensityBuffer = new double[numOfDataPoints * 2];
+      }
+      massList.fillDataPoints(mzBuffer, intensityBuffer);
+
+      for (int i = 0; i < numOfDataPoints; i++) {
+        if (Double.isNaN(mzBuffer[i]) || Double.isNaN(intensityBuffer[i]))
+          continue;
+        sortedDataPoints.add(mzBuffer[i], intensityBuffer[i], scan.getScanNumber());
+      }
+
+    }
+
+    return true;
+  }
+
+  /**
+   * Adds a data point to the chromatogram whose m/z range contains it, or starts a new chromatogram
+   */
+  private void connectDataPoint(double mz, double intensity, int scanNumber,
+      int allScanNumbers[]) {
+
+    Range<Double> containsPointRange = rangeSet.rangeContaining(mz);
+
+    Range<Double> toleranceRange = mzTolerance.getToleranceRange(mz);
+    if (containsPointRange == null) {
+      // skip it entierly if the intensity is not high enough
+      if (intensity < minIntensityForStartChrom) {
+        return;
+      }
+      // look +- mz tolerance to see if ther is a range near by.
+      // If there is use the proper boundry of that range for the
+      // new range to insure than NON OF THE RANGES OVERLAP.
+      Range<Double> plusRange = rangeSet.rangeContaining(toleranceRange.upperEndpoint());
+      Range<Double> minusRange = rangeSet.rangeContaining(toleranceRange.lowerEndpoint());
+      Double toBeLowerBound;
+      Double toBeUpperBound;
+
+      // If both of the above ranges are null then we make the new range spaning the full
+      // mz tolerance range.
+      // If one or both are not null we need to properly modify the range of the new
+      // chromatogram so that none of the points are overlapping.
+      if ((plusRange == null) && (minusRange == null)) {
+        toBeLowerBound = toleranceRange.lowerEndpoint();
+        toBeUpperBound = toleranceRange.upperEndpoint();
+      } else if ((plusRange == null) && (minusRange != null)) {
+        // the upper end point of the minus range will be the lower
+        // range of the new one
+        toBeLowerBound = minusRange.upperEndpoint();
+        toBeUpperBound = toleranceRange.upperEndpoint();
+
+      } else if ((minusRange == null) && (plusRange != null)) {
+        toBeLowerBound = toleranceRange.lowerEndpoint();
+        toBeUpperBound = plusRange.lowerEndpoint();
+      } else if ((minusRange != null) && (plusRange != null)) {
+        toBeLowerBound = minusRange.upperEndpoint();
+        toBeUpperBound = plusRange.lowerEndpoint();
+      } else {
+        toBeLowerBound = 0.0;
+        toBeUpperBound = 0.0;
+      }
+
+      if (toBeLowerBound < toBeUpperBound) {
+        Range<Double> newRange = Range.open(toBeLowerBound, toBeUpperBound);
+        ADAPChromatogram newChrom = new ADAPChromatogram(dataFile, allScanNumbers);
+
+        newChrom.addMzPeak(scanNumber, mz, intensity);
+
+        newChrom.setHighPointMZ(mz);
+
+
+        rangeToChromMap.put(newRange, newChrom);
+        // also need to put it in the set -> this is where the range can be efficiently found.
+
+        rangeSet.add(newRange);
+      }
+      else if (toBeLowerBound.equals(toBeUpperBound) && plusRange != null) {
+        ADAPChromatogram curChrom = rangeToChromMap.get(plusRange);
+        curChrom.addMzPeak(scanNumber, mz, intensity);
+      }
+      else
+        throw new IllegalStateException(String.format("Incorrect range [%f, %f] for m/z %f",
+                toBeLowerBound, toBeUpperBound, mz));
+
+    } else {
+      // In this case we do not need to update the rangeSet
+
+
+      ADAPChromatogram curChrom = rangeToChromMap.get(containsPointRange);
+
+      curChrom.addMzPeak(scanNumber, mz, intensity);
+
+      // update the entry in the map
+      rangeToChromMap.put(containsPointRange, curChrom);
+
+
+    }
+  }
+
+}
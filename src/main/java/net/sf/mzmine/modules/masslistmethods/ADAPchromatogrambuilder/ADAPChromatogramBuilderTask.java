@@ -20,16 +20,12 @@
 
 package net.sf.mzmine.modules.masslistmethods.ADAPchromatogrambuilder;
 
-import com.google.common.collect.TreeRangeSet;
-import com.google.common.collect.RangeSet;
-
 import java.util.*;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
@@ -41,32 +37,27 @@ import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZSlabPartition;
 import net.sf.mzmine.util.PeakSorter;
+import net.sf.mzmine.util.RawDataFileUtils;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
-import net.sf.mzmine.util.DataPointSorter;
-import com.google.common.collect.Range;
-
 import java.lang.*;
 
 
 
 public class ADAPChromatogramBuilderTask extends AbstractTask {
 
-  RangeSet<Double> rangeSet = TreeRangeSet.create();
-  // After each range is created it does not change so we can map the ranges (which will be uniqe)
-  // to the chromatograms
-  HashMap<Range, ADAPChromatogram> rangeToChromMap = new HashMap<Range, ADAPChromatogram>();
-
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
+  // Sorted columns, plus the copy in a chromatogram and its scan number table
+  private static final long BYTES_PER_DATA_POINT =
+      IntensityOrderedDataPoints.BYTES_PER_DATA_POINT + 36;
+
   private MZmineProject project;
   private RawDataFile dataFile;
 
-  // scan counter
-//  private int processedPoints = 0, totalPoints;
-  private double progress = 0.0;
   private ScanSelection scanSelection;
   private int newPeakID = 1;
   private Scan[] scans;
@@ -79,6 +70,7 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
   // Owen added User parameers;
   private double IntensityThresh2;
   private double minIntensityForStartChrom;
+  private boolean parallelSlabs;
 
   private SimplePeakList newPeakList;
 
@@ -115,6 +107,9 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
     this.minIntensityForStartChrom =
         parameters.getParameter(ADAPChromatogramBuilderParameters.startIntensity).getValue();
 
+    this.parallelSlabs =
+        parameters.getParameter(ADAPChromatogramBuilderParameters.parallelSlabs).getValue();
+
 
   }
 
@@ -129,7 +124,23 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
    * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
    */
   public double getFinishedPercentage() {
-    return progress;
+    return getSubTasksFinishedPercentage();
+  }
+
+  /**
+   * All data points of the mass lists are kept in memory in primitive columns while they are sorted
+   * and finally in the chromatograms. If the columns do not fit into the heap, they are spilled to
+   * temporary files instead, so the actual usage may be lower. With parallel slabs, the mass lists
+   * are also kept in memory by the partition.
+   * 
+   * @see net.sf.mzmine.taskcontrol.Task#getEstimatedMemoryUsage()
+   */
+  @Override
+  public long getEstimatedMemoryUsage() {
+    final long bytesPerDataPoint = parallelSlabs
+        ? BYTES_PER_DATA_POINT + MZSlabPartition.BYTES_PER_DATA_POINT : BYTES_PER_DATA_POINT;
+    return RawDataFileUtils.countMassListDataPoints(dataFile, scanSelection, massListName)
+        * bytesPerDataPoint;
   }
 
   public RawDataFile getDataFile() {
@@ -204,198 +215,52 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
     //
 
 
-    // make a list of all the data points
-    List<ExpandedDataPoint> allMzValues = new ArrayList<ExpandedDataPoint>();
-
-    for (Scan scan : scans) {
-      if (isCanceled())
-        return;
-
-      MassList massList = scan.getMassList(massListName);
-      if (massList == null) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
-            + " does not have a mass list " + massListName);
-        return;
-      }
-
-      DataPoint mzValues[] = massList.getDataPoints();
-
-      if (mzValues == null) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Mass list " + massListName + " does not contain m/z values for scan #"
-            + scan.getScanNumber() + " of file " + dataFile);
-        return;
-      }
+    // If selected, split the m/z axis at gaps that no chromatogram range can cross, and build the
+    // chromatograms of the slabs in parallel. Only data points above the start intensity create
+    // new ranges.
+    MZSlabPartition partition = null;
+    if (parallelSlabs) {
 
-      for (DataPoint mzPeak : mzValues) {
-        ExpandedDataPoint curDatP = new ExpandedDataPoint(mzPeak, scan.getScanNumber());
-        allMzValues.add(curDatP);
-        // corespondingScanNum.add(scan.getScanNumber());
+      for (Scan scan : scans) {
+        if (scan.getMassList(massListName) == null) {
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
+              + " does not have a mass list " + massListName);
+          return;
+        }
       }
 
+      partition = MZSlabPartition.create(scans, massListName, mzTolerance,
+          minIntensityForStartChrom, MZmineCore.getNumberOfThreads());
+      if (partition == null)
+        logger.info("Too many data points in the mass lists of " + dataFile
+            + " for m/z slabs, building the chromatograms of the whole file");
+      else
+        logger.info("Building chromatograms of " + dataFile + " in "
+            + partition.getNumberOfSlabs() + " m/z slabs");
     }
-
-    // Integer[] simpleCorespondingScanNums = new Integer[corespondingScanNum.size()];
-    // corespondingScanNum.toArray(simpleCorespondingScanNums );
-
-    ExpandedDataPoint[] simpleAllMzVals = new ExpandedDataPoint[allMzValues.size()];
-    allMzValues.toArray(simpleAllMzVals);
-
-    // sort data points by intensity
-    Arrays.sort(simpleAllMzVals,
-        new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
-
-
-    // Set<Chromatogram> buildingChromatograms;
-    // buildingChromatograms = new LinkedHashSet<Chromatogram>();
-
-
-
-    double maxIntensity = simpleAllMzVals[0].getIntensity();
-
-    // count starts at 1 since we already have added one with a single point.
-
-    // Stopwatch stopwatch = Stopwatch.createUnstarted();
-    // stopwatch2 = Stopwatch.createUnstarted();
-    // Stopwatch stopwatch3 = Stopwatch.createUnstarted();
-
-
-    progress = 0.0;
-    double progressStep = (simpleAllMzVals.length > 0) ? 0.5 / simpleAllMzVals.length : 0.0;
-
-    for (ExpandedDataPoint mzPeak : simpleAllMzVals) {
-
-      progress += progressStep;
-
-      if (isCanceled()) {
-        return;
-      }
-
-      if (mzPeak == null || Double.isNaN(mzPeak.getMZ()) || Double.isNaN(mzPeak.getIntensity())) {
-        continue;
-      }
-
-      //////////////////////////////////////////////////
-
-      Range<Double> containsPointRange = rangeSet.rangeContaining(mzPeak.getMZ());
-
-      Range<Double> toleranceRange = mzTolerance.getToleranceRange(mzPeak.getMZ());
-      if (containsPointRange == null) {
-        // skip it entierly if the intensity is not high enough
-        if (mzPeak.getIntensity() < minIntensityForStartChrom) {
-          continue;
-        }
-        // look +- mz tolerance to see if ther is a range near by.
-        // If there is use the proper boundry of that range for the
-        // new range to insure than NON OF THE RANGES OVERLAP.
-        Range<Double> plusRange = rangeSet.rangeContaining(toleranceRange.upperEndpoint());
-        Range<Double> minusRange = rangeSet.rangeContaining(toleranceRange.lowerEndpoint());
-        Double toBeLowerBound;
-        Double toBeUpperBound;
-
-        double cur_max_testing_mz = mzPeak.getMZ();
-
-
-        // If both of the above ranges are null then we make the new range spaning the full
-        // mz tolerance range.
-        // If one or both are not null we need to properly modify the range of the new
-        // chromatogram so that none of the points are overlapping.
-        if ((plusRange == null) && (minusRange == null)) {
-          toBeLowerBound = toleranceRange.lowerEndpoint();
-          toBeUpperBound = toleranceRange.upperEndpoint();
-        } else if ((plusRange == null) && (minusRange != null)) {
-          // the upper end point of the minus range will be the lower
-          // range of the new one
-          toBeLowerBound = minusRange.upperEndpoint();
-          toBeUpperBound = toleranceRange.upperEndpoint();
-
-        } else if ((minusRange == null) && (plusRange != null)) {
-          toBeLowerBound = toleranceRange.lowerEndpoint();
-          toBeUpperBound = plusRange.lowerEndpoint();
-          // double tmp_this = plusRange.upperEndpoint();
-          // System.out.println("tmp_this");
-        } else if ((minusRange != null) && (plusRange != null)) {
-          toBeLowerBound = minusRange.upperEndpoint();
-          toBeUpperBound = plusRange.lowerEndpoint();
-        } else {
-          toBeLowerBound = 0.0;
-          toBeUpperBound = 0.0;
-        }
-
-        if (toBeLowerBound < toBeUpperBound) {
-          Range<Double> newRange = Range.open(toBeLowerBound, toBeUpperBound);
-          ADAPChromatogram newChrom = new ADAPChromatogram(dataFile, allScanNumbers);
-
-          newChrom.addMzPeak(mzPeak.getScanNumber(), mzPeak);
-
-          newChrom.setHighPointMZ(mzPeak.getMZ());
-
-
-          rangeToChromMap.put(newRange, newChrom);
-          // also need to put it in the set -> this is where the range can be efficiently found.
-
-          rangeSet.add(newRange);
-        }
-        else if (toBeLowerBound.equals(toBeUpperBound) && plusRange != null) {
-          ADAPChromatogram curChrom = rangeToChromMap.get(plusRange);
-          curChrom.addMzPeak(mzPeak.getScanNumber(), mzPeak);
-        }
-        else
-          throw new IllegalStateException(String.format("Incorrect range [%f, %f] for m/z %f",
-                  toBeLowerBound, toBeUpperBound, mzPeak.getMZ()));
-
-      } else {
-        // In this case we do not need to update the rangeSet
-
-
-        ADAPChromatogram curChrom = rangeToChromMap.get(containsPointRange);
-
-        curChrom.addMzPeak(mzPeak.getScanNumber(), mzPeak);
-
-        // update the entry in the map
-        rangeToChromMap.put(containsPointRange, curChrom);
-
-
-      }
+    final int numOfSlabs = (partition == null) ? 1 : partition.getNumberOfSlabs();
+
+    final long totalDataPoints =
+        RawDataFileUtils.countMassListDataPoints(dataFile, scanSelection, massListName);
+    final int runSize = IntensityOrderedDataPoints.getRunSize(totalDataPoints, numOfSlabs);
+
+    List<ADAPChromatogramBuilderSlabTask> slabTasks =
+        new ArrayList<ADAPChromatogramBuilderSlabTask>();
+    for (int slab = 0; slab < numOfSlabs; slab++) {
+      slabTasks.add(new ADAPChromatogramBuilderSlabTask(dataFile, scans, allScanNumbers,
+          massListName, partition, slab, runSize, mzTolerance, minimumScanSpan, IntensityThresh2,
+          minIntensityForStartChrom));
     }
+    forkSubTasks(slabTasks);
+    if (!joinSubTasks())
+      return;
 
-    // System.out.println("search chroms (ms): " + stopwatch.elapsed(TimeUnit.MILLISECONDS));
-    // System.out.println("making new chrom (ms): " + stopwatch2.elapsed(TimeUnit.MILLISECONDS));
-
-    // finish chromatograms
-    Set<Range<Double>> ranges = rangeSet.asRanges();
-    Iterator<Range<Double>> RangeIterator = ranges.iterator();
-
+    // Chromatograms of different slabs never have the same m/z, so sorting the concatenated
+    // slab results gives the same order as sorting the results of the whole file
     List<ADAPChromatogram> buildingChromatograms = new ArrayList<ADAPChromatogram>();
-
-    progressStep = (ranges.size() > 0) ? 0.5 / ranges.size() : 0.0;
-    while (RangeIterator.hasNext()) {
-      if (isCanceled()) {
-        return;
-      }
-
-      progress += progressStep;
-
-      Range<Double> curRangeKey = RangeIterator.next();
-
-      ADAPChromatogram chromatogram = rangeToChromMap.get(curRangeKey);
-
-      chromatogram.finishChromatogram();
-
-      // And remove chromatograms who dont have a certian number of continous points above the
-      // IntensityThresh2 level.
-      double numberOfContinuousPointsAboveNoise =
-          chromatogram.findNumberOfContinuousPointsAboveNoise(IntensityThresh2);
-      if (numberOfContinuousPointsAboveNoise < minimumScanSpan) {
-        // System.out.println("skipping chromatogram because it does not meet the min point scan
-        // requirements");
-        continue;
-      } else {
-        buildingChromatograms.add(chromatogram);
-      }
-
-    }
+    for (ADAPChromatogramBuilderSlabTask slabTask : slabTasks)
+      buildingChromatograms.addAll(slabTask.getChromatograms());
 
     ADAPChromatogram[] chromatograms = buildingChromatograms.toArray(new ADAPChromatogram[0]);
 
@@ -420,8 +285,6 @@ public class ADAPChromatogramBuilderTask extends AbstractTask {
     // Add quality parameters to peaks
     QualityParameters.calculateQualityParameters(newPeakList);
 
-    progress = 1.0;
-
     setStatus(TaskStatus.FINISHED);
 
     logger.info("Finished chromatogram builder on " + dataFile);
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.modules.masslistmethods.ADAPchromatogrambuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Data points of all mass lists of a file, returned in the order of the DataPointSorter (descending
+ * intensity, then descending m/z), and in the order they were added if both are equal. The points
+ * are kept in primitive columns (m/z, intensity, scan number) and sorted by an index radix sort.
+ *
+ * If the columns of all points would not fit into the heap, they are collected in runs of limited
+ * size. Each run is sorted and written to a temporary file, and the runs are merged when the
+ * points are read.
+ */
+class IntensityOrderedDataPoints implements Closeable {
+
+  // Memory used by one point while the columns are sorted: m/z, intensity, scan number and two
+  // indexes of the radix sort
+  static final long BYTES_PER_DATA_POINT = 8 + 8 + 4 + 4 + 4;
+
+  // Runs smaller than this are not worth the overhead of the files
+  private static final int MIN_RUN_SIZE = 1 << 20;
+
+  // Bits of the key sorted in one pass of the radix sort
+  private static final int RADIX_BITS = 16;
+
+  private double mzValues[], intensityValues[];
+  private int scanNumbers[];
+  private int numOfDataPoints = 0;
+  private final int runSize;
+
+  private final List<File> runFiles = new ArrayList<File>();
+  private final List<RunReader> runReaders = new ArrayList<RunReader>();
+  private PriorityQueue<RunReader> mergeQueue;
+
+  // Sorted order of the columns, or null before sort()
+  private int order[];
+  private int position = -1;
+  private double currentMZ, currentIntensity;
+  private int currentScanNumber;
+
+  /**
+   * Prepares the columns for given number of data points, with runs sized to the heap that is
+   * currently available
+   */
+  IntensityOrderedDataPoints(long totalDataPoints) {
+    this(totalDataPoints, getRunSize(totalDataPoints, 1));
+  }
+
+  /**
+   * Prepares the columns for the expected number of data points. The columns grow up to the given
+   * run size if more points are added, then the points are spilled to temporary files in runs.
+   */
+  IntensityOrderedDataPoints(long expectedDataPoints, int runSize) {
+    final int capacity = (int) Math.max(1, Math.min(expectedDataPoints, runSize));
+    this.runSize = Math.max(1, runSize);
+    mzValues = new double[capacity];
+    intensityValues = new double[capacity];
+    scanNumbers = new int[capacity];
+  }
+
+  /**
+   * Returns the number of points kept in memory at a time, when the given number of points is
+   * divided among several instances that are filled at the same time. That is all of them, unless
+   * their columns need more than half of the heap that is available.
+   */
+  static int getRunSize(long totalDataPoints, int numOfInstances) {
+    final Runtime runtime = Runtime.getRuntime();
+    final long availableMemory =
+        runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    final long maxInMemory = availableMemory / 2 / BYTES_PER_DATA_POINT;
+    if ((totalDataPoints <= maxInMemory) && (totalDataPoints < Integer.MAX_VALUE - 8))
+      return (int) totalDataPoints;
+    return (int) Math.max(MIN_RUN_SIZE,
+        Math.min(maxInMemory / Math.max(1, numOfInstances), Integer.MAX_VALUE - 8));
+  }
+
+  /**
+   * Adds a data point. When the columns are full, they are sorted and written to a new run file.
+   */
+  void add(double mz, double intensity, int scanNumber) throws IOException {
+    if (numOfDataPoints == mzValues.length) {
+      if (mzValues.length < runSize) {
+        final long grownCapacity = Math.max(16, mzValues.length + (long) (mzValues.length >> 1));
+        final int newCapacity = (int) Math.min(runSize, grownCapacity);
+        mzValues = Arrays.copyOf(mzValues, newCapacity);
+        intensityValues = Arrays.copyOf(intensityValues, newCapacity);
+        scanNumbers = Arrays.copyOf(scanNumbers, newCapacity);
+      } else
+        writeRun();
+    }
+    mzValues[numOfDataPoints] = mz;
+    intensityValues[numOfDataPoints] = intensity;
+    scanNumbers[numOfDataPoints] = scanNumber;
+    numOfDataPoints++;
+  }
+
+  /**
+   * Returns true if some of the points were written to run files
+   */
+  boolean isSpilled() {
+    return !runFiles.isEmpty();
+  }
+
+  /**
+   * Sorts the points added so far. Afterwards, the points can be read using next().
+   */
+  void sort() throws IOException {
+    if (runFiles.isEmpty()) {
+      order = sortColumns();
+      return;
+    }
+
+    if (numOfDataPoints > 0)
+      writeRun();
+
+    // The columns are not needed for merging the runs
+    mzValues = null;
+    intensityValues = null;
+    scanNumbers = null;
+
+    // Ties keep the order of the runs, which were written in the order of the points
+    mergeQueue = new PriorityQueue<RunReader>(runFiles.size(), (run1, run2) -> {
+      int result = Double.compare(run2.intensity, run1.intensity);
+      if (result == 0)
+        result = Double.compare(run2.mz, run1.mz);
+      if (result == 0)
+        result = Integer.compare(run1.runNumber, run2.runNumber);
+      return result;
+    });
+    for (File runFile : runFiles) {
+      RunReader reader = new RunReader(runFile, runReaders.size());
+      runReaders.add(reader);
+      if (reader.next())
+        mergeQueue.add(reader);
+    }
+  }
+
+  /**
+   * Moves to the next point in sorted order
+   * 
+   * @return false if there are no more points
+   */
+  boolean next() throws IOException {
+    if (mergeQueue == null) {
+      if (position + 1 >= numOfDataPoints)
+        return false;
+      position++;
+      final int index = order[position];
+      currentMZ = mzValues[index];
+      currentIntensity = intensityValues[index];
+      currentScanNumber = scanNumbers[index];
+      return true;
+    }
+
+    final RunReader reader = mergeQueue.poll();
+    if (reader == null)
+      return false;
+    currentMZ = reader.mz;
+    currentIntensity = reader.intensity;
+    currentScanNumber = reader.scanNumber;
+    if (reader.next())
+      mergeQueue.add(reader);
+    return true;
+  }
+
+  double getMZ() {
+    return currentMZ;
+  }
+
+  double getIntensity() {
+    return currentIntensity;
+  }
+
+  int getScanNumber() {
+    return currentScanNumber;
+  }
+
+  /**
+   * Closes and removes the run files
+   */
+  @Override
+  public void close() throws IOException {
+    for (RunReader reader : runReaders)
+      reader.input.close();
+    runReaders.clear();
+    for (File runFile : runFiles)
+      runFile.delete();
+    runFiles.clear();
+  }
+
+  private void writeRun() throws IOException {
+    final int runOrder[] = sortColumns();
+    final File runFile = File.createTempFile("mzmine", ".points");
+    runFile.deleteOnExit();
+    runFiles.add(runFile);
+    try (DataOutputStream output =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 1 << 16))) {
+      output.writeInt(numOfDataPoints);
+      for (int i = 0; i < numOfDataPoints; i++) {
+        final int index = runOrder[i];
+        output.writeDouble(mzValues[index]);
+        output.writeDouble(intensityValues[index]);
+        output.writeInt(scanNumbers[index]);
+      }
+    }
+    numOfDataPoints = 0;
+  }
+
+  /**
+   * Returns the indexes of the points in the columns in sorted order. The LSD radix sort is stable,
+   * so sorting by m/z first and by intensity second gives the order of the DataPointSorter and
+   * keeps the order of points which are equal in both.
+   */
+  private int[] sortColumns() {
+    int order[] = new int[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++)
+      order[i] = i;
+    int buffer[] = new int[numOfDataPoints];
+    for (double values[] : new double[][] {mzValues, intensityValues}) {
+      for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+        if (radixPass(values, shift, order, buffer)) {
+          final int swap[] = order;
+          order = buffer;
+          buffer = swap;
+        }
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Distributes the indexes in the source order into the target by the digit of the descending key
+   * at given shift.
+   * 
+   * @return false if all keys have the same digit, so the target was not written
+   */
+  private boolean radixPass(double values[], int shift, int source[], int target[]) {
+    final int counts[] = new int[(1 << RADIX_BITS) + 1];
+    final int mask = (1 << RADIX_BITS) - 1;
+    for (int i = 0; i < numOfDataPoints; i++)
+      counts[(int) (descendingKey(values[i]) >>> shift) & mask]++;
+    for (int count : counts) {
+      if (count == numOfDataPoints)
+        return false;
+    }
+
+    // Turn the counts into start positions
+    int start = 0;
+    for (int digit = 0; digit < counts.length; digit++) {
+      final int count = counts[digit];
+      counts[digit] = start;
+      start += count;
+    }
+
+    for (int i = 0; i < numOfDataPoints; i++) {
+      final int index = source[i];
+      final int digit = (int) (descendingKey(values[index]) >>> shift) & mask;
+      target[counts[digit]++] = index;
+    }
+    return true;
+  }
+
+  /**
+   * Maps a double to a long which sorts unsigned in the reverse order of Double.compare()
+   */
+  private static long descendingKey(double value) {
+    final long bits = Double.doubleToLongBits(value);
+    return ~(bits ^ ((bits >> 63) | Long.MIN_VALUE));
+  }
+
+  /**
+   * Reads the points of one run file in order
+   */
+  private static class RunReader {
+
+    private final DataInputStream input;
+    private final int runNumber;
+    private int remaining;
+    private double mz, intensity;
+    private int scanNumber;
+
+    RunReader(File runFile, int runNumber) throws IOException {
+      this.input =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 1 << 16));
+      this.runNumber = runNumber;
+      this.remaining = input.readInt();
+    }
+
+    boolean next() throws IOException {
+      if (remaining == 0)
+        return false;
+      remaining--;
+      mz = input.readDouble();
+      intensity = input.readDouble();
+      scanNumber = input.readInt();
+      return true;
+    }
+
+  }
+
+}
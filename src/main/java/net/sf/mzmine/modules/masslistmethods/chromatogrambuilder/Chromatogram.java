@@ -19,17 +19,14 @@
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Map.Entry;
-import java.util.Vector;
 import javax.annotation.Nonnull;
 import com.google.common.collect.Range;
-import com.google.common.primitives.Ints;
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.IsotopePattern;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimplePeakInformation;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.util.MathUtils;
@@ -45,8 +42,11 @@ public class Chromatogram implements Feature {
   // Data file of this chromatogram
   private RawDataFile dataFile;
 
-  // Data points of the chromatogram (map of scan number -> m/z peak)
-  private Hashtable<Integer, DataPoint> dataPointsMap;
+  // Data points of the chromatogram, ordered by scan number. Only the first numOfDataPoints
+  // elements of the arrays are used.
+  private int dataPointScanNumbers[];
+  private double dataPointMZValues[], dataPointIntensityValues[];
+  private int numOfDataPoints = 0;
 
   // Chromatogram m/z, RT, height, area
   private double mz, rt, height, area;
@@ -61,8 +61,9 @@ public class Chromatogram implements Feature {
   // Ranges of raw data points
   private Range<Double> rawDataPointsIntensityRange, rawDataPointsMZRange, rawDataPointsRTRange;
 
-  // A set of scan numbers of a segment which is currently being connected
-  private Vector<Integer> buildingSegment;
+  // Index of the first data point of the segment which is currently being connected. The segment
+  // always ends with the last data point.
+  private int buildingSegmentStart = 0;
 
   // Keep track of last added data point
   private DataPoint lastMzPeak;
@@ -96,8 +97,9 @@ public class Chromatogram implements Feature {
 
     rawDataPointsRTRange = dataFile.getDataRTRange(1);
 
-    dataPointsMap = new Hashtable<Integer, DataPoint>();
-    buildingSegment = new Vector<Integer>(128);
+    dataPointScanNumbers = new int[16];
+    dataPointMZValues = new double[16];
+    dataPointIntensityValues = new double[16];
   }
 
   /**
@@ -107,18 +109,52 @@ public class Chromatogram implements Feature {
    * @param mzValue
    */
   public void addMzPeak(int scanNumber, DataPoint mzValue) {
-    dataPointsMap.put(scanNumber, mzValue);
+
+    // Data points are usually added in the order of scans, otherwise find their position
+    int index = numOfDataPoints;
+    if ((index > 0) && (dataPointScanNumbers[index - 1] >= scanNumber)) {
+      index = Arrays.binarySearch(dataPointScanNumbers, 0, numOfDataPoints, scanNumber);
+      if (index < 0)
+        index = -index - 1;
+    }
+
+    if ((index < numOfDataPoints) && (dataPointScanNumbers[index] == scanNumber)) {
+      // Replace the data point of the same scan
+      dataPointMZValues[index] = mzValue.getMZ();
+      dataPointIntensityValues[index] = mzValue.getIntensity();
+    } else {
+      if (numOfDataPoints == dataPointScanNumbers.length) {
+        final int newCapacity = numOfDataPoints * 2;
+        dataPointScanNumbers = Arrays.copyOf(dataPointScanNumbers, newCapacity);
+        dataPointMZValues = Arrays.copyOf(dataPointMZValues, newCapacity);
+        dataPointIntensityValues = Arrays.copyOf(dataPointIntensityValues, newCapacity);
+      }
+      final int moved = numOfDataPoints - index;
+      if (moved > 0) {
+        System.arraycopy(dataPointScanNumbers, index, dataPointScanNumbers, index + 1, moved);
+        System.arraycopy(dataPointMZValues, index, dataPointMZValues, index + 1, moved);
+        System.arraycopy(dataPointIntensityValues, index, dataPointIntensityValues, index + 1,
+            moved);
+      }
+      dataPointScanNumbers[index] = scanNumber;
+      dataPointMZValues[index] = mzValue.getMZ();
+      dataPointIntensityValues[index] = mzValue.getIntensity();
+      numOfDataPoints++;
+    }
+
     lastMzPeak = mzValue;
     mzSum += mzValue.getMZ();
     mzN++;
     mz = mzSum / mzN;
-    buildingSegment.add(scanNumber);
 
   }
 
   @Override
   public DataPoint getDataPoint(int scanNumber) {
-    return dataPointsMap.get(scanNumber);
+    final int index = Arrays.binarySearch(dataPointScanNumbers, 0, numOfDataPoints, scanNumber);
+    if (index < 0)
+      return null;
+    return new SimpleDataPoint(dataPointMZValues[index], dataPointIntensityValues[index]);
   }
 
   /**
@@ -218,39 +254,35 @@ public class Chromatogram implements Feature {
 
   public void finishChromatogram() {
 
-    int allScanNumbers[] = Ints.toArray(dataPointsMap.keySet());
-    Arrays.sort(allScanNumbers);
+    // Release the spare capacity of the arrays
+    dataPointScanNumbers = Arrays.copyOf(dataPointScanNumbers, numOfDataPoints);
+    dataPointMZValues = Arrays.copyOf(dataPointMZValues, numOfDataPoints);
+    dataPointIntensityValues = Arrays.copyOf(dataPointIntensityValues, numOfDataPoints);
+
+    int allScanNumbers[] = dataPointScanNumbers;
 
     // Calculate median m/z
-    double allMzValues[] = new double[allScanNumbers.length];
-    for (int i = 0; i < allScanNumbers.length; i++) {
-      allMzValues[i] = dataPointsMap.get(allScanNumbers[i]).getMZ();
-    }
+    double allMzValues[] = dataPointMZValues.clone();
     mz = MathUtils.calcQuantile(allMzValues, 0.5f);
 
     // Update raw data point ranges, height, rt and representative scan
     height = Double.MIN_VALUE;
-    for (int i = 0; i < allScanNumbers.length; i++) {
-
-      DataPoint mzPeak = dataPointsMap.get(allScanNumbers[i]);
+    for (int i = 0; i < numOfDataPoints; i++) {
 
-      // Replace the MzPeak instance with an instance of SimpleDataPoint,
-      // to reduce the memory usage. After we finish this Chromatogram, we
-      // don't need the additional data provided by the MzPeak
-
-      dataPointsMap.put(allScanNumbers[i], mzPeak);
+      final double mzValue = dataPointMZValues[i];
+      final double intensity = dataPointIntensityValues[i];
 
       if (i == 0) {
-        rawDataPointsIntensityRange = Range.singleton(mzPeak.getIntensity());
-        rawDataPointsMZRange = Range.singleton(mzPeak.getMZ());
+        rawDataPointsIntensityRange = Range.singleton(intensity);
+        rawDataPointsMZRange = Range.singleton(mzValue);
       } else {
         rawDataPointsIntensityRange =
-            rawDataPointsIntensityRange.span(Range.singleton(mzPeak.getIntensity()));
-        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzPeak.getMZ()));
+            rawDataPointsIntensityRange.span(Range.singleton(intensity));
+        rawDataPointsMZRange = rawDataPointsMZRange.span(Range.singleton(mzValue));
       }
 
-      if (height < mzPeak.getIntensity()) {
-        height = mzPeak.getIntensity();
+      if (height < intensity) {
+        height = intensity;
         rt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
         representativeScan = allScanNumbers[i];
       }
@@ -258,12 +290,12 @@ public class Chromatogram implements Feature {
 
     // Update area
     area = 0;
-    for (int i = 1; i < allScanNumbers.length; i++) {
+    for (int i = 1; i < numOfDataPoints; i++) {
       // For area calculation, we use retention time in seconds
       double previousRT = dataFile.getScan(allScanNumbers[i - 1]).getRetentionTime() * 60d;
       double currentRT = dataFile.getScan(allScanNumbers[i]).getRetentionTime() * 60d;
-      double previousHeight = dataPointsMap.get(allScanNumbers[i - 1]).getIntensity();
-      double currentHeight = dataPointsMap.get(allScanNumbers[i]).getIntensity();
+      double previousHeight = dataPointIntensityValues[i - 1];
+      double currentHeight = dataPointIntensityValues[i];
       area += (currentRT - previousRT) * (currentHeight + previousHeight) / 2;
     }
 
@@ -280,13 +312,12 @@ public class Chromatogram implements Feature {
 
     rawDataPointsRTRange = null;
 
-    for (int scanNum : allScanNumbers) {
-      double scanRt = dataFile.getScan(scanNum).getRetentionTime();
-      DataPoint dp = getDataPoint(scanNum);
-
-      if ((dp == null) || (dp.getIntensity() == 0.0))
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (dataPointIntensityValues[i] == 0.0)
         continue;
 
+      double scanRt = dataFile.getScan(allScanNumbers[i]).getRetentionTime();
+
       if (rawDataPointsRTRange == null)
         rawDataPointsRTRange = Range.singleton(scanRt);
       else
@@ -294,16 +325,15 @@ public class Chromatogram implements Feature {
     }
 
     // Discard the fields we don't need anymore
-    buildingSegment = null;
     lastMzPeak = null;
 
   }
 
   public double getBuildingSegmentLength() {
-    if (buildingSegment.size() < 2)
+    if (numOfDataPoints - buildingSegmentStart < 2)
       return 0;
-    int firstScan = buildingSegment.firstElement();
-    int lastScan = buildingSegment.lastElement();
+    int firstScan = dataPointScanNumbers[buildingSegmentStart];
+    int lastScan = dataPointScanNumbers[numOfDataPoints - 1];
     double firstRT = dataFile.getScan(firstScan).getRetentionTime();
     double lastRT = dataFile.getScan(lastScan).getRetentionTime();
     return (lastRT - firstRT);
@@ -314,19 +344,18 @@ public class Chromatogram implements Feature {
   }
 
   public void removeBuildingSegment() {
-    for (int scanNumber : buildingSegment)
-      dataPointsMap.remove(scanNumber);
-    buildingSegment.clear();
+    numOfDataPoints = buildingSegmentStart;
   }
 
   public void commitBuildingSegment() {
-    buildingSegment.clear();
+    buildingSegmentStart = numOfDataPoints;
     numOfCommittedSegments++;
   }
 
   public void addDataPointsFromChromatogram(Chromatogram ch) {
-    for (Entry<Integer, DataPoint> dp : ch.dataPointsMap.entrySet()) {
-      addMzPeak(dp.getKey(), dp.getValue());
+    for (int i = 0; i < ch.numOfDataPoints; i++) {
+      addMzPeak(ch.dataPointScanNumbers[i],
+          new SimpleDataPoint(ch.dataPointMZValues[i], ch.dataPointIntensityValues[i]));
     }
   }
 
@@ -24,6 +24,7 @@ import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.dialogs.ParameterSetupDialog;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.BooleanParameter;
 import net.sf.mzmine.parameters.parametertypes.DoubleParameter;
 import net.sf.mzmine.parameters.parametertypes.MassListParameter;
 import net.sf.mzmine.parameters.parametertypes.StringParameter;
@@ -57,9 +58,15 @@ public class ChromatogramBuilderParameters extends SimpleParameterSet {
   public static final StringParameter suffix =
       new StringParameter("Suffix", "This string is added to filename as suffix", "chromatograms");
 
+  public static final BooleanParameter parallelSlabs = new BooleanParameter("Parallel m/z slabs",
+      "If selected, the m/z axis is split into slabs at gaps that no chromatogram can cross, and the\n"
+          + "slabs are processed in parallel. The mass lists are read into memory once for this, which\n"
+          + "needs about 24 bytes per data point.",
+      false);
+
   public ChromatogramBuilderParameters() {
     super(new Parameter[] {dataFiles, scanSelection, massList, minimumTimeSpan, minimumHeight,
-        mzTolerance, suffix});
+        mzTolerance, suffix, parallelSlabs});
   }
 
   public ExitCode showSetupDialog(Window parent, boolean valueCheckRequired) {
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
+
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZSlabPartition;
+
+/**
+ * Builds the chromatograms of a data file, or of one m/z slab of it, see MZSlabPartition. Without a
+ * partition, the mass lists are read scan by scan. With a partition, the data points of the slab
+ * are taken from the partition, which read the mass lists before.
+ */
+class ChromatogramBuilderSlabTask extends AbstractTask {
+
+  private final RawDataFile dataFile;
+  private final Scan scans[];
+  private final String massListName;
+  private final MZSlabPartition partition;
+  private final int slab;
+  private final HighestDataPointConnector massConnector;
+
+  private int processedScans = 0;
+  private Chromatogram chromatograms[];
+
+  /**
+   * @param partition the partition of the mass lists of the given scans, or null to read the mass
+   *        lists and process all their data points
+   */
+  ChromatogramBuilderSlabTask(RawDataFile dataFile, Scan scans[], int allScanNumbers[],
+      String massListName, @Nullable MZSlabPartition partition, int slab, double minimumTimeSpan,
+      double minimumHeight, MZTolerance mzTolerance) {
+    this.dataFile = dataFile;
+    this.scans = scans;
+    this.massListName = massListName;
+    this.partition = partition;
+    this.slab = slab;
+    this.massConnector = new HighestDataPointConnector(dataFile, allScanNumbers, minimumTimeSpan,
+        minimumHeight, mzTolerance);
+  }
+
+  @Override
+  public String getTaskDescription() {
+    if (partition == null)
+      return "Detecting chromatograms in " + dataFile;
+    return "Detecting chromatograms in " + dataFile + " (m/z slab " + (slab + 1) + "/"
+        + partition.getNumberOfSlabs() + ")";
+  }
+
+  @Override
+  public double getFinishedPercentage() {
+    if (scans.length == 0)
+      return 0;
+    return (double) processedScans / scans.length;
+  }
+
+  /**
+   * @return the finished chromatograms of this slab, in the order of the connector
+   */
+  Chromatogram[] getChromatograms() {
+    return chromatograms;
+  }
+
+  @Override
+  public void run() {
+
+    setStatus(TaskStatus.PROCESSING);
+
+    int position = (partition == null) ? 0 : partition.getFirstPosition(slab);
+    final int endPosition =
+        (partition == null) ? 0 : position + partition.getNumberOfDataPoints(slab);
+
+    for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
+
+      if (isCanceled())
+        return;
+
+      final Scan scan = scans[scanIndex];
+      DataPoint mzValues[];
+
+      if (partition == null) {
+
+        MassList massList = scan.getMassList(massListName);
+        if (massList == null) {
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
+              + " does not have a mass list " + massListName);
+          return;
+        }
+
+        mzValues = massList.getDataPoints();
+
+        if (mzValues == null) {
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Mass list " + massListName + " does not contain m/z values for scan #"
+              + scan.getScanNumber() + " of file " + dataFile);
+          return;
+        }
+
+      } else {
+
+        // The data points of this slab and scan, in their original order
+        int scanEnd = position;
+        while ((scanEnd < endPosition) && (partition.getScanIndex(scanEnd) == scanIndex))
+          scanEnd++;
+        mzValues = new DataPoint[scanEnd - position];
+        for (int i = 0; i < mzValues.length; i++, position++) {
+          mzValues[i] =
+              new SimpleDataPoint(partition.getMZ(position), partition.getIntensity(position));
+        }
+
+      }
+
+      massConnector.addScan(scan.getScanNumber(), mzValues);
+      processedScans++;
+    }
+
+    chromatograms = massConnector.finishChromatograms();
+
+    setStatus(TaskStatus.FINISHED);
+
+  }
+
+}
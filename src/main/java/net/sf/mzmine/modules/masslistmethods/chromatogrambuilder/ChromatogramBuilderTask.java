@@ -18,24 +18,27 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
-import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Feature;
 import net.sf.mzmine.datamodel.MZmineProject;
-import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimplePeakList;
 import net.sf.mzmine.datamodel.impl.SimplePeakListRow;
+import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.peaklistmethods.qualityparameters.QualityParameters;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.MZSlabPartition;
 import net.sf.mzmine.util.PeakSorter;
+import net.sf.mzmine.util.RawDataFileUtils;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
@@ -43,11 +46,12 @@ public class ChromatogramBuilderTask extends AbstractTask {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
+  // Scan number, m/z and intensity in the arrays of a chromatogram, with spare capacity
+  private static final long BYTES_PER_DATA_POINT = 40;
+
   private MZmineProject project;
   private RawDataFile dataFile;
 
-  // scan counter
-  private int processedScans = 0, totalScans;
   private ScanSelection scanSelection;
   private int newPeakID = 1;
   private Scan[] scans;
@@ -56,6 +60,7 @@ public class ChromatogramBuilderTask extends AbstractTask {
   private String suffix, massListName;
   private MZTolerance mzTolerance;
   private double minimumTimeSpan, minimumHeight;
+  private boolean parallelSlabs;
 
   private SimplePeakList newPeakList;
 
@@ -81,6 +86,9 @@ public class ChromatogramBuilderTask extends AbstractTask {
 
     this.suffix = parameters.getParameter(ChromatogramBuilderParameters.suffix).getValue();
 
+    this.parallelSlabs =
+        parameters.getParameter(ChromatogramBuilderParameters.parallelSlabs).getValue();
+
   }
 
   /**
@@ -94,10 +102,22 @@ public class ChromatogramBuilderTask extends AbstractTask {
    * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
    */
   public double getFinishedPercentage() {
-    if (totalScans == 0)
-      return 0;
-    else
-      return (double) processedScans / totalScans;
+    return getSubTasksFinishedPercentage();
+  }
+
+  /**
+   * In the worst case, every data point of the mass lists is connected to a chromatogram, which
+   * keeps it in its data point arrays. With parallel slabs, the mass lists are also kept in memory
+   * by the partition.
+   * 
+   * @see net.sf.mzmine.taskcontrol.Task#getEstimatedMemoryUsage()
+   */
+  @Override
+  public long getEstimatedMemoryUsage() {
+    final long bytesPerDataPoint = parallelSlabs
+        ? BYTES_PER_DATA_POINT + MZSlabPartition.BYTES_PER_DATA_POINT : BYTES_PER_DATA_POINT;
+    return RawDataFileUtils.countMassListDataPoints(dataFile, scanSelection, massListName)
+        * bytesPerDataPoint;
   }
 
   public RawDataFile getDataFile() {
@@ -115,7 +135,6 @@ public class ChromatogramBuilderTask extends AbstractTask {
 
     scans = scanSelection.getMatchingScans(dataFile);
     int allScanNumbers[] = scanSelection.getMatchingScanNumbers(dataFile);
-    totalScans = scans.length;
 
     // Check if the scans are properly ordered by RT
     double prevRT = Double.NEGATIVE_INFINITY;
@@ -135,37 +154,46 @@ public class ChromatogramBuilderTask extends AbstractTask {
     // Create new feature list
     newPeakList = new SimplePeakList(dataFile + " " + suffix, dataFile);
 
-    Chromatogram[] chromatograms;
-    HighestDataPointConnector massConnector = new HighestDataPointConnector(dataFile,
-        allScanNumbers, minimumTimeSpan, minimumHeight, mzTolerance);
-
-    for (Scan scan : scans) {
-
-      if (isCanceled())
-        return;
-
-      MassList massList = scan.getMassList(massListName);
-      if (massList == null) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
-            + " does not have a mass list " + massListName);
-        return;
+    // If selected, split the m/z axis at gaps that no chromatogram can cross, and build the
+    // chromatograms of the slabs in parallel. Every data point may start a chromatogram.
+    MZSlabPartition partition = null;
+    if (parallelSlabs) {
+
+      for (Scan scan : scans) {
+        if (scan.getMassList(massListName) == null) {
+          setStatus(TaskStatus.ERROR);
+          setErrorMessage("Scan " + dataFile + " #" + scan.getScanNumber()
+              + " does not have a mass list " + massListName);
+          return;
+        }
       }
 
-      DataPoint mzValues[] = massList.getDataPoints();
-
-      if (mzValues == null) {
-        setStatus(TaskStatus.ERROR);
-        setErrorMessage("Mass list " + massListName + " does not contain m/z values for scan #"
-            + scan.getScanNumber() + " of file " + dataFile);
-        return;
-      }
-
-      massConnector.addScan(scan.getScanNumber(), mzValues);
-      processedScans++;
+      partition = MZSlabPartition.create(scans, massListName, mzTolerance,
+          Double.NEGATIVE_INFINITY, MZmineCore.getNumberOfThreads());
+      if (partition == null)
+        logger.info("Too many data points in the mass lists of " + dataFile
+            + " for m/z slabs, building the chromatograms of the whole file");
+      else
+        logger.info("Building chromatograms of " + dataFile + " in "
+            + partition.getNumberOfSlabs() + " m/z slabs");
     }
 
-    chromatograms = massConnector.finishChromatograms();
+    List<ChromatogramBuilderSlabTask> slabTasks = new ArrayList<ChromatogramBuilderSlabTask>();
+    final int numOfSlabs = (partition == null) ? 1 : partition.getNumberOfSlabs();
+    for (int slab = 0; slab < numOfSlabs; slab++) {
+      slabTasks.add(new ChromatogramBuilderSlabTask(dataFile, scans, allScanNumbers, massListName,
+          partition, slab, minimumTimeSpan, minimumHeight, mzTolerance));
+    }
+    forkSubTasks(slabTasks);
+    if (!joinSubTasks())
+      return;
+
+    // Chromatograms of different slabs never have the same m/z, so sorting the concatenated
+    // slab results gives the same order as sorting the results of the whole file
+    List<Chromatogram> slabChromatograms = new ArrayList<Chromatogram>();
+    for (ChromatogramBuilderSlabTask slabTask : slabTasks)
+      slabChromatograms.addAll(Arrays.asList(slabTask.getChromatograms()));
+    Chromatogram[] chromatograms = slabChromatograms.toArray(new Chromatogram[0]);
 
     // Sort the final chromatograms by m/z
     Arrays.sort(chromatograms, new PeakSorter(SortingProperty.MZ, SortingDirection.Ascending));
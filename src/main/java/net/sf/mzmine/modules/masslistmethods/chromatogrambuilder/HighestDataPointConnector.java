@@ -18,12 +18,9 @@
 
 package net.sf.mzmine.modules.masslistmethods.chromatogrambuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.Set;
-
-import com.google.common.collect.Range;
+import java.util.List;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.RawDataFile;
@@ -32,15 +29,32 @@ import net.sf.mzmine.util.DataPointSorter;
 import net.sf.mzmine.util.SortingDirection;
 import net.sf.mzmine.util.SortingProperty;
 
+/**
+ * Connects the m/z peaks of consecutive scans to chromatograms. Each m/z peak is connected to the
+ * chromatogram with the most intense last data point within the m/z tolerance.
+ * 
+ * The chromatograms that are still being built are kept sorted by the m/z of their last data
+ * point, so the candidates for an m/z peak are found by a binary search for the tolerance window
+ * instead of testing every chromatogram.
+ */
 public class HighestDataPointConnector {
 
+  // Ranges up to this length are sorted by insertion sort
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
   private final MZTolerance mzTolerance;
   private final double minimumTimeSpan, minimumHeight;
   private final RawDataFile dataFile;
   private final int allScanNumbers[];
 
-  // Mapping of last data point m/z --> chromatogram
-  private Set<Chromatogram> buildingChromatograms;
+  // Chromatograms being built, in the order of their creation or last connection. This order
+  // keeps the results reproducible and decides between equally intense candidates.
+  private List<Chromatogram> buildingChromatograms;
+
+  // Indexes into buildingChromatograms, sorted by the m/z of the last data point at the start of
+  // the current scan
+  private int sortedIndexes[] = new int[0];
+  private double sortedLastMZValues[] = new double[0];
 
   public HighestDataPointConnector(RawDataFile dataFile, int allScanNumbers[],
       double minimumTimeSpan, double minimumHeight, MZTolerance mzTolerance) {
@@ -51,10 +65,7 @@ public class HighestDataPointConnector {
     this.dataFile = dataFile;
     this.allScanNumbers = allScanNumbers;
 
-    // We use LinkedHashSet to maintain a reproducible ordering. If we use
-    // plain HashSet, the resulting feature list row IDs will have different
-    // order every time the method is invoked.
-    buildingChromatograms = new LinkedHashSet<Chromatogram>();
+    buildingChromatograms = new ArrayList<Chromatogram>();
 
   }
 
@@ -64,24 +75,32 @@ public class HighestDataPointConnector {
     Arrays.sort(mzValues,
         new DataPointSorter(SortingProperty.Intensity, SortingDirection.Descending));
 
-    // Set of already connected chromatograms in each iteration
-    Set<Chromatogram> connectedChromatograms = new LinkedHashSet<Chromatogram>();
+    // Chromatograms connected in this scan, in the order of connection
+    final List<Chromatogram> connectedChromatograms = new ArrayList<Chromatogram>();
+    final boolean connected[] = new boolean[buildingChromatograms.size()];
 
-    // TODO: these two nested cycles should be optimized for speed
     for (DataPoint mzPeak : mzValues) {
 
-      // Search for best chromatogram, which has highest last data point
-      Chromatogram bestChromatogram = null;
+      // Search for best chromatogram, which has highest last data point. The last data point of a
+      // chromatogram connected in this scan may have moved by up to one tolerance from its sorted
+      // position, so we search a window of three tolerances and check the actual last data point.
+      final double mz = mzPeak.getMZ();
+      final double window = 3 * mzTolerance.getMzToleranceForMass(mz);
+      int bestIndex = -1;
+      DataPoint bestLastMzPeak = null;
 
-      for (Chromatogram testChrom : buildingChromatograms) {
+      int i = lowerBound(sortedLastMZValues, mz - window);
+      for (; (i < sortedLastMZValues.length) && (sortedLastMZValues[i] <= mz + window); i++) {
 
-        DataPoint lastMzPeak = testChrom.getLastMzPeak();
-        Range<Double> toleranceRange = mzTolerance.getToleranceRange(lastMzPeak.getMZ());
-        if (toleranceRange.contains(mzPeak.getMZ())) {
-          if ((bestChromatogram == null) || (testChrom.getLastMzPeak()
-              .getIntensity() > bestChromatogram.getLastMzPeak().getIntensity())) {
-            bestChromatogram = testChrom;
-          }
+        final int index = sortedIndexes[i];
+        final DataPoint lastMzPeak = buildingChromatograms.get(index).getLastMzPeak();
+        if (!mzTolerance.getToleranceRange(lastMzPeak.getMZ()).contains(mz))
+          continue;
+        if ((bestIndex == -1) || (lastMzPeak.getIntensity() > bestLastMzPeak.getIntensity())
+            || ((lastMzPeak.getIntensity() == bestLastMzPeak.getIntensity())
+                && (index < bestIndex))) {
+          bestIndex = index;
+          bestLastMzPeak = lastMzPeak;
         }
 
       }
@@ -89,10 +108,13 @@ public class HighestDataPointConnector {
       // If we found best chromatogram, check if it is already connected.
       // In such case, we may discard this mass and continue. If we
       // haven't found a chromatogram, we may create a new one.
-      if (bestChromatogram != null) {
-        if (connectedChromatograms.contains(bestChromatogram)) {
+      final Chromatogram bestChromatogram;
+      if (bestIndex != -1) {
+        if (connected[bestIndex]) {
           continue;
         }
+        connected[bestIndex] = true;
+        bestChromatogram = buildingChromatograms.get(bestIndex);
       } else {
         bestChromatogram = new Chromatogram(dataFile, allScanNumbers);
       }
@@ -100,24 +122,26 @@ public class HighestDataPointConnector {
       // Add this mzPeak to the chromatogram
       bestChromatogram.addMzPeak(scanNumber, mzPeak);
 
-      // Move the chromatogram to the set of connected chromatograms
+      // Move the chromatogram to the list of connected chromatograms
       connectedChromatograms.add(bestChromatogram);
 
     }
 
     // Process those chromatograms which were not connected to any m/z peak
-    for (Chromatogram testChrom : buildingChromatograms) {
+    for (int index = 0; index < connected.length; index++) {
 
       // Skip those which were connected
-      if (connectedChromatograms.contains(testChrom)) {
+      if (connected[index]) {
         continue;
       }
 
+      final Chromatogram testChrom = buildingChromatograms.get(index);
+
       // Check if we just finished a long-enough segment
       if (testChrom.getBuildingSegmentLength() >= minimumTimeSpan) {
         testChrom.commitBuildingSegment();
 
-        // Move the chromatogram to the set of connected chromatograms
+        // Move the chromatogram to the list of connected chromatograms
         connectedChromatograms.add(testChrom);
         continue;
       }
@@ -126,7 +150,7 @@ public class HighestDataPointConnector {
       if (testChrom.getNumberOfCommittedSegments() > 0) {
         testChrom.removeBuildingSegment();
 
-        // Move the chromatogram to the set of connected chromatograms
+        // Move the chromatogram to the list of connected chromatograms
         connectedChromatograms.add(testChrom);
         continue;
       }
@@ -136,25 +160,122 @@ public class HighestDataPointConnector {
     // All remaining chromatograms in buildingChromatograms are discarded
     // and buildingChromatograms is replaced with connectedChromatograms
     buildingChromatograms = connectedChromatograms;
+    sortBuildingChromatograms();
 
   }
 
-  public Chromatogram[] finishChromatograms() {
+  /**
+   * Sorts the indexes of the building chromatograms by the m/z of their last data point
+   */
+  private void sortBuildingChromatograms() {
+
+    final int numOfChromatograms = buildingChromatograms.size();
+    sortedIndexes = new int[numOfChromatograms];
+    sortedLastMZValues = new double[numOfChromatograms];
+    for (int i = 0; i < numOfChromatograms; i++) {
+      sortedIndexes[i] = i;
+      sortedLastMZValues[i] = buildingChromatograms.get(i).getLastMzPeak().getMZ();
+    }
 
-    // Iterate through current chromatograms and remove those which do not
-    // contain any committed segment nor long-enough building segment
+    sortByValue(sortedLastMZValues, sortedIndexes, 0, numOfChromatograms - 1);
+
+  }
+
+  /**
+   * Sorts the values between from and to (inclusive) in ascending order by a quicksort, and moves
+   * the indexes along with them. The order of equal values is not defined, which is fine because
+   * addScan() checks all chromatograms in the m/z window and breaks ties by their index.
+   */
+  private static void sortByValue(double values[], int indexes[], int from, int to) {
+
+    while (to - from > INSERTION_SORT_THRESHOLD) {
+
+      // Median of three pivot, so the m/z values of consecutive scans do not degrade the sort
+      final int middle = (from + to) >>> 1;
+      if (values[middle] < values[from])
+        swap(values, indexes, from, middle);
+      if (values[to] < values[from])
+        swap(values, indexes, from, to);
+      if (values[to] < values[middle])
+        swap(values, indexes, middle, to);
+      final double pivot = values[middle];
+
+      int i = from, j = to;
+      while (i <= j) {
+        while (values[i] < pivot)
+          i++;
+        while (values[j] > pivot)
+          j--;
+        if (i <= j) {
+          swap(values, indexes, i, j);
+          i++;
+          j--;
+        }
+      }
+
+      // Recurse into the smaller part and continue with the larger one
+      if (j - from < to - i) {
+        sortByValue(values, indexes, from, j);
+        from = i;
+      } else {
+        sortByValue(values, indexes, i, to);
+        to = j;
+      }
 
-    Iterator<Chromatogram> chromIterator = buildingChromatograms.iterator();
-    while (chromIterator.hasNext()) {
+    }
 
-      Chromatogram chromatogram = chromIterator.next();
+    // Insertion sort of the remaining short range
+    for (int i = from + 1; i <= to; i++) {
+      final double value = values[i];
+      final int index = indexes[i];
+      int j = i - 1;
+      while ((j >= from) && (values[j] > value)) {
+        values[j + 1] = values[j];
+        indexes[j + 1] = indexes[j];
+        j--;
+      }
+      values[j + 1] = value;
+      indexes[j + 1] = index;
+    }
+
+  }
+
+  private static void swap(double values[], int indexes[], int i, int j) {
+    final double value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+    final int index = indexes[i];
+    indexes[i] = indexes[j];
+    indexes[j] = index;
+  }
+
+  /**
+   * Returns the index of the first value that is not smaller than the given value
+   */
+  private static int lowerBound(double sortedValues[], double value) {
+    int low = 0, high = sortedValues.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (sortedValues[middle] < value)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  public Chromatogram[] finishChromatograms() {
+
+    // Iterate through current chromatograms and skip those which do not
+    // contain any committed segment nor long-enough building segment
+    final List<Chromatogram> finishedChromatograms = new ArrayList<Chromatogram>();
+    for (Chromatogram chromatogram : buildingChromatograms) {
 
       if (chromatogram.getBuildingSegmentLength() >= minimumTimeSpan) {
         chromatogram.commitBuildingSegment();
         chromatogram.finishChromatogram();
       } else {
         if (chromatogram.getNumberOfCommittedSegments() == 0) {
-          chromIterator.remove();
           continue;
         } else {
           chromatogram.removeBuildingSegment();
@@ -162,14 +283,16 @@ public class HighestDataPointConnector {
         }
       }
 
-      // Remove chromatograms smaller then minimum height
+      // Skip chromatograms smaller then minimum height
       if (chromatogram.getHeight() < minimumHeight)
-        chromIterator.remove();
+        continue;
+
+      finishedChromatograms.add(chromatogram);
 
     }
 
     // All remaining chromatograms are good, so we can return them
-    Chromatogram[] chromatograms = buildingChromatograms.toArray(new Chromatogram[0]);
+    Chromatogram[] chromatograms = finishedChromatograms.toArray(new Chromatogram[0]);
     return chromatograms;
   }
 
@@ -18,6 +18,7 @@
 
 package net.sf.mzmine.modules.peaklistmethods.filtering.groupms2;
 
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import com.google.common.collect.Range;
@@ -27,7 +28,6 @@ import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakList;
 import net.sf.mzmine.datamodel.PeakListRow;
 import net.sf.mzmine.datamodel.RawDataFile;
-import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
 import net.sf.mzmine.parameters.parametertypes.tolerances.RTTolerance;
@@ -101,47 +101,29 @@ public class GroupMS2Task extends AbstractTask {
 
           RawDataFile raw = f.getDataFile();
           IntArrayList scans = new IntArrayList();
-          int best = f.getRepresentativeScanNumber();
           double frt = f.getRT();
           double fmz = f.getMZ();
-          Range<Double> rtRange = f.getRawDataPointsRTRange();
-          int i = best;
-          // left
-          while (i > 1) {
-            i--;
-            Scan scan = raw.getScan(i);
-            if (scan != null) {
-              if ((!limitRTByFeature || rtRange.contains(scan.getRetentionTime()))
-                  && rtTol.checkWithinTolerance(frt, scan.getRetentionTime())) {
-                if (scan.getPrecursorMZ() != 0
-                    && mzTol.checkWithinTolerance(fmz, scan.getPrecursorMZ()))
-                  scans.add(i);
-              } else {
-                // end of loop - out of tolerance
-                break;
-              }
-            }
+          Range<Double> rtRange = rtTol.getToleranceRange(frt);
+          if (limitRTByFeature) {
+            Range<Double> featureRTRange = f.getRawDataPointsRTRange();
+            rtRange = rtRange.isConnected(featureRTRange) ? rtRange.intersection(featureRTRange)
+                : Range.closedOpen(frt, frt);
           }
-          int[] scanNumbers = raw.getScanNumbers();
-          // right
-          while (i < scanNumbers[scanNumbers.length - 1]) {
-            i++;
-            Scan scan = raw.getScan(i);
-            // scanID does not have to be contiguous
-            if (scan != null) {
-              if ((!limitRTByFeature || rtRange.contains(scan.getRetentionTime()))
-                  && rtTol.checkWithinTolerance(frt, scan.getRetentionTime())) {
-                if (scan.getPrecursorMZ() != 0
-                    && mzTol.checkWithinTolerance(fmz, scan.getPrecursorMZ()))
-                  scans.add(i);
-              } else {
-                // end of loop - out of tolerance
-                break;
-              }
+          Range<Double> mzRange = mzTol.getToleranceRange(fmz);
+
+          // all fragmentation scans within the tolerances, found by the precursor index
+          for (int msLevel : raw.getMSLevels()) {
+            if (msLevel < 2)
+              continue;
+            for (int scanNumber : raw.getScanNumbers(msLevel, rtRange, mzRange)) {
+              if (raw.getScan(scanNumber).getPrecursorMZ() != 0)
+                scans.add(scanNumber);
             }
           }
           // set list to feature
-          f.setAllMS2FragmentScanNumbers(scans.toIntArray());
+          int[] scanNumbers = scans.toIntArray();
+          Arrays.sort(scanNumbers);
+          f.setAllMS2FragmentScanNumbers(scanNumbers);
         }
         processedRows++;
       }
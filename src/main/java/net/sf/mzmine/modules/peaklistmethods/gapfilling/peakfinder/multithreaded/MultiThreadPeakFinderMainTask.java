@@ -18,7 +18,7 @@
 
 package net.sf.mzmine.modules.peaklistmethods.gapfilling.peakfinder.multithreaded;
 
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.logging.Logger;
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.PeakIdentity;
@@ -33,11 +33,11 @@ import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import net.sf.mzmine.taskcontrol.TaskStatusListener;
 
 /**
  * The main task creates sub tasks to perform the PeakFinder algorithm on multiple threads. Each sub
- * task performs gap filling on a number of RawDataFiles.
+ * task performs gap filling on a number of RawDataFiles. The sub tasks are forked into the worker
+ * pool of the task controller, and the main task finishes when all of them are finished.
  * 
  * @author Robin Schmid (robinschmid@wwu.de)
  *
@@ -53,21 +53,18 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
   private boolean removeOriginal;
 
   private double progress = 0;
-  private Collection<Task> batchTasks;
 
   /**
    * 
    * @param project
    * @param peakList
    * @param parameters
-   * @param batchTasks all sub tasks are registered to the batchtasks list
    */
   public MultiThreadPeakFinderMainTask(MZmineProject project, PeakList peakList,
-      ParameterSet parameters, Collection<Task> batchTasks) {
+      ParameterSet parameters) {
     this.project = project;
     this.peakList = peakList;
     this.parameters = parameters;
-    this.batchTasks = batchTasks;
 
     suffix = parameters.getParameter(MultiThreadPeakFinderParameters.suffix).getValue();
     removeOriginal = parameters.getParameter(MultiThreadPeakFinderParameters.autoRemove).getValue();
@@ -96,41 +93,17 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
     // Submit the tasks to the task controller for processing
     Task[] tasks = createSubTasks(raw, maxRunningThreads, listener);
 
-    // listener for status change: Cancel / error
-    TaskStatusListener list = new TaskStatusListener() {
-      @Override
-      public void taskStatusChanged(Task task, TaskStatus newStatus, TaskStatus oldStatus) {
-        if (newStatus.equals(TaskStatus.CANCELED) || newStatus.equals(TaskStatus.ERROR)) {
-          // if one is cancelled, stop all
-          synchronized (this) {
-            // remove listener
-            // cancel all
-            for (Task t : tasks) {
-              if (t instanceof AbstractTask)
-                ((AbstractTask) t).removeTaskStatusListener(this);
-              t.cancel();
-            }
-          }
-        }
-      }
-    };
-
-    // add listener to all sub tasks
-    for (Task t : tasks) {
-      if (t instanceof AbstractTask)
-        ((AbstractTask) t).addTaskStatusListener(list);
-      // add to batchMode collection
-      if (batchTasks != null)
-        batchTasks.add(t);
-    }
-
-    // start
-    MZmineCore.getTaskController().addTasks(tasks);
+    // start, canceling this task or an error of one sub task cancels all
+    forkSubTasks(Arrays.asList(tasks));
+    logger.info("All sub tasks started for multithreaded gap-filling on " + peakList);
 
     // listener will take care of adding the final list
+    if (!joinSubTasks())
+      return;
+
     progress = 1;
     // end
-    logger.info("All sub tasks started for multithreaded gap-filling on " + peakList);
+    logger.info("All sub tasks finished for multithreaded gap-filling on " + peakList);
     setStatus(TaskStatus.FINISHED);
   }
 
@@ -205,7 +178,9 @@ class MultiThreadPeakFinderMainTask extends AbstractTask {
 
   @Override
   public double getFinishedPercentage() {
-    return progress;
+    if (getSubTasks().isEmpty())
+      return progress;
+    return getSubTasksFinishedPercentage();
 
   }
 
@@ -54,7 +54,7 @@ public class MultiThreadPeakFinderModule implements MZmineProcessingModule {
 
     for (PeakList peakList : peakLists) {
       // start tasks
-      Task newTask = new MultiThreadPeakFinderMainTask(project, peakList, parameters, tasks);
+      Task newTask = new MultiThreadPeakFinderMainTask(project, peakList, parameters);
       tasks.add(newTask);
     }
     return ExitCode.OK;
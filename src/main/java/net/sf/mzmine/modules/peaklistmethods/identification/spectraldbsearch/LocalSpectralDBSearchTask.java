@@ -69,7 +69,7 @@ class LocalSpectralDBSearchTask extends AbstractTask {
   public double getFinishedPercentage() {
     if (totalTasks == 0 || tasks == null)
       return 0;
-    return ((double) totalTasks - tasks.size()) / totalTasks;
+    return getSubTasksFinishedPercentage();
   }
 
   /**
@@ -91,26 +91,10 @@ class LocalSpectralDBSearchTask extends AbstractTask {
       tasks = parseFile(dataBaseFile);
       totalTasks = tasks.size();
       if (!tasks.isEmpty()) {
-        // wait for the tasks to finish
-        while (!isCanceled() && !tasks.isEmpty()) {
-          for (int i = 0; i < tasks.size(); i++) {
-            if (tasks.get(i).isFinished() || tasks.get(i).isCanceled()) {
-              count += tasks.get(i).getCount();
-              tasks.remove(i);
-              i--;
-            }
-          }
-          // wait for all sub tasks to finish
-          try {
-            Thread.sleep(100);
-          } catch (Exception e) {
-            cancel();
-          }
-        }
-        // cancelled
-        if (isCanceled()) {
-          tasks.stream().forEach(AbstractTask::cancel);
-        }
+        // wait for all sub tasks to finish, canceling this task cancels them
+        joinSubTasks();
+        for (RowsSpectralMatchTask task : tasks)
+          count += task.getCount();
       } else {
         setStatus(TaskStatus.ERROR);
         setErrorMessage("DB file was empty - or error while parsing " + dataBaseFile);
@@ -131,7 +115,8 @@ class LocalSpectralDBSearchTask extends AbstractTask {
     if (!(desktop instanceof HeadLessDesktop))
       desktop.getMainWindow().repaint();
 
-    setStatus(TaskStatus.FINISHED);
+    if (!isCanceled())
+      setStatus(TaskStatus.FINISHED);
 
   }
 
@@ -151,8 +136,8 @@ class LocalSpectralDBSearchTask extends AbstractTask {
         // start last task
         RowsSpectralMatchTask task =
             new RowsSpectralMatchTask(peakList.getName(), rows, parameters, alreadyProcessed + 1, list);
-        MZmineCore.getTaskController().addTask(task);
         tasks.add(task);
+        forkSubTask(task);
       }
     });
 
@@ -22,7 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -39,6 +39,7 @@ import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.projectmethods.projectload.RawDataFileOpenHandler;
+import net.sf.mzmine.project.impl.DataPointsEncoding;
 import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.project.impl.StorableMassList;
 import net.sf.mzmine.project.impl.StorableScan;
@@ -62,8 +63,8 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements RawDat
   private int currentStorageID;
   private int storedDataID;
   private int storedDataNumDP;
-  private TreeMap<Integer, Long> dataPointsOffsets;
-  private TreeMap<Integer, Integer> dataPointsLengths;
+  private ConcurrentSkipListMap<Integer, Long> dataPointsOffsets;
+  private ConcurrentSkipListMap<Integer, Integer> dataPointsLengths;
   private ArrayList<StorableMassList> massLists;
   private PolarityType polarity = PolarityType.UNKNOWN;
   private String scanDescription = "";
@@ -133,6 +134,21 @@ public class RawDataFileOpenHandler_2_5 extends DefaultHandler implements RawDat
           Integer.parseInt(attrs.getValue(RawDataElementName_2_5.STORAGE_ID.getElementName()));
     }
 
+    // Projects saved by earlier versions do not specify the encoding, their data points are
+    // stored as uncompressed 32-bit floats
+    if (qName.equals(RawDataElementName_2_5.STORED_DATAPOINTS.getElementName())) {
+      String encoding = attrs.getValue(RawDataElementName_2_5.ENCODING.getElementName());
+      String compressed = attrs.getValue(RawDataElementName_2_5.COMPRESSED.getElementName());
+      if (encoding != null) {
+        try {
+          newRawDataFile.setDataPointsFormat(DataPointsEncoding.valueOf(encoding),
+              Boolean.parseBoolean(compressed));
+        } catch (IllegalArgumentException e) {
+          throw new SAXException("Unsupported data points encoding " + encoding);
+        }
+      }
+    }
+
     if (qName.equals(RawDataElementName_2_5.STORED_DATA.getElementName())) {
       storedDataID =
           Integer.parseInt(attrs.getValue(RawDataElementName_2_5.STORAGE_ID.getElementName()));
@@ -20,7 +20,6 @@ package net.sf.mzmine.modules.projectmethods.projectsave;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
@@ -45,7 +44,7 @@ import org.xml.sax.helpers.AttributesImpl;
 
 import com.google.common.collect.Range;
 
-class RawDataFileSaveHandler {
+public class RawDataFileSaveHandler {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
   private int numOfScans, completedScans;
@@ -56,7 +55,7 @@ class RawDataFileSaveHandler {
   private Map<Integer, Integer> dataPointsLengths;
   private double progress = 0;
 
-  RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
+  public RawDataFileSaveHandler(ZipOutputStream zipOutputStream) {
     this.zipOutputStream = zipOutputStream;
   }
 
@@ -71,46 +70,52 @@ class RawDataFileSaveHandler {
    * @throws TransformerConfigurationException
    * @throws SAXException
    */
-  void writeRawDataFile(RawDataFileImpl rawDataFile, int number)
+  public void writeRawDataFile(RawDataFileImpl rawDataFile, int number)
       throws IOException, TransformerConfigurationException, SAXException {
 
     numOfScans = rawDataFile.getNumOfScans();
 
-    // Get the structure of the data points file
-    dataPointsOffsets = rawDataFile.getDataPointsOffsets();
-    dataPointsLengths = rawDataFile.getDataPointsLengths();
-    consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
-
-    // step 1 - save data file
-    logger.info("Saving data points of: " + rawDataFile.getName());
-
     String rawDataSavedName = "Raw data file #" + number + " " + rawDataFile.getName();
 
-    zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".scans"));
-
-    // We save only those data points that still have a reference in the
-    // dataPointsOffset table. Some deleted mass lists may still be present
-    // in the data points file, we don't want to copy those.
-    long newOffset = 0;
-    byte buffer[] = new byte[1 << 20];
-    RandomAccessFile dataPointsFile = rawDataFile.getDataPointsFile();
-    for (Integer storageID : dataPointsOffsets.keySet()) {
-
-      if (canceled)
-        return;
-
-      final long offset = dataPointsOffsets.get(storageID);
-      dataPointsFile.seek(offset);
-
-      final int bytes = dataPointsLengths.get(storageID) * 4 * 2;
-      consolidatedDataPointsOffsets.put(storageID, newOffset);
-      if (buffer.length < bytes) {
-        buffer = new byte[bytes * 2];
+    // No scans must be added while we are copying the data points. The file may be compacted in
+    // the meantime, which does not change the storage IDs.
+    synchronized (rawDataFile) {
+
+      // Make sure all stored data points are in the file
+      rawDataFile.flushDataPoints();
+
+      // Get the structure of the data points file
+      dataPointsOffsets = rawDataFile.getDataPointsOffsets();
+      dataPointsLengths = rawDataFile.getDataPointsLengths();
+      consolidatedDataPointsOffsets = new TreeMap<Integer, Long>();
+
+      // step 1 - save data file
+      logger.info("Saving data points of: " + rawDataFile.getName());
+
+      zipOutputStream.putNextEntry(new ZipEntry(rawDataSavedName + ".scans"));
+
+      // We save only those data points that still have a reference in the
+      // dataPointsOffset table. Some deleted mass lists may still be present
+      // in the data points file, we don't want to copy those. The data points
+      // are read through the raw data file, as some of them may be kept in
+      // memory rather than in the file. They are saved in their stored
+      // encoding.
+      long newOffset = 0;
+      int savedRecords = 0;
+      final int totalRecords = dataPointsOffsets.size();
+      for (Integer storageID : dataPointsOffsets.keySet()) {
+
+        if (canceled)
+          return;
+
+        final byte record[] = rawDataFile.readEncodedDataPoints(storageID);
+        consolidatedDataPointsOffsets.put(storageID, newOffset);
+        zipOutputStream.write(record);
+        newOffset += record.length;
+        savedRecords++;
+        progress = 0.9 * ((double) savedRecords / totalRecords);
       }
-      dataPointsFile.read(buffer, 0, bytes);
-      zipOutputStream.write(buffer, 0, bytes);
-      newOffset += bytes;
-      progress = 0.9 * ((double) offset / dataPointsFile.length());
+
     }
 
     if (canceled)
@@ -159,6 +164,10 @@ class RawDataFileSaveHandler {
     // <STORED_DATAPOINTS>
     atts.addAttribute("", "", RawDataElementName.QUANTITY.getElementName(), "CDATA",
         String.valueOf(dataPointsOffsets.size()));
+    atts.addAttribute("", "", RawDataElementName.ENCODING.getElementName(), "CDATA",
+        rawDataFile.getDataPointsEncoding().name());
+    atts.addAttribute("", "", RawDataElementName.COMPRESSED.getElementName(), "CDATA",
+        String.valueOf(rawDataFile.isDataPointsCompressed()));
     hd.startElement("", "", RawDataElementName.STORED_DATAPOINTS.getElementName(), atts);
     atts.clear();
     for (Integer storageID : dataPointsOffsets.keySet()) {
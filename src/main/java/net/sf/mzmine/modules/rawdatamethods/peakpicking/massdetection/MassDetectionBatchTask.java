@@ -0,0 +1,121 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Detects the masses of a range of consecutive scans, as a sub-task of MassDetectionTask. The mass
+ * lists are only kept until the parent task stores them, so they are added to the scans in the
+ * order of the scans, regardless of which batch finishes first.
+ */
+class MassDetectionBatchTask extends AbstractTask {
+
+  private final Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private final Scan scans[];
+  private final int firstScan, lastScan;
+  private final MZmineProcessingStep<MassDetector> massDetector;
+
+  private final DataPoint mzPeaks[][];
+  private int processedScans = 0;
+
+  /**
+   * @param scans all scans of the parent task
+   * @param firstScan index of the first scan of this batch
+   * @param lastScan index after the last scan of this batch
+   */
+  MassDetectionBatchTask(Scan scans[], int firstScan, int lastScan,
+      MZmineProcessingStep<MassDetector> massDetector) {
+    this.scans = scans;
+    this.firstScan = firstScan;
+    this.lastScan = lastScan;
+    this.massDetector = massDetector;
+    this.mzPeaks = new DataPoint[lastScan - firstScan][];
+  }
+
+  @Override
+  public String getTaskDescription() {
+    return "Detecting masses in scans " + scans[firstScan].getScanNumber() + " to "
+        + scans[lastScan - 1].getScanNumber();
+  }
+
+  @Override
+  public double getFinishedPercentage() {
+    return (double) processedScans / mzPeaks.length;
+  }
+
+  @Override
+  public void run() {
+
+    if (isCanceled())
+      return;
+    setStatus(TaskStatus.PROCESSING);
+
+    try {
+      MassDetector detector = massDetector.getModule();
+      for (int i = firstScan; i < lastScan; i++) {
+        if (isCanceled())
+          return;
+        mzPeaks[i - firstScan] = detector.getMassValues(scans[i], massDetector.getParameterSet());
+        processedScans++;
+      }
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, getTaskDescription() + " failed", e);
+      setErrorMessage(e.toString());
+      setStatus(TaskStatus.ERROR);
+      return;
+    }
+
+    setStatus(TaskStatus.FINISHED);
+
+  }
+
+  int getFirstScan() {
+    return firstScan;
+  }
+
+  int getLastScan() {
+    return lastScan;
+  }
+
+  /**
+   * @return the detected masses of the scan with given index in the scans of the parent task
+   */
+  DataPoint[] getMassValues(int scan) {
+    return mzPeaks[scan - firstScan];
+  }
+
+  /**
+   * Releases the detected masses, once they are stored
+   */
+  void clear() {
+    for (int i = 0; i < mzPeaks.length; i++)
+      mzPeaks[i] = null;
+  }
+
+}
@@ -19,8 +19,11 @@
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.mzmine.datamodel.DataPoint;
@@ -35,10 +38,10 @@ import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 import net.sf.mzmine.project.impl.MZmineProjectImpl;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
-import ucar.ma2.ArrayDouble;
+import ucar.ma2.Array;
 import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Attribute;
-import ucar.nc2.Dimension;
 import ucar.nc2.NetcdfFileWriter;
 import ucar.nc2.Variable;
 
@@ -46,6 +49,15 @@ import ucar.nc2.Variable;
 
 public class MassDetectionTask extends AbstractTask {
 
+  // Largest number of scans processed by one sub-task
+  private static final int MAX_SCANS_PER_BATCH = 64;
+
+  // Number of batches per worker thread in one window of scans
+  private static final int BATCHES_PER_THREAD = 4;
+
+  // Number of masses written to the netCDF file at once
+  private static final int NETCDF_CHUNK_SIZE = 1 << 20;
+
   private final Logger logger = Logger.getLogger(this.getClass().getName());
   private final RawDataFile dataFile;
 
@@ -109,179 +121,92 @@ public class MassDetectionTask extends AbstractTask {
    */
   public void run() {
 
-
-    // make arrays to contain everything you need
-    ArrayList<Integer> pointsInScans = new ArrayList<>();
-    ArrayList<Double> allMZ = new ArrayList<>();
-    ArrayList<Double> allIntensities = new ArrayList<>();
-    // idecies of full mass list where scan starts?
-    ArrayList<Integer> startIndex = new ArrayList<>();
-    ArrayList<Double> scanAcquisitionTime = new ArrayList<>();
-    // XCMS needs this one
-    ArrayList<Double> totalIntensity = new ArrayList<>();
-
-
-    double curTotalIntensity;
-    int lastPointCount = 0;
-
-    startIndex.add(0);
+    // Detected masses of all scans in double precision, for the netCDF file
+    MassValuesSpool spool = null;
 
     try {
 
-
       setStatus(TaskStatus.PROCESSING);
 
       logger.info("Started mass detector on " + dataFile);
 
       final Scan scans[] = scanSelection.getMatchingScans(dataFile);
       totalScans = scans.length;
-      // Process scans one by one
-      for (Scan scan : scans) {
 
-        if (isCanceled())
+      // Number of masses and total intensity of each scan, for the netCDF file
+      final int numOfMasses[] = new int[scans.length];
+      final double totalIntensities[] = new double[scans.length];
+
+      // Detect the masses in batches of scans on all worker threads. While the mass lists of one
+      // window of batches are stored in the order of the scans, the next window is processed.
+      final int numOfThreads = MZmineCore.getNumberOfThreads();
+      final int scansPerBatch = Math.max(1,
+          Math.min(MAX_SCANS_PER_BATCH, scans.length / (numOfThreads * BATCHES_PER_THREAD)));
+      final int scansPerWindow = scansPerBatch * numOfThreads * BATCHES_PER_THREAD;
+
+      if (this.saveToCDF)
+        spool = new MassValuesSpool();
+
+      List<MassDetectionBatchTask> window = forkBatches(scans, 0, scansPerWindow, scansPerBatch);
+      while (!window.isEmpty()) {
+
+        if (!joinSubTasks())
           return;
 
-        MassDetector detector = massDetector.getModule();
-        DataPoint mzPeaks[] = detector.getMassValues(scan, massDetector.getParameterSet());
+        final int nextScan = window.get(window.size() - 1).getLastScan();
+        final List<MassDetectionBatchTask> nextWindow =
+            forkBatches(scans, nextScan, scansPerWindow, scansPerBatch);
 
-        SimpleMassList newMassList = new SimpleMassList(name, scan, mzPeaks);
+        for (MassDetectionBatchTask batch : window) {
+          for (int i = batch.getFirstScan(); i < batch.getLastScan(); i++) {
 
-        // Add new mass list to the scan
-        scan.addMassList(newMassList);
+            if (isCanceled())
+              return;
 
-        if (this.saveToCDF) {
+            DataPoint mzPeaks[] = batch.getMassValues(i);
 
-          curTotalIntensity = 0;
-          for (int a = 0; a < mzPeaks.length; a++) {
-            DataPoint curMzPeak = mzPeaks[a];
-            allMZ.add(curMzPeak.getMZ());
-            allIntensities.add(curMzPeak.getIntensity());
-            curTotalIntensity += curMzPeak.getIntensity();
-          }
+            SimpleMassList newMassList = new SimpleMassList(name, scans[i], mzPeaks);
+
+            // Add new mass list to the scan
+            scans[i].addMassList(newMassList);
 
-          scanAcquisitionTime.add(scan.getRetentionTime());
-          pointsInScans.add(0);
-          startIndex.add(mzPeaks.length + lastPointCount);
-          totalIntensity.add(curTotalIntensity);
+            if (spool != null) {
+              spool.add(mzPeaks);
+              numOfMasses[i] = mzPeaks.length;
+              for (DataPoint mzPeak : mzPeaks)
+                totalIntensities[i] += mzPeak.getIntensity();
+            }
 
-          lastPointCount = mzPeaks.length + lastPointCount;
+            processedScans++;
+          }
+          batch.clear();
         }
 
-        processedScans++;
+        window = nextWindow;
       }
 
       // Update the GUI with all new mass lists
       MZmineProjectImpl project =
           (MZmineProjectImpl) MZmineCore.getProjectManager().getCurrentProject();
       final RawDataTreeModel treeModel = project.getRawDataTreeModel();
-      treeModel.updateGUIWithNewObjects();;
-
-      if (this.saveToCDF) {
-        // ************** write mass list *******************************
-        final String outFileNamePath = outFilename.getPath();
-        logger.info("Saving mass detector results to netCDF file " + outFileNamePath);
-        NetcdfFileWriter writer =
-            NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, outFileNamePath, null);
-
-        Dimension dim_massValues = writer.addDimension(null, "mass_values", allMZ.size());
-        Dimension dim_intensityValues =
-            writer.addDimension(null, "intensity_values", allIntensities.size());
-        Dimension dim_scanIndex = writer.addDimension(null, "scan_index", startIndex.size() - 1);
-        Dimension dim_scanAcquisitionTime =
-            writer.addDimension(null, "scan_acquisition_time", scanAcquisitionTime.size());
-        Dimension dim_totalIntensity =
-            writer.addDimension(null, "total_intensity", totalIntensity.size());
-        Dimension dim_pointsInScans =
-            writer.addDimension(null, "point_count", pointsInScans.size());
-
-        // add dimensions to list
-        List<Dimension> dims = new ArrayList<>();
-        dims.add(dim_massValues);
-        dims.add(dim_intensityValues);
-        dims.add(dim_scanIndex);
-        dims.add(dim_scanAcquisitionTime);
-        dims.add(dim_totalIntensity);
-        dims.add(dim_pointsInScans);
-
-        // make the variables that contain the actual data I think.
-        Variable var_massValues =
-            writer.addVariable(null, "mass_values", DataType.DOUBLE, "mass_values");
-        Variable var_intensityValues =
-            writer.addVariable(null, "intensity_values", DataType.DOUBLE, "intensity_values");
-        Variable var_scanIndex = writer.addVariable(null, "scan_index", DataType.INT, "scan_index");
-        Variable var_scanAcquisitionTime = writer.addVariable(null, "scan_acquisition_time",
-            DataType.DOUBLE, "scan_acquisition_time");
-        Variable var_totalIntensity =
-            writer.addVariable(null, "total_intensity", DataType.DOUBLE, "total_intensity");
-        Variable var_pointsInScans =
-            writer.addVariable(null, "point_count", DataType.INT, "point_count");
-
-        var_massValues.addAttribute(new Attribute("units", "M/Z"));
-        var_intensityValues.addAttribute(new Attribute("units", "Arbitrary Intensity Units"));
-        var_scanIndex.addAttribute(new Attribute("units", "index"));
-        var_scanAcquisitionTime.addAttribute(new Attribute("units", "seconds"));
-        var_totalIntensity.addAttribute(new Attribute("units", "Arbitrary Intensity Units"));
-        var_pointsInScans.addAttribute(new Attribute("units", "count"));
-
-        var_massValues.addAttribute(new Attribute("scale_factor", 1.0));
-        var_intensityValues.addAttribute(new Attribute("scale_factor", 1.0));
-        var_scanIndex.addAttribute(new Attribute("scale_factor", 1.0));
-        var_scanAcquisitionTime.addAttribute(new Attribute("scale_factor", 1.0));
-        var_totalIntensity.addAttribute(new Attribute("scale_factor", 1.0));
-        var_pointsInScans.addAttribute(new Attribute("scale_factor", 1.0));
-
-        // create file
-        writer.create();
-
-        ArrayDouble.D1 arr_massValues = new ArrayDouble.D1(dim_massValues.getLength());
-        ArrayDouble.D1 arr_intensityValues = new ArrayDouble.D1(dim_intensityValues.getLength());
-        ArrayDouble.D1 arr_scanIndex = new ArrayDouble.D1(dim_scanIndex.getLength());
-        ArrayDouble.D1 arr_scanAcquisitionTime =
-            new ArrayDouble.D1(dim_scanAcquisitionTime.getLength());
-        ArrayDouble.D1 arr_totalIntensity = new ArrayDouble.D1(dim_totalIntensity.getLength());
-        ArrayDouble.D1 arr_pointsInScans = new ArrayDouble.D1(dim_pointsInScans.getLength());
-
-        for (int i = 0; i < allMZ.size(); i++) {
-          arr_massValues.set(i, allMZ.get(i));
-          arr_intensityValues.set(i, allIntensities.get(i));
-        }
-        int i = 0;
-        for (; i < scanAcquisitionTime.size(); i++) {
-          arr_scanAcquisitionTime.set(i, scanAcquisitionTime.get(i) * 60);
-          arr_pointsInScans.set(i, pointsInScans.get(i));
-          arr_scanIndex.set(i, startIndex.get(i));
-          arr_totalIntensity.set(i, totalIntensity.get(i));
-        }
-        // arr_scanIndex.set(i,startIndex.get(i));
-
-        // For tiny test file
-        // arr_intensityValues .set(0,200);
-        // arr_scanIndex .set(0,0);
-        // arr_scanAcquisitionTime .set(0,10);
-        // arr_totalIntensity .set(0,200);
-        // arr_pointsInScans .set(0,0);
-
-        // arr_intensityValues .set(1,300);
-        // arr_scanIndex .set(1,1);
-        // arr_scanAcquisitionTime .set(1,20);
-        // arr_totalIntensity .set(1,300);
-        // arr_pointsInScans .set(1,0);
-
-
-
-        writer.write(var_massValues, arr_massValues);
-        writer.write(var_intensityValues, arr_intensityValues);
-        writer.write(var_scanIndex, arr_scanIndex);
-        writer.write(var_scanAcquisitionTime, arr_scanAcquisitionTime);
-        writer.write(var_totalIntensity, arr_totalIntensity);
-        writer.write(var_pointsInScans, arr_pointsInScans);
-        writer.close();
-      }
+      treeModel.updateGUIWithNewObjects();
+
+      if (spool != null)
+        writeNetCDF(scans, numOfMasses, totalIntensities, spool);
 
     } catch (Exception e) {
       e.printStackTrace();
       setErrorMessage(e.getMessage());
       setStatus(TaskStatus.ERROR);
+      return;
+    } finally {
+      if (spool != null) {
+        try {
+          spool.close();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Could not remove the temporary file of the masses", e);
+        }
+      }
     }
 
     setStatus(TaskStatus.FINISHED);
@@ -290,4 +215,127 @@ public class MassDetectionTask extends AbstractTask {
 
 
   }
+
+  /**
+   * Forks the batches of the next window of scans
+   * 
+   * @return the forked batches, empty if there are no scans left
+   */
+  private List<MassDetectionBatchTask> forkBatches(Scan scans[], int firstScan,
+      int scansPerWindow, int scansPerBatch) {
+    final List<MassDetectionBatchTask> batches = new ArrayList<>();
+    final int lastScan = Math.min(scans.length, firstScan + scansPerWindow);
+    for (int i = firstScan; i < lastScan; i += scansPerBatch) {
+      batches.add(new MassDetectionBatchTask(scans, i, Math.min(lastScan, i + scansPerBatch),
+          massDetector));
+    }
+    forkSubTasks(batches);
+    return batches;
+  }
+
+  /**
+   * Writes the mass lists of all scans to the netCDF file. The masses are copied from the spool in
+   * chunks, so they never have to be kept in memory as a whole.
+   */
+  private void writeNetCDF(Scan scans[], int numOfMasses[], double totalIntensities[],
+      MassValuesSpool spool) throws IOException, InvalidRangeException {
+
+    if (spool.getNumberOfDataPoints() > Integer.MAX_VALUE)
+      throw new IOException("Too many masses for a netCDF file: " + spool.getNumberOfDataPoints());
+    final int totalMasses = (int) spool.getNumberOfDataPoints();
+
+    // ************** write mass list *******************************
+    final String outFileNamePath = outFilename.getPath();
+    logger.info("Saving mass detector results to netCDF file " + outFileNamePath);
+    NetcdfFileWriter writer =
+        NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, outFileNamePath, null);
+
+    try {
+      writer.addDimension(null, "mass_values", totalMasses);
+      writer.addDimension(null, "intensity_values", totalMasses);
+      writer.addDimension(null, "scan_index", scans.length);
+      writer.addDimension(null, "scan_acquisition_time", scans.length);
+      writer.addDimension(null, "total_intensity", scans.length);
+      writer.addDimension(null, "point_count", scans.length);
+
+      // make the variables that contain the actual data I think.
+      Variable var_massValues =
+          writer.addVariable(null, "mass_values", DataType.DOUBLE, "mass_values");
+      Variable var_intensityValues =
+          writer.addVariable(null, "intensity_values", DataType.DOUBLE, "intensity_values");
+      Variable var_scanIndex = writer.addVariable(null, "scan_index", DataType.INT, "scan_index");
+      Variable var_scanAcquisitionTime = writer.addVariable(null, "scan_acquisition_time",
+          DataType.DOUBLE, "scan_acquisition_time");
+      Variable var_totalIntensity =
+          writer.addVariable(null, "total_intensity", DataType.DOUBLE, "total_intensity");
+      Variable var_pointsInScans =
+          writer.addVariable(null, "point_count", DataType.INT, "point_count");
+
+      var_massValues.addAttribute(new Attribute("units", "M/Z"));
+      var_intensityValues.addAttribute(new Attribute("units", "Arbitrary Intensity Units"));
+      var_scanIndex.addAttribute(new Attribute("units", "index"));
+      var_scanAcquisitionTime.addAttribute(new Attribute("units", "seconds"));
+      var_totalIntensity.addAttribute(new Attribute("units", "Arbitrary Intensity Units"));
+      var_pointsInScans.addAttribute(new Attribute("units", "count"));
+
+      var_massValues.addAttribute(new Attribute("scale_factor", 1.0));
+      var_intensityValues.addAttribute(new Attribute("scale_factor", 1.0));
+      var_scanIndex.addAttribute(new Attribute("scale_factor", 1.0));
+      var_scanAcquisitionTime.addAttribute(new Attribute("scale_factor", 1.0));
+      var_totalIntensity.addAttribute(new Attribute("scale_factor", 1.0));
+      var_pointsInScans.addAttribute(new Attribute("scale_factor", 1.0));
+
+      // create file
+      writer.create();
+
+      // Per scan values
+      final int scanIndex[] = new int[scans.length];
+      final double scanAcquisitionTime[] = new double[scans.length];
+      int startIndex = 0;
+      for (int i = 0; i < scans.length; i++) {
+        scanIndex[i] = startIndex;
+        scanAcquisitionTime[i] = scans[i].getRetentionTime() * 60;
+        startIndex += numOfMasses[i];
+      }
+      final int shape[] = {scans.length};
+      writer.write(var_scanIndex, Array.factory(DataType.INT, shape, scanIndex));
+      writer.write(var_scanAcquisitionTime,
+          Array.factory(DataType.DOUBLE, shape, scanAcquisitionTime));
+      writer.write(var_totalIntensity, Array.factory(DataType.DOUBLE, shape, totalIntensities));
+      writer.write(var_pointsInScans, Array.factory(DataType.INT, shape, new int[scans.length]));
+
+      // Masses, in chunks
+      final double mzChunk[] = new double[Math.min(totalMasses, NETCDF_CHUNK_SIZE)];
+      final double intensityChunk[] = new double[mzChunk.length];
+      int chunkStart = 0;
+      while (chunkStart < totalMasses) {
+
+        if (isCanceled())
+          return;
+
+        final int chunkSize = spool.read(mzChunk, intensityChunk);
+        if (chunkSize == 0)
+          throw new IOException("The temporary file of the masses is incomplete");
+        writeChunk(writer, var_massValues, var_intensityValues, mzChunk, intensityChunk,
+            chunkStart, chunkSize);
+        chunkStart += chunkSize;
+      }
+
+    } finally {
+      writer.close();
+    }
+
+  }
+
+  private static void writeChunk(NetcdfFileWriter writer, Variable var_massValues,
+      Variable var_intensityValues, double mzChunk[], double intensityChunk[], int chunkStart,
+      int chunkSize) throws IOException, InvalidRangeException {
+    final int origin[] = {chunkStart};
+    final int shape[] = {chunkSize};
+    writer.write(var_massValues, origin, Array.factory(DataType.DOUBLE, shape,
+        chunkSize == mzChunk.length ? mzChunk : Arrays.copyOf(mzChunk, chunkSize)));
+    writer.write(var_intensityValues, origin, Array.factory(DataType.DOUBLE, shape,
+        chunkSize == intensityChunk.length ? intensityChunk
+            : Arrays.copyOf(intensityChunk, chunkSize)));
+  }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Temporary file of the detected masses of all scans, in the order of the scans and in double
+ * precision. The masses are written while the mass lists are stored, and read back in chunks when
+ * the netCDF file is written, so they never have to be kept in memory as a whole. The stored mass
+ * lists cannot be used for this, because their data points may be stored with lower precision.
+ */
+class MassValuesSpool implements Closeable {
+
+  // m/z and intensity
+  private static final int BYTES_PER_DATA_POINT = 16;
+
+  private final File file;
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BYTES_PER_DATA_POINT * 4096);
+
+  private long numOfDataPoints = 0;
+  private boolean reading = false;
+
+  MassValuesSpool() throws IOException {
+    file = File.createTempFile("mzmine", ".masses");
+    file.deleteOnExit();
+    randomAccessFile = new RandomAccessFile(file, "rw");
+    channel = randomAccessFile.getChannel();
+  }
+
+  /**
+   * Appends the given masses
+   */
+  void add(DataPoint mzPeaks[]) throws IOException {
+    for (DataPoint mzPeak : mzPeaks) {
+      if (buffer.remaining() < BYTES_PER_DATA_POINT)
+        writeBuffer();
+      buffer.putDouble(mzPeak.getMZ());
+      buffer.putDouble(mzPeak.getIntensity());
+    }
+    numOfDataPoints += mzPeaks.length;
+  }
+
+  long getNumberOfDataPoints() {
+    return numOfDataPoints;
+  }
+
+  /**
+   * Reads the next masses, starting with the first one after the last add()
+   * 
+   * @return the number of masses read, less than the length of the arrays only at the end
+   */
+  int read(double mzValues[], double intensityValues[]) throws IOException {
+
+    if (!reading) {
+      writeBuffer();
+      channel.position(0);
+      ((Buffer) buffer).flip();
+      reading = true;
+    }
+
+    int count = 0;
+    while (count < mzValues.length) {
+      if (buffer.remaining() < BYTES_PER_DATA_POINT) {
+        buffer.compact();
+        final int read = channel.read(buffer);
+        ((Buffer) buffer).flip();
+        if ((read < 0) && (buffer.remaining() < BYTES_PER_DATA_POINT))
+          break;
+        continue;
+      }
+      mzValues[count] = buffer.getDouble();
+      intensityValues[count] = buffer.getDouble();
+      count++;
+    }
+    return count;
+
+  }
+
+  private void writeBuffer() throws IOException {
+    ((Buffer) buffer).flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    ((Buffer) buffer).clear();
+  }
+
+  /**
+   * Closes and removes the file
+   */
+  @Override
+  public void close() throws IOException {
+    randomAccessFile.close();
+    file.delete();
+  }
+
+}
@@ -20,8 +20,10 @@ package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.centroid;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.scans.DataPointsBuffer;
 
 import javax.annotation.Nonnull;
 import java.util.ArrayList;
@@ -34,23 +36,47 @@ import java.util.ArrayList;
 public class CentroidMassDetector implements MassDetector {
 
   public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
+
+    double noiseLevel =
+        parameters.getParameter(CentroidMassDetectorParameters.noiseLevel).getValue();
+
+    // Read the scan without creating DataPoints for the discarded noise
+    final DataPointsBuffer buffer = DataPointsBuffer.get(scan.getNumberOfDataPoints());
+    final int numOfDataPoints =
+        scan.fillDataPoints(buffer.getMzValues(), buffer.getIntensityValues());
+
+    return getMassValues(buffer.getMzValues(), buffer.getIntensityValues(), numOfDataPoints,
+        noiseLevel);
   }
-  
+
   public DataPoint[] getMassValues(DataPoint dataPoints[], ParameterSet parameters) {
 
     double noiseLevel =
         parameters.getParameter(CentroidMassDetectorParameters.noiseLevel).getValue();
 
+    final DataPointsBuffer buffer = DataPointsBuffer.get(dataPoints.length);
+    final double mzValues[] = buffer.getMzValues();
+    final double intensityValues[] = buffer.getIntensityValues();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+
+    return getMassValues(mzValues, intensityValues, dataPoints.length, noiseLevel);
+  }
+
+  private static DataPoint[] getMassValues(double mzValues[], double intensityValues[],
+      int numOfDataPoints, double noiseLevel) {
+
     ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 
     // Find possible mzPeaks
-    for (int j = 0; j < dataPoints.length; j++) {
+    for (int j = 0; j < numOfDataPoints; j++) {
 
       // Is intensity above the noise level?
-      if (dataPoints[j].getIntensity() >= noiseLevel) {
+      if (intensityValues[j] >= noiseLevel) {
         // Yes, then mark this index as mzPeak
-        mzPeaks.add(dataPoints[j]);
+        mzPeaks.add(new SimpleDataPoint(mzValues[j], intensityValues[j]));
       }
     }
     return mzPeaks.toArray(new DataPoint[0]);
@@ -24,8 +24,10 @@ import javax.annotation.Nonnull;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
 import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.util.scans.DataPointsBuffer;
 
 /**
  * This class detects all local maxima in a given scan.
@@ -33,7 +35,17 @@ import net.sf.mzmine.parameters.ParameterSet;
 public class LocalMaxMassDetector implements MassDetector {
   
   public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
+
+    double noiseLevel =
+        parameters.getParameter(LocalMaxMassDetectorParameters.noiseLevel).getValue();
+
+    // Read the scan without creating DataPoints, only the local maxima become DataPoints
+    final DataPointsBuffer buffer = DataPointsBuffer.get(scan.getNumberOfDataPoints());
+    final int numOfDataPoints =
+        scan.fillDataPoints(buffer.getMzValues(), buffer.getIntensityValues());
+
+    return getMassValues(buffer.getMzValues(), buffer.getIntensityValues(), numOfDataPoints,
+        noiseLevel);
   }
 
   public DataPoint[] getMassValues(DataPoint dataPoints[], ParameterSet parameters) {
@@ -41,23 +53,35 @@ public class LocalMaxMassDetector implements MassDetector {
     double noiseLevel =
         parameters.getParameter(LocalMaxMassDetectorParameters.noiseLevel).getValue();
 
+    final DataPointsBuffer buffer = DataPointsBuffer.get(dataPoints.length);
+    final double mzValues[] = buffer.getMzValues();
+    final double intensityValues[] = buffer.getIntensityValues();
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+
+    return getMassValues(mzValues, intensityValues, dataPoints.length, noiseLevel);
+  }
+
+  private static DataPoint[] getMassValues(double mzValues[], double intensityValues[],
+      int numOfDataPoints, double noiseLevel) {
+
     // List of found mz peaks
     ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
 
-    // All data points of current m/z peak
-
-    // Top data point of current m/z peak
-    DataPoint currentMzPeakTop = null;
+    // Index of the top data point of current m/z peak
+    int currentMzPeakTop = -1;
 
     // True if we haven't reached the current local maximum yet
     boolean ascending = true;
 
     // Iterate through all data points
-    for (int i = 0; i < dataPoints.length - 1; i++) {
+    for (int i = 0; i < numOfDataPoints - 1; i++) {
 
-      boolean nextIsBigger = dataPoints[i + 1].getIntensity() > dataPoints[i].getIntensity();
-      boolean nextIsZero = dataPoints[i + 1].getIntensity() == 0;
-      boolean currentIsZero = dataPoints[i].getIntensity() == 0;
+      boolean nextIsBigger = intensityValues[i + 1] > intensityValues[i];
+      boolean nextIsZero = intensityValues[i + 1] == 0;
+      boolean currentIsZero = intensityValues[i] == 0;
 
       // Ignore zero intensity regions
       if (currentIsZero)
@@ -65,19 +89,20 @@ public class LocalMaxMassDetector implements MassDetector {
 
       // Check for local maximum
       if (ascending && (!nextIsBigger)) {
-        currentMzPeakTop = dataPoints[i];
+        currentMzPeakTop = i;
         ascending = false;
         continue;
       }
 
-      assert currentMzPeakTop != null;
+      assert currentMzPeakTop >= 0;
 
       // Check for the end of the peak
       if ((!ascending) && (nextIsBigger || nextIsZero)) {
 
         // Add the m/z peak if it is above the noise level
-        if (currentMzPeakTop.getIntensity() > noiseLevel) {
-          mzPeaks.add(currentMzPeakTop);
+        if (intensityValues[currentMzPeakTop] > noiseLevel) {
+          mzPeaks.add(
+              new SimpleDataPoint(mzValues[currentMzPeakTop], intensityValues[currentMzPeakTop]));
         }
 
         // Reset and start with new peak
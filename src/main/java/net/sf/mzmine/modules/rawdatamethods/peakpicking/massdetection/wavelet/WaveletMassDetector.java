@@ -18,8 +18,9 @@
 
 package net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.wavelet;
 
+import java.util.ArrayList;
 import java.util.TreeSet;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
 
@@ -38,10 +39,6 @@ import net.sf.mzmine.util.SortingProperty;
  * to detect possible peaks in the original raw datapoints.
  */
 public class WaveletMassDetector implements MassDetector {
-  
-  public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
-    return getMassValues(scan.getDataPoints(), parameters);
-  }
 
   /**
    * Parameters of the wavelet, NPOINTS is the number of wavelet values to use The WAVELET_ESL &
@@ -51,46 +48,88 @@ public class WaveletMassDetector implements MassDetector {
   private static final int WAVELET_ESL = -5;
   private static final int WAVELET_ESR = 5;
 
+  // Kernels of the used scale levels and wavelet windows, shared by all threads
+  private static final int MAX_KERNELS = 32;
+  private static final ConcurrentHashMap<KernelKey, WaveletKernel> kernels =
+      new ConcurrentHashMap<KernelKey, WaveletKernel>();
+
+  // Work arrays of each thread, reused for all scans
+  private static final ThreadLocal<WorkBuffers> threadBuffers =
+      ThreadLocal.withInitial(WorkBuffers::new);
+
+  public DataPoint[] getMassValues(Scan scan, ParameterSet parameters) {
+    final WorkBuffers buffers = threadBuffers.get();
+    buffers.ensureCapacity(scan.getNumberOfDataPoints());
+    final int numOfDataPoints = scan.fillDataPoints(buffers.mzValues, buffers.intensityValues);
+    return getMassValues(buffers, numOfDataPoints, parameters);
+  }
+
   public DataPoint[] getMassValues(DataPoint originalDataPoints[] , ParameterSet parameters) {
+    final WorkBuffers buffers = threadBuffers.get();
+    buffers.ensureCapacity(originalDataPoints.length);
+    for (int i = 0; i < originalDataPoints.length; i++) {
+      buffers.mzValues[i] = originalDataPoints[i].getMZ();
+      buffers.intensityValues[i] = originalDataPoints[i].getIntensity();
+    }
+    return getMassValues(buffers, originalDataPoints.length, parameters);
+  }
+
+  private DataPoint[] getMassValues(WorkBuffers buffers, int numOfDataPoints,
+      ParameterSet parameters) {
     double noiseLevel =
         parameters.getParameter(WaveletMassDetectorParameters.noiseLevel).getValue();
     int scaleLevel = parameters.getParameter(WaveletMassDetectorParameters.scaleLevel).getValue();
     double waveletWindow =
         parameters.getParameter(WaveletMassDetectorParameters.waveletWindow).getValue();
 
-    DataPoint waveletDataPoints[] = performCWT(originalDataPoints, waveletWindow, scaleLevel);
+    // Each thread keeps its last kernel, so it only looks up the shared ones when the parameters
+    // change
+    WaveletKernel kernel = buffers.kernel;
+    if ((kernel == null) || !kernel.key.matches(scaleLevel, waveletWindow)) {
+      kernel = getKernel(scaleLevel, waveletWindow);
+      buffers.kernel = kernel;
+    }
+
+    performCWT(buffers.intensityValues, numOfDataPoints, kernel, buffers.cwtValues);
 
-    DataPoint mzPeaks[] = getMzPeaks(noiseLevel, originalDataPoints, waveletDataPoints);
+    DataPoint mzPeaks[] = getMzPeaks(noiseLevel, buffers.mzValues, buffers.intensityValues,
+        buffers.cwtValues, numOfDataPoints);
 
     return mzPeaks;
   }
 
+  /**
+   * Returns the wavelet values for the given scale level and wavelet window, computing them only
+   * the first time they are used. The number of kept kernels is limited, in case the parameters are
+   * changed a lot.
+   */
+  private static WaveletKernel getKernel(int scaleLevel, double waveletWindow) {
+    final KernelKey key = new KernelKey(scaleLevel, waveletWindow);
+    WaveletKernel kernel = kernels.get(key);
+    if (kernel == null) {
+      if (kernels.size() >= MAX_KERNELS)
+        kernels.clear();
+      kernel = kernels.computeIfAbsent(key, WaveletKernel::new);
+    }
+    return kernel;
+  }
+
   /**
    * Perform the CWT over raw data points in the selected scale level
    * 
-   * @param dataPoints
+   * @param intensityValues intensities of the raw data points
+   * @param cwtValues array to store the transformed intensities in
    */
-  private SimpleDataPoint[] performCWT(DataPoint[] dataPoints, double waveletWindow,
-      int scaleLevel) {
-    int length = dataPoints.length;
-    SimpleDataPoint[] cwtDataPoints = new SimpleDataPoint[length];
-    double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
-    double[] W = new double[(int) NPOINTS];
-
-    double waveletIndex = WAVELET_ESL;
-    for (int j = 0; j < NPOINTS; j++) {
-      // Pre calculate the values of the wavelet
-      W[j] = cwtMEXHATreal(waveletIndex, waveletWindow, 0.0);
-      waveletIndex += wstep;
-    }
+  private static void performCWT(double intensityValues[], int length, WaveletKernel kernel,
+      double cwtValues[]) {
 
     /*
      * We only perform Translation of the wavelet in the selected scale
      */
-    int d = (int) NPOINTS / (WAVELET_ESR - WAVELET_ESL);
-    int a_esl = scaleLevel * WAVELET_ESL;
-    int a_esr = scaleLevel * WAVELET_ESR;
-    double sqrtScaleLevel = Math.sqrt(scaleLevel);
+    final double W[] = kernel.values;
+    final int a_esl = kernel.scaleLevel * WAVELET_ESL;
+    final int a_esr = kernel.scaleLevel * WAVELET_ESR;
+    final double sqrtScaleLevel = Math.sqrt(kernel.scaleLevel);
     for (int dx = 0; dx < length; dx++) {
 
       /* Compute wavelet boundaries */
@@ -103,22 +142,17 @@ public class WaveletMassDetector implements MassDetector {
 
       /* Perform convolution */
       double intensity = 0.0;
+      final int offset = -dx - a_esl;
       for (int i = t1; i <= t2; i++) {
-        int ind = (int) (NPOINTS / 2) - (((int) d * (i - dx) / scaleLevel) * (-1));
-        if (ind < 0)
-          ind = 0;
-        if (ind >= NPOINTS)
-          ind = (int) NPOINTS - 1;
-        intensity += dataPoints[i].getIntensity() * W[ind];
+        intensity += intensityValues[i] * W[i + offset];
       }
       intensity /= sqrtScaleLevel;
       // Eliminate the negative part of the wavelet map
       if (intensity < 0)
         intensity = 0;
-      cwtDataPoints[dx] = new SimpleDataPoint(dataPoints[dx].getMZ(), (double) intensity);
+      cwtValues[dx] = intensity;
     }
 
-    return cwtDataPoints;
   }
 
   /**
@@ -128,7 +162,7 @@ public class WaveletMassDetector implements MassDetector {
    * @param double a Window Width of the wavelet
    * @param double b Offset from the center of the peak
    */
-  private double cwtMEXHATreal(double x, double a, double b) {
+  private static double cwtMEXHATreal(double x, double a, double b) {
     /* c = 2 / ( sqrt(3) * pi^(1/4) ) */
     double c = 0.8673250705840776;
     double TINY = 1E-200;
@@ -144,19 +178,18 @@ public class WaveletMassDetector implements MassDetector {
   /**
    * This function searches for maximums from wavelet data points
    */
-  private DataPoint[] getMzPeaks(double noiseLevel, DataPoint[] originalDataPoints,
-      DataPoint[] waveletDataPoints) {
+  private DataPoint[] getMzPeaks(double noiseLevel, double mzValues[], double intensityValues[],
+      double cwtValues[], int numOfDataPoints) {
 
-    TreeSet<DataPoint> mzPeaks =
-        new TreeSet<DataPoint>(new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending));
+    ArrayList<DataPoint> mzPeaks = new ArrayList<DataPoint>();
+    boolean ascending = true;
 
-    Vector<DataPoint> rawDataPoints = new Vector<DataPoint>();
     int peakMaxInd = 0;
-    int stopInd = waveletDataPoints.length - 1;
+    int stopInd = numOfDataPoints - 1;
 
     for (int ind = 0; ind <= stopInd; ind++) {
 
-      while ((ind <= stopInd) && (waveletDataPoints[ind].getIntensity() == 0)) {
+      while ((ind <= stopInd) && (cwtValues[ind] == 0)) {
         ind++;
       }
       peakMaxInd = ind;
@@ -164,13 +197,17 @@ public class WaveletMassDetector implements MassDetector {
         break;
       }
 
+      // Highest raw intensity of the peak
+      double aproxIntensity = 0;
+
       // While peak is on
-      while ((ind <= stopInd) && (waveletDataPoints[ind].getIntensity() > 0)) {
+      while ((ind <= stopInd) && (cwtValues[ind] > 0)) {
         // Check if this is the maximum point of the peak
-        if (waveletDataPoints[ind].getIntensity() > waveletDataPoints[peakMaxInd].getIntensity()) {
+        if (cwtValues[ind] > cwtValues[peakMaxInd]) {
           peakMaxInd = ind;
         }
-        rawDataPoints.add(originalDataPoints[ind]);
+        if (intensityValues[ind] > aproxIntensity)
+          aproxIntensity = intensityValues[ind];
         ind++;
       }
 
@@ -178,31 +215,29 @@ public class WaveletMassDetector implements MassDetector {
         break;
       }
 
-      rawDataPoints.add(originalDataPoints[ind]);
+      if (intensityValues[ind] > aproxIntensity)
+        aproxIntensity = intensityValues[ind];
 
-      if (originalDataPoints[peakMaxInd].getIntensity() > noiseLevel) {
-        SimpleDataPoint peakDataPoint = new SimpleDataPoint(originalDataPoints[peakMaxInd].getMZ(),
-            calcAproxIntensity(rawDataPoints));
+      if (intensityValues[peakMaxInd] > noiseLevel) {
+        SimpleDataPoint peakDataPoint =
+            new SimpleDataPoint(mzValues[peakMaxInd], aproxIntensity);
 
+        if (!mzPeaks.isEmpty() && (mzPeaks.get(mzPeaks.size() - 1).getMZ() >= mzValues[peakMaxInd]))
+          ascending = false;
         mzPeaks.add(peakDataPoint);
 
       }
-      rawDataPoints.clear();
     }
 
-    return mzPeaks.toArray(new DataPoint[0]);
-
-  }
+    if (ascending)
+      return mzPeaks.toArray(new DataPoint[0]);
 
-  private double calcAproxIntensity(Vector<DataPoint> rawDataPoints) {
-
-    double aproxIntensity = 0;
+    // Data points that are not sorted by m/z
+    TreeSet<DataPoint> sortedMzPeaks =
+        new TreeSet<DataPoint>(new DataPointSorter(SortingProperty.MZ, SortingDirection.Ascending));
+    sortedMzPeaks.addAll(mzPeaks);
+    return sortedMzPeaks.toArray(new DataPoint[0]);
 
-    for (DataPoint d : rawDataPoints) {
-      if (d.getIntensity() > aproxIntensity)
-        aproxIntensity = d.getIntensity();
-    }
-    return aproxIntensity;
   }
 
   @Override
@@ -215,4 +250,99 @@ public class WaveletMassDetector implements MassDetector {
     return WaveletMassDetectorParameters.class;
   }
 
+  /**
+   * Values of the wavelet at the translations used by performCWT(), for one scale level and wavelet
+   * window. Of the NPOINTS values of the wavelet, the translation by i - dx data points only ever
+   * uses the one at index NPOINTS / 2 + d * (i - dx) / scaleLevel, so the kernel has only
+   * 2 * WAVELET_ESR * scaleLevel + 1 values.
+   */
+  private static class WaveletKernel {
+
+    private final KernelKey key;
+    private final int scaleLevel;
+    private final double values[];
+
+    WaveletKernel(KernelKey key) {
+
+      this.key = key;
+      this.scaleLevel = key.scaleLevel;
+      final double waveletWindow = key.waveletWindow;
+
+      double wstep = ((WAVELET_ESR - WAVELET_ESL) / NPOINTS);
+      double[] W = new double[(int) NPOINTS];
+
+      double waveletIndex = WAVELET_ESL;
+      for (int j = 0; j < NPOINTS; j++) {
+        // Pre calculate the values of the wavelet
+        W[j] = cwtMEXHATreal(waveletIndex, waveletWindow, 0.0);
+        waveletIndex += wstep;
+      }
+
+      int d = (int) NPOINTS / (WAVELET_ESR - WAVELET_ESL);
+      int a_esl = scaleLevel * WAVELET_ESL;
+      int a_esr = scaleLevel * WAVELET_ESR;
+      values = new double[Math.max(0, a_esr - a_esl + 1)];
+      for (int k = a_esl; k <= a_esr; k++) {
+        int ind = (int) (NPOINTS / 2) - (((int) d * k / scaleLevel) * (-1));
+        if (ind < 0)
+          ind = 0;
+        if (ind >= NPOINTS)
+          ind = (int) NPOINTS - 1;
+        values[k - a_esl] = W[ind];
+      }
+
+    }
+
+  }
+
+  /**
+   * Scale level and wavelet window of a kernel
+   */
+  private static class KernelKey {
+
+    private final int scaleLevel;
+    private final double waveletWindow;
+
+    KernelKey(int scaleLevel, double waveletWindow) {
+      this.scaleLevel = scaleLevel;
+      this.waveletWindow = waveletWindow;
+    }
+
+    boolean matches(int scaleLevel, double waveletWindow) {
+      return (this.scaleLevel == scaleLevel)
+          && (Double.compare(this.waveletWindow, waveletWindow) == 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof KernelKey))
+        return false;
+      final KernelKey other = (KernelKey) obj;
+      return matches(other.scaleLevel, other.waveletWindow);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * scaleLevel + Double.hashCode(waveletWindow);
+    }
+
+  }
+
+  private static class WorkBuffers {
+
+    private double mzValues[] = new double[0], intensityValues[] = new double[0];
+    private double cwtValues[] = new double[0];
+    private WaveletKernel kernel;
+
+    void ensureCapacity(int numOfDataPoints) {
+      if (mzValues.length >= numOfDataPoints)
+        return;
+      final int capacity = Math.max(numOfDataPoints, mzValues.length * 3 / 2);
+      mzValues = new double[capacity];
+      intensityValues = new double[capacity];
+      cwtValues = new double[capacity];
+    }
+
+  }
+
 }
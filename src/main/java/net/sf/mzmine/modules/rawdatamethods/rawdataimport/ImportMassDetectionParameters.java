@@ -0,0 +1,51 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetectionParameters;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
+import net.sf.mzmine.parameters.Parameter;
+import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.ModuleComboParameter;
+import net.sf.mzmine.parameters.parametertypes.StringParameter;
+import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
+import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelectionParameter;
+
+/**
+ * Parameters of the mass detection applied to the scans while they are imported, see
+ * MassDetectingFileWriter
+ */
+public class ImportMassDetectionParameters extends SimpleParameterSet {
+
+  public static final ScanSelectionParameter scanSelection =
+      new ScanSelectionParameter(new ScanSelection(1));
+
+  public static final ModuleComboParameter<MassDetector> massDetector =
+      new ModuleComboParameter<MassDetector>("Mass detector",
+          "Algorithm to use for mass detection and its parameters",
+          MassDetectionParameters.massDetectors);
+
+  public static final StringParameter name =
+      new StringParameter("Mass list name", "Name of the new mass lists", "masses");
+
+  public ImportMassDetectionParameters() {
+    super(new Parameter[] {scanSelection, massDetector, name});
+  }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
+
+import java.io.IOException;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleMassList;
+import net.sf.mzmine.modules.MZmineProcessingStep;
+import net.sf.mzmine.modules.rawdatamethods.peakpicking.massdetection.MassDetector;
+import net.sf.mzmine.parameters.ParameterSet;
+import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
+
+/**
+ * Applies a mass detector to each scan while it is imported. The scan is passed on to the wrapped
+ * file first, and the mass list is then detected from the data points that are still in memory and
+ * added to the stored scan. This saves reading and decoding all scans again in a separate mass
+ * detection step.
+ */
+public class MassDetectingFileWriter implements RawDataFileWriter {
+
+  private final RawDataFileWriter writer;
+  private final RawDataFile dataFile;
+  private final ScanSelection scanSelection;
+  private final MZmineProcessingStep<MassDetector> massDetector;
+  private final String name;
+
+  // Number of the first added scan, taken as the first scan number of the file
+  private Integer firstScanNumber;
+
+  /**
+   * @param writer the new raw data file, which must also implement RawDataFile
+   * @param parameters see ImportMassDetectionParameters
+   */
+  public MassDetectingFileWriter(RawDataFileWriter writer, ParameterSet parameters) {
+    if (!(writer instanceof RawDataFile))
+      throw new IllegalArgumentException("Cannot detect masses in " + writer);
+    this.writer = writer;
+    this.dataFile = (RawDataFile) writer;
+    this.scanSelection =
+        parameters.getParameter(ImportMassDetectionParameters.scanSelection).getValue();
+    this.massDetector =
+        parameters.getParameter(ImportMassDetectionParameters.massDetector).getValue();
+    this.name = parameters.getParameter(ImportMassDetectionParameters.name).getValue();
+  }
+
+  @Override
+  public void addScan(Scan newScan) throws IOException {
+
+    writer.addScan(newScan);
+
+    if (firstScanNumber == null)
+      firstScanNumber = newScan.getScanNumber();
+    if (!scanSelection.matches(newScan, scanSelection.getScanNumberOffset(firstScanNumber)))
+      return;
+
+    final Scan storedScan = dataFile.getScan(newScan.getScanNumber());
+    if (storedScan == null)
+      return;
+
+    MassDetector detector = massDetector.getModule();
+    DataPoint mzPeaks[] = detector.getMassValues(newScan, massDetector.getParameterSet());
+
+    storedScan.addMassList(new SimpleMassList(name, storedScan, mzPeaks));
+
+  }
+
+  @Override
+  public RawDataFile finishWriting() throws IOException {
+
+    final RawDataFile finishedFile = writer.finishWriting();
+
+    // If the scans were not added in the order of their numbers, every n-th scan was counted from
+    // the wrong scan number, so the scans are selected again as in ScanSelection.matches(Scan)
+    final int scanNumbers[] = finishedFile.getScanNumbers();
+    if ((firstScanNumber != null) && (scanNumbers.length > 0)
+        && (scanSelection.getScanNumberOffset(scanNumbers[0]) != scanSelection
+            .getScanNumberOffset(firstScanNumber)))
+      selectScansAgain(finishedFile);
+
+    return finishedFile;
+
+  }
+
+  /**
+   * Detects the masses of the selected scans that have no mass list yet, and removes the mass lists
+   * of the scans that are not selected
+   */
+  private void selectScansAgain(RawDataFile finishedFile) {
+    final MassDetector detector = massDetector.getModule();
+    for (int scanNumber : finishedFile.getScanNumbers()) {
+      final Scan scan = finishedFile.getScan(scanNumber);
+      final MassList massList = scan.getMassList(name);
+      final boolean selected = scanSelection.matches(scan);
+      if (selected && (massList == null)) {
+        DataPoint mzPeaks[] = detector.getMassValues(scan, massDetector.getParameterSet());
+        scan.addMassList(new SimpleMassList(name, scan, mzPeaks));
+      } else if (!selected && (massList != null)) {
+        scan.removeMassList(massList);
+      }
+    }
+  }
+
+}
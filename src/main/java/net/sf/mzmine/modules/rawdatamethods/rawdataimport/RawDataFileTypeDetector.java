@@ -85,45 +85,59 @@ public class RawDataFileTypeDetector {
       reader.close();
       String fileHeader = new String(buffer);
 
-      if (fileName.getName().toLowerCase().endsWith(".csv")) {
-        if (fileHeader.contains(":") && fileHeader.contains("\\")
-            && !fileHeader.contains("file name")) {
-          logger.fine("ICP raw file detected");
-          return RawDataFileType.ICPMSMS_CSV;
-        }
-        logger.fine("Agilent raw detected");
-        return RawDataFileType.AGILENT_CSV;
-      }
+      return detectDataFileType(fileName.getName(), fileHeader);
 
-      if (fileHeader.startsWith(THERMO_HEADER)) {
-        return RawDataFileType.THERMO_RAW;
-      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
 
-      if (fileHeader.startsWith(GZIP_HEADER)) {
-        return RawDataFileType.GZIP;
-      }
+    return null;
 
-      if (fileHeader.startsWith(ZIP_HEADER)) {
-        return RawDataFileType.ZIP;
-      }
+  }
 
-      if (fileHeader.startsWith(CDF_HEADER)) {
-        return RawDataFileType.NETCDF;
+  /**
+   * Detects the file type from the name and the first 1kB of the file, decoded as ISO-8859-1. This
+   * allows detecting the type of e.g. a compressed file without writing it to disk.
+   * 
+   * @return Detected file type or null if the file is not of any supported type
+   */
+  public static RawDataFileType detectDataFileType(String fileName, String fileHeader) {
+
+    if (fileName.toLowerCase().endsWith(".csv")) {
+      if (fileHeader.contains(":") && fileHeader.contains("\\")
+          && !fileHeader.contains("file name")) {
+        logger.fine("ICP raw file detected");
+        return RawDataFileType.ICPMSMS_CSV;
       }
+      logger.fine("Agilent raw detected");
+      return RawDataFileType.AGILENT_CSV;
+    }
 
-      if (fileHeader.contains(MZML_HEADER))
-        return RawDataFileType.MZML;
+    if (fileHeader.startsWith(THERMO_HEADER)) {
+      return RawDataFileType.THERMO_RAW;
+    }
 
-      if (fileHeader.contains(MZDATA_HEADER))
-        return RawDataFileType.MZDATA;
+    if (fileHeader.startsWith(GZIP_HEADER)) {
+      return RawDataFileType.GZIP;
+    }
 
-      if (fileHeader.contains(MZXML_HEADER))
-        return RawDataFileType.MZXML;
+    if (fileHeader.startsWith(ZIP_HEADER)) {
+      return RawDataFileType.ZIP;
+    }
 
-    } catch (Exception e) {
-      e.printStackTrace();
+    if (fileHeader.startsWith(CDF_HEADER)) {
+      return RawDataFileType.NETCDF;
     }
-    
+
+    if (fileHeader.contains(MZML_HEADER))
+      return RawDataFileType.MZML;
+
+    if (fileHeader.contains(MZDATA_HEADER))
+      return RawDataFileType.MZDATA;
+
+    if (fileHeader.contains(MZXML_HEADER))
+      return RawDataFileType.MZXML;
+
     return null;
 
   }
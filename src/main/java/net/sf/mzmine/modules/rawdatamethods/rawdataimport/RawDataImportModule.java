@@ -26,6 +26,7 @@ import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.swing.BoxLayout;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -36,11 +37,14 @@ import com.google.common.base.Strings;
 
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineConfiguration;
 import net.sf.mzmine.main.MZmineCore;
 import net.sf.mzmine.modules.MZmineModuleCategory;
 import net.sf.mzmine.modules.MZmineProcessingModule;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.AgilentCsvReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.CsvReadTask;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.IndexedMzMLLinkTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzDataReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzMLReadTask;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats.MzXMLReadTask;
@@ -78,6 +82,13 @@ public class RawDataImportModule implements MZmineProcessingModule {
 
     File fileNames[] = parameters.getParameter(RawDataImportParameters.fileNames).getValue();
 
+    // Mass detection to apply while importing, if enabled
+    ParameterSet massDetectionParameters = null;
+    if (Boolean.TRUE
+        .equals(parameters.getParameter(RawDataImportParameters.massDetection).getValue()))
+      massDetectionParameters = parameters.getParameter(RawDataImportParameters.massDetection)
+          .getEmbeddedParameters();
+
     // Find common prefix in raw file names if in GUI mode
     String commonPrefix = null;
     if (MZmineCore.getDesktop().getMainWindow() != null && fileNames.length > 1) {
@@ -163,7 +174,8 @@ public class RawDataImportModule implements MZmineProcessingModule {
         continue;
       }
 
-      Task newTask = createOpeningTask(fileType, project, fileNames[i], newMZmineFile);
+      Task newTask = createOpeningTask(fileType, project, fileNames[i], newMZmineFile,
+          massDetectionParameters);
 
       if (newTask == null) {
         logger.warning("File type " + fileType + " of file " + fileNames[i] + " is not supported.");
@@ -189,6 +201,20 @@ public class RawDataImportModule implements MZmineProcessingModule {
 
   public static Task createOpeningTask(RawDataFileType fileType, MZmineProject project,
       File fileName, RawDataFileWriter newMZmineFile) {
+    return createOpeningTask(fileType, project, fileName, newMZmineFile, null);
+  }
+
+  /**
+   * Creates the task opening the given file. If mass detection parameters are given (see
+   * ImportMassDetectionParameters), the masses are detected in each scan while it is imported.
+   */
+  public static Task createOpeningTask(RawDataFileType fileType, MZmineProject project,
+      File fileName, RawDataFileWriter newMZmineFile, @Nullable ParameterSet massDetection) {
+
+    if ((massDetection != null) && (fileType != RawDataFileType.ZIP)
+        && (fileType != RawDataFileType.GZIP))
+      newMZmineFile = new MassDetectingFileWriter(newMZmineFile, massDetection);
+
     Task newTask = null;
     switch (fileType) {
       case ICPMSMS_CSV:
@@ -198,7 +224,11 @@ public class RawDataImportModule implements MZmineProcessingModule {
         newTask = new MzDataReadTask(project, fileName, newMZmineFile);
         break;
       case MZML:
-        newTask = new MzMLReadTask(project, fileName, newMZmineFile);
+        // Linking would not save anything if the data points are read for mass detection
+        if (isLinkingEnabled() && (massDetection == null))
+          newTask = new IndexedMzMLLinkTask(project, fileName, newMZmineFile);
+        else
+          newTask = new MzMLReadTask(project, fileName, newMZmineFile);
         break;
       case MZXML:
         newTask = new MzXMLReadTask(project, fileName, newMZmineFile);
@@ -215,12 +245,24 @@ public class RawDataImportModule implements MZmineProcessingModule {
         break;
       case ZIP:
       case GZIP:
-        newTask = new ZipReadTask(project, fileName, fileType);
+        newTask = new ZipReadTask(project, fileName, fileType, massDetection);
         break;
-      
 
     }
     return newTask;
   }
 
+  /**
+   * Returns true if the data points of indexed mzML files should be read from the original files
+   * instead of being copied
+   */
+  private static boolean isLinkingEnabled() {
+    final MZmineConfiguration configuration = MZmineCore.getConfiguration();
+    if (configuration == null)
+      return false;
+    final Boolean linkIndexedMzML =
+        configuration.getPreferences().getParameter(MZminePreferences.linkIndexedMzML).getValue();
+    return Boolean.TRUE.equals(linkIndexedMzML);
+  }
+
 }
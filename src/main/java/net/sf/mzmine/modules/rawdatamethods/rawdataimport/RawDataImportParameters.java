@@ -18,15 +18,20 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport;
 
+import java.awt.BorderLayout;
 import java.awt.Window;
 import java.io.File;
 
 import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import net.sf.mzmine.parameters.Parameter;
 import net.sf.mzmine.parameters.impl.SimpleParameterSet;
+import net.sf.mzmine.parameters.parametertypes.submodules.OptionalModuleComponent;
+import net.sf.mzmine.parameters.parametertypes.submodules.OptionalModuleParameter;
 import net.sf.mzmine.util.ExitCode;
 
 public class RawDataImportParameters extends SimpleParameterSet {
@@ -46,8 +51,13 @@ public class RawDataImportParameters extends SimpleParameterSet {
 
   public static final FileNamesParameter fileNames = new FileNamesParameter();
 
+  public static final OptionalModuleParameter<ImportMassDetectionParameters> massDetection =
+      new OptionalModuleParameter<>("Detect masses",
+          "Detect masses in each scan while the file is imported, instead of running the mass detection module afterwards",
+          new ImportMassDetectionParameters(), false);
+
   public RawDataImportParameters() {
-    super(new Parameter[] {fileNames});
+    super(new Parameter[] {fileNames, massDetection});
   }
 
   @Override
@@ -72,6 +82,18 @@ public class RawDataImportParameters extends SimpleParameterSet {
 
     chooser.setMultiSelectionEnabled(true);
 
+    // The mass detection option is shown next to the file list
+    OptionalModuleParameter<ImportMassDetectionParameters> massDetectionParameter =
+        getParameter(massDetection);
+    OptionalModuleComponent massDetectionComponent =
+        massDetectionParameter.createEditingComponent();
+    massDetectionParameter.setValueToComponent(massDetectionComponent,
+        Boolean.TRUE.equals(massDetectionParameter.getValue()));
+    JPanel accessory = new JPanel(new BorderLayout());
+    accessory.add(new JLabel(massDetectionParameter.getName()), BorderLayout.NORTH);
+    accessory.add(massDetectionComponent, BorderLayout.CENTER);
+    chooser.setAccessory(accessory);
+
     int returnVal = chooser.showOpenDialog(parent);
 
     if (returnVal != JFileChooser.APPROVE_OPTION)
@@ -80,6 +102,7 @@ public class RawDataImportParameters extends SimpleParameterSet {
     File selectedFiles[] = chooser.getSelectedFiles();
 
     getParameter(fileNames).setValue(selectedFiles);
+    massDetectionParameter.setValueFromComponent(massDetectionComponent);
 
     return ExitCode.OK;
 
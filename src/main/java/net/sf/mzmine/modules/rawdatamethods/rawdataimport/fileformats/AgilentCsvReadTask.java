@@ -39,7 +39,7 @@ public class AgilentCsvReadTask extends AbstractTask {
   protected String dataSource;
   private File file;
   private MZmineProject project;
-  private RawDataFileImpl newMZmineFile;
+  private RawDataFileWriter newMZmineFile;
   private RawDataFile finalRawDataFile;
 
   private int totalScans, parsedScans;
@@ -53,7 +53,7 @@ public class AgilentCsvReadTask extends AbstractTask {
       RawDataFileWriter newMZmineFile) {
     this.project = project;
     this.file = fileToOpen;
-    this.newMZmineFile = (RawDataFileImpl) newMZmineFile;
+    this.newMZmineFile = newMZmineFile;
   }
 
   /**
@@ -71,11 +71,11 @@ public class AgilentCsvReadTask extends AbstractTask {
       this.dataSource = this.getMetaData(scanner, "file name");
 
       String[] range = this.getMetaData(scanner, "mass range").split(",");
-      newMZmineFile.setMZRange(1,
-          Range.closed(Double.parseDouble(range[0]), Double.parseDouble(range[1])));
+      Range<Double> mzRange =
+          Range.closed(Double.parseDouble(range[0]), Double.parseDouble(range[1]));
       range = this.getMetaData(scanner, "time range").split(",");
-      newMZmineFile.setRTRange(1,
-          Range.closed(Double.parseDouble(range[0]), Double.parseDouble(range[1])));
+      Range<Double> rtRange =
+          Range.closed(Double.parseDouble(range[0]), Double.parseDouble(range[1]));
       totalScans = Integer.parseInt(this.getMetaData(scanner, "number of spectra"));
 
       // advance to the spectrum data...
@@ -110,6 +110,13 @@ public class AgilentCsvReadTask extends AbstractTask {
       }
 
       finalRawDataFile = newMZmineFile.finishWriting();
+
+      // The new file may be wrapped, e.g. by a MassDetectingFileWriter, so the ranges given in the
+      // file are set on the finished file
+      if (finalRawDataFile instanceof RawDataFileImpl) {
+        ((RawDataFileImpl) finalRawDataFile).setMZRange(1, mzRange);
+        ((RawDataFileImpl) finalRawDataFile).setRTRange(1, rtRange);
+      }
       project.addFile(finalRawDataFile);
 
     } catch (Exception e) {
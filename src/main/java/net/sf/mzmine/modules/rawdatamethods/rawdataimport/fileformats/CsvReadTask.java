@@ -37,7 +37,6 @@ import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.datamodel.impl.SimpleScan;
-import net.sf.mzmine.project.impl.RawDataFileImpl;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
@@ -48,7 +47,7 @@ public class CsvReadTask extends AbstractTask {
   protected String dataSource;
   private File file;
   private MZmineProject project;
-  private RawDataFileImpl newMZmineFile;
+  private RawDataFileWriter newMZmineFile;
   private RawDataFile finalRawDataFile;
 
   private int totalScans, parsedScans;
@@ -56,7 +55,7 @@ public class CsvReadTask extends AbstractTask {
   public CsvReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     this.project = project;
     this.file = fileToOpen;
-    this.newMZmineFile = (RawDataFileImpl) newMZmineFile;
+    this.newMZmineFile = newMZmineFile;
   }
 
   @Override
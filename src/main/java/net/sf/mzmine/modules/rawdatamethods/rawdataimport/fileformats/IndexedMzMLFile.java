@@ -0,0 +1,257 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.project.impl.LinkedDataPoints;
+
+/**
+ * Random access to the spectra of an indexed mzML file, using the byte offsets given in its
+ * <indexList>. The file stays open until close() is called, and the spectra are read using
+ * positional reads, so they can be read by several threads at the same time.
+ */
+class IndexedMzMLFile implements LinkedDataPoints {
+
+  private static final Pattern INDEX_LIST_OFFSET_PATTERN =
+      Pattern.compile("<indexListOffset>\\s*([0-9]+)\\s*</indexListOffset>");
+
+  // The <indexListOffset> element is expected in this many bytes at the end of the file
+  private static final int TAIL_SIZE = 4096;
+
+  private final File file;
+  private final MzMLParser parser = new MzMLParser();
+  private final List<Long> spectrumOffsets = new ArrayList<Long>();
+
+  private volatile FileChannel channel;
+  private volatile boolean closed = false;
+
+  /**
+   * Opens the file and reads its index and the parameter groups referenced by the spectra. If the
+   * file has no index, getSpectrumOffsets() returns an empty list.
+   */
+  IndexedMzMLFile(File file) throws IOException {
+
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+    try {
+      final long indexListOffset = findIndexListOffset();
+      if (indexListOffset < 0)
+        return;
+      readIndex(indexListOffset);
+      if (!spectrumOffsets.isEmpty())
+        parser.parseHeader(new ChannelInputStream(0));
+    } catch (IOException e) {
+      close();
+      throw e;
+    } catch (Exception e) {
+      close();
+      throw new IOException("Could not read the index of " + file, e);
+    }
+
+  }
+
+  /**
+   * Returns the offsets of the <spectrum> elements, in the order of the index
+   */
+  List<Long> getSpectrumOffsets() {
+    return spectrumOffsets;
+  }
+
+  /**
+   * Parses the spectrum at given offset without its binary data arrays
+   */
+  MzMLParser.Spectrum readSpectrumHeader(long offset) throws IOException {
+    return readSpectrum(offset, true);
+  }
+
+  /**
+   * @see net.sf.mzmine.project.impl.LinkedDataPoints#readDataPoints(long)
+   */
+  @Override
+  public DataPoint[] readDataPoints(long offset) throws IOException {
+    try {
+      return readSpectrum(offset, false).decodeDataPoints();
+    } catch (DataFormatException e) {
+      throw new IOException("Could not decode the spectrum at offset " + offset + " of " + file,
+          e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    channel.close();
+  }
+
+  private MzMLParser.Spectrum readSpectrum(long offset, boolean headersOnly) throws IOException {
+
+    final MzMLParser.Spectrum found[] = new MzMLParser.Spectrum[1];
+    try (InputStream input = new ChannelInputStream(offset)) {
+      parser.parse(input, spectrum -> {
+        found[0] = spectrum;
+        return false;
+      }, headersOnly);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Could not parse the spectrum at offset " + offset + " of " + file, e);
+    }
+
+    if (found[0] == null)
+      throw new IOException("No spectrum found at offset " + offset + " of " + file);
+    return found[0];
+
+  }
+
+  /**
+   * Returns the offset given in the <indexListOffset> element, or -1 if there is none
+   */
+  private long findIndexListOffset() throws IOException {
+
+    final long size = channel.size();
+    final long tailOffset = Math.max(0, size - TAIL_SIZE);
+    final ByteBuffer tail = ByteBuffer.allocate((int) (size - tailOffset));
+    while (tail.hasRemaining()) {
+      if (channel.read(tail, tailOffset + tail.position()) < 0)
+        break;
+    }
+
+    final Matcher matcher = INDEX_LIST_OFFSET_PATTERN
+        .matcher(new String(tail.array(), 0, tail.position(), StandardCharsets.ISO_8859_1));
+    if (!matcher.find())
+      return -1;
+    final long offset = Long.parseLong(matcher.group(1));
+    return offset < size ? offset : -1;
+
+  }
+
+  /**
+   * Reads the offsets of the spectra from the <indexList> element at given offset
+   */
+  private void readIndex(long indexListOffset) throws Exception {
+
+    XMLStreamReader reader = MzMLParser.createReader(new ChannelInputStream(indexListOffset));
+    try {
+      String indexName = null;
+      while (reader.hasNext()) {
+        final int event = reader.next();
+        if (event == XMLStreamConstants.END_ELEMENT) {
+          if (reader.getLocalName().equals("indexList"))
+            return;
+          continue;
+        }
+        if (event != XMLStreamConstants.START_ELEMENT)
+          continue;
+        switch (reader.getLocalName()) {
+          case "index":
+            indexName = reader.getAttributeValue(null, "name");
+            break;
+          case "offset":
+            // getElementText() also consumes the end element
+            final String offset = reader.getElementText().trim();
+            if ("spectrum".equals(indexName))
+              spectrumOffsets.add(Long.parseLong(offset));
+            break;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+  }
+
+  /**
+   * Returns the open channel. A thread interrupted during a read closes the channel for all
+   * threads, so it is opened again if needed.
+   */
+  private FileChannel getChannel() throws IOException {
+    final FileChannel current = channel;
+    if (current.isOpen())
+      return current;
+    synchronized (this) {
+      if (closed)
+        throw new ClosedChannelException();
+      if (!channel.isOpen())
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      return channel;
+    }
+  }
+
+  /**
+   * Reads the file from given offset on, without changing the position of the shared channel
+   */
+  private class ChannelInputStream extends InputStream {
+
+    private long position;
+
+    ChannelInputStream(long position) {
+      this.position = position;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte b[] = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+
+      if (len == 0)
+        return 0;
+
+      final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      int numOfBytes;
+      try {
+        numOfBytes = getChannel().read(buffer, position);
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        // Closed by an interrupt of another thread, try again
+        numOfBytes = getChannel().read(buffer, position);
+      }
+
+      if (numOfBytes > 0)
+        position += numOfBytes;
+      return numOfBytes;
+
+    }
+
+  }
+
+}
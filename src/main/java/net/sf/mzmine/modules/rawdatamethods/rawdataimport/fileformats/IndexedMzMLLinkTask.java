@@ -0,0 +1,336 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MZmineProject;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.RawDataFile;
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+import net.sf.mzmine.project.impl.RawDataFileImpl;
+import net.sf.mzmine.taskcontrol.AbstractTask;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.scans.ScanUtils;
+
+/**
+ * Opens an indexed mzML file without copying its data points. Only the scan metadata is read, using
+ * the offsets given in the index, and the data points are read from the original file whenever they
+ * are needed (see RawDataFileImpl.addLinkedScan()). The original file therefore has to remain
+ * available while the raw data file is open.
+ * 
+ * The data points of a spectrum are only decoded while linking if the file does not give its base
+ * peak, TIC, m/z range and spectrum type. The data points of the first spectrum are always decoded,
+ * to check that its defaultArrayLength agrees with its binary data arrays. If it does not, the
+ * lengths given in the file cannot be trusted, and the data points of all spectra are decoded.
+ * Files without index are read by MzMLReadTask instead.
+ */
+public class IndexedMzMLLinkTask extends AbstractTask {
+
+  private Logger logger = Logger.getLogger(this.getClass().getName());
+
+  private File file;
+  private MZmineProject project;
+  private RawDataFileWriter newMZmineFile;
+  private RawDataFile finalRawDataFile;
+  private int totalScans = 0, parsedScans;
+
+  private MzMLReadTask readTask;
+
+  // Whether the defaultArrayLength of the first spectrum was checked, and agreed with its data
+  private boolean arrayLengthsChecked = false, arrayLengthsAgree = false;
+
+  public IndexedMzMLLinkTask(MZmineProject project, File fileToOpen,
+      RawDataFileWriter newMZmineFile) {
+    this.project = project;
+    this.file = fileToOpen;
+    this.newMZmineFile = newMZmineFile;
+  }
+
+  /**
+   * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
+   */
+  public double getFinishedPercentage() {
+    if (readTask != null)
+      return readTask.getFinishedPercentage();
+    return totalScans == 0 ? 0 : (double) parsedScans / totalScans;
+  }
+
+  /**
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+
+    setStatus(TaskStatus.PROCESSING);
+    logger.info("Started linking file " + file);
+
+    if (!(newMZmineFile instanceof RawDataFileImpl)) {
+      readFile("Scans cannot be linked to " + newMZmineFile.getClass().getName());
+      return;
+    }
+    final RawDataFileImpl rawDataFile = (RawDataFileImpl) newMZmineFile;
+
+    IndexedMzMLFile mzMLFile = null;
+    List<LinkedScan> scans;
+    try {
+      mzMLFile = new IndexedMzMLFile(file);
+      if (mzMLFile.getSpectrumOffsets().isEmpty()) {
+        mzMLFile.close();
+        readFile("File " + file + " has no spectrum index");
+        return;
+      }
+      scans = readScans(mzMLFile);
+    } catch (Exception e) {
+      closeFile(mzMLFile);
+      // The data points have not been touched yet, so the whole file can still be read
+      readFile("Could not use the index of " + file + ": " + e);
+      return;
+    }
+
+    if (isCanceled()) {
+      closeFile(mzMLFile);
+      return;
+    }
+
+    if (scans.isEmpty()) {
+      closeFile(mzMLFile);
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("No scans found");
+      return;
+    }
+
+    try {
+
+      for (LinkedScan scan : scans) {
+        rawDataFile.addLinkedScan(scan, scan.numOfDataPoints, mzMLFile, scan.offset);
+      }
+
+      // The raw data file closes the mzML file from now on
+      mzMLFile = null;
+
+      finalRawDataFile = rawDataFile.finishWriting();
+      project.addFile(finalRawDataFile);
+
+    } catch (Throwable e) {
+      logger.log(Level.SEVERE, "Error linking " + file, e);
+      closeFile(mzMLFile);
+      setStatus(TaskStatus.ERROR);
+      setErrorMessage("Error linking mzML: " + ExceptionUtils.exceptionToString(e));
+      return;
+    }
+
+    logger.info("Finished linking " + file + ", linked " + scans.size() + " scans");
+    setStatus(TaskStatus.FINISHED);
+
+  }
+
+  /**
+   * Reads the metadata of all spectra and links the fragment scans to their parents
+   */
+  private List<LinkedScan> readScans(IndexedMzMLFile mzMLFile) throws Exception {
+
+    final List<Long> offsets = mzMLFile.getSpectrumOffsets();
+    totalScans = offsets.size();
+
+    final ScanNumberTable scanNumbers = new ScanNumberTable();
+    final List<LinkedScan> scans = new ArrayList<LinkedScan>();
+    final List<String> precursorScanIds = new ArrayList<String>();
+
+    for (long offset : offsets) {
+
+      if (isCanceled())
+        return scans;
+
+      final MzMLParser.Spectrum spectrum = mzMLFile.readSpectrumHeader(offset);
+      parsedScans++;
+
+      // Ignore scans that are not MS, e.g. UV
+      if (!spectrum.msSpectrum)
+        continue;
+
+      final int scanNumber = scanNumbers.getScanNumber(spectrum.id);
+      scans.add(createScan(spectrum, scanNumber, mzMLFile, offset));
+      precursorScanIds.add(spectrum.precursorScanId);
+
+    }
+
+    // The whole file is known, so the parents are not limited to the preceding scans
+    final Map<Integer, LinkedScan> scansByNumber = new Hashtable<Integer, LinkedScan>();
+    for (LinkedScan scan : scans)
+      scansByNumber.put(scan.getScanNumber(), scan);
+    for (int i = 0; i < scans.size(); i++) {
+      final int parentScan = scanNumbers.findScanNumber(precursorScanIds.get(i));
+      final LinkedScan parent = scansByNumber.get(parentScan);
+      if (parent != null)
+        parent.addFragmentScan(scans.get(i).getScanNumber());
+    }
+
+    return scans;
+
+  }
+
+  /**
+   * Creates a scan from the metadata of the spectrum. The data points are decoded if the metadata
+   * does not describe them.
+   */
+  private LinkedScan createScan(MzMLParser.Spectrum spectrum, int scanNumber,
+      IndexedMzMLFile mzMLFile, long offset) throws IOException {
+
+    String scanDefinition = spectrum.scanDefinition;
+    if (scanDefinition == null)
+      scanDefinition = spectrum.id;
+
+    final LinkedScan scan = new LinkedScan(scanNumber, spectrum, scanDefinition, offset);
+
+    final boolean described = arrayLengthsAgree && ((spectrum.defaultArrayLength == 0)
+        || ((spectrum.defaultArrayLength > 0) && (spectrum.spectrumType != null)
+            && (spectrum.basePeakMz != null) && (spectrum.basePeakIntensity != null)
+            && (spectrum.totalIonCurrent != null) && (spectrum.lowestMz != null)
+            && (spectrum.highestMz != null)));
+
+    if (described) {
+      scan.numOfDataPoints = spectrum.defaultArrayLength;
+      if (scan.numOfDataPoints > 0) {
+        scan.mzRange = Range.closed(Math.min(spectrum.lowestMz, spectrum.highestMz),
+            Math.max(spectrum.lowestMz, spectrum.highestMz));
+        scan.basePeak = new SimpleDataPoint(spectrum.basePeakMz, spectrum.basePeakIntensity);
+        scan.totalIonCurrent = spectrum.totalIonCurrent;
+      }
+      scan.setSpectrumType(spectrum.spectrumType);
+      return scan;
+    }
+
+    final DataPoint dataPoints[] = mzMLFile.readDataPoints(offset);
+    if (!arrayLengthsChecked) {
+      arrayLengthsChecked = true;
+      arrayLengthsAgree = (dataPoints.length == spectrum.defaultArrayLength);
+      if (!arrayLengthsAgree) {
+        logger.warning("Spectrum " + spectrum.id + " of " + file + " has " + dataPoints.length
+            + " data points, but its defaultArrayLength is " + spectrum.defaultArrayLength
+            + ", decoding the data points of all spectra");
+      }
+    }
+
+    final SimpleScan decodedScan = new SimpleScan(null, scanNumber, spectrum.msLevel, 0, 0, 0,
+        null, dataPoints, null, spectrum.polarity, null, null);
+    scan.numOfDataPoints = dataPoints.length;
+    scan.mzRange = decodedScan.getDataPointMZRange();
+    scan.basePeak = decodedScan.getHighestDataPoint();
+    scan.totalIonCurrent = decodedScan.getTIC();
+
+    // Auto-detect whether this scan is centroided
+    MassSpectrumType spectrumType = spectrum.spectrumType;
+    if (spectrumType == null)
+      spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+    scan.setSpectrumType(spectrumType);
+
+    return scan;
+
+  }
+
+  /**
+   * Reads the whole file into the temporary file using MzMLReadTask
+   */
+  private void readFile(String reason) {
+    logger.info(reason + ", reading the data points of " + file + " instead of linking them");
+    readTask = new MzMLReadTask(project, file, newMZmineFile);
+    if (isCanceled())
+      return;
+    readTask.run();
+    setErrorMessage(readTask.getErrorMessage());
+    setStatus(readTask.getStatus());
+  }
+
+  private void closeFile(IndexedMzMLFile mzMLFile) {
+    if (mzMLFile == null)
+      return;
+    try {
+      mzMLFile.close();
+    } catch (IOException e) {
+      logger.warning("Could not close file " + file + ": " + e);
+    }
+  }
+
+  @Override
+  public void cancel() {
+    super.cancel();
+    if (readTask != null)
+      readTask.cancel();
+  }
+
+  public String getTaskDescription() {
+    return "Linking file " + file;
+  }
+
+  /**
+   * Scan without data points, which describes them by the values given in the mzML file
+   */
+  private static class LinkedScan extends SimpleScan {
+
+    final long offset;
+    int numOfDataPoints = 0;
+    Range<Double> mzRange = Range.singleton(0.0);
+    DataPoint basePeak = null;
+    double totalIonCurrent = 0;
+
+    LinkedScan(int scanNumber, MzMLParser.Spectrum spectrum, String scanDefinition, long offset) {
+      super(null, scanNumber, spectrum.msLevel, spectrum.retentionTime, spectrum.precursorMz,
+          spectrum.precursorCharge, null, new DataPoint[0], null, spectrum.polarity,
+          scanDefinition, null);
+      this.offset = offset;
+    }
+
+    @Override
+    public int getNumberOfDataPoints() {
+      return numOfDataPoints;
+    }
+
+    @Override
+    public @Nonnull Range<Double> getDataPointMZRange() {
+      return mzRange;
+    }
+
+    @Override
+    public DataPoint getHighestDataPoint() {
+      return basePeak;
+    }
+
+    @Override
+    public double getTIC() {
+      return totalIonCurrent;
+    }
+
+  }
+
+}
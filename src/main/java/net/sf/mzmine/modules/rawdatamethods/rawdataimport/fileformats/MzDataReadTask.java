@@ -20,10 +20,12 @@ package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Base64;
 import java.util.LinkedList;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.SAXParser;
@@ -54,6 +56,7 @@ public class MzDataReadTask extends AbstractTask {
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private File file;
+  private InputStream inputStream;
   private MZmineProject project;
   private RawDataFileWriter newMZmineFile;
   private RawDataFile finalRawDataFile;
@@ -76,10 +79,11 @@ public class MzDataReadTask extends AbstractTask {
 
   /*
    * The information of "m/z" & "int" is content in two arrays because the mzData standard manages
-   * this information in two different tags.
+   * this information in two different tags. The arrays are kept encoded until the spectrum is
+   * complete, and then decoded in parallel while the parser continues.
    */
-  private double[] mzDataPoints;
-  private double[] intensityDataPoints;
+  private EncodedArray mzDataPoints;
+  private EncodedArray intensityDataPoints;
 
   /*
    * This variable hold the current scan or fragment, it is send to the stack when another
@@ -97,15 +101,29 @@ public class MzDataReadTask extends AbstractTask {
    * 
    * http://sourceforge.net/projects/psidev/
    */
-  private LinkedList<SimpleScan> parentStack;
+  private LinkedList<PendingScan> parentStack;
+
+  // Writes the scans once their data points are decoded
+  private OrderedScanWriter scanWriter;
 
   public MzDataReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     // 256 kilo-chars buffer
     charBuffer = new StringBuilder(1 << 18);
-    parentStack = new LinkedList<SimpleScan>();
+    parentStack = new LinkedList<PendingScan>();
     this.project = project;
     this.file = fileToOpen;
     this.newMZmineFile = newMZmineFile;
+    this.scanWriter = new OrderedScanWriter(newMZmineFile);
+  }
+
+  /**
+   * Reads the file contents from the given stream instead of the file, e.g. while the file is being
+   * decompressed. The stream is closed when the task finishes.
+   */
+  public MzDataReadTask(MZmineProject project, File fileToOpen, InputStream inputStream,
+      RawDataFileWriter newMZmineFile) {
+    this(project, fileToOpen, newMZmineFile);
+    this.inputStream = inputStream;
   }
 
   /**
@@ -129,7 +147,17 @@ public class MzDataReadTask extends AbstractTask {
     try {
 
       SAXParser saxParser = factory.newSAXParser();
-      saxParser.parse(file, handler);
+      if (inputStream != null) {
+        try {
+          saxParser.parse(inputStream, handler);
+        } finally {
+          inputStream.close();
+        }
+      } else {
+        saxParser.parse(file, handler);
+      }
+
+      scanWriter.finish();
 
       // Close file
       finalRawDataFile = newMZmineFile.finishWriting();
@@ -143,6 +171,8 @@ public class MzDataReadTask extends AbstractTask {
         setErrorMessage(ExceptionUtils.exceptionToString(e));
       }
       return;
+    } finally {
+      scanWriter.cancel();
     }
 
     if (parsedScans == 0) {
@@ -296,28 +326,40 @@ public class MzDataReadTask extends AbstractTask {
       // <spectrum>
       if (qName.equalsIgnoreCase("spectrum")) {
 
-        DataPoint dataPoints[] = new DataPoint[peaksCount];
         spectrumInstrumentFlag = false;
 
-        // Copy m/z and intensity data
-        for (int i = 0; i < dataPoints.length; i++) {
-          dataPoints[i] =
-              new SimpleDataPoint((double) mzDataPoints[i], (double) intensityDataPoints[i]);
-        }
+        buildingScan = new SimpleScan(null, scanNumber, msLevel, retentionTime, precursorMz,
+            precursorCharge, null, new DataPoint[0], null, polarity, "", null);
 
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+        final SimpleScan scan = buildingScan;
+        final EncodedArray mzArray = mzDataPoints, intensityArray = intensityDataPoints;
+        final int numOfDataPoints = peaksCount;
+        Future<?> decoding = ScanDecodingService.submit(() -> {
 
-        buildingScan = new SimpleScan(null, scanNumber, msLevel, retentionTime, precursorMz,
-            precursorCharge, null, dataPoints, spectrumType, polarity, "", null);
+          double mzValues[] = mzArray.decode();
+          double intensityValues[] = intensityArray.decode();
+          DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+
+          // Copy m/z and intensity data
+          for (int i = 0; i < dataPoints.length; i++) {
+            dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+          }
+
+          // Auto-detect whether this scan is centroided
+          MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+
+          scan.setSpectrumType(spectrumType);
+          scan.setDataPoints(dataPoints);
+          return null;
+        });
 
         /*
          * Update of fragmentScanNumbers of each Scan in the parentStack
          */
-        for (SimpleScan s : parentStack) {
+        for (PendingScan s : parentStack) {
           // if (s.getScanNumber() ==
           // buildingScan.getParentScanNumber()) {
-          s.addFragmentScan(buildingScan.getScanNumber());
+          s.scan.addFragmentScan(buildingScan.getScanNumber());
           // }
         }
 
@@ -326,9 +368,9 @@ public class MzDataReadTask extends AbstractTask {
          * candidates for fragmentScanNumber update is 10 elements.
          */
         if (parentStack.size() > 10) {
-          SimpleScan scan = parentStack.removeLast();
+          PendingScan pendingScan = parentStack.removeLast();
           try {
-            newMZmineFile.addScan(scan);
+            scanWriter.addScan(pendingScan);
           } catch (IOException e) {
             setStatus(TaskStatus.ERROR);
             setErrorMessage("IO error: " + e);
@@ -337,57 +379,22 @@ public class MzDataReadTask extends AbstractTask {
           parsedScans++;
         }
 
-        parentStack.addFirst(buildingScan);
+        parentStack.addFirst(new PendingScan(buildingScan, decoding));
         buildingScan = null;
 
       }
 
       // <mzArrayBinary>
       if (qName.equalsIgnoreCase("mzArrayBinary")) {
-
         mzArrayBinaryFlag = false;
-        mzDataPoints = new double[peaksCount];
-
-        byte[] peakBytes = Base64.getDecoder().decode(charBuffer.toString().trim());
-
-        ByteBuffer currentMzBytes = ByteBuffer.wrap(peakBytes);
-
-        if (endian.equals("big")) {
-          currentMzBytes = currentMzBytes.order(ByteOrder.BIG_ENDIAN);
-        } else {
-          currentMzBytes = currentMzBytes.order(ByteOrder.LITTLE_ENDIAN);
-        }
-
-        for (int i = 0; i < mzDataPoints.length; i++) {
-          if (precision == null || precision.equals("32"))
-            mzDataPoints[i] = (double) currentMzBytes.getFloat();
-          else
-            mzDataPoints[i] = currentMzBytes.getDouble();
-        }
+        mzDataPoints = new EncodedArray(charBuffer.toString(), endian, precision, peaksCount);
       }
 
       // <intenArrayBinary>
       if (qName.equalsIgnoreCase("intenArrayBinary")) {
-
         intenArrayBinaryFlag = false;
-        intensityDataPoints = new double[peaksCount];
-
-        byte[] peakBytes = Base64.getDecoder().decode(charBuffer.toString().trim());
-
-        ByteBuffer currentIntensityBytes = ByteBuffer.wrap(peakBytes);
-
-        if (endian.equals("big")) {
-          currentIntensityBytes = currentIntensityBytes.order(ByteOrder.BIG_ENDIAN);
-        } else {
-          currentIntensityBytes = currentIntensityBytes.order(ByteOrder.LITTLE_ENDIAN);
-        }
-
-        for (int i = 0; i < intensityDataPoints.length; i++) {
-          if (precision == null || precision.equals("32"))
-            intensityDataPoints[i] = (double) currentIntensityBytes.getFloat();
-          else
-            intensityDataPoints[i] = currentIntensityBytes.getDouble();
-        }
+        intensityDataPoints =
+            new EncodedArray(charBuffer.toString(), endian, precision, peaksCount);
       }
     }
 
@@ -402,9 +409,9 @@ public class MzDataReadTask extends AbstractTask {
 
     public void endDocument() throws SAXException {
       while (!parentStack.isEmpty()) {
-        SimpleScan scan = parentStack.removeLast();
+        PendingScan scan = parentStack.removeLast();
         try {
-          newMZmineFile.addScan(scan);
+          scanWriter.addScan(scan);
         } catch (IOException e) {
           setStatus(TaskStatus.ERROR);
           setErrorMessage("IO error: " + e);
@@ -416,4 +423,46 @@ public class MzDataReadTask extends AbstractTask {
 
   }
 
+  /**
+   * The contents and attributes of a <data> element
+   */
+  private static class EncodedArray {
+
+    private final String data, endian, precision;
+    private final int length;
+
+    EncodedArray(String data, String endian, String precision, int length) {
+      this.data = data;
+      this.endian = endian;
+      this.precision = precision;
+      this.length = length;
+    }
+
+    double[] decode() {
+
+      double values[] = new double[length];
+
+      byte[] peakBytes = Base64.getDecoder().decode(data.trim());
+
+      ByteBuffer currentBytes = ByteBuffer.wrap(peakBytes);
+
+      if (endian.equals("big")) {
+        currentBytes = currentBytes.order(ByteOrder.BIG_ENDIAN);
+      } else {
+        currentBytes = currentBytes.order(ByteOrder.LITTLE_ENDIAN);
+      }
+
+      for (int i = 0; i < values.length; i++) {
+        if (precision == null || precision.equals("32"))
+          values[i] = (double) currentBytes.getFloat();
+        else
+          values[i] = currentBytes.getDouble();
+      }
+
+      return values;
+
+    }
+
+  }
+
 }
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import io.github.msdk.io.mzml.util.MSNumpress;
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.MassSpectrumType;
+import net.sf.mzmine.datamodel.PolarityType;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.util.CompressionUtils;
+
+/**
+ * StAX parser of the <spectrum> elements of mzML 1.0 and 1.1.0 files, used by MzMLReadTask and
+ * IndexedMzMLLinkTask. The input may be a whole document or a part of it starting with a <spectrum>
+ * element, such as the spectra of an indexed mzML file read at their offsets. The
+ * <referenceableParamGroup> elements of the document are remembered, so they can be referenced by
+ * the spectra parsed later.
+ */
+class MzMLParser {
+
+  // Configured once, creating readers from it is thread-safe
+  private static final XMLInputFactory inputFactory = createInputFactory();
+
+  /**
+   * Receives the parsed spectra
+   */
+  interface SpectrumHandler {
+
+    /**
+     * @return false to stop parsing
+     */
+    boolean processSpectrum(Spectrum spectrum) throws Exception;
+
+  }
+
+  // Contents of the <referenceableParamGroup> elements, by their IDs
+  private final Map<String, List<CVParam>> paramGroups = new Hashtable<String, List<CVParam>>();
+
+  private int spectrumCount = 0;
+
+  /**
+   * Returns the number of spectra given in the <spectrumList> element, or 0 if it was not parsed
+   * yet
+   */
+  int getSpectrumCount() {
+    return spectrumCount;
+  }
+
+  /**
+   * Parses the input and passes each spectrum to the handler as soon as its end element is
+   * reached. Parsing stops at the end of the input or when the handler returns false.
+   * 
+   * @param headersOnly if true, each spectrum is passed on before its binary data arrays, which are
+   *        not parsed
+   */
+  void parse(InputStream input, SpectrumHandler handler, boolean headersOnly) throws Exception {
+    XMLStreamReader reader = createReader(input);
+    try {
+      parse(reader, handler, headersOnly);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Parses the beginning of a document up to the <spectrumList> element, to find the parameter
+   * groups and the number of spectra
+   */
+  void parseHeader(InputStream input) throws Exception {
+    parse(input, null, true);
+  }
+
+  static XMLStreamReader createReader(InputStream input) throws XMLStreamException {
+    return inputFactory.createXMLStreamReader(input);
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+
+  private void parse(XMLStreamReader reader, SpectrumHandler handler, boolean headersOnly)
+      throws Exception {
+
+    // Local names of the currently open elements, innermost first
+    ArrayDeque<String> openElements = new ArrayDeque<String>();
+
+    List<CVParam> currentGroup = null;
+    Spectrum spectrum = null;
+    BinaryArray array = null;
+
+    while (reader.hasNext()) {
+
+      final int event = reader.next();
+
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        openElements.pop();
+        switch (reader.getLocalName()) {
+          case "referenceableParamGroup":
+            currentGroup = null;
+            break;
+          case "binaryDataArray":
+            if (spectrum != null)
+              spectrum.addArray(array);
+            array = null;
+            break;
+          case "spectrum":
+            if ((spectrum != null) && !handler.processSpectrum(spectrum))
+              return;
+            spectrum = null;
+            break;
+        }
+        continue;
+      }
+
+      if (event != XMLStreamConstants.START_ELEMENT)
+        continue;
+
+      final String name = reader.getLocalName();
+      final String parentName = openElements.peek();
+
+      switch (name) {
+
+        case "referenceableParamGroup":
+          currentGroup = new ArrayList<CVParam>();
+          paramGroups.put(String.valueOf(reader.getAttributeValue(null, "id")), currentGroup);
+          break;
+
+        case "spectrumList":
+          String count = reader.getAttributeValue(null, "count");
+          if (count != null)
+            spectrumCount = Integer.parseInt(count);
+          if (handler == null)
+            return;
+          break;
+
+        case "spectrum":
+          String id = reader.getAttributeValue(null, "id");
+          spectrum = new Spectrum(id == null ? "" : id);
+          String length = reader.getAttributeValue(null, "defaultArrayLength");
+          if (length != null)
+            spectrum.defaultArrayLength = Integer.parseInt(length);
+          break;
+
+        case "precursor":
+          if (spectrum != null)
+            spectrum.addPrecursor(reader.getAttributeValue(null, "spectrumRef"));
+          break;
+
+        case "binaryDataArrayList":
+          if (headersOnly && (spectrum != null)) {
+            if (!handler.processSpectrum(spectrum))
+              return;
+            spectrum = null;
+          }
+          break;
+
+        case "binaryDataArray":
+          if (spectrum != null)
+            array = new BinaryArray();
+          break;
+
+        case "binary":
+          if (array != null) {
+            // getElementText() also consumes the end element
+            array.encodedData = reader.getElementText();
+            continue;
+          }
+          break;
+
+        case "cvParam":
+          String accession = reader.getAttributeValue(null, "accession");
+          if (accession == null)
+            break;
+          CVParam param = new CVParam(accession, reader.getAttributeValue(null, "value"),
+              reader.getAttributeValue(null, "unitAccession"));
+          if (currentGroup != null)
+            currentGroup.add(param);
+          else
+            addParam(param, parentName, spectrum, array);
+          break;
+
+        case "referenceableParamGroupRef":
+          List<CVParam> group = paramGroups.get(reader.getAttributeValue(null, "ref"));
+          if (group == null)
+            break;
+          for (CVParam groupParam : group)
+            addParam(groupParam, parentName, spectrum, array);
+          break;
+
+      }
+
+      openElements.push(name);
+
+    }
+
+  }
+
+  /**
+   * Applies a parameter found in the given element to the current spectrum or binary data array
+   */
+  private static void addParam(CVParam param, String elementName, Spectrum spectrum,
+      BinaryArray array) {
+
+    if ((spectrum == null) || (elementName == null))
+      return;
+
+    if (array != null) {
+      array.addParam(param);
+      return;
+    }
+
+    switch (elementName) {
+      // The spectrum parameters are in <spectrumDescription> in mzML 1.0
+      case "spectrum":
+      case "spectrumDescription":
+        spectrum.addSpectrumParam(param);
+        break;
+      case "scan":
+        spectrum.addScanParam(param);
+        break;
+      // The precursor parameters are in <ionSelection> in mzML 1.0
+      case "ionSelection":
+      case "selectedIon":
+        spectrum.addSelectedIonParam(param);
+        break;
+    }
+
+  }
+
+  /**
+   * A controlled vocabulary parameter
+   */
+  private static class CVParam {
+
+    final String accession, value, unitAccession;
+
+    CVParam(String accession, String value, String unitAccession) {
+      this.accession = accession;
+      this.value = value;
+      this.unitAccession = unitAccession;
+    }
+
+  }
+
+  /**
+   * The parameters and binary data arrays of one <spectrum> element. The values describing the data
+   * points (base peak, TIC, m/z range) are null if they are not given in the file.
+   */
+  static class Spectrum {
+
+    final String id;
+    boolean msSpectrum = true;
+    int msLevel = 1;
+    boolean msLevelFound = false;
+    double retentionTime = 0;
+    boolean retentionTimeFound = false;
+    PolarityType polarity = PolarityType.UNKNOWN;
+    MassSpectrumType spectrumType;
+    String scanDefinition;
+    int numOfPrecursors = 0;
+    String precursorScanId;
+    double precursorMz = 0;
+    int precursorCharge = 0;
+    int defaultArrayLength = -1;
+    Double basePeakMz, basePeakIntensity, totalIonCurrent, lowestMz, highestMz;
+    BinaryArray mzArray, intensityArray;
+
+    Spectrum(String id) {
+      this.id = id;
+    }
+
+    /**
+     * Decodes the data points of the spectrum. Spectra without m/z or intensity array have no data
+     * points.
+     */
+    DataPoint[] decodeDataPoints() throws DataFormatException {
+
+      if ((mzArray == null) || (intensityArray == null))
+        return new DataPoint[0];
+
+      double mzValues[] = mzArray.decode();
+      double intensityValues[] = intensityArray.decode();
+      DataPoint dataPoints[] = new DataPoint[Math.min(mzValues.length, intensityValues.length)];
+      for (int i = 0; i < dataPoints.length; i++) {
+        dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+      }
+      return dataPoints;
+
+    }
+
+    private void addSpectrumParam(CVParam param) {
+      switch (param.accession) {
+        // MS level MS:1000511
+        case "MS:1000511":
+          if ((param.value != null) && !msLevelFound) {
+            msLevel = Integer.parseInt(param.value);
+            msLevelFound = true;
+          }
+          break;
+        // Electromagnetic radiation spectrum MS:1000804, e.g. UV
+        case "MS:1000804":
+          msSpectrum = false;
+          break;
+        // Centroid spectrum MS:1000127, profile spectrum MS:1000128
+        case "MS:1000127":
+          spectrumType = MassSpectrumType.CENTROIDED;
+          break;
+        case "MS:1000128":
+          spectrumType = MassSpectrumType.PROFILE;
+          break;
+        // Base peak m/z MS:1000504, base peak intensity MS:1000505
+        case "MS:1000504":
+          basePeakMz = parseDouble(param.value);
+          break;
+        case "MS:1000505":
+          basePeakIntensity = parseDouble(param.value);
+          break;
+        // Total ion current MS:1000285
+        case "MS:1000285":
+          totalIonCurrent = parseDouble(param.value);
+          break;
+        // Lowest observed m/z MS:1000528, highest observed m/z MS:1000527
+        case "MS:1000528":
+          lowestMz = parseDouble(param.value);
+          break;
+        case "MS:1000527":
+          highestMz = parseDouble(param.value);
+          break;
+        default:
+          addCommonParam(param);
+      }
+    }
+
+    private void addScanParam(CVParam param) {
+      // Retention time (actually "Scan start time") MS:1000016
+      if (param.accession.equals("MS:1000016")) {
+        if ((param.value == null) || retentionTimeFound)
+          return;
+        // MS:1000038 is used in mzML 1.0, while UO:0000031
+        // is used in mzML 1.1.0 :-/
+        if ((param.unitAccession == null) || (param.unitAccession.equals("MS:1000038"))
+            || param.unitAccession.equals("UO:0000031")) {
+          retentionTime = Double.parseDouble(param.value);
+        } else {
+          retentionTime = Double.parseDouble(param.value) / 60d;
+        }
+        retentionTimeFound = true;
+        return;
+      }
+      addCommonParam(param);
+    }
+
+    private void addCommonParam(CVParam param) {
+      switch (param.accession) {
+        case "MS:1000130":
+          if (polarity == PolarityType.UNKNOWN)
+            polarity = PolarityType.POSITIVE;
+          break;
+        case "MS:1000129":
+          if (polarity == PolarityType.UNKNOWN)
+            polarity = PolarityType.NEGATIVE;
+          break;
+        // Filter string MS:1000512
+        case "MS:1000512":
+          if (scanDefinition == null)
+            scanDefinition = param.value;
+          break;
+      }
+    }
+
+    private void addPrecursor(String spectrumRef) {
+      // Only the first precursor is used
+      numOfPrecursors++;
+      if (numOfPrecursors == 1)
+        precursorScanId = spectrumRef;
+    }
+
+    private void addSelectedIonParam(CVParam param) {
+      if ((numOfPrecursors != 1) || (param.value == null))
+        return;
+      switch (param.accession) {
+        // MS:1000040 is used in mzML 1.0,
+        // MS:1000744 is used in mzML 1.1.0
+        case "MS:1000040":
+        case "MS:1000744":
+          if (precursorMz == 0)
+            precursorMz = Double.parseDouble(param.value);
+          break;
+        case "MS:1000041":
+          if (precursorCharge == 0)
+            precursorCharge = Integer.parseInt(param.value);
+          break;
+      }
+    }
+
+    private void addArray(BinaryArray array) {
+      if (array == null)
+        return;
+      if (array.arrayType == null) {
+        // Untyped arrays are taken as m/z and intensity, in this order
+        if (mzArray == null)
+          mzArray = array;
+        else if (intensityArray == null)
+          intensityArray = array;
+        return;
+      }
+      switch (array.arrayType) {
+        // m/z array MS:1000514
+        case "MS:1000514":
+          mzArray = array;
+          break;
+        // intensity array MS:1000515
+        case "MS:1000515":
+          intensityArray = array;
+          break;
+      }
+    }
+
+    private static Double parseDouble(String value) {
+      if (value == null)
+        return null;
+      try {
+        return Double.valueOf(value);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+  }
+
+  /**
+   * The encoded contents and the encoding parameters of one <binaryDataArray> element
+   */
+  static class BinaryArray {
+
+    String encodedData;
+    String arrayType;
+    int bitsPerValue = 32;
+    boolean integerValues = false;
+    boolean zlibCompression = false;
+    String numpressCompression;
+
+    private void addParam(CVParam param) {
+      switch (param.accession) {
+        case "MS:1000514":
+        case "MS:1000515":
+          arrayType = param.accession;
+          break;
+        case "MS:1000521":
+          bitsPerValue = 32;
+          integerValues = false;
+          break;
+        case "MS:1000523":
+          bitsPerValue = 64;
+          integerValues = false;
+          break;
+        case "MS:1000519":
+          bitsPerValue = 32;
+          integerValues = true;
+          break;
+        case "MS:1000522":
+          bitsPerValue = 64;
+          integerValues = true;
+          break;
+        case "MS:1000574":
+          zlibCompression = true;
+          break;
+        case MSNumpress.ACC_NUMPRESS_LINEAR:
+        case MSNumpress.ACC_NUMPRESS_PIC:
+        case MSNumpress.ACC_NUMPRESS_SLOF:
+          numpressCompression = param.accession;
+          break;
+        // MS-Numpress followed by zlib compression
+        case "MS:1002746":
+          numpressCompression = MSNumpress.ACC_NUMPRESS_LINEAR;
+          zlibCompression = true;
+          break;
+        case "MS:1002747":
+          numpressCompression = MSNumpress.ACC_NUMPRESS_PIC;
+          zlibCompression = true;
+          break;
+        case "MS:1002748":
+          numpressCompression = MSNumpress.ACC_NUMPRESS_SLOF;
+          zlibCompression = true;
+          break;
+      }
+    }
+
+    double[] decode() throws DataFormatException {
+
+      if ((encodedData == null) || encodedData.isEmpty())
+        return new double[0];
+
+      byte bytes[] = Base64.getMimeDecoder().decode(encodedData);
+
+      if (zlibCompression)
+        bytes = CompressionUtils.decompress(bytes);
+
+      if (numpressCompression != null)
+        return MSNumpress.decode(numpressCompression, bytes, bytes.length);
+
+      ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      double values[] = new double[bytes.length / (bitsPerValue / 8)];
+      for (int i = 0; i < values.length; i++) {
+        if (integerValues)
+          values[i] = bitsPerValue == 64 ? buffer.getLong() : buffer.getInt();
+        else
+          values[i] = bitsPerValue == 64 ? buffer.getDouble() : buffer.getFloat();
+      }
+      return values;
+
+    }
+
+  }
+
+}
@@ -22,9 +22,11 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Base64;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
 
@@ -61,6 +63,7 @@ public class MzXMLReadTask extends AbstractTask {
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
   private File file;
+  private InputStream inputStream;
   private MZmineProject project;
   private RawDataFileWriter newMZmineFile;
   private RawDataFile finalRawDataFile;
@@ -85,21 +88,36 @@ public class MzXMLReadTask extends AbstractTask {
    * This stack stores the current scan and all his fragments until all the information is recover.
    * The logic is FIFO at the moment of write into the RawDataFile
    */
-  private LinkedList<SimpleScan> parentStack;
+  private LinkedList<PendingScan> parentStack;
+
+  // Writes the scans once their peaks are decoded
+  private OrderedScanWriter scanWriter;
 
   /*
    * This variable hold the present scan or fragment, it is send to the stack when another
    * scan/fragment appears as a parser.startElement
    */
   private SimpleScan buildingScan;
+  private Future<?> buildingScanDecoding;
 
   public MzXMLReadTask(MZmineProject project, File fileToOpen, RawDataFileWriter newMZmineFile) {
     // 256 kilo-chars buffer
     charBuffer = new StringBuilder(1 << 18);
-    parentStack = new LinkedList<SimpleScan>();
+    parentStack = new LinkedList<PendingScan>();
     this.project = project;
     this.file = fileToOpen;
     this.newMZmineFile = newMZmineFile;
+    this.scanWriter = new OrderedScanWriter(newMZmineFile);
+  }
+
+  /**
+   * Reads the file contents from the given stream instead of the file, e.g. while the file is being
+   * decompressed. The stream is closed when the task finishes.
+   */
+  public MzXMLReadTask(MZmineProject project, File fileToOpen, InputStream inputStream,
+      RawDataFileWriter newMZmineFile) {
+    this(project, fileToOpen, newMZmineFile);
+    this.inputStream = inputStream;
   }
 
   /**
@@ -125,7 +143,17 @@ public class MzXMLReadTask extends AbstractTask {
       dataTypeFactory = DatatypeFactory.newInstance();
 
       SAXParser saxParser = factory.newSAXParser();
-      saxParser.parse(file, handler);
+      if (inputStream != null) {
+        try {
+          saxParser.parse(inputStream, handler);
+        } finally {
+          inputStream.close();
+        }
+      } else {
+        saxParser.parse(file, handler);
+      }
+
+      scanWriter.finish();
 
       // Close file
       finalRawDataFile = newMZmineFile.finishWriting();
@@ -139,6 +167,8 @@ public class MzXMLReadTask extends AbstractTask {
         setErrorMessage(ExceptionUtils.exceptionToString(e));
       }
       return;
+    } finally {
+      scanWriter.cancel();
     }
 
     if (isCanceled())
@@ -159,6 +189,53 @@ public class MzXMLReadTask extends AbstractTask {
     return "Opening file " + file;
   }
 
+  /**
+   * Decodes the contents of a <peaks> element
+   */
+  private static DataPoint[] decodePeaks(String peakData, boolean compressed, String precision,
+      int peaksCount) throws IOException {
+
+    byte[] peakBytes = Base64.getDecoder().decode(peakData);
+
+    if (compressed) {
+      try {
+        peakBytes = CompressionUtils.decompress(peakBytes);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt compressed peak: " + e.toString());
+      }
+    }
+
+    // make a data input stream
+    DataInputStream peakStream = new DataInputStream(new ByteArrayInputStream(peakBytes));
+
+    DataPoint dataPoints[] = new DataPoint[peaksCount];
+
+    try {
+      for (int i = 0; i < dataPoints.length; i++) {
+
+        // Always respect this order pairOrder="m/z-int"
+        double massOverCharge;
+        double intensity;
+        if ("64".equals(precision)) {
+          massOverCharge = peakStream.readDouble();
+          intensity = peakStream.readDouble();
+        } else {
+          massOverCharge = (double) peakStream.readFloat();
+          intensity = (double) peakStream.readFloat();
+        }
+
+        // Copy m/z and intensity data
+        dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
+
+      }
+    } catch (IOException eof) {
+      throw new IOException("Corrupt mzXML file");
+    }
+
+    return dataPoints;
+
+  }
+
   private class MzXMLHandler extends DefaultHandler {
     public void startElement(String namespaceURI, String lName, // local
         // name
@@ -179,8 +256,9 @@ public class MzXMLReadTask extends AbstractTask {
       if (qName.equalsIgnoreCase("scan")) {
 
         if (buildingScan != null) {
-          parentStack.addFirst(buildingScan);
+          parentStack.addFirst(new PendingScan(buildingScan, buildingScanDecoding));
           buildingScan = null;
+          buildingScanDecoding = null;
         }
 
         /*
@@ -231,9 +309,9 @@ public class MzXMLReadTask extends AbstractTask {
 
         if (msLevel > 1) {
           parentScan = parentTreeValue[msLevel - 1];
-          for (SimpleScan p : parentStack) {
-            if (p.getScanNumber() == parentScan) {
-              p.addFragmentScan(scanNumber);
+          for (PendingScan p : parentStack) {
+            if (p.scan.getScanNumber() == parentScan) {
+              p.scan.addFragmentScan(scanNumber);
             }
           }
         }
@@ -291,12 +369,13 @@ public class MzXMLReadTask extends AbstractTask {
          */
 
         if (msLevelTree == 0) {
-          parentStack.addFirst(buildingScan);
+          parentStack.addFirst(new PendingScan(buildingScan, buildingScanDecoding));
           buildingScan = null;
+          buildingScanDecoding = null;
           while (!parentStack.isEmpty()) {
-            SimpleScan currentScan = parentStack.removeLast();
+            PendingScan currentScan = parentStack.removeLast();
             try {
-              newMZmineFile.addScan(currentScan);
+              scanWriter.addScan(currentScan);
             } catch (IOException e) {
               e.printStackTrace();
               setStatus(TaskStatus.ERROR);
@@ -330,55 +409,28 @@ public class MzXMLReadTask extends AbstractTask {
       // <peaks>
       if (qName.equalsIgnoreCase("peaks")) {
 
-        byte[] peakBytes = Base64.getDecoder().decode(charBuffer.toString());
+        // The peaks are decoded in parallel, while the parser continues
+        final String peakData = charBuffer.toString();
+        final boolean compressed = compressFlag;
+        final String peakPrecision = precision;
+        final int numOfPeaks = peaksCount;
+        final SimpleScan scan = buildingScan;
 
-        if (compressFlag) {
-          try {
-            peakBytes = CompressionUtils.decompress(peakBytes);
-          } catch (DataFormatException e) {
-            setStatus(TaskStatus.ERROR);
-            setErrorMessage("Corrupt compressed peak: " + e.toString());
-            throw new SAXException("Parsing Cancelled");
-          }
-        }
-
-        // make a data input stream
-        DataInputStream peakStream = new DataInputStream(new ByteArrayInputStream(peakBytes));
-
-        DataPoint dataPoints[] = new DataPoint[peaksCount];
+        buildingScanDecoding = ScanDecodingService.submit(() -> {
 
-        try {
-          for (int i = 0; i < dataPoints.length; i++) {
-
-            // Always respect this order pairOrder="m/z-int"
-            double massOverCharge;
-            double intensity;
-            if ("64".equals(precision)) {
-              massOverCharge = peakStream.readDouble();
-              intensity = peakStream.readDouble();
-            } else {
-              massOverCharge = (double) peakStream.readFloat();
-              intensity = (double) peakStream.readFloat();
-            }
+          DataPoint dataPoints[] = decodePeaks(peakData, compressed, peakPrecision, numOfPeaks);
 
-            // Copy m/z and intensity data
-            dataPoints[i] = new SimpleDataPoint(massOverCharge, intensity);
-
-          }
-        } catch (IOException eof) {
-          setStatus(TaskStatus.ERROR);
-          setErrorMessage("Corrupt mzXML file");
-          throw new SAXException("Parsing Cancelled");
-        }
+          // Auto-detect whether this scan is centroided
+          MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
 
-        // Auto-detect whether this scan is centroided
-        MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
+          // Set the centroided tag
+          scan.setSpectrumType(spectrumType);
 
-        // Set the centroided tag
-        buildingScan.setSpectrumType(spectrumType);
+          // Set the final data points to the scan
+          scan.setDataPoints(dataPoints);
 
-        // Set the final data points to the scan
-        buildingScan.setDataPoints(dataPoints);
+          return null;
+        });
 
         return;
       }
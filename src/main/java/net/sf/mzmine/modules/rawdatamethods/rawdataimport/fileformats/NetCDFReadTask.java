@@ -20,7 +20,9 @@ package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Hashtable;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,7 +40,6 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 import net.sf.mzmine.util.scans.ScanUtils;
 import ucar.ma2.Array;
-import ucar.ma2.Index;
 import ucar.ma2.IndexIterator;
 import ucar.nc2.Attribute;
 import ucar.nc2.NetcdfFile;
@@ -54,7 +55,13 @@ public class NetCDFReadTask extends AbstractTask {
   private NetcdfFile inputFile;
 
   private int parsedScans;
-  private int totalScans = 0, numberOfGoodScans, scanNum = 0;
+  private int totalScans = 0, numberOfGoodScans;
+
+  // Approximate number of data points read at once
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  // Number of chunks read ahead of the decoding
+  private static final int MAX_PENDING_CHUNKS = 8;
 
   private Hashtable<Integer, Integer[]> scansIndex;
   private Hashtable<Integer, Double> scansRetentionTimes;
@@ -97,20 +104,30 @@ public class NetCDFReadTask extends AbstractTask {
       // Open file
       this.startReading();
 
-      // Parse scans
-      Scan buildingScan;
-      while ((buildingScan = this.readNextScan()) != null) {
+      // Parse scans in chunks, which are decoded in parallel
+      ArrayDeque<Future<Scan[]>> pendingChunks = new ArrayDeque<Future<Scan[]>>();
+      int firstScan = 0;
+      while (firstScan < totalScans) {
 
         // Check if cancel is requested
         if (isCanceled()) {
+          for (Future<Scan[]> chunk : pendingChunks)
+            chunk.cancel(false);
           return;
         }
-        // buildingFile.addScan(scan);
-        newMZmineFile.addScan(buildingScan);
-        parsedScans++;
+
+        int lastScan = findChunkEnd(firstScan);
+        pendingChunks.add(readChunk(firstScan, lastScan));
+        firstScan = lastScan;
+
+        if (pendingChunks.size() >= MAX_PENDING_CHUNKS)
+          addScans(pendingChunks.remove().get());
 
       }
 
+      while (!pendingChunks.isEmpty())
+        addScans(pendingChunks.remove().get());
+
       // Close file
       this.finishReading();
       finalRawDataFile = newMZmineFile.finishWriting();
@@ -362,33 +379,97 @@ public class NetCDFReadTask extends AbstractTask {
   }
 
   /**
-   * Reads one scan from the file. Requires that general information has already been read.
+   * Returns the index following the last scan of the chunk starting with the given scan. The chunk
+   * contains at least one scan.
    */
-  private Scan readNextScan() throws IOException {
+  private int findChunkEnd(int firstScan) {
+    int lastScan = firstScan;
+    long numOfDataPoints = 0;
+    while (lastScan < totalScans) {
+      numOfDataPoints += scansIndex.get(lastScan)[1];
+      if ((numOfDataPoints > CHUNK_SIZE) && (lastScan > firstScan))
+        break;
+      lastScan++;
+    }
+    return lastScan;
+  }
 
-    // Get scan starting position and length
-    int[] scanStartPosition = new int[1];
-    int[] scanLength = new int[1];
-    Integer[] startAndLength = scansIndex.get(scanNum);
+  /**
+   * Reads the mass and intensity values of the given scans with one read per variable, and submits
+   * the creation of the scans from these values for decoding. Requires that general information
+   * has already been read.
+   *
+   * @param firstScan index of the first scan
+   * @param lastScan index following the last scan
+   */
+  private Future<Scan[]> readChunk(int firstScan, int lastScan) throws IOException {
+
+    // The range of values covered by the scans
+    int chunkStart = Integer.MAX_VALUE, chunkEnd = 0;
+    for (int i = firstScan; i < lastScan; i++) {
+      Integer[] startAndLength = scansIndex.get(i);
+      if (startAndLength[1] == 0)
+        continue;
+      chunkStart = Math.min(chunkStart, startAndLength[0]);
+      chunkEnd = Math.max(chunkEnd, startAndLength[0] + startAndLength[1]);
+    }
 
-    // End of file
-    if (startAndLength == null) {
-      return null;
+    // Read mass and intensity values
+    final Array massValueArray;
+    final Array intensityValueArray;
+    if (chunkEnd > chunkStart) {
+      int[] chunkOrigin = new int[] {chunkStart};
+      int[] chunkShape = new int[] {chunkEnd - chunkStart};
+      try {
+        massValueArray = massValueVariable.read(chunkOrigin, chunkShape);
+        intensityValueArray = intensityValueVariable.read(chunkOrigin, chunkShape);
+      } catch (Exception e) {
+        logger.log(Level.SEVERE,
+            "Could not read from variables mass_values and/or intensity_values.", e);
+        throw (new IOException(
+            "Could not read from variables mass_values and/or intensity_values."));
+      }
+    } else {
+      massValueArray = null;
+      intensityValueArray = null;
     }
-    scanStartPosition[0] = startAndLength[0];
-    scanLength[0] = startAndLength[1];
+
+    final int offset = chunkStart;
+    return ScanDecodingService.submit(() -> {
+      Scan scans[] = new Scan[lastScan - firstScan];
+      for (int i = firstScan; i < lastScan; i++) {
+        scans[i - firstScan] = createScan(i, massValueArray, intensityValueArray, offset);
+      }
+      return scans;
+    });
+
+  }
+
+  /**
+   * Creates one scan from the values read for its chunk
+   *
+   * @param offset index of the first value of the chunk in the variables
+   */
+  private Scan createScan(int scanIndex, Array massValueArray, Array intensityValueArray,
+      int offset) throws IOException {
+
+    // Get scan starting position and length
+    Integer[] startAndLength = scansIndex.get(scanIndex);
+    final int scanStartPosition = startAndLength[0];
+    final int scanLength = startAndLength[1];
+
+    final int scanNumber = scanIndex + 1;
 
     // Get retention time of the scan
-    Double retentionTime = scansRetentionTimes.get(scanNum);
+    Double retentionTime = scansRetentionTimes.get(scanIndex);
     if (retentionTime == null) {
-      logger.severe("Could not find retention time for scan " + scanNum);
-      throw (new IOException("Could not find retention time for scan " + scanNum));
+      logger.severe("Could not find retention time for scan " + scanIndex);
+      throw (new IOException("Could not find retention time for scan " + scanIndex));
     }
 
     // An empty scan needs special attention..
-    if (scanLength[0] == 0) {
-      scanNum++;
-      return new SimpleScan(null, scanNum, 1, retentionTime.doubleValue(), 0, 0, null,
+    if (scanLength == 0) {
+      return new SimpleScan(null, scanNumber, 1, retentionTime.doubleValue(), 0, 0, null,
           new DataPoint[0], MassSpectrumType.CENTROIDED, PolarityType.UNKNOWN, "", null);
     }
 
@@ -398,45 +479,30 @@ public class NetCDFReadTask extends AbstractTask {
     // Is there any way how to extract scan definition from netcdf?
     String scanDefinition = "";
 
-    // Read mass and intensity values
-    Array massValueArray;
-    Array intensityValueArray;
-    try {
-      massValueArray = massValueVariable.read(scanStartPosition, scanLength);
-      intensityValueArray = intensityValueVariable.read(scanStartPosition, scanLength);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, "Could not read from variables mass_values and/or intensity_values.",
-          e);
-      throw (new IOException("Could not read from variables mass_values and/or intensity_values."));
-    }
-
-    Index massValuesIndex = massValueArray.getIndex();
-    Index intensityValuesIndex = intensityValueArray.getIndex();
-
-    int arrayLength = massValueArray.getShape()[0];
-
-    DataPoint dataPoints[] = new DataPoint[arrayLength];
+    DataPoint dataPoints[] = new DataPoint[scanLength];
 
-    for (int j = 0; j < arrayLength; j++) {
-      Index massIndex0 = massValuesIndex.set0(j);
-      Index intensityIndex0 = intensityValuesIndex.set0(j);
-
-      double mz = massValueArray.getDouble(massIndex0) * massValueScaleFactor;
-      double intensity = intensityValueArray.getDouble(intensityIndex0) * intensityValueScaleFactor;
+    final int start = scanStartPosition - offset;
+    for (int j = 0; j < scanLength; j++) {
+      double mz = massValueArray.getDouble(start + j) * massValueScaleFactor;
+      double intensity = intensityValueArray.getDouble(start + j) * intensityValueScaleFactor;
       dataPoints[j] = new SimpleDataPoint(mz, intensity);
-
     }
 
-    scanNum++;
-
     // Auto-detect whether this scan is centroided
     MassSpectrumType spectrumType = ScanUtils.detectSpectrumType(dataPoints);
 
-    SimpleScan buildingScan = new SimpleScan(null, scanNum, 1, retentionTime.doubleValue(), 0, 0,
-        null, dataPoints, spectrumType, polarity, scanDefinition, null);
+    SimpleScan buildingScan = new SimpleScan(null, scanNumber, 1, retentionTime.doubleValue(), 0,
+        0, null, dataPoints, spectrumType, polarity, scanDefinition, null);
 
     return buildingScan;
 
   }
 
+  private void addScans(Scan scans[]) throws IOException {
+    for (Scan scan : scans) {
+      newMZmineFile.addScan(scan);
+      parsedScans++;
+    }
+  }
+
 }
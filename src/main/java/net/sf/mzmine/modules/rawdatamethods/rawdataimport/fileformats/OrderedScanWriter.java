@@ -0,0 +1,71 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import net.sf.mzmine.datamodel.RawDataFileWriter;
+
+/**
+ * Adds the scans of a raw data reader to the new file in the order they were read, once their data
+ * points are decoded. The number of scans waiting for decoding is limited, so the reader waits when
+ * it gets too far ahead of the decoding.
+ */
+class OrderedScanWriter {
+
+  private static final int MAX_PENDING_SCANS = 64;
+
+  private final RawDataFileWriter newMZmineFile;
+  private final ArrayDeque<PendingScan> pendingScans = new ArrayDeque<PendingScan>();
+
+  OrderedScanWriter(RawDataFileWriter newMZmineFile) {
+    this.newMZmineFile = newMZmineFile;
+  }
+
+  /**
+   * Queues the scan and writes all scans that are decoded, in order
+   */
+  void addScan(PendingScan scan) throws IOException {
+    pendingScans.add(scan);
+    while (!pendingScans.isEmpty()
+        && ((pendingScans.size() > MAX_PENDING_SCANS) || pendingScans.peek().isDecoded())) {
+      newMZmineFile.addScan(pendingScans.remove().get());
+    }
+  }
+
+  /**
+   * Waits for all queued scans and writes them
+   */
+  void finish() throws IOException {
+    while (!pendingScans.isEmpty()) {
+      newMZmineFile.addScan(pendingScans.remove().get());
+    }
+  }
+
+  /**
+   * Drops all queued scans, e.g. when the import is canceled
+   */
+  void cancel() {
+    for (PendingScan scan : pendingScans)
+      scan.cancel();
+    pendingScans.clear();
+  }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import net.sf.mzmine.datamodel.impl.SimpleScan;
+
+/**
+ * A scan read from a raw data file, whose data points may still be decoding on the
+ * ScanDecodingService
+ */
+class PendingScan {
+
+  final SimpleScan scan;
+  private final Future<?> decoding;
+
+  /**
+   * @param decoding the task setting the data points of the scan, or null if they are already set
+   */
+  PendingScan(SimpleScan scan, Future<?> decoding) {
+    this.scan = scan;
+    this.decoding = decoding;
+  }
+
+  boolean isDecoded() {
+    return (decoding == null) || decoding.isDone();
+  }
+
+  /**
+   * Waits until the data points of the scan are decoded
+   */
+  SimpleScan get() throws IOException {
+    if (decoding == null)
+      return scan;
+    try {
+      decoding.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decoding scan " + scan.getScanNumber());
+    } catch (ExecutionException e) {
+      throw new IOException("Could not decode scan " + scan.getScanNumber() + ": " + e.getCause(),
+          e.getCause());
+    }
+    return scan;
+  }
+
+  void cancel() {
+    if (decoding != null)
+      decoding.cancel(false);
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
+
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Assigns scan numbers to the spectrum IDs of an mzML file, in the order the spectra are read
+ */
+class ScanNumberTable {
+
+  private static final Pattern SCAN_PATTERN = Pattern.compile("scan=([0-9]+)");
+
+  private int lastScanNumber = 0;
+
+  private Map<String, Integer> scanIdTable = new Hashtable<String, Integer>();
+  private Set<Integer> usedScanNumbers = new HashSet<Integer>();
+
+  /**
+   * Returns the scan number for the given scan ID. The number given in the ID is used if there is
+   * one and it is not taken yet, otherwise the number following the highest one assigned so far.
+   */
+  int getScanNumber(String scanId) {
+
+    Integer existingNumber = scanIdTable.get(scanId);
+    if (existingNumber != null)
+      return existingNumber;
+
+    // Some vendors include scan=XX in the ID, some don't, such as
+    // mzML converted from WIFF files. See the definition of nativeID in
+    // http://psidev.cvs.sourceforge.net/viewvc/psidev/psi/psi-ms/mzML/controlledVocabulary/psi-ms.obo
+    int scanNumber = -1;
+    final Matcher matcher = SCAN_PATTERN.matcher(scanId);
+    if (matcher.find())
+      scanNumber = Integer.parseInt(matcher.group(1));
+
+    if ((scanNumber < 0) || usedScanNumbers.contains(scanNumber))
+      scanNumber = lastScanNumber + 1;
+
+    lastScanNumber = Math.max(lastScanNumber, scanNumber);
+    usedScanNumbers.add(scanNumber);
+    scanIdTable.put(scanId, scanNumber);
+    return scanNumber;
+
+  }
+
+  /**
+   * Returns the scan number assigned to the given scan ID, or -1 if there is none
+   */
+  int findScanNumber(String scanId) {
+    if (scanId == null)
+      return -1;
+    Integer scanNumber = scanIdTable.get(scanId);
+    return scanNumber == null ? -1 : scanNumber;
+  }
+
+}
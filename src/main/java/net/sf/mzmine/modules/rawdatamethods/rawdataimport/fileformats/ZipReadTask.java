@@ -18,9 +18,11 @@
 
 package net.sf.mzmine.modules.rawdatamethods.rawdataimport.fileformats;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -29,21 +31,26 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.commons.io.FilenameUtils;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
 import net.sf.mzmine.datamodel.MZmineProject;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.modules.rawdatamethods.rawdataimport.MassDetectingFileWriter;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataFileType;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataFileTypeDetector;
 import net.sf.mzmine.modules.rawdatamethods.rawdataimport.RawDataImportModule;
+import net.sf.mzmine.parameters.ParameterSet;
 import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
+import net.sf.mzmine.util.ReadAheadInputStream;
 import net.sf.mzmine.util.StreamCopy;
 
 public class ZipReadTask extends AbstractTask {
@@ -56,12 +63,24 @@ public class ZipReadTask extends AbstractTask {
 
   private File tmpDir, tmpFile;
   private StreamCopy copy = null;
+  private InputStream decompressedStream;
   private Task decompressedOpeningTask = null;
+  private final ParameterSet massDetection;
 
   public ZipReadTask(@Nonnull MZmineProject project, File fileToOpen, RawDataFileType fileType) {
+    this(project, fileToOpen, fileType, null);
+  }
+
+  /**
+   * @param massDetection parameters of the mass detection applied while importing the
+   *        decompressed file, see RawDataImportModule.createOpeningTask()
+   */
+  public ZipReadTask(@Nonnull MZmineProject project, File fileToOpen, RawDataFileType fileType,
+      @Nullable ParameterSet massDetection) {
     this.project = project;
     this.file = fileToOpen;
     this.fileType = fileType;
+    this.massDetection = massDetection;
   }
 
   /**
@@ -96,7 +115,7 @@ public class ZipReadTask extends AbstractTask {
           is = zis;
           break;
         case GZIP:
-          is = new GZIPInputStream(fis);
+          is = new GZIPInputStream(fis, 1 << 16);
           decompressedSize = (long) (file.length() * 1.5); // Ballpark a
                                                            // decompressedFile
                                                            // size so the
@@ -111,27 +130,18 @@ public class ZipReadTask extends AbstractTask {
           return;
       }
 
-      tmpDir = Files.createTempDir();
-      tmpFile = new File(tmpDir, newName);
-      logger.finest("Decompressing to file " + tmpFile);
-      tmpFile.deleteOnExit();
-      tmpDir.deleteOnExit();
-      FileOutputStream ous = new FileOutputStream(tmpFile);
-
-      // Decompress the contents
-      copy = new StreamCopy();
-      copy.copy(is, ous, decompressedSize);
-
-      // Close the streams
-      is.close();
-      ous.close();
+      // Decompress on a separate thread, so the contents can be parsed at the same time
+      decompressedStream =
+          new BufferedInputStream(new ReadAheadInputStream(is, "Decompressing " + file), 1 << 16);
 
-      if (isCanceled())
-        return;
-
-      // Find the type of the decompressed file
-      RawDataFileType fileType = RawDataFileTypeDetector.detectDataFileType(tmpFile);
-      logger.finest("File " + tmpFile + " type detected as " + fileType);
+      // Find the type of the decompressed file from its first 1kB
+      byte header[] = new byte[1024];
+      decompressedStream.mark(header.length);
+      int headerLength = ByteStreams.read(decompressedStream, header, 0, header.length);
+      decompressedStream.reset();
+      RawDataFileType fileType = RawDataFileTypeDetector.detectDataFileType(newName,
+          new String(header, 0, headerLength, "ISO-8859-1"));
+      logger.finest("File " + newName + " type detected as " + fileType);
 
       if (fileType == null) {
         setErrorMessage("Could not determine the file type of file " + newName);
@@ -139,10 +149,54 @@ public class ZipReadTask extends AbstractTask {
         return;
       }
 
-      // Run the import module on the decompressed file
       RawDataFileWriter newMZmineFile = MZmineCore.createNewFile(newName);
-      decompressedOpeningTask =
-          RawDataImportModule.createOpeningTask(fileType, project, tmpFile, newMZmineFile);
+      RawDataFileWriter streamedFile = newMZmineFile;
+      if (massDetection != null)
+        streamedFile = new MassDetectingFileWriter(newMZmineFile, massDetection);
+
+      switch (fileType) {
+
+        // XML formats are parsed directly from the decompressing stream
+        case MZML:
+          decompressedOpeningTask =
+              new MzMLReadTask(project, file, decompressedStream, streamedFile);
+          break;
+        case MZXML:
+          decompressedOpeningTask =
+              new MzXMLReadTask(project, file, decompressedStream, streamedFile);
+          break;
+        case MZDATA:
+          decompressedOpeningTask =
+              new MzDataReadTask(project, file, decompressedStream, streamedFile);
+          break;
+
+        // Other formats have to be decompressed to a temporary file first
+        default:
+          tmpDir = Files.createTempDir();
+          tmpFile = new File(tmpDir, newName);
+          logger.finest("Decompressing to file " + tmpFile);
+          tmpFile.deleteOnExit();
+          tmpDir.deleteOnExit();
+          FileOutputStream ous = new FileOutputStream(tmpFile);
+
+          // Decompress the contents
+          copy = new StreamCopy();
+          copy.copy(decompressedStream, ous, decompressedSize);
+
+          // Close the streams
+          decompressedStream.close();
+          ous.close();
+
+          if (isCanceled())
+            return;
+
+          // Run the import module on the decompressed file
+          decompressedOpeningTask =
+              RawDataImportModule.createOpeningTask(fileType, project, tmpFile, newMZmineFile,
+                  massDetection);
+          break;
+
+      }
 
       if (decompressedOpeningTask == null) {
         setErrorMessage("File type " + fileType + " of file " + newName + " is not supported.");
@@ -154,8 +208,10 @@ public class ZipReadTask extends AbstractTask {
       decompressedOpeningTask.run();
 
       // Delete the temporary folder
-      tmpFile.delete();
-      tmpDir.delete();
+      if (tmpFile != null) {
+        tmpFile.delete();
+        tmpDir.delete();
+      }
 
       if (isCanceled())
         return;
@@ -166,6 +222,15 @@ public class ZipReadTask extends AbstractTask {
       setErrorMessage(ExceptionUtils.exceptionToString(e));
       setStatus(TaskStatus.ERROR);
       return;
+    } finally {
+      // Stops the decompression if the file was not read completely
+      if (decompressedStream != null) {
+        try {
+          decompressedStream.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
     }
 
     logger.info("Finished opening compressed file " + file);
@@ -186,6 +251,8 @@ public class ZipReadTask extends AbstractTask {
    * @see net.sf.mzmine.taskcontrol.Task#getFinishedPercentage()
    */
   public double getFinishedPercentage() {
+    if ((decompressedOpeningTask != null) && (copy == null))
+      return decompressedOpeningTask.getFinishedPercentage();
     if (decompressedOpeningTask != null)
       return (decompressedOpeningTask.getFinishedPercentage() / 2.0) + 0.5; // Reports 50% to 100%
     if (copy != null) {
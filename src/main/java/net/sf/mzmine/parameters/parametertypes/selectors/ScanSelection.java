@@ -125,18 +125,25 @@ public class ScanSelection {
 
 
   public boolean matches(Scan scan) {
-    // scan offset was changed
-    int offset;
+    // first scan number
+    int firstScanNumber;
+    if (scan.getDataFile() != null && scan.getDataFile().getScanNumbers().length > 0)
+      firstScanNumber = scan.getDataFile().getScanNumbers()[0];
+    else
+      firstScanNumber = 1;
+    return matches(scan, getScanNumberOffset(firstScanNumber));
+  }
+
+  /**
+   * Returns the scan number offset used by matches(Scan) for the filtering of every n-th scan: the
+   * first scan number of the range, if one is set, otherwise the first scan number of the file
+   * 
+   * @param firstScanNumber first scan number of the data file
+   */
+  public int getScanNumberOffset(int firstScanNumber) {
     if (scanNumberRange != null)
-      offset = scanNumberRange.lowerEndpoint();
-    else {
-      // first scan number
-      if (scan.getDataFile() != null && scan.getDataFile().getScanNumbers().length > 0)
-        offset = scan.getDataFile().getScanNumbers()[0];
-      else
-        offset = 1;
-    }
-    return matches(scan, offset);
+      return scanNumberRange.lowerEndpoint();
+    return firstScanNumber;
   }
 
   /**
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.main.MZmineConfiguration;
+import net.sf.mzmine.main.MZmineCore;
+
+/**
+ * Cache of decoded data points, shared by all raw data files. The m/z and intensity values are kept
+ * in primitive arrays, so filling the cache does not create DataPoint instances. Entries are keyed
+ * by the raw data file and the storage ID and evicted in least-recently-used order once the memory
+ * budget set in the preferences (spectrum cache size) is exceeded. The cache is split into segments, each with
+ * its own lock and an equal part of the budget, so that concurrent readers rarely wait for each
+ * other.
+ */
+public class DataPointsCache {
+
+  private static final DataPointsCache instance = new DataPointsCache();
+
+  private static final int NUM_OF_SEGMENTS = 16;
+
+  // Heap size of the m/z and intensity values of one data point, and estimated size of one entry
+  private static final long BYTES_PER_DATA_POINT = 16;
+  private static final long BYTES_PER_ENTRY = 100;
+
+  private final Segment segments[] = new Segment[NUM_OF_SEGMENTS];
+
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+      evictions = new AtomicLong();
+
+  private DataPointsCache() {
+    for (int i = 0; i < NUM_OF_SEGMENTS; i++)
+      segments[i] = new Segment();
+  }
+
+  public static DataPointsCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Returns the cached data points, or null if they are not cached or the cache is disabled. The
+   * returned entry is shared, so callers must not modify its arrays.
+   */
+  @Nullable
+  Entry get(RawDataFileImpl dataFile, int storageID) {
+    if (getMemoryBudget() <= 0)
+      return null;
+    final Key key = new Key(dataFile, storageID);
+    final Segment segment = getSegment(key);
+    final Entry cached;
+    synchronized (segment) {
+      cached = segment.get(key);
+    }
+    if (cached == null)
+      misses.incrementAndGet();
+    else
+      hits.incrementAndGet();
+    return cached;
+  }
+
+  /**
+   * Adds a copy of the first numOfDataPoints values of the given arrays to the cache, so the arrays
+   * may be reused afterwards
+   */
+  void put(RawDataFileImpl dataFile, int storageID, double mzValues[], double intensityValues[],
+      int numOfDataPoints) {
+    final long segmentBudget = getMemoryBudget() / NUM_OF_SEGMENTS;
+    final long entrySize = getEntrySize(numOfDataPoints);
+    if (entrySize > segmentBudget)
+      return;
+    final Entry entry = new Entry(Arrays.copyOf(mzValues, numOfDataPoints),
+        Arrays.copyOf(intensityValues, numOfDataPoints));
+    final Key key = new Key(dataFile, storageID);
+    final Segment segment = getSegment(key);
+    synchronized (segment) {
+      final Entry previous = segment.put(key, entry);
+      if (previous != null)
+        segment.usedBytes -= getEntrySize(previous);
+      segment.usedBytes += entrySize;
+
+      // Evict the least recently used entries
+      Iterator<Entry> iterator = segment.values().iterator();
+      while ((segment.usedBytes > segmentBudget) && iterator.hasNext()) {
+        segment.usedBytes -= getEntrySize(iterator.next());
+        iterator.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Removes the data points stored under given ID from the cache
+   */
+  void remove(RawDataFileImpl dataFile, int storageID) {
+    final Key key = new Key(dataFile, storageID);
+    final Segment segment = getSegment(key);
+    synchronized (segment) {
+      final Entry previous = segment.remove(key);
+      if (previous != null)
+        segment.usedBytes -= getEntrySize(previous);
+    }
+  }
+
+  /**
+   * Removes all data points of given raw data file from the cache
+   */
+  void removeAll(RawDataFileImpl dataFile) {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        Iterator<Map.Entry<Key, Entry>> iterator = segment.entrySet().iterator();
+        while (iterator.hasNext()) {
+          Map.Entry<Key, Entry> entry = iterator.next();
+          if (entry.getKey().dataFile == dataFile) {
+            segment.usedBytes -= getEntrySize(entry.getValue());
+            iterator.remove();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return Memory budget in bytes, as set in the preferences
+   */
+  public long getMemoryBudget() {
+    final MZmineConfiguration configuration = MZmineCore.getConfiguration();
+    if (configuration == null)
+      return 0;
+    final Integer megabytes =
+        configuration.getPreferences().getParameter(MZminePreferences.spectrumCacheSize).getValue();
+    if (megabytes == null)
+      return 0;
+    return megabytes * 1024L * 1024L;
+  }
+
+  /**
+   * @return Estimated memory used by the cached data points in bytes
+   */
+  public long getUsedBytes() {
+    long usedBytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        usedBytes += segment.usedBytes;
+      }
+    }
+    return usedBytes;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private Segment getSegment(Key key) {
+    return segments[(key.hashCode() & 0x7fffffff) % NUM_OF_SEGMENTS];
+  }
+
+  private static long getEntrySize(Entry entry) {
+    return getEntrySize(entry.mzValues.length);
+  }
+
+  private static long getEntrySize(int numOfDataPoints) {
+    return BYTES_PER_ENTRY + numOfDataPoints * BYTES_PER_DATA_POINT;
+  }
+
+  /**
+   * Cached m/z and intensity values of one storage ID
+   */
+  static class Entry {
+
+    final double mzValues[], intensityValues[];
+
+    private Entry(double mzValues[], double intensityValues[]) {
+      this.mzValues = mzValues;
+      this.intensityValues = intensityValues;
+    }
+
+    int getNumberOfDataPoints() {
+      return mzValues.length;
+    }
+
+  }
+
+  /**
+   * One part of the cache, ordered from the least to the most recently used entry
+   */
+  private static class Segment extends LinkedHashMap<Key, Entry> {
+
+    private static final long serialVersionUID = 1L;
+
+    private long usedBytes = 0;
+
+    Segment() {
+      super(16, 0.75f, true);
+    }
+
+  }
+
+  private static class Key {
+
+    private final RawDataFileImpl dataFile;
+    private final int storageID;
+
+    Key(RawDataFileImpl dataFile, int storageID) {
+      this.dataFile = dataFile;
+      this.storageID = storageID;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return (dataFile == other.dataFile) && (storageID == other.storageID);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(dataFile) + storageID;
+    }
+
+  }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Converts data points to stored records and back, using buffers that belong to the current thread.
+ * 
+ * A record contains the data points in the given encoding, optionally compressed. Except for the
+ * legacy format (uncompressed 32-bit floats), whose size follows from the number of data points,
+ * every record starts with its size in bytes (not counting this header). Compressed records store
+ * the uncompressed size in front of the compressed bytes.
+ */
+class DataPointsCodec {
+
+  static final int HEADER_SIZE = 4;
+
+  private static final ThreadLocal<DataPointsCodec> threadCodec =
+      ThreadLocal.withInitial(DataPointsCodec::new);
+
+  private ByteBuffer recordBuffer = ByteBuffer.allocate(20000);
+  private ByteBuffer rawBuffer = ByteBuffer.allocate(20000);
+  private byte scratch[] = new byte[20000];
+  private double mzBuffer[] = new double[2500], intensityBuffer[] = new double[2500];
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater inflater = new Inflater();
+
+  private DataPointsCodec() {}
+
+  /**
+   * Returns the codec of the current thread
+   */
+  static DataPointsCodec get() {
+    return threadCodec.get();
+  }
+
+  /**
+   * Returns true if the records of the given format start with their size
+   */
+  static boolean hasHeader(DataPointsEncoding encoding, boolean compressed) {
+    return compressed || (encoding != DataPointsEncoding.FLOAT);
+  }
+
+  /**
+   * Encodes the data points into a record. The returned buffer belongs to this codec and is only
+   * valid until the next call.
+   */
+  ByteBuffer encode(DataPoint dataPoints[], DataPointsEncoding encoding, boolean compressed) {
+
+    final int numOfDataPoints = dataPoints.length;
+    final double mzValues[] = getMzBuffer(numOfDataPoints);
+    final double intensityValues[] = getIntensityBuffer(numOfDataPoints);
+    for (int i = 0; i < numOfDataPoints; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
+    }
+
+    final int maxSize = encoding.getMaxEncodedSize(numOfDataPoints);
+    final byte scratchArray[] = getScratch(maxSize);
+
+    if (!hasHeader(encoding, compressed)) {
+      final ByteBuffer record = recordBuffer = ensureCapacity(recordBuffer, maxSize);
+      encoding.encode(mzValues, intensityValues, numOfDataPoints, record, scratchArray);
+      ((Buffer) record).flip();
+      return record;
+    }
+
+    if (!compressed) {
+      final ByteBuffer record = recordBuffer = ensureCapacity(recordBuffer, HEADER_SIZE + maxSize);
+      ((Buffer) record).position(HEADER_SIZE);
+      encoding.encode(mzValues, intensityValues, numOfDataPoints, record, scratchArray);
+      record.putInt(0, record.position() - HEADER_SIZE);
+      ((Buffer) record).flip();
+      return record;
+    }
+
+    final ByteBuffer raw = rawBuffer = ensureCapacity(rawBuffer, maxSize);
+    encoding.encode(mzValues, intensityValues, numOfDataPoints, raw, scratchArray);
+    ((Buffer) raw).flip();
+    final int rawSize = raw.remaining();
+
+    // Deflate never grows the data by more than a few bytes per 16 kB block
+    final int maxCompressedSize = rawSize + (rawSize >> 3) + 64;
+    final ByteBuffer record =
+        recordBuffer = ensureCapacity(recordBuffer, HEADER_SIZE + 4 + maxCompressedSize);
+    ((Buffer) record).position(HEADER_SIZE);
+    record.putInt(rawSize);
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    while (!deflater.finished())
+      deflater.deflate(record);
+    record.putInt(0, record.position() - HEADER_SIZE);
+    ((Buffer) record).flip();
+    return record;
+
+  }
+
+  /**
+   * Decodes a record. The buffer must contain exactly one record, including the header if there is
+   * one.
+   */
+  void decode(ByteBuffer record, int numOfDataPoints, DataPointsEncoding encoding,
+      boolean compressed, double mzValues[], double intensityValues[]) throws IOException {
+
+    if (hasHeader(encoding, compressed))
+      ((Buffer) record).position(record.position() + HEADER_SIZE);
+
+    final byte scratchArray[] = getScratch(encoding.getMaxEncodedSize(numOfDataPoints));
+
+    if (!compressed) {
+      encoding.decode(record, numOfDataPoints, mzValues, intensityValues, scratchArray);
+      return;
+    }
+
+    final int rawSize = record.getInt();
+    final ByteBuffer raw = rawBuffer = ensureCapacity(rawBuffer, rawSize);
+    ((Buffer) raw).limit(rawSize);
+    inflater.reset();
+    inflater.setInput(record);
+    try {
+      while (raw.hasRemaining() && !inflater.finished()) {
+        if (inflater.inflate(raw) == 0 && inflater.needsInput())
+          throw new IOException("Compressed data points record is truncated");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Compressed data points record is corrupted", e);
+    }
+    ((Buffer) raw).flip();
+    encoding.decode(raw, numOfDataPoints, mzValues, intensityValues, scratchArray);
+
+  }
+
+  /**
+   * Returns the cleared read buffer of this codec, limited to the given size
+   */
+  ByteBuffer getReadBuffer(int numOfBytes) {
+    final ByteBuffer buffer = recordBuffer = ensureCapacity(recordBuffer, numOfBytes);
+    ((Buffer) buffer).limit(numOfBytes);
+    return buffer;
+  }
+
+  double[] getMzBuffer(int numOfDataPoints) {
+    if (mzBuffer.length < numOfDataPoints)
+      mzBuffer = new double[numOfDataPoints * 2];
+    return mzBuffer;
+  }
+
+  double[] getIntensityBuffer(int numOfDataPoints) {
+    if (intensityBuffer.length < numOfDataPoints)
+      intensityBuffer = new double[numOfDataPoints * 2];
+    return intensityBuffer;
+  }
+
+  private byte[] getScratch(int numOfBytes) {
+    if (scratch.length < numOfBytes)
+      scratch = new byte[numOfBytes * 2];
+    return scratch;
+  }
+
+  /**
+   * Returns the cleared buffer, or a new one if it is too small
+   */
+  private static ByteBuffer ensureCapacity(ByteBuffer buffer, int numOfBytes) {
+    if (buffer.capacity() < numOfBytes)
+      return ByteBuffer.allocate(numOfBytes * 2);
+    // JDK 9 breaks compatibility with JRE8: need to cast
+    // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
+    ((Buffer) buffer).clear();
+    return buffer;
+  }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.nio.ByteBuffer;
+
+import io.github.msdk.io.mzml.util.MSNumpress;
+
+/**
+ * Encodings of the m/z and intensity values stored in the temporary data points files and in the
+ * saved projects.
+ */
+public enum DataPointsEncoding {
+
+  /**
+   * Pairs of 32-bit floats. This is the format used by all earlier versions.
+   */
+  FLOAT("32-bit float") {
+
+    @Override
+    int getMaxEncodedSize(int numOfDataPoints) {
+      return numOfDataPoints * 2 * 4;
+    }
+
+    @Override
+    void encode(double mzValues[], double intensityValues[], int numOfDataPoints, ByteBuffer out,
+        byte scratch[]) {
+      for (int i = 0; i < numOfDataPoints; i++) {
+        out.putFloat((float) mzValues[i]);
+        out.putFloat((float) intensityValues[i]);
+      }
+    }
+
+    @Override
+    void decode(ByteBuffer in, int numOfDataPoints, double mzValues[], double intensityValues[],
+        byte scratch[]) {
+      for (int i = 0; i < numOfDataPoints; i++) {
+        mzValues[i] = in.getFloat();
+        intensityValues[i] = in.getFloat();
+      }
+    }
+
+  },
+
+  /**
+   * Pairs of 64-bit doubles, without any loss of precision
+   */
+  DOUBLE("64-bit double (lossless)") {
+
+    @Override
+    int getMaxEncodedSize(int numOfDataPoints) {
+      return numOfDataPoints * 2 * 8;
+    }
+
+    @Override
+    void encode(double mzValues[], double intensityValues[], int numOfDataPoints, ByteBuffer out,
+        byte scratch[]) {
+      for (int i = 0; i < numOfDataPoints; i++) {
+        out.putDouble(mzValues[i]);
+        out.putDouble(intensityValues[i]);
+      }
+    }
+
+    @Override
+    void decode(ByteBuffer in, int numOfDataPoints, double mzValues[], double intensityValues[],
+        byte scratch[]) {
+      for (int i = 0; i < numOfDataPoints; i++) {
+        mzValues[i] = in.getDouble();
+        intensityValues[i] = in.getDouble();
+      }
+    }
+
+  },
+
+  /**
+   * MS-Numpress: m/z values are stored as differences to a linear prediction in fixed point
+   * (relative error in the order of 1e-10 for typical m/z values), intensities as short logged
+   * integers (relative error in the order of 1e-4). Negative intensities, which the short logged encoding cannot
+   * represent, are stored as 32-bit floats instead.
+   */
+  NUMPRESS("Numpress (linear m/z, short logged intensity)") {
+
+    private static final byte INTENSITY_SLOF = 0;
+    private static final byte INTENSITY_FLOAT = 1;
+
+    @Override
+    int getMaxEncodedSize(int numOfDataPoints) {
+      return 4 + (8 + numOfDataPoints * 5) + 1 + Math.max(8 + numOfDataPoints * 2,
+          numOfDataPoints * 4);
+    }
+
+    @Override
+    void encode(double mzValues[], double intensityValues[], int numOfDataPoints, ByteBuffer out,
+        byte scratch[]) {
+
+      double fixedPoint = MSNumpress.optimalLinearFixedPoint(mzValues, numOfDataPoints);
+      int mzBytes = MSNumpress.encodeLinear(mzValues, numOfDataPoints, scratch, fixedPoint);
+      out.putInt(mzBytes);
+      out.put(scratch, 0, mzBytes);
+
+      boolean negativeIntensity = false;
+      for (int i = 0; i < numOfDataPoints; i++) {
+        if (intensityValues[i] < 0) {
+          negativeIntensity = true;
+          break;
+        }
+      }
+
+      if (negativeIntensity) {
+        out.put(INTENSITY_FLOAT);
+        for (int i = 0; i < numOfDataPoints; i++)
+          out.putFloat((float) intensityValues[i]);
+      } else {
+        out.put(INTENSITY_SLOF);
+        fixedPoint = MSNumpress.optimalSlofFixedPoint(intensityValues, numOfDataPoints);
+        int intensityBytes =
+            MSNumpress.encodeSlof(intensityValues, numOfDataPoints, scratch, fixedPoint);
+        out.put(scratch, 0, intensityBytes);
+      }
+
+    }
+
+    @Override
+    void decode(ByteBuffer in, int numOfDataPoints, double mzValues[], double intensityValues[],
+        byte scratch[]) {
+
+      int mzBytes = in.getInt();
+      in.get(scratch, 0, mzBytes);
+      MSNumpress.decodeLinear(scratch, mzBytes, mzValues);
+
+      if (in.get() == INTENSITY_FLOAT) {
+        for (int i = 0; i < numOfDataPoints; i++)
+          intensityValues[i] = in.getFloat();
+      } else {
+        int intensityBytes = in.remaining();
+        in.get(scratch, 0, intensityBytes);
+        MSNumpress.decodeSlof(scratch, intensityBytes, intensityValues);
+      }
+
+    }
+
+  };
+
+  private final String name;
+
+  DataPointsEncoding(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /**
+   * Returns the maximum number of bytes needed to encode the given number of data points. Scratch
+   * arrays passed to encode() and decode() must have at least this size.
+   */
+  abstract int getMaxEncodedSize(int numOfDataPoints);
+
+  /**
+   * Writes the given values to the buffer
+   */
+  abstract void encode(double mzValues[], double intensityValues[], int numOfDataPoints,
+      ByteBuffer out, byte scratch[]);
+
+  /**
+   * Reads the given number of values from the buffer, which must contain exactly one encoded record
+   */
+  abstract void decode(ByteBuffer in, int numOfDataPoints, double mzValues[],
+      double intensityValues[], byte scratch[]);
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.project.impl;
+
+/**
+ * Counts the bytes of data points read from and written to the raw data storage (temporary files
+ * and records kept in memory) by one thread. Each thread has its own counter, which other threads
+ * may read to display the current values.
+ */
+public class DataPointsIOCounter {
+
+  private static final ThreadLocal<DataPointsIOCounter> counters =
+      ThreadLocal.withInitial(DataPointsIOCounter::new);
+
+  // Only updated by the owning thread
+  private volatile long bytesRead = 0, bytesWritten = 0;
+
+  private DataPointsIOCounter() {}
+
+  /**
+   * Returns the counter of the current thread
+   */
+  public static DataPointsIOCounter getForCurrentThread() {
+    return counters.get();
+  }
+
+  static void addBytesRead(long numOfBytes) {
+    final DataPointsIOCounter counter = counters.get();
+    counter.bytesRead = counter.bytesRead + numOfBytes;
+  }
+
+  static void addBytesWritten(long numOfBytes) {
+    final DataPointsIOCounter counter = counters.get();
+    counter.bytesWritten = counter.bytesWritten + numOfBytes;
+  }
+
+  /**
+   * @return total bytes read by the thread
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * @return total bytes written by the thread
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+}
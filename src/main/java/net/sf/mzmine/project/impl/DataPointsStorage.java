@@ -0,0 +1,420 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One generation of the temporary data points file of a RawDataFileImpl: the file itself and the
+ * maps describing which storage ID is stored at which offset. When the file is compacted, a new
+ * generation is created and replaces the old one as a whole, so a reader that picked up a
+ * generation always sees a file and offsets that belong together.
+ *
+ * The file may be null if no data points have been stored yet.
+ *
+ * New records are collected in a batch buffer and written to the end of the file in large
+ * sequential writes by a writer thread shared by all files. A record may therefore be published
+ * before it is on disk; readers have to call flush() if it lies beyond getWrittenOffset().
+ *
+ * In the in-memory mode, records are kept in direct buffers outside of the file instead, until the
+ * memory limit shared by all files is reached. Their offset is IN_MEMORY. The map of these records is
+ * passed on to the next generation, as they are not affected by compaction.
+ */
+class DataPointsStorage {
+
+  private static final Logger logger = Logger.getLogger(DataPointsStorage.class.getName());
+
+  // Offset of records that are kept in memory
+  static final long IN_MEMORY = -1;
+
+  // Offset of records that are read from the original raw data file, see LinkedDataPoints
+  static final long LINKED = -2;
+
+  // Memory used by the records kept in memory, over all files
+  private static final AtomicLong memoryUsed = new AtomicLong();
+
+  // Size of one write batch, larger records are written on their own
+  private static final int BATCH_SIZE = 1 << 18;
+
+  // Limits the memory used by batches that are waiting to be written, over all files
+  private static final Semaphore pendingBatches = new Semaphore(32);
+
+  // Batches are written in the order of submission, so the written part of a file is contiguous
+  private static final ExecutorService writerService =
+      Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Temporary file writer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  final File fileName;
+  // Opened again if a thread was interrupted while using the channel, see getChannel()
+  volatile RandomAccessFile file;
+  volatile FileChannel channel;
+  private boolean deleted = false;
+  final ConcurrentSkipListMap<Integer, Long> offsets;
+  final ConcurrentSkipListMap<Integer, Integer> lengths;
+  final ConcurrentHashMap<Integer, ByteBuffer> memoryRecords;
+
+  // Guarded by the storage lock of the owning RawDataFileImpl
+  long nextOffset = 0;
+  long deadBytes = 0;
+  long storedBytes = 0, storedDataPoints = 0;
+  private ByteBuffer batch;
+  private long batchOffset;
+  private Future<?> lastWrite;
+
+  // Everything before this offset has been written to the file
+  private volatile long writtenOffset = 0;
+  private volatile IOException writeError;
+
+  /**
+   * Creates a storage without a file
+   */
+  DataPointsStorage() {
+    this.fileName = null;
+    this.file = null;
+    this.channel = null;
+    this.offsets = new ConcurrentSkipListMap<Integer, Long>();
+    this.lengths = new ConcurrentSkipListMap<Integer, Integer>();
+    this.memoryRecords = new ConcurrentHashMap<Integer, ByteBuffer>();
+  }
+
+  /**
+   * Opens the given file and locks it. The given maps have to describe the contents of the file, if
+   * it is not empty.
+   */
+  DataPointsStorage(File fileName, ConcurrentSkipListMap<Integer, Long> offsets,
+      ConcurrentSkipListMap<Integer, Integer> lengths,
+      ConcurrentHashMap<Integer, ByteBuffer> memoryRecords) throws IOException {
+
+    this.fileName = fileName;
+    this.offsets = offsets;
+    this.lengths = lengths;
+    this.memoryRecords = memoryRecords;
+    openFile();
+
+    // Unfortunately, deleteOnExit() doesn't work on Windows, see JDK
+    // bug #4171239. We will try to remove the temporary files in a
+    // shutdown hook registered in the main.ShutDownHook class
+    fileName.deleteOnExit();
+
+    // Existing contents, e.g. of a loaded project, are already on disk
+    writtenOffset = channel.size();
+
+  }
+
+  private void openFile() throws IOException {
+
+    final RandomAccessFile newFile = new RandomAccessFile(fileName, "rw");
+
+    // Locks the temporary file so it is not removed when another instance
+    // of MZmine is starting. Lock will be automatically released when this
+    // instance of MZmine exits. Locking may fail on network-mounted filesystems.
+    try {
+      newFile.getChannel().lock();
+    } catch (IOException | OverlappingFileLockException e) {
+      // The lock of a channel closed by an interrupt may not be released yet
+      logger.log(Level.WARNING, "Failed to lock the file " + fileName, e);
+    }
+
+    // Other threads only use the channel once it is locked
+    file = newFile;
+    channel = newFile.getChannel();
+
+  }
+
+  /**
+   * Returns the open channel. A thread interrupted during a read or write closes the channel for all
+   * threads, so it is opened again if needed, though not by an interrupted thread, which would
+   * close it again. Once the file is deleted, this throws ClosedChannelException.
+   */
+  FileChannel getChannel() throws IOException {
+    final FileChannel current = channel;
+    if (current.isOpen())
+      return current;
+    synchronized (this) {
+      if (deleted)
+        throw new ClosedChannelException();
+      if (Thread.currentThread().isInterrupted())
+        throw new ClosedByInterruptException();
+      if (!channel.isOpen())
+        openFile();
+      return channel;
+    }
+  }
+
+  /**
+   * Fills the remaining part of the buffer with the bytes starting at the given offset. Positional
+   * reads do not modify the channel position, so they are safe to run concurrently.
+   */
+  void read(ByteBuffer buffer, long offset) throws IOException {
+    final int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      final long position = offset + buffer.position() - start;
+      int numOfBytes;
+      while (true) {
+        final FileChannel current = getChannel();
+        try {
+          numOfBytes = current.read(buffer, position);
+          break;
+        } catch (ClosedChannelException e) {
+          // Try again if the channel was closed by an interrupt of another thread
+          if (Thread.currentThread().isInterrupted())
+            throw e;
+        }
+      }
+      if (numOfBytes < 0)
+        throw new IOException("Unexpected end of file " + fileName + " at offset " + offset);
+    }
+  }
+
+  /**
+   * Writes the remaining part of the buffer at the given offset
+   */
+  void write(ByteBuffer buffer, long offset) throws IOException {
+    final int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      final long position = offset + buffer.position() - start;
+      final FileChannel current = getChannel();
+      try {
+        current.write(buffer, position);
+      } catch (ClosedChannelException e) {
+        // The loop tries again if the channel was closed by an interrupt of another thread
+        if (Thread.currentThread().isInterrupted())
+          throw e;
+      }
+    }
+  }
+
+  /**
+   * Reserves space for the remaining part of the buffer at the end of the file and queues the bytes
+   * for writing. Must be called with the storage lock held.
+   * 
+   * @return offset of the stored bytes
+   */
+  long append(ByteBuffer buffer, int numOfDataPoints) throws IOException {
+
+    checkWriteError();
+
+    final int numOfBytes = buffer.remaining();
+    final long offset = size();
+    nextOffset = offset + numOfBytes;
+    storedBytes += numOfBytes;
+    storedDataPoints += numOfDataPoints;
+
+    if ((batch != null) && (batch.remaining() < numOfBytes))
+      submitBatch();
+
+    if (numOfBytes > BATCH_SIZE) {
+      ByteBuffer record = ByteBuffer.allocate(numOfBytes);
+      record.put(buffer);
+      ((Buffer) record).flip();
+      submit(record, offset);
+      return offset;
+    }
+
+    if (batch == null) {
+      batch = ByteBuffer.allocate(BATCH_SIZE);
+      batchOffset = offset;
+    }
+    batch.put(buffer);
+    if (!batch.hasRemaining())
+      submitBatch();
+
+    return offset;
+
+  }
+
+  /**
+   * Estimates the size of a record with the given number of data points in the file, from the
+   * average size of the records stored so far. Must be called with the storage lock held.
+   */
+  long estimateRecordSize(int numOfDataPoints) {
+    if (storedDataPoints == 0)
+      return numOfDataPoints * 2L * 4L;
+    return storedBytes * numOfDataPoints / storedDataPoints;
+  }
+
+  /**
+   * Writes all queued bytes to the file and waits until they are written. Must be called with the
+   * storage lock held.
+   */
+  void flush() throws IOException {
+
+    submitBatch();
+
+    if (lastWrite != null) {
+      try {
+        lastWrite.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted while waiting for the data points to be written to " + fileName);
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      lastWrite = null;
+    }
+
+    checkWriteError();
+
+  }
+
+  /**
+   * Returns the offset up to which the file contents are on disk
+   */
+  long getWrittenOffset() {
+    return writtenOffset;
+  }
+
+  /**
+   * Marks the whole file as written, after its contents were written directly using the channel
+   */
+  void setWritten() throws IOException {
+    writtenOffset = size();
+  }
+
+  private void submitBatch() {
+    if ((batch == null) || (batch.position() == 0))
+      return;
+    ((Buffer) batch).flip();
+    submit(batch, batchOffset);
+    batch = null;
+  }
+
+  private void submit(ByteBuffer data, long offset) {
+    pendingBatches.acquireUninterruptibly();
+    lastWrite = writerService.submit(() -> {
+      try {
+        if (writeError == null) {
+          write(data, offset);
+          writtenOffset = offset + data.limit();
+        }
+      } catch (IOException e) {
+        writeError = e;
+      } finally {
+        pendingBatches.release();
+      }
+    });
+  }
+
+  private void checkWriteError() throws IOException {
+    final IOException e = writeError;
+    if (e != null)
+      throw new IOException("Failed to write data points to " + fileName, e);
+  }
+
+  /**
+   * Copies the remaining part of the buffer into a new direct buffer, unless that would exceed the
+   * given memory limit.
+   * 
+   * @return the new buffer, or null if there is not enough memory left
+   */
+  static ByteBuffer allocateMemoryRecord(ByteBuffer buffer, long memoryLimit) {
+
+    final int numOfBytes = buffer.remaining();
+    if (memoryUsed.addAndGet(numOfBytes) > memoryLimit) {
+      memoryUsed.addAndGet(-numOfBytes);
+      return null;
+    }
+
+    final ByteBuffer record;
+    try {
+      record = ByteBuffer.allocateDirect(numOfBytes);
+    } catch (OutOfMemoryError e) {
+      // The limit exceeds the direct memory available to the JVM
+      memoryUsed.addAndGet(-numOfBytes);
+      return null;
+    }
+    record.put(buffer);
+    ((Buffer) record).flip();
+    return record;
+
+  }
+
+  /**
+   * Removes the record with given storage ID from memory
+   */
+  void removeMemoryRecord(int ID) {
+    final ByteBuffer record = memoryRecords.remove(ID);
+    if (record != null)
+      memoryUsed.addAndGet(-record.capacity());
+  }
+
+  /**
+   * Removes all records from memory
+   */
+  void clearMemoryRecords() {
+    for (Integer ID : memoryRecords.keySet())
+      removeMemoryRecord(ID);
+  }
+
+  /**
+   * Returns the size of the file, including the regions that are no longer referenced
+   */
+  long size() throws IOException {
+    if (channel == null)
+      return 0;
+    while (true) {
+      final FileChannel current = getChannel();
+      try {
+        return Math.max(nextOffset, current.size());
+      } catch (ClosedChannelException e) {
+        // Try again if the channel was closed by an interrupt of another thread
+        if (Thread.currentThread().isInterrupted())
+          throw e;
+      }
+    }
+  }
+
+  /**
+   * Closes and removes the file
+   */
+  void delete() throws IOException {
+    if (file == null)
+      return;
+    batch = null;
+    synchronized (this) {
+      deleted = true;
+      file.close();
+    }
+    fileName.delete();
+  }
+
+}
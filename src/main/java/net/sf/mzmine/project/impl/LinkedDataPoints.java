@@ -0,0 +1,38 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import net.sf.mzmine.datamodel.DataPoint;
+
+/**
+ * Source of data points that are not copied into the temporary file, but read from the original
+ * raw data file whenever they are needed (see RawDataFileImpl.addLinkedScan()). Implementations
+ * must allow concurrent reads. The source is closed together with the raw data file.
+ */
+public interface LinkedDataPoints extends Closeable {
+
+  /**
+   * Reads the data points stored at the given position of the original file
+   */
+  DataPoint[] readDataPoints(long position) throws IOException;
+
+}
@@ -23,16 +23,19 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Nonnull;
@@ -45,16 +48,38 @@ import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.RawDataFileWriter;
 import net.sf.mzmine.datamodel.Scan;
 import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
+import net.sf.mzmine.desktop.preferences.InMemoryStorageSettings;
+import net.sf.mzmine.desktop.preferences.MZminePreferences;
+import net.sf.mzmine.desktop.preferences.TempFileCompactionSettings;
+import net.sf.mzmine.main.MZmineConfiguration;
+import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.parameters.parametertypes.submodules.OptionalModuleParameter;
 
 /**
  * RawDataFile implementation. It provides storage of data points for scans and mass lists using the
  * storeDataPoints() and readDataPoints() methods. The data points are stored in a temporary file
- * (dataPointsFile) and the structure of the file is stored in two TreeMaps. The dataPointsOffsets
+ * (dataPointsFile) and the structure of the file is stored in two sorted maps. The dataPointsOffsets
  * maps storage ID to the offset in the dataPointsFile. The dataPointsLength maps the storage ID to
  * the number of data points stored under this ID. When stored data points are deleted using
  * removeStoredDataPoints(), the dataPointsFile is not modified, the storage ID is just deleted from
- * the two TreeMaps. When the project is saved, the contents of the dataPointsFile are consolidated
- * - only data points referenced by the TreeMaps are saved (see the RawDataFileSaveHandler class).
+ * the two maps. When the project is saved, the contents of the dataPointsFile are consolidated
+ * - only data points referenced by the maps are saved (see the RawDataFileSaveHandler class).
+ * If enabled in the preferences, the file is also compacted in the background once its unused part
+ * exceeds the given limits (see compactDataPointsFile()).
+ * 
+ * Reading is not synchronized: data points are read using positional FileChannel reads into
+ * per-thread buffers, so any number of threads can read scans of the same file concurrently.
+ * Storing only synchronizes the allocation of the storage ID and file offset and the copying of the
+ * data points into a write batch. The batches are written to the file by a background thread, so a
+ * storage ID is returned before its data points are on disk; reading such data points first waits
+ * for the pending writes (see flushDataPoints()).
+ * 
+ * If enabled in the preferences, data points are kept in direct buffers in memory instead, until the
+ * memory limit is reached. The temporary file is then only created for the data points beyond the
+ * limit.
+ * 
+ * Scans added by addLinkedScan() do not store their data points at all. They are read from the
+ * original raw data file on demand, and kept in the DataPointsCache like the stored ones.
  */
 public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
@@ -64,16 +89,30 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   private String dataFileName;
 
   private final Hashtable<Integer, Range<Double>> dataMZRange, dataRTRange;
-  private final Hashtable<Integer, Double> dataMaxBasePeakIntensity, dataMaxTIC;
   private final Hashtable<Integer, int[]> scanNumbersCache;
 
-  private ByteBuffer buffer = ByteBuffer.allocate(20000);
-  private final TreeMap<Integer, Long> dataPointsOffsets;
-  private final TreeMap<Integer, Integer> dataPointsLengths;
+  // Compaction of temporary files runs in the background, one file at a time
+  private static final ExecutorService compactionService =
+      Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Temporary file compaction");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Temporary file for scan data storage, replaced as a whole when it is compacted
+  private volatile DataPointsStorage storage = new DataPointsStorage();
+
+  // Guards the allocation of new storage IDs and file offsets and the replacement of the storage
+  private final Object storageLock = new Object();
+  private int nextStorageID = 1;
+
+  // Format of the stored data points, see DataPointsCodec
+  private volatile DataPointsEncoding encoding = DataPointsEncoding.FLOAT;
+  private volatile boolean compressed = false;
 
-  // Temporary file for scan data storage
-  private File dataPointsFileName;
-  private RandomAccessFile dataPointsFile;
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+  private final Object compactionLock = new Object();
+  private volatile boolean closed = false;
 
   // To store mass lists that have been added but not yet reflected in the GUI by the
   // notifyUpdatedMassLists() method
@@ -84,6 +123,14 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
    */
   private final Hashtable<Integer, StorableScan> scans;
 
+  // Built when writing is finished, or on demand if scans were added afterwards
+  private volatile ScanIndex scanIndex;
+
+  // Original file of the linked scans and the positions of their data points in it
+  private volatile LinkedDataPoints linkedDataPoints;
+  private final ConcurrentHashMap<Integer, Long> linkedPositions =
+      new ConcurrentHashMap<Integer, Long>();
+
   public RawDataFileImpl(String dataFileName) throws IOException {
 
     this.dataFileName = dataFileName;
@@ -92,11 +139,17 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     scanNumbersCache = new Hashtable<Integer, int[]>();
     dataMZRange = new Hashtable<Integer, Range<Double>>();
     dataRTRange = new Hashtable<Integer, Range<Double>>();
-    dataMaxBasePeakIntensity = new Hashtable<Integer, Double>();
-    dataMaxTIC = new Hashtable<Integer, Double>();
     scans = new Hashtable<Integer, StorableScan>();
-    dataPointsOffsets = new TreeMap<Integer, Long>();
-    dataPointsLengths = new TreeMap<Integer, Integer>();
+
+    // New data points are stored in the format set in the preferences
+    final MZmineConfiguration configuration = MZmineCore.getConfiguration();
+    if (configuration != null) {
+      final MZminePreferences preferences = configuration.getPreferences();
+      encoding = preferences.getParameter(MZminePreferences.dataPointsEncoding).getValue();
+      compressed = preferences.getParameter(MZminePreferences.compressDataPoints).getValue();
+      if (encoding == null)
+        encoding = DataPointsEncoding.FLOAT;
+    }
 
   }
 
@@ -117,37 +170,52 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
    * been added yet to this RawDataFileImpl instance
    */
   public RandomAccessFile getDataPointsFile() {
-    return dataPointsFile;
+    return storage.file;
   }
 
   /**
    * Opens the given file as a data points file for this RawDataFileImpl instance. If the file is
-   * not empty, the TreeMaps supplied as parameters have to describe the mapping of storage IDs to
-   * data points in the file.
+   * not empty, the maps returned by getDataPointsOffsets() and getDataPointsLengths() have to
+   * describe the mapping of storage IDs to data points in the file. The file is expected to contain
+   * uncompressed 32-bit floats, unless a different format is set using setDataPointsFormat().
    */
   public synchronized void openDataPointsFile(File dataPointsFileName) throws IOException {
+    setDataPointsFormat(DataPointsEncoding.FLOAT, false);
+    openStorage(dataPointsFileName);
+  }
 
-    if (this.dataPointsFile != null) {
-      throw new IOException("Cannot open another data points file, because one is already open");
+  /**
+   * Sets the format of the data points in the data points file. May only be called as long as no
+   * data points are stored.
+   */
+  public void setDataPointsFormat(@Nonnull DataPointsEncoding encoding, boolean compressed) {
+    synchronized (storageLock) {
+      if (!storage.offsets.isEmpty())
+        throw new IllegalStateException("Cannot change the format of stored data points");
+      this.encoding = encoding;
+      this.compressed = compressed;
     }
+  }
 
-    this.dataPointsFileName = dataPointsFileName;
-    this.dataPointsFile = new RandomAccessFile(dataPointsFileName, "rw");
+  public @Nonnull DataPointsEncoding getDataPointsEncoding() {
+    return encoding;
+  }
 
-    // Locks the temporary file so it is not removed when another instance
-    // of MZmine is starting. Lock will be automatically released when this
-    // instance of MZmine exits. Locking may fail on network-mounted filesystems.
-    try {
-      FileChannel fileChannel = dataPointsFile.getChannel();
-      fileChannel.lock();
-    } catch (IOException e) {
-      logger.log(Level.WARNING, "Failed to lock the file " + dataPointsFileName, e);
-    }
+  public boolean isDataPointsCompressed() {
+    return compressed;
+  }
+
+  private synchronized void openStorage(File dataPointsFileName) throws IOException {
 
-    // Unfortunately, deleteOnExit() doesn't work on Windows, see JDK
-    // bug #4171239. We will try to remove the temporary files in a
-    // shutdown hook registered in the main.ShutDownHook class
-    dataPointsFileName.deleteOnExit();
+    synchronized (storageLock) {
+      final DataPointsStorage current = storage;
+      if (current.file != null) {
+        throw new IOException(
+            "Cannot open another data points file, because one is already open");
+      }
+      storage = new DataPointsStorage(dataPointsFileName, current.offsets, current.lengths,
+          current.memoryRecords);
+    }
 
   }
 
@@ -188,20 +256,20 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
 
     assert rtRange != null;
 
-    ArrayList<Integer> eligibleScanNumbers = new ArrayList<Integer>();
-
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+    return getScanIndex().getScanNumbers(msLevel, rtRange);
+  }
 
-      if ((scan.getMSLevel() == msLevel) && (rtRange.contains(scan.getRetentionTime())))
-        eligibleScanNumbers.add(scan.getScanNumber());
-    }
+  /**
+   * @see net.sf.mzmine.datamodel.RawDataFile#getScanNumbers(int, Range, Range)
+   */
+  @Override
+  public @Nonnull int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> precursorMZRange) {
 
-    int[] numbersArray = Ints.toArray(eligibleScanNumbers);
-    Arrays.sort(numbersArray);
+    assert rtRange != null;
+    assert precursorMZRange != null;
 
-    return numbersArray;
+    return getScanIndex().getScanNumbers(msLevel, rtRange, precursorMZRange);
   }
 
   /**
@@ -228,19 +296,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
    */
   @Override
   public @Nonnull int[] getMSLevels() {
-
-    Set<Integer> msLevelsSet = new HashSet<Integer>();
-
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
-      msLevelsSet.add(scan.getMSLevel());
-    }
-
-    int[] msLevels = Ints.toArray(msLevelsSet);
-    Arrays.sort(msLevels);
-    return msLevels;
-
+    return getScanIndex().getMSLevels();
   }
 
   /**
@@ -248,162 +304,525 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
    */
   @Override
   public double getDataMaxBasePeakIntensity(int msLevel) {
+    return getScanIndex().getMaxBasePeakIntensity(msLevel);
+  }
 
-    // check if we have this value already cached
-    Double maxBasePeak = dataMaxBasePeakIntensity.get(msLevel);
-    if (maxBasePeak != null)
-      return maxBasePeak;
+  /**
+   * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxTotalIonCurrent()
+   */
+  @Override
+  public double getDataMaxTotalIonCurrent(int msLevel) {
+    return getScanIndex().getMaxTIC(msLevel);
+  }
 
-    // find the value
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+  /**
+   * Returns the index of the current scans, building it first if necessary
+   */
+  private ScanIndex getScanIndex() {
+    ScanIndex index = scanIndex;
+    if (index == null) {
+      synchronized (this) {
+        if (scanIndex == null)
+          scanIndex = new ScanIndex(scans.values());
+        index = scanIndex;
+      }
+    }
+    return index;
+  }
 
-      // ignore scans of other ms levels
-      if (scan.getMSLevel() != msLevel)
-        continue;
+  public int storeDataPoints(DataPoint dataPoints[]) throws IOException {
 
-      DataPoint scanBasePeak = scan.getHighestDataPoint();
-      if (scanBasePeak == null)
-        continue;
+    final int numOfDataPoints = dataPoints.length;
 
-      if ((maxBasePeak == null) || (scanBasePeak.getIntensity() > maxBasePeak))
-        maxBasePeak = scanBasePeak.getIntensity();
+    // Encode the data points into the buffer of this thread
+    final ByteBuffer buffer = DataPointsCodec.get().encode(dataPoints, encoding, compressed);
+    DataPointsIOCounter.addBytesWritten(buffer.remaining());
+
+    // Keep the data points in memory, if enabled and there is enough memory left
+    final long memoryLimit = getMemoryStorageLimit();
+    if (memoryLimit > 0) {
+      final ByteBuffer record = DataPointsStorage.allocateMemoryRecord(buffer, memoryLimit);
+      if (record != null) {
+        synchronized (storageLock) {
+          final DataPointsStorage current = storage;
+          final int currentID = reserveStorageID(current);
+          current.memoryRecords.put(currentID, record);
+          current.lengths.put(currentID, numOfDataPoints);
+          current.offsets.put(currentID, DataPointsStorage.IN_MEMORY);
+          return currentID;
+        }
+      }
+    }
 
+    if (storage.file == null) {
+      synchronized (this) {
+        if (storage.file == null) {
+          File newFile = RawDataFileImpl.createNewDataPointsFile();
+          openStorage(newFile);
+        }
+      }
     }
 
-    // return -1 if no scan at this MS level
-    if (maxBasePeak == null)
-      maxBasePeak = -1d;
+    // Reserve the storage ID and queue the data points for writing
+    synchronized (storageLock) {
+      final DataPointsStorage current = storage;
+      final int currentID = reserveStorageID(current);
 
-    // cache the value
-    dataMaxBasePeakIntensity.put(msLevel, maxBasePeak);
+      final long currentOffset = current.append(buffer, numOfDataPoints);
 
-    return maxBasePeak;
+      // Publish the length first, readers look up the offset first
+      current.lengths.put(currentID, numOfDataPoints);
+      current.offsets.put(currentID, currentOffset);
+      return currentID;
+    }
 
   }
 
   /**
-   * @see net.sf.mzmine.datamodel.RawDataFile#getDataMaxTotalIonCurrent()
+   * Returns a new storage ID. The project loaders may put entries into the maps directly, so we also
+   * have to respect their last key. Must be called with the storage lock held.
    */
-  @Override
-  public double getDataMaxTotalIonCurrent(int msLevel) {
+  private int reserveStorageID(DataPointsStorage current) {
+    if (!current.offsets.isEmpty())
+      nextStorageID = Math.max(nextStorageID, current.offsets.lastKey() + 1);
+    return nextStorageID++;
+  }
 
-    // check if we have this value already cached
-    Double maxTIC = dataMaxTIC.get(msLevel);
-    if (maxTIC != null)
-      return maxTIC.doubleValue();
+  /**
+   * Returns the memory limit for keeping data points in memory in bytes, or 0 if the data points
+   * should be stored in the temporary file
+   */
+  private static long getMemoryStorageLimit() {
 
-    // find the value
-    Enumeration<StorableScan> scansEnum = scans.elements();
-    while (scansEnum.hasMoreElements()) {
-      Scan scan = scansEnum.nextElement();
+    final MZmineConfiguration configuration = MZmineCore.getConfiguration();
+    if (configuration == null)
+      return 0;
 
-      // ignore scans of other ms levels
-      if (scan.getMSLevel() != msLevel)
-        continue;
+    final OptionalModuleParameter<InMemoryStorageSettings> memoryParameter =
+        configuration.getPreferences().getParameter(MZminePreferences.inMemoryStorage);
+    if (!Boolean.TRUE.equals(memoryParameter.getValue()))
+      return 0;
 
-      if ((maxTIC == null) || (scan.getTIC() > maxTIC))
-        maxTIC = scan.getTIC();
+    final Integer memoryLimit = memoryParameter.getEmbeddedParameters()
+        .getParameter(InMemoryStorageSettings.memoryLimit).getValue();
+    if (memoryLimit == null)
+      return 0;
+    return memoryLimit * 1024L * 1024L;
 
+  }
+
+  /**
+   * Waits until all data points stored so far have been written to the data points file
+   */
+  public void flushDataPoints() throws IOException {
+    synchronized (storageLock) {
+      storage.flush();
     }
+  }
 
-    // return -1 if no scan at this MS level
-    if (maxTIC == null)
-      maxTIC = -1d;
+  public DataPoint[] readDataPoints(int ID) throws IOException {
 
-    // cache the value
-    dataMaxTIC.put(msLevel, maxTIC);
+    final DataPointsCache.Entry cached = DataPointsCache.getInstance().get(this, ID);
+    if (cached != null)
+      return toDataPoints(cached.mzValues, cached.intensityValues, cached.getNumberOfDataPoints());
+
+    if (linkedPositions.containsKey(ID)) {
+      final DataPoint dataPoints[] = readLinkedDataPoints(ID);
+      cacheDataPoints(ID, dataPoints);
+      return dataPoints;
+    }
 
-    return maxTIC;
+    // Decode into the buffers of this thread
+    final DataPointsCodec codec = DataPointsCodec.get();
+    final int numOfDataPoints = getNumOfDataPoints(ID);
+    final double mzValues[] = codec.getMzBuffer(numOfDataPoints);
+    final double intensityValues[] = codec.getIntensityBuffer(numOfDataPoints);
+    decodeRecord(ID, numOfDataPoints, mzValues, intensityValues);
+
+    cacheDataPoints(ID, mzValues, intensityValues, numOfDataPoints);
+
+    return toDataPoints(mzValues, intensityValues, numOfDataPoints);
 
   }
 
-  public synchronized int storeDataPoints(DataPoint dataPoints[]) throws IOException {
+  /**
+   * Reads the data points stored under given ID directly into the given arrays, without creating
+   * any DataPoint instances. Either array may be null if the caller is not interested in these
+   * values; non-null arrays must be able to hold getNumOfDataPoints(ID) values.
+   * 
+   * @return number of data points stored under given ID
+   */
+  public int readDataPoints(int ID, @Nullable double mzValues[], @Nullable double intensityValues[])
+      throws IOException {
+
+    final DataPointsCache.Entry cached = DataPointsCache.getInstance().get(this, ID);
+    if (cached != null) {
+      final int numOfDataPoints = cached.getNumberOfDataPoints();
+      if (mzValues != null)
+        System.arraycopy(cached.mzValues, 0, mzValues, 0, numOfDataPoints);
+      if (intensityValues != null)
+        System.arraycopy(cached.intensityValues, 0, intensityValues, 0, numOfDataPoints);
+      return numOfDataPoints;
+    }
 
-    if (dataPointsFile == null) {
-      File newFile = RawDataFileImpl.createNewDataPointsFile();
-      openDataPointsFile(newFile);
+    if (linkedPositions.containsKey(ID)) {
+      final DataPoint dataPoints[] = readLinkedDataPoints(ID);
+      cacheDataPoints(ID, dataPoints);
+      for (int i = 0; i < dataPoints.length; i++) {
+        if (mzValues != null)
+          mzValues[i] = dataPoints[i].getMZ();
+        if (intensityValues != null)
+          intensityValues[i] = dataPoints[i].getIntensity();
+      }
+      return dataPoints.length;
     }
 
-    final long currentOffset = dataPointsFile.length();
+    final DataPointsCodec codec = DataPointsCodec.get();
+    final int numOfDataPoints = getNumOfDataPoints(ID);
+    if (mzValues == null)
+      mzValues = codec.getMzBuffer(numOfDataPoints);
+    if (intensityValues == null)
+      intensityValues = codec.getIntensityBuffer(numOfDataPoints);
+    decodeRecord(ID, numOfDataPoints, mzValues, intensityValues);
 
-    final int currentID;
-    if (!dataPointsOffsets.isEmpty())
-      currentID = dataPointsOffsets.lastKey() + 1;
-    else
-      currentID = 1;
+    // Cache the values like readDataPoints(int), so the next read of this ID is a hit
+    cacheDataPoints(ID, mzValues, intensityValues, numOfDataPoints);
 
-    final int numOfDataPoints = dataPoints.length;
+    return numOfDataPoints;
 
-    // Convert the dataPoints into a byte array. Each float takes 4 bytes,
-    // so we get the current float offset by dividing the size of the file
-    // by 4
-    final int numOfBytes = numOfDataPoints * 2 * 4;
-
-    if (buffer.capacity() < numOfBytes) {
-      buffer = ByteBuffer.allocate(numOfBytes * 2);
-    } else {
-      // JDK 9 breaks compatibility with JRE8: need to cast
-      // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
-      ((Buffer) buffer).clear();
-    }
+  }
 
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
-    for (DataPoint dp : dataPoints) {
-      floatBuffer.put((float) dp.getMZ());
-      floatBuffer.put((float) dp.getIntensity());
+  private static DataPoint[] toDataPoints(double mzValues[], double intensityValues[],
+      int numOfDataPoints) {
+    final DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+    for (int i = 0; i < numOfDataPoints; i++)
+      dataPoints[i] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
+    return dataPoints;
+  }
+
+  /**
+   * Adds the values of the given (linked) data points to the cache
+   */
+  private void cacheDataPoints(int ID, DataPoint dataPoints[]) {
+    if (DataPointsCache.getInstance().getMemoryBudget() <= 0)
+      return;
+    final double mzValues[] = new double[dataPoints.length];
+    final double intensityValues[] = new double[dataPoints.length];
+    for (int i = 0; i < dataPoints.length; i++) {
+      mzValues[i] = dataPoints[i].getMZ();
+      intensityValues[i] = dataPoints[i].getIntensity();
     }
+    cacheDataPoints(ID, mzValues, intensityValues, dataPoints.length);
+  }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.write(buffer.array(), 0, numOfBytes);
+  /**
+   * Adds a copy of the values to the cache, unless they were removed meanwhile.
+   * removeStoredDataPoints() removes the ID from the storage before it removes the ID from the
+   * cache, so checking the storage after adding the values never leaves removed data points in the
+   * cache.
+   */
+  private void cacheDataPoints(int ID, double mzValues[], double intensityValues[],
+      int numOfDataPoints) {
+    final DataPointsCache cache = DataPointsCache.getInstance();
+    if (cache.getMemoryBudget() <= 0)
+      return;
+    cache.put(this, ID, mzValues, intensityValues, numOfDataPoints);
+    if (!storage.lengths.containsKey(ID))
+      cache.remove(this, ID);
+  }
 
-    dataPointsOffsets.put(currentID, currentOffset);
-    dataPointsLengths.put(currentID, numOfDataPoints);
+  /**
+   * Returns the data points stored under given ID in their stored (encoded) form, as saved in the
+   * project files. See getDataPointsEncoding() and isDataPointsCompressed() for the format.
+   */
+  public byte[] readEncodedDataPoints(int ID) throws IOException {
+    final ByteBuffer record = linkedPositions.containsKey(ID)
+        ? DataPointsCodec.get().encode(readDataPoints(ID), encoding, compressed)
+        : readRecord(ID);
+    final byte bytes[] = new byte[record.remaining()];
+    record.get(bytes);
+    return bytes;
+  }
 
-    return currentID;
+  /**
+   * Reads the data points of a linked scan from the original file. The data points must agree with
+   * the number given when the scan was linked, because the scan was described by that number.
+   */
+  private DataPoint[] readLinkedDataPoints(int ID) throws IOException {
 
-  }
+    final Long position = linkedPositions.get(ID);
+    final Integer numOfDataPoints = storage.lengths.get(ID);
+    if ((position == null) || (numOfDataPoints == null))
+      throw new IllegalArgumentException("Unknown storage ID " + ID);
 
-  public synchronized DataPoint[] readDataPoints(int ID) throws IOException {
+    final DataPoint dataPoints[] = linkedDataPoints.readDataPoints(position);
+    if (dataPoints.length != numOfDataPoints) {
+      throw new IOException("Expected " + numOfDataPoints + " data points at position " + position
+          + " of the original file of " + dataFileName + ", found " + dataPoints.length);
+    }
+    return dataPoints;
 
-    final Long currentOffset = dataPointsOffsets.get(ID);
-    final Integer numOfDataPoints = dataPointsLengths.get(ID);
+  }
 
-    if ((currentOffset == null) || (numOfDataPoints == null)) {
+  /**
+   * Returns the number of data points stored under given ID
+   */
+  public int getNumOfDataPoints(int ID) {
+    final Integer numOfDataPoints = storage.lengths.get(ID);
+    if (numOfDataPoints == null) {
       throw new IllegalArgumentException("Unknown storage ID " + ID);
     }
+    return numOfDataPoints;
+  }
+
+  private void decodeRecord(int ID, int numOfDataPoints, double mzValues[],
+      double intensityValues[]) throws IOException {
+    final ByteBuffer record = readRecord(ID);
+    DataPointsCodec.get().decode(record, numOfDataPoints, encoding, compressed, mzValues,
+        intensityValues);
+  }
+
+  /**
+   * Reads the record stored under given ID, including its header. The returned buffer is either the
+   * read buffer of the current thread or a view of a record kept in memory, and is only valid until
+   * the next read or write of this thread.
+   */
+  private ByteBuffer readRecord(int ID) throws IOException {
+
+    final boolean hasHeader = DataPointsCodec.hasHeader(encoding, compressed);
+
+    while (true) {
+
+      final DataPointsStorage current = storage;
+      final Long currentOffset = current.offsets.get(ID);
+      final Integer numOfDataPoints = current.lengths.get(ID);
+
+      if ((currentOffset == null) || (numOfDataPoints == null)) {
+        throw new IllegalArgumentException("Unknown storage ID " + ID);
+      }
+
+      if (currentOffset == DataPointsStorage.IN_MEMORY) {
+        final ByteBuffer record = current.memoryRecords.get(ID);
+        if (record == null)
+          throw new IllegalArgumentException("Unknown storage ID " + ID);
+        DataPointsIOCounter.addBytesRead(record.remaining());
+        return record.duplicate();
+      }
+
+      // The data points may still be waiting in a write batch. Records are never split between
+      // batches, so it is enough to check the start.
+      if (currentOffset >= current.getWrittenOffset()) {
+        synchronized (storageLock) {
+          if (storage != current)
+            continue;
+          current.flush();
+        }
+      }
+
+      try {
+        final ByteBuffer buffer;
+        if (hasHeader) {
+          final int numOfBytes = readRecordSize(current, currentOffset);
+          buffer = DataPointsCodec.get().getReadBuffer(numOfBytes);
+        } else {
+          buffer = DataPointsCodec.get().getReadBuffer(numOfDataPoints * 2 * 4);
+        }
+        current.read(buffer, currentOffset);
+        ((Buffer) buffer).flip();
+        DataPointsIOCounter.addBytesRead(buffer.remaining());
+        return buffer;
+      } catch (ClosedChannelException e) {
+        // The file may have been replaced by a compacted one while we were reading
+        if (storage == current)
+          throw e;
+      }
+
+    }
+
+  }
 
-    final int numOfBytes = numOfDataPoints * 2 * 4;
+  /**
+   * Returns the size of the record at given offset, including its header
+   */
+  private static int readRecordSize(DataPointsStorage current, long offset) throws IOException {
+    final ByteBuffer header = DataPointsCodec.get().getReadBuffer(DataPointsCodec.HEADER_SIZE);
+    current.read(header, offset);
+    return DataPointsCodec.HEADER_SIZE + header.getInt(0);
+  }
 
-    if (buffer.capacity() < numOfBytes) {
-      buffer = ByteBuffer.allocate(numOfBytes * 2);
-    } else {
-      // JDK 9 breaks compatibility with JRE8: need to cast
-      // https://stackoverflow.com/questions/48693695/java-nio-buffer-not-loading-clear-method-on-runtime
-      ((Buffer) buffer).clear();
+  public void removeStoredDataPoints(int ID) throws IOException {
+    synchronized (storageLock) {
+      final DataPointsStorage current = storage;
+      final Long offset = current.offsets.remove(ID);
+      final Integer numOfDataPoints = current.lengths.remove(ID);
+      if ((offset != null) && (offset == DataPointsStorage.IN_MEMORY))
+        current.removeMemoryRecord(ID);
+      else if ((offset != null) && (offset == DataPointsStorage.LINKED))
+        linkedPositions.remove(ID);
+      else if (numOfDataPoints != null)
+        current.deadBytes += current.estimateRecordSize(numOfDataPoints);
     }
+    DataPointsCache.getInstance().remove(this, ID);
+    scheduleCompaction();
+  }
 
-    dataPointsFile.seek(currentOffset);
-    dataPointsFile.read(buffer.array(), 0, numOfBytes);
+  /**
+   * Schedules a background compaction of the data points file, if it is enabled in the preferences
+   * and the file contains enough unused space.
+   */
+  private void scheduleCompaction() throws IOException {
 
-    FloatBuffer floatBuffer = buffer.asFloatBuffer();
+    final MZmineConfiguration configuration = MZmineCore.getConfiguration();
+    if (configuration == null)
+      return;
 
-    DataPoint dataPoints[] = new DataPoint[numOfDataPoints];
+    final OptionalModuleParameter<TempFileCompactionSettings> compactionParameter =
+        configuration.getPreferences().getParameter(MZminePreferences.tempFileCompaction);
+    if (!Boolean.TRUE.equals(compactionParameter.getValue()))
+      return;
 
-    for (int i = 0; i < numOfDataPoints; i++) {
-      float mz = floatBuffer.get();
-      float intensity = floatBuffer.get();
-      dataPoints[i] = new SimpleDataPoint(mz, intensity);
+    final TempFileCompactionSettings settings = compactionParameter.getEmbeddedParameters();
+    final double maxUnusedRatio =
+        settings.getParameter(TempFileCompactionSettings.maxUnusedRatio).getValue();
+    final long minUnusedBytes =
+        settings.getParameter(TempFileCompactionSettings.minUnusedMegabytes).getValue() * 1024L
+            * 1024L;
+
+    final long unusedBytes, totalBytes;
+    synchronized (storageLock) {
+      unusedBytes = storage.deadBytes;
+      totalBytes = storage.size();
     }
 
-    return dataPoints;
+    if ((unusedBytes < minUnusedBytes) || (unusedBytes <= maxUnusedRatio * totalBytes))
+      return;
+
+    if (!compactionScheduled.compareAndSet(false, true))
+      return;
+
+    compactionService.submit(() -> {
+      try {
+        compactDataPointsFile();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Could not compact the temporary file of " + dataFileName, e);
+      } finally {
+        compactionScheduled.set(false);
+      }
+    });
 
   }
 
-  public synchronized void removeStoredDataPoints(int ID) throws IOException {
-    dataPointsOffsets.remove(ID);
-    dataPointsLengths.remove(ID);
+  /**
+   * Copies all data points that are still referenced into a new temporary file and removes the old
+   * one. The storage IDs remain the same, only their offsets change. The data points are copied
+   * while other threads keep reading, storing and removing; the storage lock is only held to take
+   * the list of records and to copy the records stored in the meantime before the new file replaces
+   * the old one. Data points kept in memory are not affected.
+   */
+  public void compactDataPointsFile() throws IOException {
+
+    synchronized (compactionLock) {
+
+      final DataPointsStorage current;
+      final Map<Integer, Long> copiedOffsets;
+      synchronized (storageLock) {
+        current = storage;
+        if (closed || (current.file == null) || (current.deadBytes == 0))
+          return;
+        current.flush();
+        copiedOffsets = new TreeMap<Integer, Long>(current.offsets);
+      }
+
+      final DataPointsStorage compacted =
+          new DataPointsStorage(RawDataFileImpl.createNewDataPointsFile(),
+              new ConcurrentSkipListMap<Integer, Long>(),
+              new ConcurrentSkipListMap<Integer, Integer>(), current.memoryRecords);
+      long oldSize = 0;
+
+      try {
+
+        // Copy the records that were written when we started, without holding the lock
+        for (Map.Entry<Integer, Long> entry : copiedOffsets.entrySet()) {
+          final Integer numOfDataPoints = current.lengths.get(entry.getKey());
+          if ((numOfDataPoints == null) || (entry.getValue() == DataPointsStorage.IN_MEMORY)
+              || (entry.getValue() == DataPointsStorage.LINKED))
+            continue;
+          copyRecord(current, compacted, entry.getKey(), entry.getValue(), numOfDataPoints);
+        }
+
+        synchronized (storageLock) {
+
+          if (closed || (storage != current)) {
+            compacted.delete();
+            return;
+          }
+
+          // Records removed during the copy are unused space in the new file
+          for (Map.Entry<Integer, Integer> entry : compacted.lengths.entrySet()) {
+            if (!current.lengths.containsKey(entry.getKey())) {
+              compacted.offsets.remove(entry.getKey());
+              compacted.lengths.remove(entry.getKey());
+              compacted.deadBytes += compacted.estimateRecordSize(entry.getValue());
+            }
+          }
+
+          // Records stored during the copy, and the ones that are not in the file
+          current.flush();
+          for (Map.Entry<Integer, Long> entry : current.offsets.entrySet()) {
+            final Integer numOfDataPoints = current.lengths.get(entry.getKey());
+            if ((numOfDataPoints == null) || compacted.offsets.containsKey(entry.getKey()))
+              continue;
+            if ((entry.getValue() == DataPointsStorage.IN_MEMORY)
+                || (entry.getValue() == DataPointsStorage.LINKED)) {
+              compacted.lengths.put(entry.getKey(), numOfDataPoints);
+              compacted.offsets.put(entry.getKey(), entry.getValue());
+              continue;
+            }
+            copyRecord(current, compacted, entry.getKey(), entry.getValue(), numOfDataPoints);
+          }
+          compacted.setWritten();
+
+          oldSize = current.size();
+          storage = compacted;
+
+        }
+
+      } catch (IOException e) {
+        compacted.delete();
+        // Closing the file while copying also closes its channel
+        if (closed)
+          return;
+        throw e;
+      }
+
+      current.delete();
+
+      logger.info("Compacted the temporary file of " + dataFileName + " from " + oldSize + " to "
+          + compacted.nextOffset + " bytes");
+
+    }
+
+  }
+
+  /**
+   * Appends the record at given offset of the source storage to the end of the target storage,
+   * through its channel
+   */
+  private void copyRecord(DataPointsStorage source, DataPointsStorage target, int ID, long offset,
+      int numOfDataPoints) throws IOException {
+    final long numOfBytes = DataPointsCodec.hasHeader(encoding, compressed)
+        ? readRecordSize(source, offset)
+        : numOfDataPoints * 2L * 4L;
+    long transferred = 0;
+    while (transferred < numOfBytes) {
+      transferred += source.getChannel().transferTo(offset + transferred,
+          numOfBytes - transferred, target.getChannel());
+    }
+    target.lengths.put(ID, numOfDataPoints);
+    target.offsets.put(ID, target.nextOffset);
+    target.nextOffset += numOfBytes;
+    target.storedBytes += numOfBytes;
+    target.storedDataPoints += numOfDataPoints;
   }
 
   @Override
@@ -413,6 +832,7 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     // and we just need store the reference
     if (newScan instanceof StorableScan) {
       scans.put(newScan.getScanNumber(), (StorableScan) newScan);
+      scanIndex = null;
       return;
     }
 
@@ -422,6 +842,39 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     StorableScan storedScan = new StorableScan(newScan, this, dataPoints.length, storageID);
 
     scans.put(newScan.getScanNumber(), storedScan);
+    scanIndex = null;
+
+  }
+
+  /**
+   * Adds a scan whose data points remain in the original raw data file. The m/z range, base peak
+   * and TIC are taken from the given scan, which therefore does not need to contain the data
+   * points. All linked scans of this file must use the same source.
+   * 
+   * @param numOfDataPoints number of data points of the scan
+   * @param position position of the data points in the source, passed to
+   *        LinkedDataPoints.readDataPoints()
+   */
+  public synchronized void addLinkedScan(Scan newScan, int numOfDataPoints,
+      LinkedDataPoints source, long position) {
+
+    if ((linkedDataPoints != null) && (linkedDataPoints != source))
+      throw new IllegalStateException("Scans of " + dataFileName + " are linked to another file");
+    linkedDataPoints = source;
+
+    final int storageID;
+    synchronized (storageLock) {
+      final DataPointsStorage current = storage;
+      storageID = reserveStorageID(current);
+      linkedPositions.put(storageID, position);
+      current.lengths.put(storageID, numOfDataPoints);
+      current.offsets.put(storageID, DataPointsStorage.LINKED);
+    }
+
+    StorableScan storedScan = new StorableScan(newScan, this, numOfDataPoints, storageID);
+
+    scans.put(newScan.getScanNumber(), storedScan);
+    scanIndex = null;
 
   }
 
@@ -431,9 +884,13 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
   @Override
   public synchronized RawDataFile finishWriting() throws IOException {
     for (StorableScan scan : scans.values()) {
-      scan.updateValues();
+      // Linked scans would have to be read from the original file
+      if (!linkedPositions.containsKey(scan.getStorageID()))
+        scan.updateValues();
     }
-    logger.finest("Writing of scans to file " + dataPointsFileName + " finished");
+    scanIndex = new ScanIndex(scans.values());
+    flushDataPoints();
+    logger.finest("Writing of scans to file " + storage.fileName + " finished");
     return this;
   }
 
@@ -524,23 +981,34 @@ public class RawDataFileImpl implements RawDataFile, RawDataFileWriter {
     return getScanNumbers(msLevel).length;
   }
 
-  public synchronized TreeMap<Integer, Long> getDataPointsOffsets() {
-    return dataPointsOffsets;
+  public ConcurrentSkipListMap<Integer, Long> getDataPointsOffsets() {
+    return storage.offsets;
   }
 
-  public synchronized TreeMap<Integer, Integer> getDataPointsLengths() {
-    return dataPointsLengths;
+  public ConcurrentSkipListMap<Integer, Integer> getDataPointsLengths() {
+    return storage.lengths;
   }
 
   @Override
   public synchronized void close() {
+    final DataPointsStorage current;
+    synchronized (storageLock) {
+      closed = true;
+      current = storage;
+    }
+    DataPointsCache.getInstance().removeAll(this);
+    current.clearMemoryRecords();
     try {
-      if (dataPointsFileName != null) {
-        dataPointsFile.close();
-        dataPointsFileName.delete();
-      }
+      current.delete();
     } catch (IOException e) {
-      logger.warning("Could not close file " + dataPointsFileName + ": " + e.toString());
+      logger.warning("Could not close file " + current.fileName + ": " + e.toString());
+    }
+    if (linkedDataPoints != null) {
+      try {
+        linkedDataPoints.close();
+      } catch (IOException e) {
+        logger.warning("Could not close the original file of " + dataFileName + ": " + e);
+      }
     }
   }
 
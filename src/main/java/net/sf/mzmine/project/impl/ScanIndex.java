@@ -0,0 +1,253 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.project.impl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+
+import net.sf.mzmine.datamodel.DataPoint;
+import net.sf.mzmine.datamodel.Scan;
+
+/**
+ * Immutable index of the scans of a raw data file. For each MS level, the scan numbers, retention
+ * times and precursor m/z values are kept in primitive arrays sorted by retention time, and once
+ * more sorted by precursor m/z, so that retention time and precursor m/z windows can be found by
+ * binary search. The highest TIC and base peak intensity of each MS level are computed when the
+ * index is built.
+ */
+class ScanIndex {
+
+  private final int msLevels[];
+  private final TreeMap<Integer, LevelIndex> levels = new TreeMap<Integer, LevelIndex>();
+
+  ScanIndex(Collection<? extends Scan> scans) {
+
+    TreeMap<Integer, Integer> scanCounts = new TreeMap<Integer, Integer>();
+    for (Scan scan : scans)
+      scanCounts.merge(scan.getMSLevel(), 1, Integer::sum);
+
+    msLevels = new int[scanCounts.size()];
+    int levelIndex = 0;
+    for (Integer msLevel : scanCounts.keySet()) {
+      msLevels[levelIndex++] = msLevel;
+      Scan levelScans[] = new Scan[scanCounts.get(msLevel)];
+      int i = 0;
+      for (Scan scan : scans) {
+        if (scan.getMSLevel() == msLevel)
+          levelScans[i++] = scan;
+      }
+      levels.put(msLevel, new LevelIndex(levelScans));
+    }
+
+  }
+
+  /**
+   * @return Sorted MS levels of all scans
+   */
+  @Nonnull
+  int[] getMSLevels() {
+    return msLevels.clone();
+  }
+
+  /**
+   * @return Sorted numbers of the scans of given MS level within given retention time range
+   */
+  @Nonnull
+  int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange) {
+
+    LevelIndex level = levels.get(msLevel);
+    if (level == null)
+      return new int[0];
+
+    int from = findFirst(level.rts, rtRange, true), to = findFirst(level.rts, rtRange, false);
+    if (from >= to)
+      return new int[0];
+
+    int scanNumbers[] = Arrays.copyOfRange(level.scanNumbers, from, to);
+    if (!level.scanNumbersSorted)
+      Arrays.sort(scanNumbers);
+    return scanNumbers;
+
+  }
+
+  /**
+   * @return Sorted numbers of the scans of given MS level within given retention time range, whose
+   *         precursor m/z is within given m/z range
+   */
+  @Nonnull
+  int[] getScanNumbers(int msLevel, @Nonnull Range<Double> rtRange,
+      @Nonnull Range<Double> precursorMZRange) {
+
+    LevelIndex level = levels.get(msLevel);
+    if (level == null)
+      return new int[0];
+
+    // Walk the narrower of the two windows and check the other condition
+    int rtFrom = findFirst(level.rts, rtRange, true), rtTo = findFirst(level.rts, rtRange, false);
+    int mzFrom = findFirst(level.mzOrderPrecursorMZs, precursorMZRange, true),
+        mzTo = findFirst(level.mzOrderPrecursorMZs, precursorMZRange, false);
+
+    int scanNumbers[];
+    int count = 0;
+    if (rtTo - rtFrom <= mzTo - mzFrom) {
+      scanNumbers = new int[Math.max(rtTo - rtFrom, 0)];
+      for (int i = rtFrom; i < rtTo; i++) {
+        if (precursorMZRange.contains(level.precursorMZs[i]))
+          scanNumbers[count++] = level.scanNumbers[i];
+      }
+    } else {
+      scanNumbers = new int[Math.max(mzTo - mzFrom, 0)];
+      for (int i = mzFrom; i < mzTo; i++) {
+        if (rtRange.contains(level.mzOrderRTs[i]))
+          scanNumbers[count++] = level.mzOrderScanNumbers[i];
+      }
+    }
+
+    scanNumbers = Arrays.copyOf(scanNumbers, count);
+    Arrays.sort(scanNumbers);
+    return scanNumbers;
+
+  }
+
+  /**
+   * @return Highest base peak intensity of the scans of given MS level, or -1 if there is no such
+   *         scan with a base peak
+   */
+  double getMaxBasePeakIntensity(int msLevel) {
+    LevelIndex level = levels.get(msLevel);
+    if (level == null)
+      return -1d;
+    return level.maxBasePeakIntensity;
+  }
+
+  /**
+   * @return Highest TIC of the scans of given MS level, or -1 if there is no such scan
+   */
+  double getMaxTIC(int msLevel) {
+    LevelIndex level = levels.get(msLevel);
+    if (level == null)
+      return -1d;
+    return level.maxTIC;
+  }
+
+  /**
+   * Returns the index of the first value within the range (if lower is true), or the index after the
+   * last value within the range (if lower is false) in the given sorted array
+   */
+  private static int findFirst(double values[], Range<Double> range, boolean lower) {
+
+    if (lower && !range.hasLowerBound())
+      return 0;
+    if (!lower && !range.hasUpperBound())
+      return values.length;
+
+    // Find the first value above the lower endpoint, or above the upper endpoint
+    final double endpoint;
+    final boolean inclusive;
+    if (lower) {
+      endpoint = range.lowerEndpoint();
+      inclusive = range.lowerBoundType() == BoundType.CLOSED;
+    } else {
+      endpoint = range.upperEndpoint();
+      inclusive = range.upperBoundType() == BoundType.OPEN;
+    }
+
+    int low = 0, high = values.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int comparison = Double.compare(values[mid], endpoint);
+      if ((comparison < 0) || ((comparison == 0) && !inclusive))
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+
+  }
+
+  /**
+   * Scans of one MS level, sorted by retention time and scan number
+   */
+  private static class LevelIndex {
+
+    private final int scanNumbers[];
+    private final double rts[], precursorMZs[];
+
+    // The same scans sorted by precursor m/z
+    private final int mzOrderScanNumbers[];
+    private final double mzOrderRTs[], mzOrderPrecursorMZs[];
+    private final double maxBasePeakIntensity, maxTIC;
+
+    // True if the scan numbers increase with the retention time, which is the usual case
+    private final boolean scanNumbersSorted;
+
+    LevelIndex(Scan scans[]) {
+
+      Arrays.sort(scans, Comparator.comparingDouble(Scan::getRetentionTime)
+          .thenComparingInt(Scan::getScanNumber));
+
+      scanNumbers = new int[scans.length];
+      rts = new double[scans.length];
+      precursorMZs = new double[scans.length];
+
+      double maxBasePeak = -1d, maxTotalIonCurrent = -1d;
+      boolean sorted = true;
+
+      for (int i = 0; i < scans.length; i++) {
+        scanNumbers[i] = scans[i].getScanNumber();
+        rts[i] = scans[i].getRetentionTime();
+        precursorMZs[i] = scans[i].getPrecursorMZ();
+
+        DataPoint basePeak = scans[i].getHighestDataPoint();
+        if ((basePeak != null) && (basePeak.getIntensity() > maxBasePeak))
+          maxBasePeak = basePeak.getIntensity();
+        if ((i == 0) || (scans[i].getTIC() > maxTotalIonCurrent))
+          maxTotalIonCurrent = scans[i].getTIC();
+        if ((i > 0) && (scanNumbers[i] < scanNumbers[i - 1]))
+          sorted = false;
+      }
+
+      this.maxBasePeakIntensity = maxBasePeak;
+      this.maxTIC = maxTotalIonCurrent;
+      this.scanNumbersSorted = sorted;
+
+      Arrays.sort(scans, Comparator.comparingDouble(Scan::getPrecursorMZ)
+          .thenComparingDouble(Scan::getRetentionTime).thenComparingInt(Scan::getScanNumber));
+
+      mzOrderScanNumbers = new int[scans.length];
+      mzOrderRTs = new double[scans.length];
+      mzOrderPrecursorMZs = new double[scans.length];
+      for (int i = 0; i < scans.length; i++) {
+        mzOrderScanNumbers[i] = scans[i].getScanNumber();
+        mzOrderRTs[i] = scans[i].getRetentionTime();
+        mzOrderPrecursorMZs[i] = scans[i].getPrecursorMZ();
+      }
+
+    }
+
+  }
+
+}
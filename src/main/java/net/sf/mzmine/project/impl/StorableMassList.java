@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.sf.mzmine.datamodel.DataPoint;
 import net.sf.mzmine.datamodel.MassList;
@@ -67,12 +68,58 @@ public class StorableMassList implements MassList {
       DataPoint result[] = rawDataFile.readDataPoints(storageID);
       return result;
 
-    } catch (IOException e) {
+    } catch (IOException | IllegalArgumentException e) {
       logger.severe("Could not read data from temporary file " + e.toString());
       return new DataPoint[0];
     }
   }
 
+  @Override
+  public int getNumberOfDataPoints() {
+    try {
+      return rawDataFile.getNumOfDataPoints(storageID);
+    } catch (IllegalArgumentException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
+    }
+  }
+
+  @Override
+  public int fillDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    try {
+      return rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
+    }
+  }
+
+  @Override
+  public @Nonnull double[] getMzValues(@Nullable double array[]) {
+    final int numOfDataPoints = getNumberOfDataPoints();
+    if ((array == null) || (array.length < numOfDataPoints))
+      array = new double[numOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, array, null);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return array;
+  }
+
+  @Override
+  public @Nonnull double[] getIntensityValues(@Nullable double array[]) {
+    final int numOfDataPoints = getNumberOfDataPoints();
+    if ((array == null) || (array.length < numOfDataPoints))
+      array = new double[numOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, null, array);
+    } catch (IOException | IllegalArgumentException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return array;
+  }
+
   public void removeStoredData() {
     try {
       rawDataFile.removeStoredDataPoints(storageID);
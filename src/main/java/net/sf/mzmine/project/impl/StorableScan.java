@@ -25,6 +25,7 @@ import java.util.Vector;
 import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.swing.SwingUtilities;
 
 import com.google.common.collect.Range;
@@ -35,8 +36,10 @@ import net.sf.mzmine.datamodel.MassSpectrumType;
 import net.sf.mzmine.datamodel.PolarityType;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.datamodel.impl.SimpleDataPoint;
 import net.sf.mzmine.desktop.impl.projecttree.RawDataTreeModel;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.util.scans.DataPointsBuffer;
 import net.sf.mzmine.util.scans.ScanUtils;
 
 /**
@@ -127,22 +130,60 @@ public class StorableScan implements Scan {
 
   }
 
+  @Override
+  public int fillDataPoints(@Nonnull double mzValues[], @Nonnull double intensityValues[]) {
+    try {
+      return rawDataFile.readDataPoints(storageID, mzValues, intensityValues);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+      return 0;
+    }
+  }
+
+  @Override
+  public @Nonnull double[] getMzValues(@Nullable double array[]) {
+    if ((array == null) || (array.length < numberOfDataPoints))
+      array = new double[numberOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, array, null);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return array;
+  }
+
+  @Override
+  public @Nonnull double[] getIntensityValues(@Nullable double array[]) {
+    if ((array == null) || (array.length < numberOfDataPoints))
+      array = new double[numberOfDataPoints];
+    try {
+      rawDataFile.readDataPoints(storageID, null, array);
+    } catch (IOException e) {
+      logger.severe("Could not read data from temporary file " + e.toString());
+    }
+    return array;
+  }
+
   /**
    * @return Returns scan datapoints within a given range
    */
   public @Nonnull DataPoint[] getDataPointsByMass(@Nonnull Range<Double> mzRange) {
 
-    DataPoint dataPoints[] = getDataPoints();
+    // Only the data points within the range are turned into DataPoint instances
+    final DataPointsBuffer buffer = DataPointsBuffer.get(numberOfDataPoints);
+    final double mzValues[] = buffer.getMzValues();
+    final double intensityValues[] = buffer.getIntensityValues();
+    final int numOfDataPoints = fillDataPoints(mzValues, intensityValues);
 
     int startIndex, endIndex;
-    for (startIndex = 0; startIndex < dataPoints.length; startIndex++) {
-      if (dataPoints[startIndex].getMZ() >= mzRange.lowerEndpoint()) {
+    for (startIndex = 0; startIndex < numOfDataPoints; startIndex++) {
+      if (mzValues[startIndex] >= mzRange.lowerEndpoint()) {
         break;
       }
     }
 
-    for (endIndex = startIndex; endIndex < dataPoints.length; endIndex++) {
-      if (dataPoints[endIndex].getMZ() > mzRange.upperEndpoint()) {
+    for (endIndex = startIndex; endIndex < numOfDataPoints; endIndex++) {
+      if (mzValues[endIndex] > mzRange.upperEndpoint()) {
         break;
       }
     }
@@ -150,7 +191,8 @@ public class StorableScan implements Scan {
     DataPoint pointsWithinRange[] = new DataPoint[endIndex - startIndex];
 
     // Copy the relevant points
-    System.arraycopy(dataPoints, startIndex, pointsWithinRange, 0, endIndex - startIndex);
+    for (int i = startIndex; i < endIndex; i++)
+      pointsWithinRange[i - startIndex] = new SimpleDataPoint(mzValues[i], intensityValues[i]);
 
     return pointsWithinRange;
   }
@@ -225,26 +267,32 @@ public class StorableScan implements Scan {
   }
 
   void updateValues() {
-    DataPoint dataPoints[] = getDataPoints();
+    final DataPointsBuffer buffer = DataPointsBuffer.get(numberOfDataPoints);
+    final double mzValues[] = buffer.getMzValues();
+    final double intensityValues[] = buffer.getIntensityValues();
+    final int numOfDataPoints = fillDataPoints(mzValues, intensityValues);
 
     // find m/z range and base peak
-    if (dataPoints.length > 0) {
+    if (numOfDataPoints > 0) {
 
-      basePeak = dataPoints[0];
-      mzRange = Range.singleton(dataPoints[0].getMZ());
+      int basePeakIndex = 0;
+      double minMz = mzValues[0], maxMz = mzValues[0];
       double tic = 0;
 
-      for (DataPoint dp : dataPoints) {
+      for (int i = 0; i < numOfDataPoints; i++) {
 
-        if (dp.getIntensity() > basePeak.getIntensity())
-          basePeak = dp;
+        if (intensityValues[i] > intensityValues[basePeakIndex])
+          basePeakIndex = i;
 
-        mzRange = mzRange.span(Range.singleton(dp.getMZ()));
+        minMz = Math.min(minMz, mzValues[i]);
+        maxMz = Math.max(maxMz, mzValues[i]);
 
-        tic += dp.getIntensity();
+        tic += intensityValues[i];
 
       }
 
+      basePeak = new SimpleDataPoint(mzValues[basePeakIndex], intensityValues[basePeakIndex]);
+      mzRange = Range.closed(minMz, maxMz);
       totalIonCurrent = new Double(tic);
 
     } else {
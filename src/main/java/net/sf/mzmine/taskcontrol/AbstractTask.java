@@ -19,7 +19,12 @@
 package net.sf.mzmine.taskcontrol;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinTask;
+
+import net.sf.mzmine.main.MZmineCore;
 
 /**
  * An abstract implementation of task which defines common methods to make Task implementation
@@ -31,6 +36,9 @@ public abstract class AbstractTask implements Task {
   private String errorMessage = null;
   // listener to control status changes
   private List<TaskStatusListener> listener;
+  // forked sub-tasks and their handles for joining
+  private final List<Task> subTasks = new CopyOnWriteArrayList<>();
+  private final List<ForkJoinTask<?>> forkedSubTasks = new CopyOnWriteArrayList<>();
 
 
   /**
@@ -69,6 +77,103 @@ public abstract class AbstractTask implements Task {
   @Override
   public void cancel() {
     setStatus(TaskStatus.CANCELED);
+    for (Task subTask : subTasks)
+      subTask.cancel();
+  }
+
+  /**
+   * Starts processing of a sub-task in the worker pool of the task controller. Sub-tasks have to be
+   * joined by joinSubTasks(). Canceling this task cancels all sub-tasks, and a sub-task that
+   * finishes with an error cancels its siblings. Without a task controller, the sub-task is
+   * processed immediately in the calling thread.
+   */
+  protected void forkSubTask(Task subTask) {
+
+    subTasks.add(subTask);
+
+    if (subTask instanceof AbstractTask) {
+      ((AbstractTask) subTask).addTaskStatusListener((task, newStatus, oldStatus) -> {
+        if (newStatus == TaskStatus.ERROR) {
+          for (Task sibling : subTasks)
+            if (sibling != task)
+              sibling.cancel();
+        }
+      });
+    }
+
+    // Canceled in the meantime
+    if (isCanceled())
+      subTask.cancel();
+
+    final TaskController controller = MZmineCore.getTaskController();
+    if (controller == null) {
+      subTask.run();
+      return;
+    }
+    forkedSubTasks.add(controller.forkSubTask(subTask));
+  }
+
+  /**
+   * Starts processing of all given sub-tasks, see forkSubTask(Task)
+   */
+  protected void forkSubTasks(Collection<? extends Task> subTasks) {
+    for (Task subTask : subTasks)
+      forkSubTask(subTask);
+  }
+
+  /**
+   * Waits until all forked sub-tasks are finished. If called from a thread of the worker pool, the
+   * thread processes waiting sub-tasks in the meantime. If a sub-task finished with an error, this
+   * task is set to the error status, with the error message of the sub-task.
+   * 
+   * @return true if all sub-tasks finished and this task was not canceled
+   */
+  protected boolean joinSubTasks() {
+
+    for (ForkJoinTask<?> forkedSubTask : forkedSubTasks)
+      forkedSubTask.quietlyJoin();
+
+    for (Task subTask : subTasks) {
+      if (subTask.getStatus() == TaskStatus.ERROR) {
+        if (getStatus() != TaskStatus.ERROR) {
+          setErrorMessage(subTask.getErrorMessage());
+          setStatus(TaskStatus.ERROR);
+        }
+        break;
+      }
+    }
+
+    if (isCanceled())
+      return false;
+
+    for (Task subTask : subTasks)
+      if (subTask.getStatus() != TaskStatus.FINISHED)
+        return false;
+
+    return true;
+  }
+
+  /**
+   * @return the average finished percentage of all forked sub-tasks, or 0 if there are none
+   */
+  protected double getSubTasksFinishedPercentage() {
+    if (subTasks.isEmpty())
+      return 0;
+    double sum = 0;
+    for (Task subTask : subTasks) {
+      if (subTask.getStatus() == TaskStatus.FINISHED)
+        sum += 1;
+      else
+        sum += Math.min(1, Math.max(0, subTask.getFinishedPercentage()));
+    }
+    return sum / subTasks.size();
+  }
+
+  /**
+   * @return the forked sub-tasks
+   */
+  protected List<Task> getSubTasks() {
+    return subTasks;
   }
 
   /**
@@ -39,6 +39,18 @@ public interface Task extends Runnable {
    */
   public TaskPriority getTaskPriority();
 
+  /**
+   * Estimated heap memory this task needs while it is running, in bytes. The task controller only
+   * starts a task if the estimates of all running tasks fit into the memory configured in the
+   * preferences. Tasks that need little memory return 0, which starts them without this check. It
+   * is called when a thread is about to process the task, after the tasks added before it started.
+   * 
+   * @return estimated memory usage in bytes, or 0 if unknown or negligible
+   */
+  public default long getEstimatedMemoryUsage() {
+    return 0;
+  }
+
   /**
    * Cancel a running task by user request.
    */
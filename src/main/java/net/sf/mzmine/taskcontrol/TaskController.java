@@ -18,6 +18,8 @@
 
 package net.sf.mzmine.taskcontrol;
 
+import java.util.concurrent.ForkJoinTask;
+
 import net.sf.mzmine.taskcontrol.impl.TaskQueue;
 
 /**
@@ -39,4 +41,12 @@ public interface TaskController {
 
   public TaskQueue getTaskQueue();
 
+  /**
+   * Starts processing of a sub-task of a running task. Sub-tasks are not shown in the task queue,
+   * the parent task reports their progress. See AbstractTask#forkSubTask(Task).
+   * 
+   * @return the forked sub-task, which the parent task joins
+   */
+  public ForkJoinTask<?> forkSubTask(Task subTask);
+
 }
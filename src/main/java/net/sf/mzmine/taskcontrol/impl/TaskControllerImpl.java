@@ -18,17 +18,29 @@
 
 package net.sf.mzmine.taskcontrol.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.sf.mzmine.desktop.preferences.MZminePreferences;
-import net.sf.mzmine.desktop.preferences.NumOfThreadsParameter;
 import net.sf.mzmine.main.GoogleAnalyticsTracker;
 import net.sf.mzmine.main.MZmineCore;
+import net.sf.mzmine.taskcontrol.AbstractTask;
 import net.sf.mzmine.taskcontrol.Task;
 import net.sf.mzmine.taskcontrol.TaskControlListener;
 import net.sf.mzmine.taskcontrol.TaskController;
@@ -36,9 +48,19 @@ import net.sf.mzmine.taskcontrol.TaskPriority;
 import net.sf.mzmine.taskcontrol.TaskStatus;
 
 /**
- * Task controller implementation
+ * Task controller implementation. Tasks of NORMAL priority are processed by a work-stealing pool,
+ * whose number of threads is specified in the preferences dialog. Tasks of HIGH priority get a
+ * thread of their own. Tasks may fork sub-tasks into the pool and join them, see AbstractTask.
+ * 
+ * Tasks that report an estimated memory usage are only processed while the estimates of all running
+ * tasks fit into the fraction of the maximum heap size specified in the preferences. The estimate
+ * is taken when a thread is about to process the task, so it covers the input created by the tasks
+ * before it. Tasks that do not fit wait in that order, until running tasks release their memory.
+ * 
+ * The performance values of finished tasks and sub-tasks are kept for a timeline, see
+ * TaskTelemetry.
  */
-public class TaskControllerImpl implements TaskController, Runnable {
+public class TaskControllerImpl implements TaskController {
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
@@ -49,15 +71,38 @@ public class TaskControllerImpl implements TaskController, Runnable {
    */
   private final int TASKCONTROLLER_THREAD_SLEEP = 300;
 
-  private Thread taskControllerThread;
+  private ScheduledExecutorService taskControllerThread;
 
   private TaskQueue taskQueue;
 
   /**
-   * This vector contains references to all running threads of NORMAL priority. Maximum number of
-   * concurrent threads is specified in the preferences dialog.
+   * Processes the tasks of NORMAL priority and all sub-tasks. Replaced by a new pool when the
+   * number of threads is changed in the preferences.
+   */
+  private ForkJoinPool workerPool;
+
+  /**
+   * Starts a new thread for each task of HIGH priority
+   */
+  private ExecutorService highPriorityExecutor;
+
+  private final AtomicInteger workerThreadCounter = new AtomicInteger();
+
+  /**
+   * Tasks waiting until their estimated memory usage fits, and the estimated memory usage of all
+   * running tasks. Guarded by the list.
    */
-  private Vector<WorkerThread> runningThreads;
+  private final LinkedList<WrappedTask> memoryWaitingTasks = new LinkedList<WrappedTask>();
+  private long admittedMemory = 0;
+
+  /**
+   * Performance values of the finished tasks, oldest first. Guarded by the list.
+   */
+  private static final int MAX_TELEMETRY_RECORDS = 100000;
+  private final LinkedList<TaskTelemetry> telemetryLog = new LinkedList<TaskTelemetry>();
+
+  private int previousQueueSize = -1;
+  private int previousPercentDone = -1;
 
   /**
    * Initialize the task controller
@@ -66,14 +111,47 @@ public class TaskControllerImpl implements TaskController, Runnable {
 
     taskQueue = new TaskQueue();
 
-    runningThreads = new Vector<WorkerThread>();
+    highPriorityExecutor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    // Create a low-priority thread that will refresh the queue and notify the listeners
+    taskControllerThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Task controller thread");
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.setDaemon(true);
+      return thread;
+    });
+    taskControllerThread.scheduleWithFixedDelay(this::refreshQueue, TASKCONTROLLER_THREAD_SLEEP,
+        TASKCONTROLLER_THREAD_SLEEP, TimeUnit.MILLISECONDS);
 
-    // Create a low-priority thread that will manage the queue and start
-    // worker threads for tasks
-    taskControllerThread = new Thread(this, "Task controller thread");
-    taskControllerThread.setPriority(Thread.MIN_PRIORITY);
-    taskControllerThread.start();
+  }
 
+  /**
+   * Returns the worker pool, after creating a new one if the number of threads in the preferences
+   * has changed. Tasks that are already running in the old pool are finished there.
+   */
+  private synchronized ForkJoinPool getWorkerPool() {
+
+    // Obtain the settings of max concurrent threads
+    final int maxRunningThreads = MZmineCore.getNumberOfThreads();
+
+    if ((workerPool == null) || (workerPool.getParallelism() != maxRunningThreads)) {
+      if (workerPool != null)
+        workerPool.shutdown();
+      logger.finest("Starting a worker pool of " + maxRunningThreads + " threads");
+      workerPool = new ForkJoinPool(maxRunningThreads, pool -> {
+        ForkJoinWorkerThread thread =
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("Worker thread " + workerThreadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }, null, false);
+    }
+
+    return workerPool;
   }
 
   @Override
@@ -112,6 +190,7 @@ public class TaskControllerImpl implements TaskController, Runnable {
       return;
 
     Set<String> uniqueTaskClasses = new HashSet<String>();
+    ArrayList<WrappedTask> newQueueEntries = new ArrayList<WrappedTask>();
     String taskClassName;
     for (int i = 0; i < tasks.length; i++) {
       Task task = tasks[i];
@@ -121,6 +200,7 @@ public class TaskControllerImpl implements TaskController, Runnable {
       uniqueTaskClasses.add(taskClassName);
       WrappedTask newQueueEntry = new WrappedTask(task, priority);
       taskQueue.addWrappedTask(newQueueEntry);
+      newQueueEntries.add(newQueueEntry);
     }
 
     // Track module usage
@@ -132,103 +212,245 @@ public class TaskControllerImpl implements TaskController, Runnable {
       gatThread.start();
     }
 
-    // Wake up the task controller thread
-    synchronized (this) {
-      this.notifyAll();
-    }
+    // Start the tasks, the pool queues them until a thread is free
+    for (WrappedTask wrappedTask : newQueueEntries)
+      startTask(wrappedTask);
+
+    taskQueue.refresh();
   }
 
   /**
-   * Task controller thread main method.
+   * Called by the task runner before it processes the task. If the estimated memory usage of the
+   * task does not fit, the task is released from the runner and waits until running tasks release
+   * their memory.
    * 
-   * @see java.lang.Runnable#run()
+   * @return true if the runner may process the task now
    */
-  @Override
-  public void run() {
+  boolean admitTask(WrappedTask wrappedTask) {
+
+    synchronized (memoryWaitingTasks) {
+      // Started after waiting for memory, or a second runner of a task that is still waiting
+      if (wrappedTask.getAdmittedMemory() > 0)
+        return true;
+      if (memoryWaitingTasks.contains(wrappedTask)) {
+        wrappedTask.unassign();
+        return false;
+      }
+    }
 
-    int previousQueueSize = -1;
-    int previousPercentDone = -1; 
+    long estimatedMemory = 0;
+    try {
+      estimatedMemory = Math.max(0, wrappedTask.getActualTask().getEstimatedMemoryUsage());
+    } catch (Exception e) {
+      logger.log(Level.WARNING, "Could not estimate the memory usage of task "
+          + wrappedTask.getActualTask().getTaskDescription(), e);
+    }
 
-    while (true) {
+    if (estimatedMemory == 0)
+      return true;
 
-      final int waitingTasks = taskQueue.getNumOfWaitingTasks();
-      final int percentDone = taskQueue.getTotalPercentComplete();
-      if ((waitingTasks != previousQueueSize) || (percentDone != previousPercentDone)) {
-        previousQueueSize = waitingTasks;
-        previousPercentDone = percentDone;
-        for (TaskControlListener listener : listeners)
-          listener.numberOfWaitingTasksChanged(waitingTasks, percentDone);
+    final long memoryLimit = getTaskMemoryLimit();
+    synchronized (memoryWaitingTasks) {
+      if (memoryWaitingTasks.isEmpty()
+          && ((admittedMemory == 0) || (admittedMemory + estimatedMemory <= memoryLimit))) {
+        admittedMemory += estimatedMemory;
+        wrappedTask.setAdmittedMemory(estimatedMemory);
+        return true;
       }
+      wrappedTask.setEstimatedMemory(estimatedMemory);
+      wrappedTask.unassign();
+      memoryWaitingTasks.add(wrappedTask);
+    }
 
-      // If the queue is empty, we can sleep. When new task is added into
-      // the queue, we will be awaken by notify()
-      synchronized (this) {
-        while (taskQueue.isEmpty()) {
-          try {
-            this.wait();
-          } catch (InterruptedException e) {
-            // Ignore
-          }
+    // Running tasks may have finished in the meantime
+    admitWaitingTasks();
+    return false;
+  }
+
+  /**
+   * Starts the waiting tasks in their order, as long as their estimated memory usage fits. If no
+   * task with an estimate is running, the first waiting task is started regardless of its estimate.
+   */
+  private void admitWaitingTasks() {
+
+    final long memoryLimit = getTaskMemoryLimit();
+    final ArrayList<WrappedTask> admittedTasks = new ArrayList<WrappedTask>();
+
+    synchronized (memoryWaitingTasks) {
+      Iterator<WrappedTask> iterator = memoryWaitingTasks.iterator();
+      while (iterator.hasNext()) {
+        WrappedTask wrappedTask = iterator.next();
+
+        // Canceled tasks do not need any memory, their runner just skips them
+        if (wrappedTask.getActualTask().getStatus() == TaskStatus.CANCELED) {
+          iterator.remove();
+          admittedTasks.add(wrappedTask);
+          continue;
         }
-      }
 
-      // Check if all tasks in the queue are finished
-      if (taskQueue.allTasksFinished()) {
-        taskQueue.clear();
-        continue;
-      }
+        final long estimatedMemory = wrappedTask.getEstimatedMemory();
+        if ((admittedMemory > 0) && (admittedMemory + estimatedMemory > memoryLimit))
+          break;
 
-      // Remove already finished threads from runningThreads
-      Iterator<WorkerThread> threadIterator = runningThreads.iterator();
-      while (threadIterator.hasNext()) {
-        WorkerThread thread = threadIterator.next();
-        if (thread.isFinished())
-          threadIterator.remove();
+        admittedMemory += estimatedMemory;
+        wrappedTask.setAdmittedMemory(estimatedMemory);
+        iterator.remove();
+        admittedTasks.add(wrappedTask);
       }
 
-      // Get a snapshot of the queue
-      WrappedTask[] queueSnapshot = taskQueue.getQueueSnapshot();
+      if (!memoryWaitingTasks.isEmpty())
+        logger.finest(memoryWaitingTasks.size() + " tasks are waiting for "
+            + (memoryWaitingTasks.getFirst().getEstimatedMemory() >> 20) + " MB of memory, "
+            + (admittedMemory >> 20) + " MB of " + (memoryLimit >> 20)
+            + " MB are used by running tasks");
+    }
+
+    for (WrappedTask wrappedTask : admittedTasks)
+      startTask(wrappedTask);
+  }
+
+  /**
+   * Called by the task runner when a task is finished, to release its memory
+   */
+  void taskFinished(WrappedTask wrappedTask) {
+    addTelemetry(wrappedTask.getTelemetry());
+    final long releasedMemory = wrappedTask.releaseAdmittedMemory();
+    if (releasedMemory == 0)
+      return;
+    synchronized (memoryWaitingTasks) {
+      admittedMemory -= releasedMemory;
+    }
+    admitWaitingTasks();
+  }
+
+  /**
+   * Returns the memory available to the running tasks, as configured in the preferences
+   */
+  private long getTaskMemoryLimit() {
+    double fraction = 0.7;
+    if ((MZmineCore.getConfiguration() != null)
+        && (MZmineCore.getConfiguration().getPreferences() != null)) {
+      Double value = MZmineCore.getConfiguration().getPreferences()
+          .getParameter(MZminePreferences.taskMemoryLimit).getValue();
+      if (value != null)
+        fraction = value;
+    }
+    return (long) (Runtime.getRuntime().maxMemory() * fraction);
+  }
 
-      // Obtain the settings of max concurrent threads
-      NumOfThreadsParameter parameter = MZmineCore.getConfiguration().getPreferences()
-          .getParameter(MZminePreferences.numOfThreads);
-      int maxRunningThreads;
-      if (parameter.isAutomatic() || (parameter.getValue() == null))
-        maxRunningThreads = Runtime.getRuntime().availableProcessors();
-      else
-        maxRunningThreads = parameter.getValue();
+  /**
+   * Starts processing of the task, on a thread of its own if it has HIGH priority
+   */
+  private void startTask(WrappedTask wrappedTask) {
+    final TaskRunner runner = new TaskRunner(this, wrappedTask);
+    if (wrappedTask.getPriority() == TaskPriority.HIGH)
+      highPriorityExecutor.execute(runner::invoke);
+    else
+      getWorkerPool().execute(runner);
+  }
 
-      // Check all tasks in the queue
-      for (WrappedTask task : queueSnapshot) {
+  /**
+   * Forks the sub-task into the worker pool. If called from a thread of the pool, the sub-task is
+   * pushed to the queue of that thread, so idle threads can steal it and the calling thread
+   * processes it itself when it joins before the sub-task was stolen.
+   */
+  @Override
+  public ForkJoinTask<?> forkSubTask(Task subTask) {
+    final TaskTelemetry telemetry = new TaskTelemetry(subTask, true);
+    final ForkJoinTask<?> forkedTask = ForkJoinTask.adapt(() -> runSubTask(subTask, telemetry));
+    if (ForkJoinTask.inForkJoinPool())
+      forkedTask.fork();
+    else
+      getWorkerPool().execute(forkedTask);
+    return forkedTask;
+  }
 
-        // Skip assigned and canceled tasks
-        if (task.isAssigned() || (task.getActualTask().getStatus() == TaskStatus.CANCELED))
-          continue;
+  private void runSubTask(Task subTask, TaskTelemetry telemetry) {
+    if (subTask.getStatus() == TaskStatus.CANCELED) {
+      telemetry.finished(subTask);
+      addTelemetry(telemetry);
+      return;
+    }
+    telemetry.started();
+    try {
+      subTask.run();
+    } catch (Throwable e) {
+      logger.log(Level.SEVERE,
+          "Unhandled exception " + e + " while processing sub-task " + subTask.getTaskDescription(),
+          e);
+      if (subTask instanceof AbstractTask) {
+        ((AbstractTask) subTask).setErrorMessage(e.toString());
+        ((AbstractTask) subTask).setStatus(TaskStatus.ERROR);
+      }
+    } finally {
+      telemetry.finished(subTask);
+      addTelemetry(telemetry);
+    }
+  }
 
-        // Create a new thread if the task is high-priority or if we
-        // have less then maximum # of threads running
-        if ((task.getPriority() == TaskPriority.HIGH)
-            || (runningThreads.size() < maxRunningThreads)) {
-          WorkerThread newThread = new WorkerThread(task);
+  private void addTelemetry(TaskTelemetry telemetry) {
+    synchronized (telemetryLog) {
+      telemetryLog.add(telemetry);
+      if (telemetryLog.size() > MAX_TELEMETRY_RECORDS)
+        telemetryLog.removeFirst();
+    }
+  }
 
-          if (task.getPriority() == TaskPriority.NORMAL) {
-            runningThreads.add(newThread);
-          }
+  /**
+   * @return performance values of the finished tasks and sub-tasks, oldest first
+   */
+  public List<TaskTelemetry> getTelemetry() {
+    synchronized (telemetryLog) {
+      return new ArrayList<TaskTelemetry>(telemetryLog);
+    }
+  }
 
-          newThread.start();
-        }
+  /**
+   * Writes the performance values of all finished tasks as timeline, to the given CSV file and to a
+   * JSON file of the same name
+   */
+  public void writeTimeline(File csvFile) throws IOException {
+    final List<TaskTelemetry> records = getTelemetry();
+    TaskTelemetry.writeCSV(records, csvFile);
+    String jsonName = csvFile.getName().replaceFirst("\\.csv$", "") + ".json";
+    TaskTelemetry.writeJSON(records, new File(csvFile.getParentFile(), jsonName));
+    logger.info("Wrote the timeline of " + records.size() + " tasks to " + csvFile);
+  }
+
+  /**
+   * Notifies the listeners about the progress and refreshes the Task progress window. Runs in the
+   * task controller thread.
+   */
+  private void refreshQueue() {
+
+    try {
+      final int waitingTasks = taskQueue.getNumOfWaitingTasks();
+      final int percentDone = taskQueue.getTotalPercentComplete();
+      if ((waitingTasks != previousQueueSize) || (percentDone != previousPercentDone)) {
+        previousQueueSize = waitingTasks;
+        previousPercentDone = percentDone;
+        for (TaskControlListener listener : listeners)
+          listener.numberOfWaitingTasksChanged(waitingTasks, percentDone);
       }
 
-      // Tell the queue to refresh the Task progress window
-      taskQueue.refresh();
+      // Start tasks that were canceled while waiting for memory, or fit after a change of the
+      // preferences
+      admitWaitingTasks();
 
-      // Sleep for a while until next update
-      try {
-        Thread.sleep(TASKCONTROLLER_THREAD_SLEEP);
-      } catch (InterruptedException e) {
-        // Ignore
+      if (taskQueue.isEmpty())
+        return;
+
+      // Check if all tasks in the queue are finished
+      if (taskQueue.allTasksFinished()) {
+        taskQueue.clear();
+        return;
       }
 
+      // Tell the queue to refresh the Task progress window
+      taskQueue.refresh();
+    } catch (Throwable e) {
+      // An exception would stop the scheduled refreshing
+      logger.log(Level.WARNING, "Error while refreshing the task queue", e);
     }
 
   }
@@ -247,6 +469,18 @@ public class TaskControllerImpl implements TaskController, Runnable {
             "Setting priority of task \"" + task.getTaskDescription() + "\" to " + priority);
         wrappedTask.setPriority(priority);
 
+        // A waiting task gets a thread of its own, its runner in the pool will skip it. Tasks
+        // waiting for memory are started, too, as requested by the user.
+        if ((priority == TaskPriority.HIGH) && !wrappedTask.isAssigned()) {
+          synchronized (memoryWaitingTasks) {
+            if (memoryWaitingTasks.remove(wrappedTask)) {
+              admittedMemory += wrappedTask.getEstimatedMemory();
+              wrappedTask.setAdmittedMemory(wrappedTask.getEstimatedMemory());
+            }
+          }
+          startTask(wrappedTask);
+        }
+
         // Call refresh to re-sort the queue according to new priority
         // and update the Task progress window
         taskQueue.refresh();
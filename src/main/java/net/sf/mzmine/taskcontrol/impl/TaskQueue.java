@@ -157,7 +157,8 @@ public class TaskQueue extends AbstractTableModel {
 
   /* TableModel implementation */
 
-  private static final String columns[] = {"Item", "Priority", "Status", "% done"};
+  private static final String columns[] = {"Item", "Priority", "Status", "% done", "Waited",
+      "Run time", "CPU time", "Allocated", "Read", "Written"};
 
   /**
    * @see javax.swing.table.TableModel#getRowCount()
@@ -204,6 +205,18 @@ public class TaskQueue extends AbstractTableModel {
             progressBar.setValue(finishedPercentage);
           }
           return progressBar;
+        case 4:
+          return formatTime(wrappedTask.getTelemetry().getWaitTime());
+        case 5:
+          return formatTime(wrappedTask.getTelemetry().getRunTime());
+        case 6:
+          return formatTime(wrappedTask.getTelemetry().getCpuTime());
+        case 7:
+          return formatBytes(wrappedTask.getTelemetry().getAllocatedBytes());
+        case 8:
+          return formatBytes(wrappedTask.getTelemetry().getBytesRead());
+        case 9:
+          return formatBytes(wrappedTask.getTelemetry().getBytesWritten());
       }
     }
 
@@ -211,6 +224,22 @@ public class TaskQueue extends AbstractTableModel {
 
   }
 
+  private static String formatTime(long milliseconds) {
+    if (milliseconds < 0)
+      return "";
+    if (milliseconds < 60000)
+      return String.format("%.1f s", milliseconds / 1000.0);
+    return String.format("%d:%02d min", milliseconds / 60000, (milliseconds / 1000) % 60);
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes < 0)
+      return "";
+    if (bytes < (10L << 20))
+      return (bytes >> 10) + " KB";
+    return (bytes >> 20) + " MB";
+  }
+
   /**
    * @see javax.swing.table.TableModel#getColumnClass(int)
    */
@@ -224,8 +253,9 @@ public class TaskQueue extends AbstractTableModel {
         return TaskStatus.class;
       case 3:
         return LabeledProgressBar.class;
+      default:
+        return String.class;
     }
-    return null;
 
   }
 
@@ -15,9 +15,9 @@
  * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
  * USA
  */
-
 package net.sf.mzmine.taskcontrol.impl;
 
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,28 +27,55 @@ import net.sf.mzmine.taskcontrol.TaskStatus;
 import net.sf.mzmine.util.ExceptionUtils;
 
 /**
- * Task controller worker thread, this thread will process one task and then finish
+ * Processes one task of the task controller queue, either on the worker pool or on a thread of its
+ * own for high-priority tasks. A task is only processed once, even if its runner was started twice
+ * because its priority was raised while it was waiting.
  */
-class WorkerThread extends Thread {
+class TaskRunner extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
 
   private Logger logger = Logger.getLogger(this.getClass().getName());
 
-  private WrappedTask wrappedTask;
-  private boolean finished = false;
+  private final TaskControllerImpl taskController;
+  private final WrappedTask wrappedTask;
 
-  WorkerThread(WrappedTask wrappedTask) {
-    super("Thread executing task " + wrappedTask);
+  TaskRunner(TaskControllerImpl taskController, WrappedTask wrappedTask) {
+    this.taskController = taskController;
     this.wrappedTask = wrappedTask;
-    wrappedTask.assignTo(this);
   }
 
   /**
-   * @see java.lang.Runnable#run()
+   * @see java.util.concurrent.RecursiveAction#compute()
    */
-  public void run() {
+  @Override
+  protected void compute() {
+
+    // Skip tasks that are processed by another runner
+    if (!wrappedTask.assignTo(Thread.currentThread()))
+      return;
 
     Task actualTask = wrappedTask.getActualTask();
 
+    // Skip tasks that were canceled while waiting
+    if (actualTask.getStatus() == TaskStatus.CANCELED) {
+      wrappedTask.getTelemetry().finished(actualTask);
+      wrappedTask.setFinished();
+      taskController.taskFinished(wrappedTask);
+      return;
+    }
+
+    // Tasks whose estimated memory usage does not fit are started again by a new runner
+    if (!taskController.admitTask(wrappedTask))
+      return;
+
+    wrappedTask.getTelemetry().started();
+
+    // Name the thread after the task, as long as it is processing it
+    final Thread thread = Thread.currentThread();
+    final String threadName = thread.getName();
+    thread.setName("Thread executing task " + wrappedTask);
+
     try {
 
       // Log the start (INFO level events go to the Status bar, too)
@@ -92,23 +119,17 @@ class WorkerThread extends Thread {
           "Unhandled exception " + e + " while processing task " + actualTask.getTaskDescription(),
           e);
 
-      e.printStackTrace();
-
       MZmineCore.getDesktop().displayErrorMessage(MZmineCore.getDesktop().getMainWindow(),
           "Unhandled exception in task " + actualTask.getTaskDescription() + ": "
               + ExceptionUtils.exceptionToString(e));
 
+    } finally {
+      thread.setName(threadName);
+      wrappedTask.getTelemetry().finished(actualTask);
+      wrappedTask.setFinished();
+      taskController.taskFinished(wrappedTask);
     }
 
-    /*
-     * Mark this thread as finished
-     */
-    finished = true;
-
-  }
-
-  boolean isFinished() {
-    return finished;
   }
 
 }
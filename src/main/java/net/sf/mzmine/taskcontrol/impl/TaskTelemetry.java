@@ -0,0 +1,307 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.taskcontrol.impl;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import net.sf.mzmine.project.impl.DataPointsIOCounter;
+import net.sf.mzmine.taskcontrol.Task;
+import net.sf.mzmine.taskcontrol.TaskStatus;
+
+/**
+ * Performance values of one task run by the task controller: the time spent waiting in the queue,
+ * the wall time and CPU time of the run, the bytes allocated on the heap and the bytes of data
+ * points read from and written to the raw data storage. Values are measured on the thread running
+ * the task, so a task that processes its own sub-tasks while joining them includes their values.
+ * Sub-tasks have records of their own, which refer to the record of their parent task.
+ * 
+ * While the task is running, the getters return the values measured so far.
+ */
+public class TaskTelemetry {
+
+  private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+  private static final AtomicLong idCounter = new AtomicLong();
+
+  // Record of the task running in the current thread, to link sub-tasks to their parent
+  private static final ThreadLocal<TaskTelemetry> currentTelemetry = new ThreadLocal<>();
+
+  private final long id;
+  private final TaskTelemetry parent;
+  private final String taskClass;
+  private String description;
+
+  private final long queuedTime;
+  private final long queuedNanos;
+  private volatile long startNanos = 0, endNanos = 0;
+
+  private volatile Thread thread;
+  private String threadName;
+  private TaskTelemetry previousTelemetry;
+  private DataPointsIOCounter ioCounter;
+  private long startCpuTime, startAllocatedBytes, startBytesRead, startBytesWritten;
+  private volatile long cpuTime = -1, allocatedBytes = -1, bytesRead = 0, bytesWritten = 0;
+  private volatile TaskStatus status;
+
+  /**
+   * Creates the record of a task that was just added to the queue, or forked by the task running
+   * in the current thread
+   */
+  TaskTelemetry(Task task, boolean subTask) {
+    this.id = idCounter.incrementAndGet();
+    this.parent = subTask ? currentTelemetry.get() : null;
+    this.taskClass = task.getClass().getSimpleName();
+    this.description = task.getTaskDescription();
+    this.queuedTime = System.currentTimeMillis();
+    this.queuedNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts measuring in the current thread
+   */
+  void started() {
+    final Thread currentThread = Thread.currentThread();
+    threadName = currentThread.getName();
+    ioCounter = DataPointsIOCounter.getForCurrentThread();
+    startCpuTime = getThreadCpuTime(currentThread);
+    startAllocatedBytes = getThreadAllocatedBytes(currentThread);
+    startBytesRead = ioCounter.getBytesRead();
+    startBytesWritten = ioCounter.getBytesWritten();
+    previousTelemetry = currentTelemetry.get();
+    currentTelemetry.set(this);
+    startNanos = System.nanoTime();
+    // Set last, other threads only read the start values once they see the running thread
+    thread = currentThread;
+  }
+
+  /**
+   * Stops measuring, must be called in the thread that called started(), if any
+   */
+  void finished(Task task) {
+    endNanos = System.nanoTime();
+    status = task.getStatus();
+    description = task.getTaskDescription();
+    if (thread == null) {
+      // The task was canceled before it started
+      startNanos = endNanos;
+      return;
+    }
+    cpuTime = difference(getThreadCpuTime(thread), startCpuTime);
+    allocatedBytes = difference(getThreadAllocatedBytes(thread), startAllocatedBytes);
+    bytesRead = ioCounter.getBytesRead() - startBytesRead;
+    bytesWritten = ioCounter.getBytesWritten() - startBytesWritten;
+    thread = null;
+    currentTelemetry.set(previousTelemetry);
+    previousTelemetry = null;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return ID of the record of the parent task, or 0 if this is not a sub-task
+   */
+  public long getParentId() {
+    return parent == null ? 0 : parent.id;
+  }
+
+  public String getTaskClass() {
+    return taskClass;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * @return name of the thread that ran the task, or null if it did not start
+   */
+  public String getThreadName() {
+    return threadName;
+  }
+
+  /**
+   * @return time the task was added, in milliseconds since the epoch
+   */
+  public long getQueuedTime() {
+    return queuedTime;
+  }
+
+  /**
+   * @return status the task finished with, or null if it is not finished
+   */
+  public TaskStatus getStatus() {
+    return status;
+  }
+
+  public boolean isStarted() {
+    return startNanos != 0;
+  }
+
+  /**
+   * @return time spent waiting in the queue, in milliseconds
+   */
+  public long getWaitTime() {
+    final long start = isStarted() ? startNanos : System.nanoTime();
+    return (start - queuedNanos) / 1000000L;
+  }
+
+  /**
+   * @return wall time of the run, in milliseconds
+   */
+  public long getRunTime() {
+    if (!isStarted())
+      return 0;
+    final long end = (endNanos != 0) ? endNanos : System.nanoTime();
+    return (end - startNanos) / 1000000L;
+  }
+
+  /**
+   * @return CPU time of the run in milliseconds, or -1 if not supported by the JVM
+   */
+  public long getCpuTime() {
+    final Thread runningThread = thread;
+    final long nanos = (runningThread != null)
+        ? difference(getThreadCpuTime(runningThread), startCpuTime) : cpuTime;
+    return nanos < 0 ? -1 : nanos / 1000000L;
+  }
+
+  /**
+   * @return bytes allocated on the heap during the run, or -1 if not supported by the JVM
+   */
+  public long getAllocatedBytes() {
+    final Thread runningThread = thread;
+    if (runningThread != null)
+      return difference(getThreadAllocatedBytes(runningThread), startAllocatedBytes);
+    return allocatedBytes;
+  }
+
+  public long getBytesRead() {
+    if (thread != null)
+      return ioCounter.getBytesRead() - startBytesRead;
+    return bytesRead;
+  }
+
+  public long getBytesWritten() {
+    if (thread != null)
+      return ioCounter.getBytesWritten() - startBytesWritten;
+    return bytesWritten;
+  }
+
+  private static long difference(long end, long start) {
+    if ((end < 0) || (start < 0))
+      return -1;
+    return end - start;
+  }
+
+  private static long getThreadCpuTime(Thread thread) {
+    try {
+      if (!threadBean.isThreadCpuTimeSupported())
+        return -1;
+      return threadBean.getThreadCpuTime(thread.getId());
+    } catch (UnsupportedOperationException e) {
+      return -1;
+    }
+  }
+
+  private static long getThreadAllocatedBytes(Thread thread) {
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    try {
+      return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(thread.getId());
+    } catch (UnsupportedOperationException e) {
+      return -1;
+    }
+  }
+
+  private static final String csvColumns[] = {"id", "parent id", "task", "description", "thread",
+      "queued", "wait ms", "run ms", "cpu ms", "allocated bytes", "bytes read", "bytes written",
+      "status"};
+
+  /**
+   * Writes the given records as CSV file, one line per task
+   */
+  public static void writeCSV(Collection<TaskTelemetry> records, File file) throws IOException {
+    final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+    try (Writer writer = new FileWriter(file)) {
+      writer.write(String.join(",", csvColumns));
+      writer.write("\n");
+      for (TaskTelemetry record : records) {
+        writer.write(record.id + "," + record.getParentId() + "," + record.taskClass + ","
+            + quote(record.description) + "," + quote(record.threadName) + ","
+            + dateFormat.format(new Date(record.queuedTime)) + "," + record.getWaitTime() + ","
+            + record.getRunTime() + "," + record.getCpuTime() + "," + record.getAllocatedBytes()
+            + "," + record.getBytesRead() + "," + record.getBytesWritten() + ","
+            + (record.status == null ? "" : record.status) + "\n");
+      }
+    }
+  }
+
+  /**
+   * Writes the given records as JSON array, one object per task
+   */
+  public static void writeJSON(Collection<TaskTelemetry> records, File file) throws IOException {
+    try (Writer writer = new FileWriter(file);
+        JsonGenerator generator = Json.createGenerator(writer)) {
+      generator.writeStartArray();
+      for (TaskTelemetry record : records) {
+        generator.writeStartObject();
+        generator.write("id", record.id);
+        if (record.parent != null)
+          generator.write("parentId", record.parent.id);
+        generator.write("task", record.taskClass);
+        generator.write("description", String.valueOf(record.description));
+        if (record.threadName != null)
+          generator.write("thread", record.threadName);
+        generator.write("queued", record.queuedTime);
+        generator.write("waitMs", record.getWaitTime());
+        generator.write("runMs", record.getRunTime());
+        generator.write("cpuMs", record.getCpuTime());
+        generator.write("allocatedBytes", record.getAllocatedBytes());
+        generator.write("bytesRead", record.getBytesRead());
+        generator.write("bytesWritten", record.getBytesWritten());
+        if (record.status != null)
+          generator.write("status", record.status.toString());
+        generator.writeEnd();
+      }
+      generator.writeEnd();
+    }
+  }
+
+  private static String quote(String value) {
+    if (value == null)
+      return "";
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+
+}
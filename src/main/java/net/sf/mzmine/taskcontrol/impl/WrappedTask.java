@@ -28,11 +28,22 @@ public class WrappedTask {
 
   private Task task;
   private TaskPriority priority;
-  private WorkerThread assignedTo;
+  private Thread assignedTo;
+  private volatile boolean finished = false;
+  private long estimatedMemory = 0, admittedMemory = 0;
+  private final TaskTelemetry telemetry;
 
   WrappedTask(Task task, TaskPriority priority) {
     this.task = task;
     this.priority = priority;
+    this.telemetry = new TaskTelemetry(task, false);
+  }
+
+  /**
+   * @return performance values of the task
+   */
+  public TaskTelemetry getTelemetry() {
+    return telemetry;
   }
 
   /**
@@ -47,27 +58,74 @@ public class WrappedTask {
    */
   void setPriority(TaskPriority priority) {
     this.priority = priority;
-    if (assignedTo != null) {
-      switch (priority) {
-        case HIGH:
-          assignedTo.setPriority(Thread.MAX_PRIORITY);
-          break;
-        case NORMAL:
-          assignedTo.setPriority(Thread.NORM_PRIORITY);
-          break;
-      }
-    }
   }
 
   /**
    * @return Returns the assigned.
    */
-  boolean isAssigned() {
+  synchronized boolean isAssigned() {
     return assignedTo != null;
   }
 
-  void assignTo(WorkerThread thread) {
+  /**
+   * Assigns the task to the given thread, unless it is already assigned
+   * 
+   * @return true if the task was assigned to the thread
+   */
+  synchronized boolean assignTo(Thread thread) {
+    if (assignedTo != null)
+      return false;
     assignedTo = thread;
+    return true;
+  }
+
+  /**
+   * @return true if the task was processed
+   */
+  boolean isFinished() {
+    return finished;
+  }
+
+  void setFinished() {
+    finished = true;
+  }
+
+  /**
+   * Releases the task from its thread, so another runner can process it later
+   */
+  synchronized void unassign() {
+    assignedTo = null;
+  }
+
+  /**
+   * Sets the estimated memory usage the task is waiting for, see TaskControllerImpl
+   */
+  synchronized void setEstimatedMemory(long estimatedMemory) {
+    this.estimatedMemory = estimatedMemory;
+  }
+
+  synchronized long getEstimatedMemory() {
+    return estimatedMemory;
+  }
+
+  /**
+   * Sets the estimated memory usage the task was admitted with, see TaskControllerImpl
+   */
+  synchronized void setAdmittedMemory(long admittedMemory) {
+    this.admittedMemory = admittedMemory;
+  }
+
+  synchronized long getAdmittedMemory() {
+    return admittedMemory;
+  }
+
+  /**
+   * Returns the admitted memory and resets it, so it is released only once
+   */
+  synchronized long releaseAdmittedMemory() {
+    final long memory = admittedMemory;
+    admittedMemory = 0;
+    return memory;
   }
 
   /**
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+
+package net.sf.mzmine.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.sf.mzmine.datamodel.MassList;
+import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.parameters.parametertypes.tolerances.MZTolerance;
+
+/**
+ * Splits the m/z axis of the mass lists of a raw data file into slabs which can be processed
+ * independently, e.g. by the chromatogram builders. A boundary is only placed in a gap of the data
+ * where the m/z tolerance ranges of the points on both sides do not overlap, so no chromatogram can
+ * connect points of two slabs and processing the slabs separately gives the same chromatograms as
+ * processing the whole file. If the data has no such gaps, there may be fewer slabs than requested.
+ * 
+ * The mass lists are read only once, when the partition is created. The partition keeps their data
+ * points ordered by slab, so each slab can be processed without reading the mass lists again.
+ */
+public class MZSlabPartition {
+
+  // Memory used per data point: m/z, intensity, scan index and the position in the slab order
+  public static final long BYTES_PER_DATA_POINT = 8 + 8 + 4 + 4;
+
+  // The m/z range is divided into this many bins to find the gaps
+  private static final int NUM_OF_BINS = 1 << 20;
+
+  // Largest number of data points that fit into the arrays
+  private static final long MAX_DATA_POINTS = Integer.MAX_VALUE - 8;
+
+  // Slab i contains the m/z values below boundaries[i], slab i + 1 those from boundaries[i] on
+  private final double boundaries[];
+
+  // Data points of all mass lists, in the order of the scans and of the mass lists
+  private final double mzValues[], intensityValues[];
+  private final int scanIndices[];
+
+  // Indices of the data points ordered by slab, keeping their original order within each slab,
+  // and the position of the first data point of each slab in this order
+  private final int slabOrder[];
+  private final int slabStarts[];
+
+  private MZSlabPartition(double boundaries[], double mzValues[], double intensityValues[],
+      int scanIndices[]) {
+
+    this.boundaries = boundaries;
+    this.mzValues = mzValues;
+    this.intensityValues = intensityValues;
+    this.scanIndices = scanIndices;
+
+    // Stable counting sort of the data points by slab
+    final int numOfSlabs = boundaries.length + 1;
+    slabStarts = new int[numOfSlabs + 1];
+    for (double mz : mzValues)
+      slabStarts[getSlab(mz) + 1]++;
+    for (int slab = 0; slab < numOfSlabs; slab++)
+      slabStarts[slab + 1] += slabStarts[slab];
+    final int nextPositions[] = Arrays.copyOf(slabStarts, numOfSlabs);
+    slabOrder = new int[mzValues.length];
+    for (int i = 0; i < mzValues.length; i++)
+      slabOrder[nextPositions[getSlab(mzValues[i])]++] = i;
+
+  }
+
+  /**
+   * Reads the mass lists of the given scans and creates a partition into at most maxNumOfSlabs
+   * slabs with similar numbers of data points. Data points with an intensity below
+   * minimumIntensity may lie anywhere; they are assumed to never start a chromatogram, so they do
+   * not have to be separated by a gap. Scans without the mass list are skipped.
+   * 
+   * @return the partition, or null if the data points of all mass lists do not fit into arrays
+   */
+  public static @Nullable MZSlabPartition create(@Nonnull Scan scans[],
+      @Nonnull String massListName, @Nonnull MZTolerance mzTolerance, double minimumIntensity,
+      int maxNumOfSlabs) {
+
+    long totalDataPoints = 0;
+    for (Scan scan : scans) {
+      final MassList massList = scan.getMassList(massListName);
+      if (massList != null)
+        totalDataPoints += massList.getNumberOfDataPoints();
+    }
+    if (totalDataPoints > MAX_DATA_POINTS)
+      return null;
+
+    // Read all mass lists once
+    double mzValues[] = new double[(int) totalDataPoints];
+    double intensityValues[] = new double[mzValues.length];
+    int scanIndices[] = new int[mzValues.length];
+    int numOfDataPoints = 0;
+    double minMZ = Double.POSITIVE_INFINITY, maxMZ = Double.NEGATIVE_INFINITY;
+    double mzBuffer[] = new double[0], intensityBuffer[] = new double[0];
+    for (int scanIndex = 0; scanIndex < scans.length; scanIndex++) {
+      final MassList massList = scans[scanIndex].getMassList(massListName);
+      if (massList == null)
+        continue;
+      final int numOfPoints = Math.min(massList.getNumberOfDataPoints(),
+          mzValues.length - numOfDataPoints);
+      if (mzBuffer.length < numOfPoints) {
+        mzBuffer = new double[numOfPoints * 2];
+        intensityBuffer = new double[numOfPoints * 2];
+      }
+      massList.fillDataPoints(mzBuffer, intensityBuffer);
+      System.arraycopy(mzBuffer, 0, mzValues, numOfDataPoints, numOfPoints);
+      System.arraycopy(intensityBuffer, 0, intensityValues, numOfDataPoints, numOfPoints);
+      Arrays.fill(scanIndices, numOfDataPoints, numOfDataPoints + numOfPoints, scanIndex);
+      numOfDataPoints += numOfPoints;
+      for (int i = 0; i < numOfPoints; i++) {
+        if (mzBuffer[i] < minMZ)
+          minMZ = mzBuffer[i];
+        if (mzBuffer[i] > maxMZ)
+          maxMZ = mzBuffer[i];
+      }
+    }
+    if (numOfDataPoints < mzValues.length) {
+      mzValues = Arrays.copyOf(mzValues, numOfDataPoints);
+      intensityValues = Arrays.copyOf(intensityValues, numOfDataPoints);
+      scanIndices = Arrays.copyOf(scanIndices, numOfDataPoints);
+    }
+
+    if ((maxNumOfSlabs < 2) || !(maxMZ > minMZ))
+      return new MZSlabPartition(new double[0], mzValues, intensityValues, scanIndices);
+
+    // Count the data points per bin
+    final double binWidth = (maxMZ - minMZ) / NUM_OF_BINS;
+    final int startCounts[] = new int[NUM_OF_BINS];
+    long totalStartPoints = 0;
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (Double.isNaN(mzValues[i]) || !(intensityValues[i] >= minimumIntensity))
+        continue;
+      startCounts[getBin(mzValues[i], minMZ, binWidth)]++;
+      totalStartPoints++;
+    }
+
+    // Walk through the bins and place a boundary in the first suitable gap after each share of the
+    // data points. The bins next to the gap are included in the test, so rounding in getBin()
+    // cannot move a point closer to the other side.
+    final List<Double> boundaryList = new ArrayList<Double>();
+    long cumulativeCount = 0;
+    int lastBin = -1;
+    for (int bin = 0; (bin < NUM_OF_BINS) && (boundaryList.size() < maxNumOfSlabs - 1); bin++) {
+      if (startCounts[bin] == 0)
+        continue;
+      if ((lastBin >= 0) && (cumulativeCount >= totalStartPoints * (boundaryList.size() + 1)
+          / maxNumOfSlabs)) {
+        final double leftReach = mzTolerance
+            .getToleranceRange(minMZ + Math.min(lastBin + 2, NUM_OF_BINS) * binWidth)
+            .upperEndpoint();
+        final double rightReach =
+            mzTolerance.getToleranceRange(minMZ + (bin - 1) * binWidth).lowerEndpoint();
+        if (leftReach < rightReach)
+          boundaryList.add((leftReach + rightReach) / 2);
+      }
+      cumulativeCount += startCounts[bin];
+      lastBin = bin;
+    }
+
+    final double boundaries[] = new double[boundaryList.size()];
+    for (int i = 0; i < boundaries.length; i++)
+      boundaries[i] = boundaryList.get(i);
+
+    return new MZSlabPartition(boundaries, mzValues, intensityValues, scanIndices);
+
+  }
+
+  private static int getBin(double mz, double minMZ, double binWidth) {
+    final int bin = (int) ((mz - minMZ) / binWidth);
+    return Math.max(0, Math.min(NUM_OF_BINS - 1, bin));
+  }
+
+  public int getNumberOfSlabs() {
+    return boundaries.length + 1;
+  }
+
+  /**
+   * Returns the slab that contains the given m/z value
+   */
+  public int getSlab(double mz) {
+    // The boundaries are distinct, so the insertion point is the number of boundaries below mz
+    final int index = Arrays.binarySearch(boundaries, mz);
+    return (index >= 0) ? index + 1 : -(index + 1);
+  }
+
+  /**
+   * Returns the number of data points in the given slab
+   */
+  public int getNumberOfDataPoints(int slab) {
+    return slabStarts[slab + 1] - slabStarts[slab];
+  }
+
+  /**
+   * Returns the position of the first data point of the given slab. The data points of the slab
+   * are at the following getNumberOfDataPoints(slab) positions, in the order of the scans and of
+   * the mass lists.
+   */
+  public int getFirstPosition(int slab) {
+    return slabStarts[slab];
+  }
+
+  public double getMZ(int position) {
+    return mzValues[slabOrder[position]];
+  }
+
+  public double getIntensity(int position) {
+    return intensityValues[slabOrder[position]];
+  }
+
+  /**
+   * Returns the index of the scan of the data point at the given position, in the scans passed to
+   * create()
+   */
+  public int getScanIndex(int position) {
+    return scanIndices[slabOrder[position]];
+  }
+
+}
@@ -20,8 +20,10 @@ package net.sf.mzmine.util;
 
 import javax.annotation.Nonnull;
 
+import net.sf.mzmine.datamodel.MassList;
 import net.sf.mzmine.datamodel.RawDataFile;
 import net.sf.mzmine.datamodel.Scan;
+import net.sf.mzmine.parameters.parametertypes.selectors.ScanSelection;
 
 import com.google.common.collect.Range;
 
@@ -77,6 +79,23 @@ public class RawDataFileUtils {
     return true;
   }
 
+  /**
+   * Returns the total number of data points in the given mass list of all matching scans, without
+   * reading the data points. Scans without this mass list count with all their data points.
+   */
+  public static long countMassListDataPoints(RawDataFile dataFile, ScanSelection scanSelection,
+      String massListName) {
+    long numOfDataPoints = 0;
+    for (Scan scan : scanSelection.getMatchingScans(dataFile)) {
+      MassList massList = scan.getMassList(massListName);
+      if (massList != null)
+        numOfDataPoints += massList.getNumberOfDataPoints();
+      else
+        numOfDataPoints += scan.getNumberOfDataPoints();
+    }
+    return numOfDataPoints;
+  }
+
   public static int getClosestScanNumber(RawDataFile dataFile, double rt) {
 
     int scanNums[] = dataFile.getScanNumbers();
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Input stream that reads another stream on a separate thread, a limited number of chunks ahead of
+ * the consumer. This allows e.g. decompressing a file while the decompressed contents are parsed.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+  // Size of the chunks read from the source stream
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  // Number of chunks that may be waiting for the consumer
+  private static final int MAX_PENDING_CHUNKS = 64;
+
+  // Marks the end of the source stream in the queue
+  private static final byte[] END_OF_STREAM = new byte[0];
+
+  private final InputStream source;
+  private final BlockingQueue<byte[]> chunks =
+      new ArrayBlockingQueue<byte[]>(MAX_PENDING_CHUNKS);
+  private final Thread readerThread;
+
+  private volatile IOException readError;
+  private volatile boolean closed = false;
+
+  // Chunk being consumed, guarded by the consumer
+  private byte[] currentChunk;
+  private int position;
+  private boolean finished = false;
+
+  /**
+   * Starts reading the source stream on a new daemon thread of the given name. The source stream is
+   * closed when the end is reached or when this stream is closed.
+   */
+  public ReadAheadInputStream(InputStream source, String threadName) {
+    this.source = source;
+    this.readerThread = new Thread(this::readSource, threadName);
+    readerThread.setDaemon(true);
+    readerThread.start();
+  }
+
+  private void readSource() {
+    try {
+      while (!closed) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length = 0;
+        while (length < CHUNK_SIZE) {
+          int n = source.read(chunk, length, CHUNK_SIZE - length);
+          if (n < 0)
+            break;
+          length += n;
+        }
+        if (length > 0)
+          chunks.put(length == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, length));
+        if (length < CHUNK_SIZE)
+          break;
+      }
+    } catch (IOException e) {
+      readError = e;
+    } catch (InterruptedException e) {
+      // Interrupted by close()
+      return;
+    } finally {
+      try {
+        source.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+    try {
+      chunks.put(END_OF_STREAM);
+    } catch (InterruptedException e) {
+      // Interrupted by close()
+    }
+  }
+
+  /**
+   * Makes sure there is a chunk with remaining bytes, unless the end of the source stream was
+   * reached.
+   * 
+   * @return false at the end of the stream
+   */
+  private boolean nextChunk() throws IOException {
+
+    if (finished)
+      return false;
+
+    while ((currentChunk == null) || (position == currentChunk.length)) {
+
+      if (closed)
+        throw new IOException("Stream closed");
+
+      try {
+        currentChunk = chunks.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while reading from " + readerThread.getName());
+      }
+      position = 0;
+
+      if (closed)
+        throw new IOException("Stream closed");
+
+      if (currentChunk == END_OF_STREAM) {
+        finished = true;
+        final IOException e = readError;
+        if (e != null)
+          throw new IOException("Error reading the source stream", e);
+        return false;
+      }
+
+    }
+
+    return true;
+
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!nextChunk())
+      return -1;
+    return currentChunk[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!nextChunk())
+      return -1;
+    final int n = Math.min(len, currentChunk.length - position);
+    System.arraycopy(currentChunk, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    if ((currentChunk == null) || finished)
+      return 0;
+    return currentChunk.length - position;
+  }
+
+  /**
+   * Stops the reader thread, which closes the source stream
+   */
+  @Override
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    readerThread.interrupt();
+
+    // Wake up a consumer waiting for the next chunk
+    chunks.clear();
+    chunks.offer(END_OF_STREAM);
+  }
+
+}
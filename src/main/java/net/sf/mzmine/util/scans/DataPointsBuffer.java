@@ -0,0 +1,62 @@
+/*
+ * Copyright 2006-2018 The MZmine 2 Development Team
+ * 
+ * This file is part of MZmine 2.
+ * 
+ * MZmine 2 is free software; you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * MZmine 2 is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with MZmine 2; if not,
+ * write to the Free Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301
+ * USA
+ */
+
+package net.sf.mzmine.util.scans;
+
+import net.sf.mzmine.datamodel.MassSpectrum;
+
+/**
+ * m/z and intensity arrays that belong to the current thread, for reading spectra through
+ * {@link MassSpectrum#fillDataPoints(double[], double[])} without allocating new arrays for every
+ * spectrum.
+ * 
+ * The arrays are only valid until the next call of {@link #get(int)} on the same thread, so they
+ * must not be kept or passed to code that may read another spectrum the same way.
+ */
+public class DataPointsBuffer {
+
+  private static final ThreadLocal<DataPointsBuffer> threadBuffer =
+      ThreadLocal.withInitial(DataPointsBuffer::new);
+
+  private double mzValues[] = new double[0], intensityValues[] = new double[0];
+
+  private DataPointsBuffer() {}
+
+  /**
+   * Returns the buffer of the current thread, able to hold at least the given number of data
+   * points
+   */
+  public static DataPointsBuffer get(int numOfDataPoints) {
+    final DataPointsBuffer buffer = threadBuffer.get();
+    if (buffer.mzValues.length < numOfDataPoints) {
+      final int capacity = Math.max(numOfDataPoints, buffer.mzValues.length * 3 / 2);
+      buffer.mzValues = new double[capacity];
+      buffer.intensityValues = new double[capacity];
+    }
+    return buffer;
+  }
+
+  public double[] getMzValues() {
+    return mzValues;
+  }
+
+  public double[] getIntensityValues() {
+    return intensityValues;
+  }
+
+}
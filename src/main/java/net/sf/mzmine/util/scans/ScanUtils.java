@@ -115,15 +115,23 @@ public class ScanUtils {
   public static @Nonnull DataPoint findBasePeak(@Nonnull Scan scan,
       @Nonnull Range<Double> mzRange) {
 
-    DataPoint dataPoints[] = scan.getDataPointsByMass(mzRange);
-    DataPoint basePeak = null;
-
-    for (DataPoint dp : dataPoints) {
-      if ((basePeak == null) || (dp.getIntensity() > basePeak.getIntensity()))
-        basePeak = dp;
+    final DataPointsBuffer buffer = DataPointsBuffer.get(scan.getNumberOfDataPoints());
+    final double mzValues[] = buffer.getMzValues();
+    final double intensityValues[] = buffer.getIntensityValues();
+    final int numOfDataPoints = scan.fillDataPoints(mzValues, intensityValues);
+    int basePeakIndex = -1;
+
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (!mzRange.contains(mzValues[i]))
+        continue;
+      if ((basePeakIndex < 0) || (intensityValues[i] > intensityValues[basePeakIndex]))
+        basePeakIndex = i;
     }
 
-    return basePeak;
+    if (basePeakIndex < 0)
+      return null;
+
+    return new SimpleDataPoint(mzValues[basePeakIndex], intensityValues[basePeakIndex]);
   }
 
   /**
@@ -135,9 +143,15 @@ public class ScanUtils {
    */
   public static double calculateTIC(Scan scan, Range<Double> mzRange) {
 
+    final DataPointsBuffer buffer = DataPointsBuffer.get(scan.getNumberOfDataPoints());
+    final double mzValues[] = buffer.getMzValues();
+    final double intensityValues[] = buffer.getIntensityValues();
+    final int numOfDataPoints = scan.fillDataPoints(mzValues, intensityValues);
+
     double tic = 0.0;
-    for (final DataPoint dataPoint : scan.getDataPointsByMass(mzRange)) {
-      tic += dataPoint.getIntensity();
+    for (int i = 0; i < numOfDataPoints; i++) {
+      if (mzRange.contains(mzValues[i]))
+        tic += intensityValues[i];
     }
     return tic;
   }
@@ -533,24 +547,21 @@ public class ScanUtils {
     int bestFragmentScan = -1;
     double topBasePeak = 0;
 
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
+    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange, mzRange);
 
     for (int number : fragmentScanNumbers) {
 
       Scan scan = dataFile.getScan(number);
 
-      if (mzRange.contains(scan.getPrecursorMZ())) {
+      DataPoint basePeak = scan.getHighestDataPoint();
 
-        DataPoint basePeak = scan.getHighestDataPoint();
-
-        // If there is no peak in the scan, basePeak can be null
-        if (basePeak == null)
-          continue;
+      // If there is no peak in the scan, basePeak can be null
+      if (basePeak == null)
+        continue;
 
-        if (basePeak.getIntensity() > topBasePeak) {
-          bestFragmentScan = scan.getScanNumber();
-          topBasePeak = basePeak.getIntensity();
-        }
+      if (basePeak.getIntensity() > topBasePeak) {
+        bestFragmentScan = scan.getScanNumber();
+        topBasePeak = basePeak.getIntensity();
       }
 
     }
@@ -571,24 +582,7 @@ public class ScanUtils {
     assert rtRange != null;
     assert mzRange != null;
 
-    int[] fragmentScanNumbers = dataFile.getScanNumbers(2, rtRange);
-    ArrayList<Integer> fragmentScanNumbersInMZRange = new ArrayList<Integer>();
-
-    for (int number : fragmentScanNumbers) {
-
-      Scan scan = dataFile.getScan(number);
-
-      if (mzRange.contains(scan.getPrecursorMZ())) {
-        fragmentScanNumbersInMZRange.add(number);
-      }
-    }
-    int[] resultScans = new int[fragmentScanNumbersInMZRange.size()];
-    if (resultScans.length > 0) {
-      resultScans = fragmentScanNumbersInMZRange.stream().mapToInt(i -> i).toArray();
-    } else {
-      resultScans = new int[] {};
-    }
-    return resultScans;
+    return dataFile.getScanNumbers(2, rtRange, mzRange);
   }
 
   /**
@@ -834,8 +828,10 @@ public class ScanUtils {
 
       // minimum number of signals >= noiseLevel
       int signals = 0;
-      for (DataPoint dp : massList.getDataPoints())
-        if (dp.getIntensity() >= noiseLevel)
+      final int numOfDataPoints = massList.getNumberOfDataPoints();
+      final double intensityValues[] = massList.getIntensityValues(null);
+      for (int i = 0; i < numOfDataPoints; i++)
+        if (intensityValues[i] >= noiseLevel)
           signals++;
       if (signals >= minNumberOfSignals)
         filtered.add(scan);
@@ -917,18 +913,18 @@ public class ScanUtils {
 
     assert scan != null;
     final RawDataFile dataFile = scan.getDataFile();
-    final int scanNumbers[] = dataFile.getScanNumbers();
+    final int ms1ScanNumbers[] = dataFile.getScanNumbers(1);
 
-    int startIndex = Arrays.binarySearch(scanNumbers, scan.getScanNumber());
-
-    for (int i = startIndex; i >= 0; i--) {
-      Scan s = dataFile.getScan(scanNumbers[i]);
-      if (s.getMSLevel() == 1)
-        return s;
-    }
+    // Index of the last MS1 scan number not greater than the number of the given scan
+    int index = Arrays.binarySearch(ms1ScanNumbers, scan.getScanNumber());
+    if (index < 0)
+      index = -index - 2;
 
     // Didn't find any MS1 scan
-    return null;
+    if (index < 0)
+      return null;
+
+    return dataFile.getScan(ms1ScanNumbers[index]);
   }
 
   /**
@@ -938,18 +934,18 @@ public class ScanUtils {
 
     assert scan != null;
     final RawDataFile dataFile = scan.getDataFile();
-    final int scanNumbers[] = dataFile.getScanNumbers();
+    final int ms1ScanNumbers[] = dataFile.getScanNumbers(1);
 
-    int startIndex = Arrays.binarySearch(scanNumbers, scan.getScanNumber());
-
-    for (int i = startIndex; i < scanNumbers.length; i++) {
-      Scan s = dataFile.getScan(scanNumbers[i]);
-      if (s.getMSLevel() == 1)
-        return s;
-    }
+    // Index of the first MS1 scan number not less than the number of the given scan
+    int index = Arrays.binarySearch(ms1ScanNumbers, scan.getScanNumber());
+    if (index < 0)
+      index = -index - 1;
 
     // Didn't find any MS1 scan
-    return null;
+    if (index >= ms1ScanNumbers.length)
+      return null;
+
+    return dataFile.getScan(ms1ScanNumbers[index]);
   }
 
   /**